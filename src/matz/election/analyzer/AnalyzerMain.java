@@ -1,11 +1,18 @@
 package matz.election.analyzer;
 
+import java.io.IOException;
 import java.net.URI;
+import java.util.Arrays;
 
 import org.apache.hadoop.filecache.DistributedCache;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.*;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import matz.election.analyzer.util.JobSetup;
+import matz.election.analyzer.util.LocalJobEngine;
+import matz.election.analyzer.util.TimedMapRunner;
 
 /**本パッケージにおいて、解析のためのエントリポイントとなるクラス。<br>
  * HDFS上のデータをMapReduceプログラムで処理すること、及び、<br>
@@ -43,16 +50,40 @@ public class AnalyzerMain {
 
 	protected final static String PROP_SEQ_INPUT = "SequenceFileInputFormat";
 	protected final static String PROP_TEXT_INPUT = "TextInputFormat";
+	protected final static String PROP_KEY_VALUE_TEXT_INPUT = "KeyValueTextInputFormat";
+	protected final static String PROP_FOLLOW_GRAPH_INPUT = "matz.election.analyzer.util.FollowGraphInputFormat";
 	protected final static String PROP_SEQ_OUTPUT = "SequenceFileOutputFormat";
 	protected final static String PROP_TEXT_OUTPUT = "TextOutputFormat";
+	protected final static String PROP_MAP_FILE_OUTPUT = "MapFileOutputFormat";
+	protected final static String PROP_USER_LIST_OUTPUT = "matz.election.analyzer.util.UserListOutputFormat";
+	protected final static String PROP_FOLLOW_GRAPH_OUTPUT = "matz.election.analyzer.util.FollowGraphOutputFormat";
+	/* 名前付き出力(MultipleOutputs)だけに書くジョブ用。part-*は作られない。 */
+	protected final static String PROP_NULL_OUTPUT = "org.apache.hadoop.mapred.lib.NullOutputFormat";
 	protected final static String PROP_TEXT = "Text";
 	protected final static String PROP_LONG = "LongWritable";
 	protected final static String PROP_INT = "IntWritable";
 	protected final static String PROP_DOUBLE = "DoubleWritable";
+	/* 本パッケージ独自のWritableは完全修飾名で記述する。パッケージ名を含む指定はそのままロードされる。 */
+	protected final static String PROP_TWEET_RECORD = "matz.election.analyzer.util.TweetRecord";
+	protected final static String PROP_KEYED_USER_SET = "matz.election.analyzer.util.KeyedUserSet";
+	protected final static String PROP_MINHASH_SIGNATURE = "matz.election.analyzer.util.MinHashSignature";
+	protected final static String PROP_ADJACENCY_LIST = "matz.election.analyzer.util.AdjacencyList";
+	protected final static String PROP_URL_RESOLUTION = "matz.election.analyzer.util.URLResolution";
+	protected final static String PROP_TAGGED_KEY = "matz.election.analyzer.util.TaggedKey";
+	protected final static String PROP_DEGREE_HISTOGRAM = "matz.election.analyzer.util.DegreeHistogram";
+	protected final static String PROP_HYPERLOGLOG = "matz.election.analyzer.util.HyperLogLog";
+	protected final static String PROP_SPACE_SAVING = "matz.election.analyzer.util.SpaceSaving";
 	
 	protected final static String INPUT_FORMAT_PACKAGE_SUFFIX = "org.apache.hadoop.mapred.";
 	protected final static String WRITABLE_PACKAGE_SUFFIX = "org.apache.hadoop.io.";
 	
+	/* 先頭の引数がこれで始まる場合は、LocalJobEngineでこのJVM内で実行する。"-local:<スレッド数>"でスレッド数を指定できる。 */
+	protected final static String LOCAL_OPTION = "-local";
+	/* 先頭の引数(-localの後)がこれなら、パイプライン定義ファイルに従って複数のジョブを続けて実行する。Pipeline参照。 */
+	protected final static String PIPELINE_OPTION = "-pipeline";
+	/* 先頭の引数(-localの後)がこれで始まる場合は、偏ったKeyをReducerに分散させて2段階で実行する。"-skew:<Key>,<Key>..."でKeyを指定できる。SkewAggregation参照。 */
+	protected final static String SKEW_OPTION = "-skew";
+	
 	protected final static String DIST_CACHE = "DistributedCache";
 	protected final static String DIST_LINKNAME = "dist";
 	
@@ -69,6 +100,8 @@ public class AnalyzerMain {
 	 * main関数内で、本配列に登録された各種クラスを名前引きでロードし、jobインスタンスに投入、job実行する。
 	 */
 	protected final static String[][] JOB_PROP = {
+		{"ToRecord","BinaryTweet","ConvertMap","ConvertReduce"," <input_seqFile_Path> <outputPath>",
+			PROP_SEQ_INPUT,PROP_SEQ_OUTPUT,PROP_LONG,PROP_TWEET_RECORD,"0",PROP_LONG,PROP_TWEET_RECORD},
 		{"TweetCount","TweetCount","Map","TextIntReduce"," <input_seqFile_Path> <outputPath>",
 			PROP_SEQ_INPUT,PROP_TEXT_OUTPUT,PROP_TEXT,PROP_INT,SINGLE_REDUCE_NUM},
 		{"UserTweetCount","TweetCount","UserTweetMap","TextIntReduce"," <input_seqFile_Path> <outputPath>",
@@ -89,22 +122,26 @@ public class AnalyzerMain {
 			PROP_SEQ_INPUT,PROP_TEXT_OUTPUT,PROP_LONG,PROP_INT,SINGLE_REDUCE_NUM},
 		{"RetweetFreq","TweetCount","RetweetFreqMap","IntIntReduce"," <input_textFile_Path> <outputPath>",
 			PROP_TEXT_INPUT,PROP_TEXT_OUTPUT,PROP_INT,PROP_INT,SINGLE_REDUCE_NUM},
+		{"CorpusProfile","CorpusProfile","ProfileMap","ProfileReduce"," <input_seqFile_Path> <outputPath>[ <stats(comma-separated)>]",
+			PROP_SEQ_INPUT,PROP_NULL_OUTPUT,PROP_TAGGED_KEY,PROP_INT,BALANCED_REDUCE_NUM,PROP_TAGGED_KEY,PROP_INT},
 		{"URLCount","URLTweet","URLCountMap","TextIntReduce"," <input_seqFile_Path> <outputPath>",
 			PROP_SEQ_INPUT,PROP_TEXT_OUTPUT,PROP_TEXT,PROP_INT,BALANCED_REDUCE_NUM},
-		{"URLRefer","URLTweet","URLReferMap","URLReferReduce"," <input_seqFile_Path> <outputPath>[ <th>]",
+		{"URLRefer","URLTweet","URLReferMap","URLReferReduce"," <input_seqFile_Path> <outputPath>[ <th>[ <maxInFlight>[ <urlCache_Path>]]]",
 			PROP_SEQ_INPUT,PROP_TEXT_OUTPUT,PROP_TEXT,PROP_LONG,BALANCED_REDUCE_NUM,PROP_TEXT,PROP_LONG},
 		{"URLReferList","URLTweet","URLReferListMap","URLReferListReduce"," <input_textFile_Path> <outputPath>",
 			PROP_TEXT_INPUT,PROP_TEXT_OUTPUT,PROP_TEXT,PROP_TEXT,BALANCED_REDUCE_NUM},
-		{"URLJoin","URLTweet","URLJoinMap","URLJoinReduce"," <input_textFile_Path> <outputPath>",
-			PROP_TEXT_INPUT,PROP_TEXT_OUTPUT,PROP_TEXT,PROP_TEXT,SINGLE_REDUCE_NUM,PROP_INT,PROP_TEXT},
+		{"URLJoin","SimilarityJoin","BlockJoinMap","BlockJoinReduce"," <input_textFile_Path> <outputPath>[ <blocks>]",
+			PROP_TEXT_INPUT,PROP_TEXT_OUTPUT,PROP_TEXT,PROP_TEXT,BALANCED_REDUCE_NUM,PROP_INT,PROP_TEXT},
 		{"URLFreq","URLTweet","URLFreqMap","IntIntReduce"," <input_textFile_Path> <outputPath>",
 			PROP_TEXT_INPUT,PROP_TEXT_OUTPUT,PROP_INT,PROP_INT,SINGLE_REDUCE_NUM},
 		{"BuzzExtract","URLTweet","BuzzExtractMap","BuzzExtractReduce"," <input_textFile_Path> <outputPath> [<buzzThreshold>]",
 			PROP_TEXT_INPUT,PROP_TEXT_OUTPUT,PROP_INT,PROP_TEXT,SINGLE_REDUCE_NUM},
-		{"BuzzURLExpand","URLTweet","BuzzURLExpandMap","TextIntReduce"," <input_textFile_Path> <outputPath>",
+		{"BuzzURLExpand","URLTweet","BuzzURLExpandMap","TextIntReduce"," <input_textFile_Path> <outputPath>[ <maxInFlight>[ <urlCache_Path>]]",
 			PROP_TEXT_INPUT,PROP_TEXT_OUTPUT,PROP_TEXT,PROP_INT,BALANCED_REDUCE_NUM},
 		{"PoliticalTweet","PoliticalTweet","PoliticalTweetMap","PoliticalTweetReduce"," <input_seqFile_Path> <outputPath>",
 			PROP_SEQ_INPUT,PROP_SEQ_OUTPUT,PROP_LONG,PROP_TEXT,BALANCED_REDUCE_NUM},
+		{"PoliticalRecord","PoliticalTweet","PoliticalTweetMap","PoliticalTweetReduce"," <input_recordSeqFile_Path> <outputPath>",
+			PROP_SEQ_INPUT,PROP_SEQ_OUTPUT,PROP_LONG,PROP_TWEET_RECORD,BALANCED_REDUCE_NUM},
 		{"PartyBuzz","PoliticalTweet","PartyBuzzMap","TextIntReduce"," <input_seqFile_Path> <outputPath>",
 			PROP_SEQ_INPUT,PROP_TEXT_OUTPUT,PROP_TEXT,PROP_INT,SINGLE_REDUCE_NUM},
 		{"TopicURLCount","PoliticalTweet","TopicURLCountMap","TextIntReduce"," <input_seqFile_Path> <outputPath> <topic query>",
@@ -113,9 +150,11 @@ public class AnalyzerMain {
 			PROP_SEQ_INPUT,PROP_SEQ_OUTPUT,PROP_TEXT,PROP_LONG,BALANCED_REDUCE_NUM},
 		{"TopicURLUserText","PoliticalTweet","TopicURLUserMap","TopicURLUserReduce"," <input_seqFile_Path> <outputPath> <topic query>",
 			PROP_SEQ_INPUT,PROP_TEXT_OUTPUT,PROP_TEXT,PROP_LONG,SINGLE_REDUCE_NUM},
-		{"URLExpand","URLTweet","URLExpandMap","TextIntReduce"," <input_seqFile_Path> <outputPath>",
+		{"URLExpand","URLTweet","URLExpandMap","TextIntReduce"," <input_seqFile_Path> <outputPath>[ <maxInFlight>[ <urlCache_Path>]]",
 			PROP_SEQ_INPUT,PROP_SEQ_OUTPUT,PROP_TEXT,PROP_INT,BALANCED_REDUCE_NUM},
-		{"TopicURLTitle","PoliticalTweet","TopicURLTitleMap","TextIntReduce"," <input_textFile_Path> <outputPath> [<threshold>]",
+		{"URLCacheMerge","URLCache","MergeMap","MergeReduce"," <urlCache_Path>/resolved,<urlCache_Path>/pending <outputPath>",
+			PROP_SEQ_INPUT,PROP_MAP_FILE_OUTPUT,PROP_TEXT,PROP_URL_RESOLUTION,BALANCED_REDUCE_NUM,PROP_TEXT,PROP_URL_RESOLUTION},
+		{"TopicURLTitle","PoliticalTweet","TopicURLTitleMap","TextIntReduce"," <input_textFile_Path> <outputPath> [<threshold>[ <urlCache_Path>]]",
 			PROP_SEQ_INPUT,PROP_TEXT_OUTPUT,PROP_TEXT,PROP_INT,SINGLE_REDUCE_NUM},
 		{"SeqToText","URLTweet","SeqToTextMap","TextIntReduce"," <input_textFile_Path> <outputPath>",
 			PROP_SEQ_INPUT,PROP_TEXT_OUTPUT,PROP_TEXT,PROP_INT,SINGLE_REDUCE_NUM},
@@ -123,22 +162,38 @@ public class AnalyzerMain {
 			PROP_TEXT_INPUT,PROP_TEXT_OUTPUT,PROP_TEXT,PROP_TEXT,SINGLE_REDUCE_NUM},
 		{"ThresholdURL","PoliticalTweet","ThresholdURLMap","ThresholdURLReduce"," <input_textFile_Path> <outputPath>[ <th>]",
 			PROP_TEXT_INPUT,PROP_TEXT_OUTPUT,PROP_TEXT,PROP_TEXT,SINGLE_REDUCE_NUM},
-		{"PairedURL","PoliticalTweet","PairedURLMap","PairedURLReduce"," <input_textFile_Path> <outputPath>",
-			PROP_TEXT_INPUT,PROP_TEXT_OUTPUT,PROP_TEXT,PROP_TEXT,SINGLE_REDUCE_NUM,PROP_INT,PROP_TEXT},
+		{"PairedURL","SimilarityJoin","BlockJoinMap","BlockJoinReduce"," <input_textFile_Path> <outputPath>[ <blocks>]",
+			PROP_TEXT_INPUT,PROP_TEXT_OUTPUT,PROP_TEXT,PROP_TEXT,BALANCED_REDUCE_NUM,PROP_INT,PROP_TEXT},
 		{"JaccardLink","GraphAnalysis","JaccardLinkMap","JaccardLinkReduce"," <input_textFile_Path> <outputPath>[ <th in Double>]",
 			PROP_TEXT_INPUT,PROP_TEXT_OUTPUT,PROP_TEXT,PROP_DOUBLE,SINGLE_REDUCE_NUM},
 		{"JaccardLinkDec","GraphAnalysis","JaccardLinkDecodeMap","JaccardLinkReduce"," <input_textFile_Path> <outputPath>[ <th in Double>]",
 			PROP_TEXT_INPUT,PROP_TEXT_OUTPUT,PROP_TEXT,PROP_DOUBLE,SINGLE_REDUCE_NUM},
+		{"PrefixJaccard","SimilarityJoin","PrefixJaccardMap","PrefixJaccardReduce"," <input_textFile_Path> <outputPath> <th in Double>",
+			PROP_TEXT_INPUT,PROP_TEXT_OUTPUT,PROP_TEXT,PROP_DOUBLE,BALANCED_REDUCE_NUM,PROP_LONG,PROP_KEYED_USER_SET},
+		{"RTPrefixJaccard","SimilarityJoin","RTPrefixJaccardMap","PrefixJaccardReduce"," <input_seqFile_Path> <outputPath> <th in Double>",
+			PROP_SEQ_INPUT,PROP_TEXT_OUTPUT,PROP_TEXT,PROP_DOUBLE,BALANCED_REDUCE_NUM,PROP_LONG,PROP_KEYED_USER_SET},
+		{"RTPrefixJaccardDec","SimilarityJoin","RTPrefixJaccardMap","PrefixJaccardDecodeReduce"," <input_seqFile_Path> <outputPath> <th in Double>",
+			PROP_SEQ_INPUT,PROP_TEXT_OUTPUT,PROP_TEXT,PROP_DOUBLE,BALANCED_REDUCE_NUM,PROP_LONG,PROP_KEYED_USER_SET},
+		{"MinHash","MinHashLSH","MinHashMap","MinHashReduce"," <input_textFile_Path> <outputPath>[ <numHashes>]",
+			PROP_TEXT_INPUT,PROP_SEQ_OUTPUT,PROP_TEXT,PROP_MINHASH_SIGNATURE,"0",PROP_TEXT,PROP_MINHASH_SIGNATURE},
+		{"RTMinHash","MinHashLSH","RTMinHashMap","MinHashReduce"," <input_seqFile_Path> <outputPath>[ <numHashes>]",
+			PROP_SEQ_INPUT,PROP_SEQ_OUTPUT,PROP_TEXT,PROP_MINHASH_SIGNATURE,"0",PROP_TEXT,PROP_MINHASH_SIGNATURE},
+		{"LSH","MinHashLSH","LSHMap","LSHReduce"," <input_seqFile_Path> <outputPath>[ <bands>[ <th in Double>]]",
+			PROP_SEQ_INPUT,PROP_TEXT_OUTPUT,PROP_TEXT,PROP_DOUBLE,BALANCED_REDUCE_NUM,PROP_LONG,PROP_MINHASH_SIGNATURE},
+		{"LSHDec","MinHashLSH","LSHMap","LSHDecodeReduce"," <input_seqFile_Path> <outputPath>[ <bands>[ <th in Double>]]",
+			PROP_SEQ_INPUT,PROP_TEXT_OUTPUT,PROP_TEXT,PROP_DOUBLE,BALANCED_REDUCE_NUM,PROP_LONG,PROP_MINHASH_SIGNATURE},
 		{"Retweet","Retweet","RetweetMap","RetweetReduce"," <input_seqFile_Path> <outputPath>[ <th in Int>]",
 			PROP_SEQ_INPUT,PROP_SEQ_OUTPUT,PROP_TEXT,PROP_TEXT,BALANCED_REDUCE_NUM,PROP_TEXT,PROP_LONG},
-		{"RTJoin","Retweet","RTCrossJoinMap","RTCrossJoinReduce"," <input_seqFile_Path> <outputPath>",
-			PROP_SEQ_INPUT,PROP_TEXT_OUTPUT,PROP_TEXT,PROP_TEXT,SINGLE_REDUCE_NUM,PROP_INT,PROP_TEXT},
+		{"RTJoin","SimilarityJoin","RTBlockJoinMap","BlockJoinReduce"," <input_seqFile_Path> <outputPath>[ <blocks>]",
+			PROP_SEQ_INPUT,PROP_TEXT_OUTPUT,PROP_TEXT,PROP_TEXT,BALANCED_REDUCE_NUM,PROP_INT,PROP_TEXT},
 		{"RTFreq","Retweet","RTFreqMap","RTFreqReduce"," <input_seqFile_Path> <outputPath>",
 			PROP_SEQ_INPUT,PROP_TEXT_OUTPUT,PROP_LONG,PROP_INT,SINGLE_REDUCE_NUM,PROP_LONG,PROP_INT},
 		{"UserRTList","Retweet","UserRTListMap","UserRTListReduce"," <input_seqFile_Path> <outputPath>",
 			PROP_SEQ_INPUT,PROP_SEQ_OUTPUT,PROP_LONG,PROP_TEXT,BALANCED_REDUCE_NUM},
 		{"RTOpinion","Retweet","RTOpinionMap","RTOpinionReduce"," <input_seqFile_Path> <outputPath> <rtoplist_path>",
 			PROP_SEQ_INPUT,PROP_TEXT_OUTPUT,PROP_LONG,PROP_INT,SINGLE_REDUCE_NUM,PROP_LONG,PROP_INT,DIST_CACHE},
+		{"ToUserList","UserList","ToBinaryMap","ToBinaryReduce"," <input_textFile_Path>(UX/UF/UO list) <outputPath>",
+			PROP_TEXT_INPUT,PROP_USER_LIST_OUTPUT,PROP_LONG,PROP_INT,SINGLE_REDUCE_NUM,PROP_LONG,PROP_INT},
 		{"FilterNetwork","GraphAnalysis","FilterNetworkMap","FilterNetworkReduce"," <input_seqFile_Path> <outputPath> <uxlist_Path>",
 			PROP_SEQ_INPUT,PROP_SEQ_OUTPUT,PROP_TEXT,PROP_TEXT,BALANCED_REDUCE_NUM,PROP_TEXT,PROP_TEXT,DIST_CACHE},
 		{"SimpleFilterNetwork","GraphAnalysis","SimpleFilterNetworkMap","SimpleFilterNetworkReduce"," <input_seqFile_Path> <outputPath>",
@@ -159,12 +214,44 @@ public class AnalyzerMain {
 			PROP_SEQ_INPUT,PROP_TEXT_OUTPUT,PROP_INT,PROP_TEXT,SINGLE_REDUCE_NUM,PROP_INT,PROP_TEXT,DIST_CACHE},
 		{"VFOpinion","GraphAnalysis","VocalFriendsOpinionMap","VocalFriendsOpinionReduce"," <input_seqFile_Path> <outputPath> <uxlist_Path>",
 			PROP_SEQ_INPUT,PROP_TEXT_OUTPUT,PROP_INT,PROP_DOUBLE,SINGLE_REDUCE_NUM,PROP_INT,PROP_DOUBLE,DIST_CACHE},
-		{"VDegree","GraphAnalysis","VocalDegreeMap","VocalDegreeReduce"," <input_textFile_Path>(Filtered ntwk with no profile) <outputPath> <uxlist_Path>",
-			PROP_TEXT_INPUT,PROP_TEXT_OUTPUT,PROP_INT,PROP_TEXT,"3",PROP_INT,PROP_INT,DIST_CACHE},
-		{"TotalVDegree","GraphAnalysis","TotalDegreeMap","TotalDegreeReduce"," <input_textFile_Path>(Filtered ntwk with no profile) <outputPath>",
-			PROP_TEXT_INPUT,PROP_TEXT_OUTPUT,PROP_INT,PROP_TEXT,SINGLE_REDUCE_NUM,PROP_INT,PROP_INT},
+		{"VDegree","GraphAnalysis","VocalDegreeMap","DegreeHistogramReduce"," <input_textFile_Path>(Filtered ntwk with no profile) <outputPath> <uxlist_Path>",
+			PROP_TEXT_INPUT,PROP_TEXT_OUTPUT,PROP_INT,PROP_TEXT,"3",PROP_INT,PROP_DEGREE_HISTOGRAM,DIST_CACHE},
+		{"TotalVDegree","GraphAnalysis","TotalDegreeMap","DegreeHistogramReduce"," <input_textFile_Path>(Filtered ntwk with no profile) <outputPath>",
+			PROP_TEXT_INPUT,PROP_TEXT_OUTPUT,PROP_INT,PROP_TEXT,SINGLE_REDUCE_NUM,PROP_INT,PROP_DEGREE_HISTOGRAM},
 		{"DropFilter","GraphAnalysis","DropProfileAndFilterMap","DropProfileAndFilterReduce"," <input_seqFile_Path>(BigCSV ntwk) <outputPath> <cache_path>",
 			PROP_SEQ_INPUT,PROP_TEXT_OUTPUT,PROP_TEXT,PROP_TEXT,SINGLE_REDUCE_NUM,PROP_TEXT,PROP_TEXT,DIST_CACHE},
+		{"ToGraph","FollowGraph","ToGraphMap","ToGraphReduce"," <input_seqFile_Path>(network CSV) <outputPath>",
+			PROP_SEQ_INPUT,PROP_FOLLOW_GRAPH_OUTPUT,PROP_LONG,PROP_ADJACENCY_LIST,BALANCED_REDUCE_NUM,PROP_LONG,PROP_ADJACENCY_LIST},
+		{"TxtToGraph","FollowGraph","ToGraphMap","ToGraphReduce"," <input_textFile_Path>(Filtered ntwk with no profile) <outputPath>",
+			PROP_KEY_VALUE_TEXT_INPUT,PROP_FOLLOW_GRAPH_OUTPUT,PROP_LONG,PROP_ADJACENCY_LIST,BALANCED_REDUCE_NUM,PROP_LONG,PROP_ADJACENCY_LIST},
+		{"GVFAttitude","GraphAnalysis","VocalFriendsAttitudeGraphMap","VocalFriendsAttitudeReduce"," <input_graph_Path> <outputPath> <uxlist_Path>",
+			PROP_FOLLOW_GRAPH_INPUT,PROP_TEXT_OUTPUT,PROP_INT,PROP_DOUBLE,SINGLE_REDUCE_NUM,PROP_INT,PROP_DOUBLE,DIST_CACHE},
+		{"GVFAttAvg","GraphAnalysis","VocalFriendsAttitudeGraphMap","VocalFriendsAttitudeAverageReduce"," <input_graph_Path> <outputPath> <uxlist_Path>",
+			PROP_FOLLOW_GRAPH_INPUT,PROP_TEXT_OUTPUT,PROP_INT,PROP_DOUBLE,SINGLE_REDUCE_NUM,PROP_INT,PROP_DOUBLE,DIST_CACHE},
+		{"GVFAverage","GraphAnalysis","VocalFriendsAverageGraphMap","VocalFriendsAverageReduce"," <input_graph_Path> <outputPath> <uxlist_Path>",
+			PROP_FOLLOW_GRAPH_INPUT,PROP_TEXT_OUTPUT,PROP_INT,PROP_TEXT,SINGLE_REDUCE_NUM,PROP_INT,PROP_TEXT,DIST_CACHE},
+		{"GVFOpinion","GraphAnalysis","VocalFriendsOpinionGraphMap","VocalFriendsOpinionReduce"," <input_graph_Path> <outputPath> <uxlist_Path>",
+			PROP_FOLLOW_GRAPH_INPUT,PROP_TEXT_OUTPUT,PROP_INT,PROP_DOUBLE,SINGLE_REDUCE_NUM,PROP_INT,PROP_DOUBLE,DIST_CACHE},
+		{"GVDegree","GraphAnalysis","VocalDegreeGraphMap","DegreeHistogramReduce"," <input_graph_Path> <outputPath> <uxlist_Path>",
+			PROP_FOLLOW_GRAPH_INPUT,PROP_TEXT_OUTPUT,PROP_INT,PROP_TEXT,"3",PROP_INT,PROP_DEGREE_HISTOGRAM,DIST_CACHE},
+		{"GTotalVDegree","GraphAnalysis","TotalDegreeGraphMap","DegreeHistogramReduce"," <input_graph_Path> <outputPath>",
+			PROP_FOLLOW_GRAPH_INPUT,PROP_TEXT_OUTPUT,PROP_INT,PROP_TEXT,SINGLE_REDUCE_NUM,PROP_INT,PROP_DEGREE_HISTOGRAM},
+		{"UniqueUsers","DistinctUsers","UniqueUsersMap","SketchReduce"," <input_seqFile_Path> <outputPath>",
+			PROP_SEQ_INPUT,PROP_TEXT_OUTPUT,PROP_TEXT,PROP_LONG,SINGLE_REDUCE_NUM,PROP_TEXT,PROP_HYPERLOGLOG},
+		{"URLUsers","DistinctUsers","URLUsersMap","SketchReduce"," <input_seqFile_Path> <outputPath>[ <th>]",
+			PROP_SEQ_INPUT,PROP_TEXT_OUTPUT,PROP_TEXT,PROP_LONG,BALANCED_REDUCE_NUM,PROP_TEXT,PROP_HYPERLOGLOG},
+		{"RTUsers","DistinctUsers","RTUsersMap","SketchReduce"," <input_seqFile_Path> <outputPath>[ <th>]",
+			PROP_SEQ_INPUT,PROP_TEXT_OUTPUT,PROP_TEXT,PROP_LONG,BALANCED_REDUCE_NUM,PROP_TEXT,PROP_HYPERLOGLOG},
+		{"DayUsers","DistinctUsers","DayUsersMap","SketchReduce"," <input_seqFile_Path> <outputPath>",
+			PROP_SEQ_INPUT,PROP_TEXT_OUTPUT,PROP_LONG,PROP_LONG,SINGLE_REDUCE_NUM,PROP_LONG,PROP_HYPERLOGLOG},
+		{"TopicUsers","DistinctUsers","TopicUsersMap","SketchReduce"," <input_seqFile_Path> <outputPath> <topic query>[ <topic query>...]",
+			PROP_SEQ_INPUT,PROP_TEXT_OUTPUT,PROP_TEXT,PROP_LONG,SINGLE_REDUCE_NUM,PROP_TEXT,PROP_HYPERLOGLOG},
+		{"TopURL","HeavyHitters","TopURLMap","TopKReduce"," <input_seqFile_Path> <outputPath>[ <K>]",
+			PROP_SEQ_INPUT,PROP_TEXT_OUTPUT,PROP_TEXT,PROP_TEXT,SINGLE_REDUCE_NUM,PROP_INT,PROP_SPACE_SAVING},
+		{"TopRT","HeavyHitters","TopRTMap","TopKReduce"," <input_seqFile_Path> <outputPath>[ <K>]",
+			PROP_SEQ_INPUT,PROP_TEXT_OUTPUT,PROP_TEXT,PROP_TEXT,SINGLE_REDUCE_NUM,PROP_INT,PROP_SPACE_SAVING},
+		{"TopUser","HeavyHitters","TopUserMap","TopKReduce"," <input_seqFile_Path> <outputPath>[ <K>]",
+			PROP_SEQ_INPUT,PROP_TEXT_OUTPUT,PROP_TEXT,PROP_TEXT,SINGLE_REDUCE_NUM,PROP_INT,PROP_SPACE_SAVING},
 	};
 	
 	/**引数が不正・不足の際に使用する、ジョブリストと使用方法を出力するメソッド。
@@ -176,11 +263,85 @@ public class AnalyzerMain {
 		}
 	}
 	
+	/**JOB_PROPに記述されたWritable名からクラスをロードする。<br>
+	 * Hadoop標準のWritableは単純名で、本パッケージ独自のWritableは完全修飾名で記述されている。
+	 * @param name
+	 * @return
+	 * @throws ClassNotFoundException
+	 */
+	protected static Class<?> writableClass(String name) throws ClassNotFoundException {
+		if (name.indexOf('.') >= 0) return Class.forName(name);
+		return Class.forName(WRITABLE_PACKAGE_SUFFIX + name);
+	}
+	
+	/**JOB_PROPに記述されたInputFormat/OutputFormat名からクラスをロードする。<br>
+	 * Hadoop標準のものは単純名で、本パッケージ独自のものは完全修飾名で記述されている。
+	 * @param name
+	 * @return
+	 * @throws ClassNotFoundException
+	 */
+	protected static Class<?> formatClass(String name) throws ClassNotFoundException {
+		if (name.indexOf('.') >= 0) return Class.forName(name);
+		return Class.forName(INPUT_FORMAT_PACKAGE_SUFFIX + name);
+	}
+	
 	/**
 	 * @param args
 	 */
-	@SuppressWarnings("unchecked")
 	public static void main(String[] args) throws Exception {
+		int localThreads = 0;
+		if (args.length > 0 && args[0].startsWith(LOCAL_OPTION)) {
+			localThreads = Runtime.getRuntime().availableProcessors();
+			if (args[0].startsWith(LOCAL_OPTION + ":")) {
+				try {
+					localThreads = Integer.parseInt(args[0].substring(LOCAL_OPTION.length() + 1));
+				} catch (NumberFormatException e) {
+					//do nothing. default value will be kept.
+				}
+			}
+			args = Arrays.copyOfRange(args, 1, args.length);
+		}
+		if (args.length > 0 && args[0].equals(PIPELINE_OPTION)) {
+			if (!Pipeline.run(Arrays.copyOfRange(args, 1, args.length), localThreads)) System.exit(1);
+			return;
+		}
+		
+		String skewKeys = null;
+		if (args.length > 0 && args[0].startsWith(SKEW_OPTION)) {
+			skewKeys = args[0].startsWith(SKEW_OPTION + ":")? args[0].substring(SKEW_OPTION.length() + 1) : "";
+			args = Arrays.copyOfRange(args, 1, args.length);
+		}
+		
+		JobConf job = createJob(args, localThreads > 0);
+		if (job == null) System.exit(1);
+		if (skewKeys != null) {
+			if (!SkewAggregation.run(job, skewKeys, localThreads)) System.exit(1);
+			return;
+		}
+		runJob(job, localThreads);
+	}
+	
+	/**ジョブを実行する。localThreadsが正なら、LocalJobEngineでこのJVM内で実行する。
+	 * @param job
+	 * @param localThreads
+	 * @throws IOException
+	 */
+	protected static void runJob(JobConf job, int localThreads) throws IOException {
+		if (localThreads > 0) {
+			LocalJobEngine.runJob(job, localThreads);
+		} else {
+			JobClient.runJob(job);
+		}
+	}
+	
+	/**コマンドライン引数(ジョブ名、入力パス、出力パス、その他の引数)から、JOB_PROPに従ってジョブを組み立てる。
+	 * @param args
+	 * @param local trueならローカルのファイルシステムを対象にする
+	 * @return 引数が不正・不足なら、使用方法を出力してnull
+	 * @throws Exception
+	 */
+	@SuppressWarnings("unchecked")
+	protected static JobConf createJob(String[] args, boolean local) throws Exception {
 		JobConf job = null;
 		int jobIndex = 0;
 		String curPackage = AnalyzerMain.class.getPackage().getName().concat(".");
@@ -192,13 +353,13 @@ public class AnalyzerMain {
 //				System.err.println(jobName);
 //			}
 			jobList();
-			System.exit(1);
+			return null;
 		} else {
 			do {
 				if (jobIndex >= JOB_PROP.length) {
 					System.err.println("Available jobs:");
 					jobList();
-					System.exit(1);
+					return null;
 				}
 				if (args[0].equals(JOB_PROP[jobIndex][PROP_INDEX_JOB_NAME])) break;
 				jobIndex++;
@@ -206,6 +367,11 @@ public class AnalyzerMain {
 			
 //			job = new JobConf(TweetCount.class);
 			job = new JobConf(Class.forName(curPackage + JOB_PROP[jobIndex][PROP_INDEX_JOB_CLASS]));
+			if (local) {
+				//ローカルのファイルを対象に、クラスタを使わずに実行する。入力パスの解決より前に設定しておく。
+				job.set("fs.default.name", "file:///");
+				job.set("mapred.job.tracker", "local");
+			}
 //			FileInputFormat.setInputPaths(job, DEFAULT_INPUT);
 //			FileOutputFormat.setOutputPath(job, new Path(DEFAULT_OUTPUT+System.currentTimeMillis()));
 			if (args.length > 2) {
@@ -230,7 +396,7 @@ public class AnalyzerMain {
 						}
 					} else {
 						System.err.println("Usage: " + JOB_PROP[jobIndex][PROP_INDEX_JOB_NAME] + JOB_PROP[jobIndex][PROP_INDEX_USAGE]);
-						System.exit(1);
+						return null;
 					}
 				} else {
 					for (int i = 3; i < args.length; i++) {
@@ -239,7 +405,7 @@ public class AnalyzerMain {
 				}
 			} else {
 				System.err.println("Usage: " + JOB_PROP[jobIndex][PROP_INDEX_JOB_NAME] + JOB_PROP[jobIndex][PROP_INDEX_USAGE]);
-				System.exit(1);
+				return null;
 			}
 		}
 		
@@ -248,19 +414,15 @@ public class AnalyzerMain {
 		 * →SeqFileに変換し直したので、入力はそれにならう。KeyはUserID(パース不正で読み込めなかった場合は0)、Valには元JSONが入っている。
 		 */	
 		job.setJobName(JOB_PROP[jobIndex][PROP_INDEX_JOB_NAME]);
-		job.setInputFormat((Class<? extends InputFormat<Writable,Writable>>) Class.forName(
-				INPUT_FORMAT_PACKAGE_SUFFIX + JOB_PROP[jobIndex][PROP_INDEX_INPUT_FORMAT]));
-		job.setOutputFormat((Class<? extends OutputFormat<Writable,Writable>>) Class.forName(
-				INPUT_FORMAT_PACKAGE_SUFFIX + JOB_PROP[jobIndex][PROP_INDEX_OUTPUT_FORMAT]));
-		job.setOutputKeyClass(Class.forName(
-				WRITABLE_PACKAGE_SUFFIX + JOB_PROP[jobIndex][PROP_INDEX_OUTPUT_KEY_CLASS]));
-		job.setOutputValueClass(Class.forName(
-				WRITABLE_PACKAGE_SUFFIX + JOB_PROP[jobIndex][PROP_INDEX_OUTPUT_VALUE_CLASS]));
+		job.setInputFormat((Class<? extends InputFormat<Writable,Writable>>) formatClass(
+				JOB_PROP[jobIndex][PROP_INDEX_INPUT_FORMAT]));
+		job.setOutputFormat((Class<? extends OutputFormat<Writable,Writable>>) formatClass(
+				JOB_PROP[jobIndex][PROP_INDEX_OUTPUT_FORMAT]));
+		job.setOutputKeyClass(writableClass(JOB_PROP[jobIndex][PROP_INDEX_OUTPUT_KEY_CLASS]));
+		job.setOutputValueClass(writableClass(JOB_PROP[jobIndex][PROP_INDEX_OUTPUT_VALUE_CLASS]));
 		if (JOB_PROP[jobIndex].length > PROP_INDEX_MAPPER_VALUE_CLASS) {
-			job.setMapOutputKeyClass(Class.forName(
-					WRITABLE_PACKAGE_SUFFIX + JOB_PROP[jobIndex][PROP_INDEX_MAPPER_KEY_CLASS]));
-			job.setMapOutputValueClass(Class.forName(
-					WRITABLE_PACKAGE_SUFFIX + JOB_PROP[jobIndex][PROP_INDEX_MAPPER_VALUE_CLASS]));
+			job.setMapOutputKeyClass(writableClass(JOB_PROP[jobIndex][PROP_INDEX_MAPPER_KEY_CLASS]));
+			job.setMapOutputValueClass(writableClass(JOB_PROP[jobIndex][PROP_INDEX_MAPPER_VALUE_CLASS]));
 		} else {
 			job.setCombinerClass((Class<? extends Reducer<Writable,Writable,Writable,Writable>>) Class.forName(
 					curPackage + JOB_PROP[jobIndex][PROP_INDEX_JOB_CLASS] + "$" + JOB_PROP[jobIndex][PROP_INDEX_REDUCE_CLASS]));
@@ -274,10 +436,15 @@ public class AnalyzerMain {
 			job.setNumReduceTasks(Integer.parseInt(JOB_PROP[jobIndex][PROP_INDEX_REDUCE_NUM]));
 		} catch (NumberFormatException e) {
 			e.printStackTrace();
-			System.exit(1);
+			return null;
 		}
-		JobClient.runJob(job);
-		
+		//mapタスクの読み込み・map()・close()の時間をカウンタに記録する。
+		job.setMapRunnerClass(TimedMapRunner.class);
+		//JOB_PROPで表せない設定が必要なジョブは、Mapperが自分で追加する。
+		if (JobSetup.class.isAssignableFrom(job.getMapperClass())) {
+			((JobSetup) ReflectionUtils.newInstance(job.getMapperClass(), null)).setup(job);
+		}
+		return job;
 	}
 
 }
@@ -0,0 +1,56 @@
+/**
+ * 
+ */
+package matz.election.analyzer;
+
+import java.io.IOException;
+
+import matz.election.analyzer.util.MonitoredMapReduceBase;
+import matz.election.analyzer.util.TweetRecord;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.*;
+import org.apache.hadoop.mapred.lib.IdentityReducer;
+
+import twitter4j.TwitterException;
+import twitter4j.TwitterObjectFactory;
+
+/**RawJSONのツイートデータを、解析に必要なフィールドだけを持つバイナリ形式(TweetRecord)に変換するためのクラス。<br>
+ * 元データのSeqFileは[UserID]=[RawJSON]形式だが、ほぼ全てのMapperがその都度JSONをパースしており、これがMap時間の大半を占める。<br>
+ * 一度だけこの変換を行い、以後は変換済みのSeqFileを入力とすればパースのコストを払わずに済む。<br>
+ * 生ツイートを入力にとるMapperは、ValueがTextでもTweetRecordでも扱えるようにしてある(TweetRecord.read参照)。
+ * @author YuMatsuzawa
+ *
+ */
+public class BinaryTweet {
+
+	/**RawJSONをパースしてTweetRecordとして出力するMap。KeyはユーザIDに揃える(元データと同じ)。<br>
+	 * パース不可能なツイートはこの時点で排除する。Reduceは不要なので、Reducer数0のMapOnlyジョブとして実行する。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class ConvertMap extends MonitoredMapReduceBase implements Mapper<LongWritable, Text, LongWritable, TweetRecord> {
+		private LongWritable userid = new LongWritable();
+		private TweetRecord record = new TweetRecord();
+
+		@Override
+		public void map(LongWritable key, Text value,
+				OutputCollector<LongWritable, TweetRecord> output, Reporter reporter)
+				throws IOException {
+			try {
+				record.set(TwitterObjectFactory.createStatus(value.toString()));
+				userid.set(record.getUserId());
+				output.collect(userid, record);
+			} catch (TwitterException e) {
+				monitor.parseError(key, value, e, reporter);
+			}
+		}
+	}
+
+	/**MapOnlyで実行するので実際には呼ばれない。JOB_PROPの体裁上定義しておく。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class ConvertReduce extends IdentityReducer<LongWritable, TweetRecord> {};
+}
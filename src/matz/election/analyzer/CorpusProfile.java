@@ -0,0 +1,270 @@
+/**
+ *
+ */
+package matz.election.analyzer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Iterator;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.*;
+import org.apache.hadoop.mapred.lib.MultipleOutputs;
+
+import matz.election.analyzer.util.JobSetup;
+import matz.election.analyzer.util.KeywordMatcher;
+import matz.election.analyzer.util.MonitoredMapReduceBase;
+import matz.election.analyzer.util.TaggedKey;
+import matz.election.analyzer.util.TweetFields;
+import matz.election.analyzer.util.TweetRecord;
+import matz.election.analyzer.util.TweetView;
+
+import twitter4j.TwitterException;
+
+/**生ツイートのSeqFileを1回だけ読んで、TweetCount、UserTweetCount、TimeSeries、TimeFreq、OriginalTimeFreq、RetweetCount、URLCount、PartyBuzzの各集計を同時に行うクラス。<br>
+ * それぞれのジョブを別々に流すと、同じ入力の読み込みとJSONのパースを集計の数だけ繰り返すことになる。<br>
+ * Mapperはツイートを1回だけ(TweetViewで必要なフィールドだけ)読み、選ばれた集計ごとに、集計の種類をタグにしたTaggedKeyでカウント1を放射する。<br>
+ * どの集計もカウントの合計なので、Combinerは1つ(ProfileCombine)でタグごとに合計すればよい。Reducerはタグに応じて元のジョブと同じ形式にし、集計ごとの名前付き出力(MultipleOutputs)に書く。<br>
+ * 出力ファイルは<outputPath>/<集計名>-r-<part>だけで、ジョブの出力形式はNullOutputFormatなのでpart-*は作られない。元のジョブで単一Reducerだった集計も、Reducer数のファイルに分かれる。
+ * @author YuMatsuzawa
+ *
+ */
+public class CorpusProfile {
+
+	/**集計の種類。名前は元のジョブ名で、そのまま名前付き出力の名前になる。序数をTaggedKeyのタグに使う。<br>
+	 * map()は1ツイートについてその集計のKeyを放射する。tweetはパースに失敗した場合null。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static enum Stat {
+		TweetCount(Text.class, IntWritable.class) {
+			void map(LongWritable key, Writable value, TweetFields tweet, Emitter out) throws IOException {
+				if (value instanceof TweetRecord || ((Text) value).getLength()>1) out.emit(this, "tweetNum");
+				if (key.get()==0) out.emit(this, "errorNum");
+			}
+		},
+		UserTweetCount(Text.class, IntWritable.class) {
+			void map(LongWritable key, Writable value, TweetFields tweet, Emitter out) throws IOException {
+				if (tweet != null) out.emit(this, String.valueOf(tweet.getUserId()));
+			}
+		},
+		TimeSeries(LongWritable.class, IntWritable.class) {
+			void map(LongWritable key, Writable value, TweetFields tweet, Emitter out) throws IOException {
+				if (tweet != null) out.emit(this, tweet.getCreatedAt());
+			}
+		},
+		TimeFreq(LongWritable.class, Text.class) {
+			void map(LongWritable key, Writable value, TweetFields tweet, Emitter out) throws IOException {
+				if (tweet != null) out.emit(this, dayMark(tweet.getCreatedAt()));
+			}
+		},
+		OriginalTimeFreq(LongWritable.class, Text.class) {
+			void map(LongWritable key, Writable value, TweetFields tweet, Emitter out) throws IOException {
+				if (tweet != null && !tweet.isRetweet()) out.emit(this, dayMark(tweet.getCreatedAt()));
+			}
+		},
+		RetweetCount(LongWritable.class, IntWritable.class) {
+			void map(LongWritable key, Writable value, TweetFields tweet, Emitter out) throws IOException {
+				if (tweet != null && tweet.isRetweet()) out.emit(this, tweet.getRetweetedId());
+			}
+		},
+		URLCount(Text.class, IntWritable.class) {
+			void map(LongWritable key, Writable value, TweetFields tweet, Emitter out) throws IOException {
+				if (key.get() == 0) return;
+				String[] urls = (tweet != null)? tweet.getURLs() : new String[0];
+				for (String urlStr : urls) out.emit(this, urlStr);
+				out.emit(this, (urls.length > 0)? "withURL" : "noURL");
+			}
+		},
+		PartyBuzz(Text.class, IntWritable.class) {
+			private final KeywordMatcher matcher = new KeywordMatcher(Arrays.asList(PoliticalTweet.PartyBuzzMap.partyNames));
+
+			void map(LongWritable key, Writable value, TweetFields tweet, Emitter out) throws IOException {
+				if (tweet == null) return;
+				boolean[] found = new boolean[matcher.size()];
+				if (matcher.match(tweet.getText(), found) > 0) {
+					for (int i = 0; i < found.length; i++) {
+						if (found[i]) out.emit(this, matcher.getKeyword(i));
+					}
+				}
+			}
+		};
+
+		private final Class<? extends Writable> keyClass, valueClass;
+
+		private Stat(Class<? extends Writable> keyClass, Class<? extends Writable> valueClass) {
+			this.keyClass = keyClass;
+			this.valueClass = valueClass;
+		}
+
+		abstract void map(LongWritable key, Writable value, TweetFields tweet, Emitter out) throws IOException;
+
+		/**合計したカウントを、元のジョブのReducerと同じ形式で書く。TimeFreq/OriginalTimeFreqはCreatedAtFreqReduceと同様に時刻の可読表現を付ける。
+		 * @param key
+		 * @param count
+		 * @param output
+		 * @throws IOException
+		 */
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		void write(TaggedKey key, int count, OutputCollector output) throws IOException {
+			Writable outKey = (keyClass == LongWritable.class)? new LongWritable(key.getNum()) : key.getText();
+			if (valueClass == Text.class) {
+				output.collect(outKey, new Text(new Date(key.getNum()).toString() + "\t" + count));
+			} else {
+				output.collect(outKey, new IntWritable(count));
+			}
+		}
+
+		/**"TweetCount,URLCount"のような名前のリストから集計の集合を作る。nullや空なら全て。
+		 * @param list
+		 * @return
+		 * @throws IllegalArgumentException 知らない名前がある場合
+		 */
+		public static EnumSet<Stat> parse(String list) {
+			if (list == null || list.isEmpty()) return EnumSet.allOf(Stat.class);
+			EnumSet<Stat> stats = EnumSet.noneOf(Stat.class);
+			for (String name : list.split(",")) stats.add(Stat.valueOf(name.trim()));
+			return stats;
+		}
+	}
+
+	/**2013/7/27から遡って31日間の、その日の午前0時のエポックミリ秒を返す。範囲外のツイートは31日前の日付にまとめる。<br>
+	 * TweetCount.CreatedAtFreqMapと同じ区切り方。
+	 * @param dateLong
+	 * @return
+	 */
+	private static long dayMark(long dateLong) {
+		final long july27sec = 1374850800, oneDayInMillisec = 86400000;
+		long minRange = july27sec * 1000, maxRange = minRange + oneDayInMillisec;
+		for (int i = 0; i < 31; i++) {
+			if (minRange <= dateLong && dateLong < maxRange) return minRange;
+			maxRange = minRange;
+			minRange -= oneDayInMillisec;
+		}
+		return minRange;
+	}
+
+	/**タグ付きのKeyとカウント1をOutputCollectorに渡す。Keyのインスタンスは使い回す。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	static class Emitter {
+		private static final IntWritable one = new IntWritable(1);
+		private TaggedKey tagged = new TaggedKey();
+		private OutputCollector<TaggedKey, IntWritable> output;
+
+		void emit(Stat stat, long num) throws IOException {
+			tagged.set(stat.ordinal(), num);
+			output.collect(tagged, one);
+		}
+
+		void emit(Stat stat, String str) throws IOException {
+			tagged.set(stat.ordinal(), str);
+			output.collect(tagged, one);
+		}
+	}
+
+	/**選ばれた集計(arg3、カンマ区切り。省略時は全て)について、1ツイートから各集計のKeyを放射するMapper。<br>
+	 * JSONのパースはTweetViewで1回だけ行い、TweetCountしか選ばれていなければパースしない。<br>
+	 * ジョブの組み立て時にはCombinerと、選ばれた集計の名前付き出力を設定する。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class ProfileMap extends MonitoredMapReduceBase implements Mapper<LongWritable, Writable, TaggedKey, IntWritable>, JobSetup {
+		private Stat[] stats = Stat.values();
+		private boolean parse = true;
+		private TweetView view = new TweetView();
+		private Emitter emitter = new Emitter();
+
+		public void setup(JobConf job) {
+			job.setCombinerClass(ProfileCombine.class);
+			for (Stat stat : Stat.parse(job.get("arg3"))) {
+				MultipleOutputs.addNamedOutput(job, stat.name(), TextOutputFormat.class, stat.keyClass, stat.valueClass);
+			}
+		}
+
+		@Override
+		public void configure(JobConf job) {
+			super.configure(job);
+			EnumSet<Stat> selected = Stat.parse(job.get("arg3"));
+			stats = selected.toArray(new Stat[selected.size()]);
+			selected.remove(Stat.TweetCount);
+			parse = !selected.isEmpty();
+		}
+
+		@Override
+		public void map(LongWritable key, Writable value,
+				OutputCollector<TaggedKey, IntWritable> output, Reporter reporter)
+				throws IOException {
+			emitter.output = output;
+			TweetFields tweet = null;
+			if (parse) {
+				try {
+					tweet = view.read(value);
+				} catch (TwitterException e) {
+					monitor.parseError(key, value, e, reporter);
+				}
+			}
+			for (Stat stat : stats) {
+				try {
+					stat.map(key, value, tweet, emitter);
+				} catch (RuntimeException e) {
+					//1つの集計で読めないフィールドがあっても、他の集計は続ける。
+					monitor.recordError(key, value, e, reporter);
+				}
+			}
+		}
+	}
+
+	/**タグごとのカウントを合計するCombiner。どの集計もカウントの合計なので、タグによらず同じ処理になる。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class ProfileCombine extends MapReduceBase implements Reducer<TaggedKey, IntWritable, TaggedKey, IntWritable> {
+		private IntWritable sum = new IntWritable();
+
+		@Override
+		public void reduce(TaggedKey key, Iterator<IntWritable> values,
+				OutputCollector<TaggedKey, IntWritable> output, Reporter reporter)
+				throws IOException {
+			int count = 0;
+			while (values.hasNext()) count += values.next().get();
+			sum.set(count);
+			output.collect(key, sum);
+		}
+	}
+
+	/**タグごとのカウントを合計し、その集計の名前付き出力に元のジョブと同じ形式で書くReducer。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class ProfileReduce extends MapReduceBase implements Reducer<TaggedKey, IntWritable, TaggedKey, IntWritable> {
+		private static final Stat[] STATS = Stat.values();
+		private MultipleOutputs mos = null;
+
+		@Override
+		public void configure(JobConf job) {
+			mos = new MultipleOutputs(job);
+		}
+
+		@Override
+		public void reduce(TaggedKey key, Iterator<IntWritable> values,
+				OutputCollector<TaggedKey, IntWritable> output, Reporter reporter)
+				throws IOException {
+			int count = 0;
+			while (values.hasNext()) count += values.next().get();
+			Stat stat = STATS[key.getTag()];
+			stat.write(key, count, mos.getCollector(stat.name(), reporter));
+		}
+
+		@Override
+		public void close() throws IOException {
+			mos.close();
+		}
+	}
+}
@@ -0,0 +1,270 @@
+/**
+ *
+ */
+package matz.election.analyzer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.*;
+
+import matz.election.analyzer.util.HyperLogLog;
+import matz.election.analyzer.util.JobSetup;
+import matz.election.analyzer.util.KeywordMatcher;
+import matz.election.analyzer.util.MonitoredMapReduceBase;
+import matz.election.analyzer.util.TweetFields;
+import matz.election.analyzer.util.TweetView;
+import matz.election.analyzer.util.URLExpander;
+
+import twitter4j.TwitterException;
+
+/**URL・RT文面・日・話題クエリなどのKeyごとに、言及したユーザの異なり数を1回のジョブで近似的に数えるクラス。<br>
+ * URLReferReduceやRetweetReduceはユーザIDのHashSetを作って大きさを閾値と比べ、UserCountはUserTweetCountの出力の行を数えるので2回ジョブを流す必要がある。<br>
+ * 異なり数だけが要るなら、ユーザ集合の代わりにHyperLogLogスケッチを使えば、Map出力もReducerのメモリもKeyあたり数バイト～数KBで済む。<br>
+ * MapperはレコードごとにユーザIDを1つだけ入れたスケッチを放射し、Combiner(SketchCombine)がKeyごとに併合する。Reducer(SketchReduce)は併合したスケッチから推定値を出力する。<br>
+ * 推定値の相対標準誤差はおよそ1.04/√2^p(既定のp=12で約1.6%)。異なり数が小さい間はほぼ正確。精度pはhll.precisionで変えられる(HyperLogLog参照)。
+ * @author YuMatsuzawa
+ *
+ */
+public class DistinctUsers {
+	/* 出力する推定値の下限。URLUsers・RTUsersの3番目の引数からsetup()で設定する。 */
+	protected static final String THRESHOLD_KEY = "distinct.threshold";
+
+	/**各Mapperに共通の部分。ツイートをTweetViewで読み、emitKeys()でKeyを決めてユーザIDのスケッチを放射する。<br>
+	 * ジョブの組み立て時にはCombinerを設定する。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static abstract class SketchMap<K extends Writable> extends MonitoredMapReduceBase implements Mapper<LongWritable, Writable, K, HyperLogLog>, JobSetup {
+		private TweetView view = new TweetView();
+		private HyperLogLog sketch = null;
+		private OutputCollector<K, HyperLogLog> output = null;
+
+		public void setup(JobConf job) {
+			job.setCombinerClass(SketchCombine.class);
+		}
+
+		@Override
+		public void configure(JobConf job) {
+			super.configure(job);
+			sketch = HyperLogLog.fromConf(job);
+		}
+
+		@Override
+		public void map(LongWritable key, Writable value,
+				OutputCollector<K, HyperLogLog> output, Reporter reporter)
+				throws IOException {
+			this.output = output;
+			TweetFields tweet;
+			try {
+				tweet = view.read(value);
+				sketch.clear();
+				sketch.offer(tweet.getUserId());
+			} catch (TwitterException e) {
+				monitor.parseError(key, value, e, reporter);
+				return;
+			} catch (RuntimeException e) {
+				//ユーザIDが数値でない等。TweetViewはgetterで非検査例外を投げる。
+				monitor.parseError(key, value, e, reporter);
+				return;
+			}
+			try {
+				emitKeys(tweet);
+			} catch (RuntimeException e) {
+				monitor.recordError(key, value, e, reporter);
+			}
+		}
+
+		/**tweetの数えるべきKeyごとにemit()を呼ぶ。
+		 * @param tweet
+		 * @throws IOException
+		 */
+		protected abstract void emitKeys(TweetFields tweet) throws IOException;
+
+		/**現在のツイートのユーザをkeyについて数える。
+		 * @param key
+		 * @throws IOException
+		 */
+		protected void emit(K key) throws IOException {
+			output.collect(key, sketch);
+		}
+	}
+
+	/**全体のユーザ数を数えるMapper。UserTweetCount→UserCountの2回のジョブの代わりに使える。Keyは"userNum"のみ。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class UniqueUsersMap extends SketchMap<Text> {
+		private Text userNum = new Text("userNum");
+
+		@Override
+		protected void emitKeys(TweetFields tweet) throws IOException {
+			emit(userNum);
+		}
+	}
+
+	/**URLごとに言及ユーザ数を数えるMapper。URLはURLReferMapと同じくアンカー・クエリを除去する。<br>
+	 * 3番目の引数で閾値を与えると、推定値がそれ以上のURLだけ出力する。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class URLUsersMap extends SketchMap<Text> {
+		private Text urlText = new Text();
+
+		@Override
+		public void setup(JobConf job) {
+			super.setup(job);
+			if (job.get("arg3") != null) job.set(THRESHOLD_KEY, job.get("arg3"));
+		}
+
+		@Override
+		protected void emitKeys(TweetFields tweet) throws IOException {
+			for (String urlStr : tweet.getURLs()) {
+				urlText.set(URLExpander.trimURL(urlStr));
+				emit(urlText);
+			}
+		}
+	}
+
+	/**RT文面ごとにRTしたユーザ数を数えるMapper。KeyはRetweet.RetweetMapと同じくBase64エンコードした文面で、RTされたオリジナルのツイートの投稿者も数える。<br>
+	 * 3番目の引数で閾値を与えると、推定値がそれ以上の文面だけ出力する。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class RTUsersMap extends SketchMap<Text> {
+		private Text encoded = new Text();
+
+		@Override
+		public void setup(JobConf job) {
+			super.setup(job);
+			if (job.get("arg3") != null) job.set(THRESHOLD_KEY, job.get("arg3"));
+		}
+
+		@Override
+		protected void emitKeys(TweetFields tweet) throws IOException {
+			String text;
+			if (tweet.isRetweet()) {
+				text = tweet.getRetweetedText();
+			} else if (tweet.getRetweetCount() > 0) {
+				text = tweet.getText();
+			} else {
+				return;
+			}
+			encoded.set(Base64.encodeBase64(text.getBytes()));
+			emit(encoded);
+		}
+	}
+
+	/**日ごとのユーザ数を数えるMapper。KeyはCreatedAtFreqMapと同じく、その日の午前0時(JST)のエポックミリ秒。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class DayUsersMap extends SketchMap<LongWritable> {
+		private static final long oneDayInMillisec = 86400000;
+		private static final long jstOffset = 9 * 3600000;
+		private LongWritable day = new LongWritable();
+
+		@Override
+		protected void emitKeys(TweetFields tweet) throws IOException {
+			long local = tweet.getCreatedAt() + jstOffset;
+			day.set(local - ((local % oneDayInMillisec) + oneDayInMillisec) % oneDayInMillisec - jstOffset);
+			emit(day);
+		}
+	}
+
+	/**話題クエリごとに、そのクエリを含むツイートをしたユーザ数を数えるMapper。クエリは3番目以降の引数で与える(TopicURLCountと同じ)。<br>
+	 * 照合はKeywordMatcherで本文1パスで行い、1つのツイートが複数のクエリを含めばそれぞれで数える。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class TopicUsersMap extends SketchMap<Text> {
+		private KeywordMatcher matcher = null;
+		private Text[] terms = null;
+		private boolean[] found = null;
+
+		@Override
+		public void configure(JobConf job) {
+			super.configure(job);
+			List<String> topicQueries = new ArrayList<String>();
+			String extraArg = null;
+			int argIndex = 3;
+			while ((extraArg = job.get(String.format("arg%d", argIndex))) != null) {
+				topicQueries.add(extraArg);
+				argIndex++;
+			}
+			matcher = new KeywordMatcher(topicQueries);
+			terms = new Text[matcher.size()];
+			for (int i = 0; i < terms.length; i++) terms[i] = new Text(matcher.getKeyword(i));
+			found = new boolean[matcher.size()];
+		}
+
+		@Override
+		protected void emitKeys(TweetFields tweet) throws IOException {
+			if (matcher.match(tweet.getText(), found) == 0) return;
+			for (int i = 0; i < found.length; i++) {
+				if (found[i]) emit(terms[i]);
+			}
+		}
+	}
+
+	/**Keyごとにスケッチを併合するCombiner。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class SketchCombine<K> extends MapReduceBase implements Reducer<K, HyperLogLog, K, HyperLogLog> {
+		private HyperLogLog merged = null;
+
+		@Override
+		public void configure(JobConf job) {
+			merged = HyperLogLog.fromConf(job);
+		}
+
+		@Override
+		public void reduce(K key, Iterator<HyperLogLog> values,
+				OutputCollector<K, HyperLogLog> output, Reporter reporter)
+				throws IOException {
+			merged.clear();
+			while (values.hasNext()) merged.add(values.next());
+			output.collect(key, merged);
+		}
+	}
+
+	/**Keyごとにスケッチを併合し、異なり数の推定値を出力するReducer。推定値が閾値(distinct.threshold、既定は0)未満のKeyは出力しない。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class SketchReduce<K> extends MapReduceBase implements Reducer<K, HyperLogLog, K, LongWritable> {
+		private HyperLogLog merged = null;
+		private long threshold = 0;
+		private LongWritable estimate = new LongWritable();
+
+		@Override
+		public void configure(JobConf job) {
+			merged = HyperLogLog.fromConf(job);
+			try {
+				threshold = Long.parseLong(job.get(THRESHOLD_KEY, "0"));
+			} catch (NumberFormatException e) {
+				//do nothing. default value will be kept.
+			}
+		}
+
+		@Override
+		public void reduce(K key, Iterator<HyperLogLog> values,
+				OutputCollector<K, LongWritable> output, Reporter reporter)
+				throws IOException {
+			merged.clear();
+			while (values.hasNext()) merged.add(values.next());
+			long count = merged.estimate();
+			if (count >= threshold) {
+				estimate.set(count);
+				output.collect(key, estimate);
+			}
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/**
+ *
+ */
+package matz.election.analyzer;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.*;
+
+import matz.election.analyzer.util.AdjacencyList;
+import matz.election.analyzer.util.CsvCursor;
+import matz.election.analyzer.util.MonitoredMapReduceBase;
+
+/**フォローネットワークデータ(ネットワークCSV)を、FollowGraphReaderで読める圧縮隣接リスト形式のグラフファイルに変換するためのクラス。<br>
+ * ネットワークCSVは"ユーザID,#followed,#following,フォロワーID群,フレンドID群"という形式で、後段の解析はこれを毎回Textとしてパースしていた。<br>
+ * グラフファイルには各ユーザの入次数とフレンドID列だけを、ユーザIDの昇順に差分・可変長符号で格納する。<br>
+ * 変換後は、GraphAnalysisのGVFAttitude/GVFAverage/GVFOpinion/GVDegree/GTotalVDegreeジョブに入力として渡す(FollowGraphInputFormat)。
+ * @author YuMatsuzawa
+ *
+ */
+public class FollowGraph {
+
+	/**ネットワークCSVを読んで、CSV先頭のユーザIDをKey、入次数とフレンドID列をValueとして出力するMap。<br>
+	 * KeyにUserProfileの入ったSeqFile(FilterNetwork等の出力)でも、KeyにユーザIDの入ったText(DropFilterの出力をKeyValueTextInputFormatで読む)でも、Valueだけを使う。<br>
+	 * #followedか#followingが-1(未取得)のユーザは、フレンドID列を持たないノード(#following=-1)として出力する。<br>
+	 * CSVの要素数が足りない・数値でない要素があるレコードは捨て、RecordMonitorのカウンタと隔離ファイルに記録する。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class ToGraphMap extends MonitoredMapReduceBase implements Mapper<Text, Text, LongWritable, AdjacencyList> {
+		private LongWritable userid = new LongWritable();
+		private AdjacencyList adjacency = new AdjacencyList();
+		private CsvCursor cursor = new CsvCursor();
+		private long[] buffer = new long[1024];
+
+		@Override
+		public void map(Text key, Text value,
+				OutputCollector<LongWritable, AdjacencyList> output, Reporter reporter)
+				throws IOException {
+			try {
+				cursor.reset(value);
+				long id = cursor.nextLong();
+				int numFollowed = cursor.nextInt(), numFollowing = cursor.nextInt();
+				if (numFollowed < 0 || numFollowing < 0) {
+					adjacency.set(numFollowed, -1, buffer, 0);
+				} else {
+					if (cursor.skip(numFollowed) < numFollowed) throw new ArrayIndexOutOfBoundsException(3 + numFollowed);
+					if (buffer.length < numFollowing) buffer = new long[numFollowing];
+					for (int i = 0; i < numFollowing; i++) {
+						if (!cursor.hasNext()) throw new ArrayIndexOutOfBoundsException(3 + numFollowed + i);
+						buffer[i] = cursor.nextLong();
+					}
+					adjacency.set(numFollowed, numFollowing, buffer, numFollowing);
+				}
+				userid.set(id);
+				output.collect(userid, adjacency);
+			} catch (RuntimeException e) {
+				monitor.parseError(key, value, e, reporter);
+			}
+		}
+	}
+
+	/**ユーザIDの昇順にノードを書き出す。同じユーザIDが複数あれば最初のものを採る。<br>
+	 * 出力はFollowGraphOutputFormatで、Reducerごとに1つのグラフファイルになる。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class ToGraphReduce extends MapReduceBase implements Reducer<LongWritable, AdjacencyList, LongWritable, AdjacencyList> {
+
+		@Override
+		public void reduce(LongWritable key, Iterator<AdjacencyList> values,
+				OutputCollector<LongWritable, AdjacencyList> output, Reporter reporter)
+				throws IOException {
+			output.collect(key, values.next());
+		}
+	}
+}
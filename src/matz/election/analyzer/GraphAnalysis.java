@@ -3,10 +3,7 @@
  */
 package matz.election.analyzer;
 
-import java.io.BufferedReader;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.*;
 import java.util.Map.Entry;
 
@@ -18,6 +15,17 @@ import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.*;
 import org.apache.hadoop.mapred.lib.IdentityReducer;
 
+import matz.election.analyzer.util.AdjacencyList;
+import matz.election.analyzer.util.CsvCursor;
+import matz.election.analyzer.util.DegreeHistogram;
+import matz.election.analyzer.util.LongIntLookup;
+import matz.election.analyzer.util.LongIntMap;
+import matz.election.analyzer.util.MappedUserList;
+import matz.election.analyzer.util.MonitoredMapReduceBase;
+import matz.election.analyzer.util.SideDataCache;
+import matz.election.analyzer.util.SkewMergeable;
+
+import twitter4j.TwitterException;
 import twitter4j.TwitterObjectFactory;
 import twitter4j.User;
 
@@ -27,6 +35,33 @@ import twitter4j.User;
  *
  */
 public class GraphAnalysis {
+	/**DistributedCacheで配布されたUX/UF/UOリストの読み方。<br>
+	 * ToUserListで変換したバイナリ形式であればメモリマップして使い、ユーザID\t値のTSVであればパースしてLongIntMapに詰める。
+	 */
+	private static final SideDataCache.Loader<LongIntLookup> UX_LOADER = new SideDataCache.Loader<LongIntLookup>() {
+		public LongIntLookup load(String path) throws IOException {
+			if (MappedUserList.isBinary(path)) return MappedUserList.open(path);
+			return LongIntMap.readTSV(path);
+		}
+		public int size(LongIntLookup data) {
+			return data.size();
+		}
+	};
+	
+	/**DistributedCacheで配布されたUX/UF/UOリストを読み込む。<br>
+	 * 読み込みはSideDataCacheによってJVM内で一度だけ行われ、同じCacheファイルを使う以後のタスク・Mapperで共有される。<br>
+	 * 読み込み状況は、返されたハンドルのreport()でカウンタに記録する。<br>
+	 * Mapperのconfigure()から呼ぶので、読み込みに失敗したら非検査例外にしてタスクを失敗させる(空のリストで続けると、結果が誤ったままジョブが成功してしまう)。
+	 * @param job
+	 * @return
+	 */
+	protected static SideDataCache.Handle<LongIntLookup> loadUXList(JobConf job) {
+		try {
+			return SideDataCache.get(job, AnalyzerMain.DIST_LINKNAME, UX_LOADER);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
 
 	/**PairedURL等を使ってJoinした、URL1,(comma-separated userid list)\tURL2,(comma-separated userid list)形式のText入力に対し、<br>
 	 * URL1とURL2との間のJaccard係数を求めるMap.出力はカンマ区切りのエッジ（URL1,URL2）をKey、Jaccard係数をValueとする。<br>
@@ -35,10 +70,11 @@ public class GraphAnalysis {
 	 * @author YuMatsuzawa
 	 *
 	 */
-	public static class JaccardLinkMap extends MapReduceBase implements Mapper<LongWritable, Text, Text, DoubleWritable>, JobConfigurable {
+	public static class JaccardLinkMap extends MonitoredMapReduceBase implements Mapper<LongWritable, Text, Text, DoubleWritable>, JobConfigurable {
 		private double threshold = 0.0;
 
 		public void configure(JobConf job) {
+			super.configure(job);
 			String extraArg = job.get("arg3");
 			if (extraArg != null) {
 				try {
@@ -68,7 +104,7 @@ public class GraphAnalysis {
 			union.addAll(userSet2);
 
 			double jaccard = (double) intersection.size() / (double) union.size();
-			if (jaccard >= threshold) {
+			if (monitor.filter(jaccard >= threshold, reporter)) {
 				output.collect(new Text(user1+","+user2), new DoubleWritable(jaccard));
 			}
 		}		
@@ -78,10 +114,11 @@ public class GraphAnalysis {
 	 * @author YuMatsuzawa
 	 *
 	 */
-	public static class JaccardLinkDecodeMap extends MapReduceBase implements Mapper<LongWritable, Text, Text, DoubleWritable>, JobConfigurable {
+	public static class JaccardLinkDecodeMap extends MonitoredMapReduceBase implements Mapper<LongWritable, Text, Text, DoubleWritable>, JobConfigurable {
 		private double threshold = 0.0;
 
 		public void configure(JobConf job) {
+			super.configure(job);
 			String extraArg = job.get("arg3");
 			if (extraArg != null) {
 				try {
@@ -112,19 +149,22 @@ public class GraphAnalysis {
 				union.addAll(userSet2);
 				
 				double jaccard = (double) intersection.size() / (double) union.size();
-				if (jaccard >= threshold) {
-					byte[] key1Byte = key1.getBytes(), key2Byte = key2.getBytes();
-					byte[] decoded1Byte = Base64.decodeBase64(key1Byte), decoded2Byte = Base64.decodeBase64(key2Byte);
-					String decoded1 = new String(decoded1Byte), decoded2 = new String(decoded2Byte);
-					decoded1 = decoded1.replaceAll("\\s+", " ").replaceAll(",", "，");
-					decoded2 = decoded2.replaceAll("\\s+", " ").replaceAll(",", "，");
-					output.collect(new Text(decoded1+","+decoded2), new DoubleWritable(jaccard));
+				if (monitor.filter(jaccard >= threshold, reporter)) {
+					output.collect(new Text(decodeKey(key1)+","+decodeKey(key2)), new DoubleWritable(jaccard));
 				}
 			} catch (Exception e) {
-				System.err.println(value.toString());
-				e.printStackTrace();
+				monitor.recordError(key, value, e, reporter);
 			}
-		}		
+		}
+		
+		/**Base64エンコードされたキーをデコードし、出力のCSVを壊さないように空白をまとめ、カンマを全角に置き換える。
+		 * @param key
+		 * @return
+		 */
+		public static String decodeKey(String key) {
+			String decoded = new String(Base64.decodeBase64(key.getBytes()));
+			return decoded.replaceAll("\\s+", " ").replaceAll(",", "，");
+		}
 	}
 	
 	/**JaccardLinkMapが出力した閾値以上のJaccard係数を持つURLペアを集計する。特に計算はしないので無内容でいい。
@@ -147,7 +187,7 @@ public class GraphAnalysis {
 	 * @author Yu
 	 *
 	 */
-	public static class SimpleFilterNetworkMap extends MapReduceBase implements Mapper<Text, Text, Text, Text> {
+	public static class SimpleFilterNetworkMap extends MonitoredMapReduceBase implements Mapper<Text, Text, Text, Text> {
 		private static final String langja = "ja";
 		private static final int followLimit = 2000;
 
@@ -155,11 +195,13 @@ public class GraphAnalysis {
 		public void map(Text key, Text value, OutputCollector<Text, Text> output, Reporter reporter) throws IOException {
 			try {
 				User user = TwitterObjectFactory.createUser(key.toString());
-				if (user.getLang().equalsIgnoreCase(langja) && user.getFriendsCount() < followLimit) { // filter condition;
+				if (monitor.filter(user.getLang().equalsIgnoreCase(langja) && user.getFriendsCount() < followLimit, reporter)) { // filter condition;
 					output.collect(key, value);
 				}
+			} catch (TwitterException e) {
+				monitor.parseError(key, value, e, reporter);
 			} catch (Exception e) {
-				e.printStackTrace();
+				monitor.recordError(key, value, e, reporter);
 			}
 		}
 	}
@@ -179,36 +221,21 @@ public class GraphAnalysis {
 	 * @author YuMatsuzawa
 	 *
 	 */
-	public static class FilterNetworkMap extends MapReduceBase implements Mapper<Text, Text, Text, Text> {
-		private static final String linkname = AnalyzerMain.DIST_LINKNAME;
+	public static class FilterNetworkMap extends MonitoredMapReduceBase implements Mapper<Text, Text, Text, Text> {
 		private static final String langja = "ja";
 		private static final int followLimit = 2000;
-		private static HashMap<Long, Integer> uxlist = new HashMap<Long, Integer>();
+		private SideDataCache.Handle<LongIntLookup> side = null;
+		private LongIntLookup uxlist = null;
 		private Text csv = new Text();
+		private CsvCursor cursor = new CsvCursor();
 		
-		/**configureメソッドはMapperがインスタンス化された時に呼ばれる。ここでHashMapにuflistを取り込む。
+		/**configureメソッドはMapperがインスタンス化された時に呼ばれる。ここでuflistを取り込む(JVM内で共有)。
 		 * @param job
 		 */
 		public void configure(JobConf job) {
-			BufferedReader br = null;
-			try {
-				br = new BufferedReader(new InputStreamReader(new FileInputStream(linkname)));
-				String line = "";
-				while((line=br.readLine())!=null) {
-					String[] splits = line.split("\t");
-					Long userid = Long.parseLong(splits[0]);
-					Integer freq = Integer.parseInt(splits[1]);
-					uxlist.put(userid, freq);
-				}
-			} catch(Exception e) {
-				e.printStackTrace();
-			} finally {
-				try {
-					br.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
+			super.configure(job);
+			side = loadUXList(job);
+			uxlist = side.get();
 		}
 		
 		/* (非 Javadoc)ループを含む条件判定を1つだけ含むようにしたマッパ。
@@ -218,15 +245,18 @@ public class GraphAnalysis {
 		public void map(Text key, Text value,
 				OutputCollector<Text, Text> output, Reporter reporter)
 				throws IOException {
+			side.report(reporter);
 			String keyStr = key.toString();
 			//System.out.println(valStr.substring(0, (valStr.length() > 50)? 50 : valStr.length()));
 			try {
 				User user = TwitterObjectFactory.createUser(keyStr);
-				if ( user.getFriendsCount() < followLimit && uxlist.containsKey(user.getId()) ) {
+				if (monitor.filter(user.getFriendsCount() < followLimit && uxlist.containsKey(user.getId()), reporter)) {
 					output.collect(key, value);
 				}
+			} catch (TwitterException e) {
+				monitor.parseError(key, value, e, reporter);
 			} catch (Exception e) {
-				e.printStackTrace();
+				monitor.recordError(key, value, e, reporter);
 			}
 		}
 		
@@ -250,43 +280,54 @@ public class GraphAnalysis {
 				if ( user.getFriendsCount() < followLimit && 
 						(user.getLang().equalsIgnoreCase(langja) || uxlist.containsKey(user.getId())) ) {
 					
-					String[] splits = value.toString().split(",");			// culprit for timeout/OOM
-					ArrayList<Long> splitLong = new ArrayList<Long>();		// another culprit
-					for (String split : splits) {
+					// 以前はsplit(",")とArrayList<Long>への詰め替えでタイムアウト/OOMを起こしていた。CsvCursorで1件ずつ読む。
+					// 数値として読めない要素は従来通りスキップし、数えない。
+					cursor.reset(value);
+					long[] header = new long[3];
+					int count = 0;
+					while (count < 3 && cursor.hasNext()) {
 						try {
-							splitLong.add(Long.parseLong(split));
-						} catch(Exception e) {
-							e.printStackTrace();
+							header[count] = cursor.nextLong();
+							count++;
+						} catch(NumberFormatException e) {
+							monitor.badField(reporter);
 						}
 					}
+					if (count < 3) throw new IndexOutOfBoundsException("Too few fields in network CSV");
 					
-					Long userid = splitLong.get(0), numFollowed = splitLong.get(1), numFollowing = splitLong.get(2);
+					long userid = header[0], numFollowed = header[1], numFollowing = header[2];
 					if (numFollowing > followLimit) return; // remove excessive following user
 					
-					String newCsv = "";
-					newCsv += userid + " " + getFreqOf(userid) + "," + numFollowed + "," + numFollowing;
+					StringBuilder newCsv = new StringBuilder();
+					newCsv.append(userid).append(' ').append(getFreqOf(userid)).append(',').append(numFollowed).append(',').append(numFollowing);
 					
 					if (numFollowing > 0) {
-						int count = 3;
-						while(count < splitLong.size()) {
-							Long tarUser = splitLong.get(count);
-							newCsv += "," + tarUser;
-							if(count > 2 + numFollowed) newCsv += ";" + getFreqOf(tarUser);
+						while(cursor.hasNext()) {
+							long tarUser;
+							try {
+								tarUser = cursor.nextLong();
+							} catch(NumberFormatException e) {
+								monitor.badField(reporter);
+								continue;
+							}
+							newCsv.append(',').append(tarUser);
+							if(count > 2 + numFollowed) newCsv.append(';').append(getFreqOf(tarUser));
 							count++;
 						}
 					}
 					
-					csv.set(newCsv);
+					csv.set(newCsv.toString());
 					output.collect(key, csv);
 				}
-			} catch(Exception e) {
-				e.printStackTrace();
+			} catch (TwitterException e) {
+				monitor.parseError(key, value, e, reporter);
+			} catch (Exception e) {
+				monitor.recordError(key, value, e, reporter);
 			}
 		}
 		
-		private Integer getFreqOf(Long userid) {
-			Integer freq = (uxlist.get(userid)!=null)? uxlist.get(userid) : 0;
-			return freq;
+		private int getFreqOf(long userid) {
+			return uxlist.get(userid, 0);
 		}
 		
 	}
@@ -297,10 +338,11 @@ public class GraphAnalysis {
 	 */
 	public static class FilterNetworkReduce extends IdentityReducer<Text, Text> {};
 	
-	public static class SimplifyAllMap extends MapReduceBase implements Mapper<Text, Text, LongWritable, Text> {
+	public static class SimplifyAllMap extends MonitoredMapReduceBase implements Mapper<Text, Text, LongWritable, Text> {
 		private static final int followLimit = 2000;
 		private LongWritable userid = new LongWritable();
 		private Text textCsv = new Text();
+		private CsvCursor cursor = new CsvCursor();
 		
 		@Override
 		public void map(Text key, Text value,
@@ -308,24 +350,19 @@ public class GraphAnalysis {
 				throws IOException {
 			try {
 				User user = TwitterObjectFactory.createUser(key.toString());
-				if (user.getFriendsCount() < followLimit ) {
-					String csv = value.toString(), newCsv = "";
-					String[] splitCsv = csv.split(",");
-					String numFollowed = splitCsv[1], numFollowing = splitCsv[2];
-					int index = 3;
-					if (!numFollowed.equals("-1") && !numFollowing.equals("-1")) {
-						int intFollowed = Integer.valueOf(numFollowed), intFollowing = Integer.valueOf(numFollowing);
-						index += intFollowed;
-						for (int i = index; i < index + intFollowing; i++) {
-							if (!newCsv.isEmpty()) newCsv += ",";
-							newCsv += splitCsv[i];
-						}
-						textCsv.set(newCsv);
+				if (monitor.filter(user.getFriendsCount() < followLimit, reporter)) {
+					if (sliceFollowing(cursor, value, textCsv)) {
 						userid.set(user.getId());
 						output.collect(userid, textCsv);
+					} else {
+						monitor.skip(reporter);
 					}
 				}
-			} catch (Exception e) {};
+			} catch (TwitterException e) {
+				monitor.parseError(key, value, e, reporter);
+			} catch (Exception e) {
+				monitor.recordError(key, value, e, reporter);
+			}
 
 		}
 	}
@@ -339,32 +376,49 @@ public class GraphAnalysis {
 	 */
 	public static class ReduceCSVMap extends MapReduceBase implements Mapper<Text, Text, Text, Text> {
 		private Text textCsv = new Text();
+		private CsvCursor cursor = new CsvCursor();
 		
 		@Override
 		public void map(Text key, Text value,
 				OutputCollector<Text, Text> output, Reporter reporter)
 				throws IOException {
-			String csv = value.toString(), newCsv = "";
-			String[] splitCsv = csv.split(",");
-			String numFollowed = splitCsv[1], numFollowing = splitCsv[2];
-			int index = 3;
-			if (!numFollowed.equals("-1") && !numFollowing.equals("-1")) {
-				int intFollowed = Integer.valueOf(numFollowed), intFollowing = Integer.valueOf(numFollowing);
-				index += intFollowed;
-				for (int i = index; i < index + intFollowing; i++) {
-					if (!newCsv.isEmpty()) newCsv += ",";
-					newCsv += splitCsv[i];
-				}
-				textCsv.set(newCsv);
+			if (sliceFollowing(cursor, value, textCsv)) {
 				output.collect(key, textCsv);
 			}
-			
 		}
 	}
 	
+	/**ネットワーク情報のCSV(ユーザID,#followed,#following,フォロワーID群,フレンドID群)から、フレンド(Following)ID群の部分だけをoutに切り出す。<br>
+	 * 切り出しはバイト列のコピー1回で、要素ごとのStringや連結は行わない。<br>
+	 * #followedか#followingが-1(未取得)の場合はfalseを返す。<br>
+	 * CSVの要素数が#followed/#followingに満たない場合は、以前のsplit版と同様にArrayIndexOutOfBoundsExceptionを投げる。
+	 * @param cursor 再利用するカーソル
+	 * @param value
+	 * @param out
+	 * @return 切り出した場合true
+	 * @throws NumberFormatException
+	 */
+	static boolean sliceFollowing(CsvCursor cursor, Text value, Text out) {
+		cursor.reset(value);
+		if (cursor.skip(1) < 1 || !cursor.hasNext()) throw new ArrayIndexOutOfBoundsException(1);
+		if (cursor.peekEquals("-1")) return false;
+		int numFollowed = cursor.nextInt();
+		if (!cursor.hasNext()) throw new ArrayIndexOutOfBoundsException(2);
+		if (cursor.peekEquals("-1")) return false;
+		int numFollowing = cursor.nextInt();
+		if (numFollowing <= 0) {
+			out.clear();
+			return true;
+		}
+		if (cursor.skip(numFollowed) < numFollowed) throw new ArrayIndexOutOfBoundsException(3 + numFollowed);
+		int copied = cursor.slice(numFollowing, out);
+		if (copied < numFollowing) throw new ArrayIndexOutOfBoundsException(3 + numFollowed + copied);
+		return true;
+	}
+	
 	public static class ReduceCSVReduce extends IdentityReducer<Text, Text> {};
 	
-	public static class SimplifyNetworkMap extends MapReduceBase implements Mapper<Text, Text, LongWritable, Text> {
+	public static class SimplifyNetworkMap extends MonitoredMapReduceBase implements Mapper<Text, Text, LongWritable, Text> {
 		private static final int followLimit = 2000;
 		private LongWritable userid = new LongWritable();
 
@@ -374,12 +428,14 @@ public class GraphAnalysis {
 				throws IOException {
 			try {
 				User user = TwitterObjectFactory.createUser(key.toString());
-				if ( user.getFriendsCount() < followLimit ) {
+				if (monitor.filter(user.getFriendsCount() < followLimit, reporter)) {
 					userid.set(user.getId());
 					output.collect(userid, value);
 				}
+			} catch (TwitterException e) {
+				monitor.parseError(key, value, e, reporter);
 			} catch (Exception e) {
-				e.printStackTrace();
+				monitor.recordError(key, value, e, reporter);
 			}
 		}
 	}
@@ -387,42 +443,25 @@ public class GraphAnalysis {
 	public static class SimplifyNetworkReduce extends IdentityReducer<LongWritable, Text> {};
 	
 	public static class DistCacheTestMap extends MapReduceBase implements Mapper<Text, Text, LongWritable, IntWritable> {
-		private static final String linkname = AnalyzerMain.DIST_LINKNAME;
-		private static HashMap<Long, Integer> uxlist = new HashMap<Long, Integer>();
+		private SideDataCache.Handle<LongIntLookup> side = null;
+		private LongIntLookup uxlist = null;
 				
-		/**configureメソッドはMapperがインスタンス化された時に呼ばれる。ここでHashMapにuflistを取り込む。
+		/**configureメソッドはMapperがインスタンス化された時に呼ばれる。ここでuflistを取り込む(JVM内で共有)。
 		 * @param job
 		 */		
 		public void configure(JobConf job) {
-			BufferedReader br = null;
-			try {
-				br = new BufferedReader(new InputStreamReader(new FileInputStream(linkname)));
-				String line = "";
-				while((line=br.readLine())!=null) {
-					String[] splits = line.split("\t");
-					Long userid = Long.parseLong(splits[0]);
-					Integer freq = Integer.parseInt(splits[1]);
-					System.out.println(userid);
-					uxlist.put(userid, freq);
-				}
-			} catch(Exception e) {
-				e.printStackTrace();
-			} finally {
-				try {
-					br.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
+			side = loadUXList(job);
+			uxlist = side.get();
 		}
 
 		@Override
 		public void map(Text key, Text value,
 				OutputCollector<LongWritable, IntWritable> output,
 				Reporter reporter) throws IOException {
-			for (Entry<Long, Integer> entry : uxlist.entrySet()) {
-				output.collect(new LongWritable(entry.getKey()), new IntWritable(entry.getValue()));
-				break;
+			side.report(reporter);
+			if (uxlist.size() > 0) {
+				long userid = uxlist.anyKey();
+				output.collect(new LongWritable(userid), new IntWritable(uxlist.get(userid, 0)));
 			}
 		}
 	}
@@ -433,74 +472,60 @@ public class GraphAnalysis {
 	 * @author YuMatsuzawa
 	 *
 	 */
-	public static class VocalFriendsAttitudeMap extends MapReduceBase implements Mapper<Text, Text, IntWritable, DoubleWritable> {
-		private static final String linkname = AnalyzerMain.DIST_LINKNAME;
-		private static HashMap<Long, Integer> uxlist = new HashMap<Long, Integer>();
+	public static class VocalFriendsAttitudeMap extends MonitoredMapReduceBase implements Mapper<Text, Text, IntWritable, DoubleWritable> {
+		private SideDataCache.Handle<LongIntLookup> side = null;
+		private LongIntLookup uxlist = null;
 		
 		private IntWritable numRT = new IntWritable();
 		private DoubleWritable rate = new DoubleWritable();
+		private CsvCursor cursor = new CsvCursor();
 		
-		/**configureメソッドはMapperがインスタンス化された時に呼ばれる。ここでHashMapにuflistを取り込む。
+		/**configureメソッドはMapperがインスタンス化された時に呼ばれる。ここでuflistを取り込む(JVM内で共有)。
 		 * @param job
 		 */
 		public void configure(JobConf job) {
-			BufferedReader br = null;
-			try {
-				br = new BufferedReader(new InputStreamReader(new FileInputStream(linkname)));
-				String line = "";
-				while((line=br.readLine())!=null) {
-					String[] splits = line.split("\t");
-					Long userid = Long.parseLong(splits[0]);
-					Integer freq = Integer.parseInt(splits[1]);
-					System.out.println(userid);
-					uxlist.put(userid, freq);
-				}
-			} catch(Exception e) {
-				e.printStackTrace();
-			} finally {
-				try {
-					br.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
+			super.configure(job);
+			side = loadUXList(job);
+			uxlist = side.get();
 		}
 
 		@Override
 		public void map(Text key, Text value,
 				OutputCollector<IntWritable, DoubleWritable> output,
 				Reporter reporter) throws IOException {
+			side.report(reporter);
 			try {
 				User user = TwitterObjectFactory.createUser(key.toString());
-				Long userId = user.getId();
+				long userId = user.getId();
 				if ( uxlist.containsKey(userId) ) { // which means the user is Vocal
 					numRT.set(getFreqOf(userId));
 					
-					String[] followingList = value.toString().split(",");
-					int numFollowing = followingList.length;
+					cursor.reset(value);
+					int numFollowing = cursor.countRemaining();
 					double vocalRate = 0.0;
-					for (String followingId : followingList) {
+					while (cursor.hasNext()) {
 						try {
-							Long followingIdByLong = Long.valueOf(followingId);
+							long followingIdByLong = cursor.nextLong();
 							if (uxlist.containsKey(followingIdByLong)) {  // which means this followee is Vocal
 								vocalRate += 1.0;
 							}
 						} catch (Exception e) {
-							e.printStackTrace();
+							monitor.badField(reporter);
 						}
 					}
 					vocalRate /= (double) numFollowing;
 					rate.set(vocalRate);
 					output.collect(numRT, rate);
 				}
+			} catch (TwitterException e) {
+				monitor.parseError(key, value, e, reporter);
 			} catch (Exception e) {
-				e.printStackTrace();
+				monitor.recordError(key, value, e, reporter);
 			}
 		}
 		
-		private Integer getFreqOf(Long userid) {
-			Integer freq = (uxlist.get(userid)!=null)? uxlist.get(userid) : 0;
-			return freq;
+		private int getFreqOf(long userid) {
+			return uxlist.get(userid, 0);
 		}
 		
 	}
@@ -528,62 +553,47 @@ public class GraphAnalysis {
 	 * @author YuMatsuzawa
 	 *
 	 */
-	public static class VocalFriendsAverageMap extends MapReduceBase implements Mapper<Text, Text, IntWritable, Text> {
-		private static final String linkname = AnalyzerMain.DIST_LINKNAME;
-		private static HashMap<Long, Integer> uxlist = new HashMap<Long, Integer>();
+	public static class VocalFriendsAverageMap extends MonitoredMapReduceBase implements Mapper<Text, Text, IntWritable, Text> {
+		private SideDataCache.Handle<LongIntLookup> side = null;
+		private LongIntLookup uxlist = null;
 		
 		private IntWritable numRT = new IntWritable();
 		private Text rates = new Text();
+		private CsvCursor cursor = new CsvCursor();
 		
-		/**configureメソッドはMapperがインスタンス化された時に呼ばれる。ここでHashMapにuflistを取り込む。
+		/**configureメソッドはMapperがインスタンス化された時に呼ばれる。ここでuflistを取り込む(JVM内で共有)。
 		 * @param job
 		 */
 		public void configure(JobConf job) {
-			BufferedReader br = null;
-			try {
-				br = new BufferedReader(new InputStreamReader(new FileInputStream(linkname)));
-				String line = "";
-				while((line=br.readLine())!=null) {
-					String[] splits = line.split("\t");
-					Long userid = Long.parseLong(splits[0]);
-					Integer freq = Integer.parseInt(splits[1]);
-					System.out.println(userid);
-					uxlist.put(userid, freq);
-				}
-			} catch(Exception e) {
-				e.printStackTrace();
-			} finally {
-				try {
-					br.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
+			super.configure(job);
+			side = loadUXList(job);
+			uxlist = side.get();
 		}
 
 		@Override
 		public void map(Text key, Text value,
 				OutputCollector<IntWritable, Text> output,
 				Reporter reporter) throws IOException {
+			side.report(reporter);
 			try {
 				User user = TwitterObjectFactory.createUser(key.toString());
-				Long userId = user.getId();
+				long userId = user.getId();
 				if ( uxlist.containsKey(userId) ) { // which means the user is Vocal
 					numRT.set(getFreqOf(userId));
 					
-					String[] followingList = value.toString().split(",");
-					int numFollowing = followingList.length;
+					cursor.reset(value);
+					int numFollowing = cursor.countRemaining();
 					int numVocal = 0;
 					double avgRT = 0.0;
-					for (String followingId : followingList) {
+					while (cursor.hasNext()) {
 						try {
-							Long followingIdByLong = Long.valueOf(followingId);
+							long followingIdByLong = cursor.nextLong();
 							if (uxlist.containsKey(followingIdByLong)) {  // which means this followee is Vocal
 								numVocal++;
 								avgRT += (double) getFreqOf(followingIdByLong);
 							}
 						} catch (Exception e) {
-							e.printStackTrace();
+							monitor.badField(reporter);
 						}
 					}
 					double vocalAvgRT = 0.0, totalAvgRT = 0.0;
@@ -594,14 +604,15 @@ public class GraphAnalysis {
 					rates.set(vocalAvgRT + "," + totalAvgRT);
 					output.collect(numRT, rates);
 				}
+			} catch (TwitterException e) {
+				monitor.parseError(key, value, e, reporter);
 			} catch (Exception e) {
-				e.printStackTrace();
+				monitor.recordError(key, value, e, reporter);
 			}
 		}
 		
-		private Integer getFreqOf(Long userid) {
-			Integer freq = (uxlist.get(userid)!=null)? uxlist.get(userid) : 0;
-			return freq;
+		private int getFreqOf(long userid) {
+			return uxlist.get(userid, 0);
 		}
 		
 	}
@@ -612,62 +623,46 @@ public class GraphAnalysis {
 	 * @author YuMatsuzawa
 	 *
 	 */
-	public static class VocalFriendsOpinionMap extends MapReduceBase implements Mapper<Text, Text, IntWritable, DoubleWritable> {
-		private static final String linkname = AnalyzerMain.DIST_LINKNAME;
-		private static HashMap<Long, Integer> uxlist = new HashMap<Long, Integer>();
+	public static class VocalFriendsOpinionMap extends MonitoredMapReduceBase implements Mapper<Text, Text, IntWritable, DoubleWritable> {
+		private SideDataCache.Handle<LongIntLookup> side = null;
+		private LongIntLookup uxlist = null;
 		
 		private IntWritable op = new IntWritable();
 		private DoubleWritable rates = new DoubleWritable();
+		private CsvCursor cursor = new CsvCursor();
 		
-		/**configureメソッドはMapperがインスタンス化された時に呼ばれる。ここでHashMapにuflistを取り込む。
+		/**configureメソッドはMapperがインスタンス化された時に呼ばれる。ここでuflistを取り込む(JVM内で共有)。
 		 * @param job
 		 */
 		public void configure(JobConf job) {
-			BufferedReader br = null;
-			try {
-				br = new BufferedReader(new InputStreamReader(new FileInputStream(linkname)));
-				String line = "";
-				while((line=br.readLine())!=null) {
-					String[] splits = line.split("\t");
-					Long userid = Long.parseLong(splits[0]);
-					Integer freq = Integer.parseInt(splits[1]);
-					System.out.println(userid);
-					uxlist.put(userid, freq);
-				}
-			} catch(Exception e) {
-				e.printStackTrace();
-			} finally {
-				try {
-					br.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
+			super.configure(job);
+			side = loadUXList(job);
+			uxlist = side.get();
 		}
 
 		@Override
 		public void map(Text key, Text value,
 				OutputCollector<IntWritable, DoubleWritable> output, Reporter reporter)
 				throws IOException {
+			side.report(reporter);
 			try {
 				User user = TwitterObjectFactory.createUser(key.toString());
-				Long userId = user.getId();
+				long userId = user.getId();
 				if ( uxlist.containsKey(userId) ) { // which means the user is Vocal
-					op.set(uxlist.get(userId));
+					op.set(uxlist.get(userId, 0));
 					
-					String[] followingList = value.toString().split(",");
-//					int numFollowing = followingList.length;
+					cursor.reset(value);
 					int numVocal = 0;
 					double avgOP = 0.0;
-					for (String followingId : followingList) {
+					while (cursor.hasNext()) {
 						try {
-							Long followingIdByLong = Long.valueOf(followingId);
+							long followingIdByLong = cursor.nextLong();
 							if (uxlist.containsKey(followingIdByLong)) {  // which means this followee is Vocal
 								numVocal++;
-								avgOP += uxlist.get(followingIdByLong);
+								avgOP += uxlist.get(followingIdByLong, 0);
 							}
 						} catch (Exception e) {
-							e.printStackTrace();
+							monitor.badField(reporter);
 						}
 					}
 					double vocalAvgOP = 0.0;
@@ -677,8 +672,10 @@ public class GraphAnalysis {
 					rates.set(vocalAvgOP);
 					output.collect(op, rates);
 				}
+			} catch (TwitterException e) {
+				monitor.parseError(key, value, e, reporter);
 			} catch (Exception e) {
-				e.printStackTrace();
+				monitor.recordError(key, value, e, reporter);
 			}
 		}
 		
@@ -686,153 +683,342 @@ public class GraphAnalysis {
 	
 	public static class VocalFriendsOpinionReduce extends IdentityReducer<IntWritable, DoubleWritable> {};
 	
+	/**Mapタスク内で、意見ごとの入次数の度数分布(DegreeHistogram)を作り、close()でまとめて出力する。<br>
+	 * ユーザごとに(意見, 入次数)を出力すると、シャッフルの量がユーザ数になる。度数分布にすれば、意見の数×次数の種類数で済む。<br>
+	 * OutputCollectorはadd()で受け取ったものを覚えておく。次数の種類数はユーザ数よりずっと少ないので、上限は設けない。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	static class DegreeHistograms {
+		private TreeMap<Integer, DegreeHistogram> histograms = new TreeMap<Integer, DegreeHistogram>();
+		private OutputCollector<IntWritable, DegreeHistogram> output = null;
+		private IntWritable op = new IntWritable();
+
+		void add(int opInt, int degree, OutputCollector<IntWritable, DegreeHistogram> output) {
+			this.output = output;
+			DegreeHistogram histogram = histograms.get(opInt);
+			if (histogram == null) histograms.put(opInt, histogram = new DegreeHistogram());
+			histogram.add(degree, 1);
+		}
+
+		void close() throws IOException {
+			if (output != null) {
+				for (Entry<Integer, DegreeHistogram> entry : histograms.entrySet()) {
+					op.set(entry.getKey());
+					output.collect(op, entry.getValue());
+				}
+			}
+			histograms.clear();
+		}
+	}
+	
 	/**ユーザの次数（入次数＝#followed）を、意見ごとにカウントするマップ。Silentユーザはop=-1としてこれも計上する。<br>
-	 * political_noprofileネットワークを使うほうが多分いい．Text形式で，Profileはなく，KeyにユーザID，ValにCSVが入っている．
+	 * political_noprofileネットワークを使うほうが多分いい．Text形式で，Profileはなく，KeyにユーザID，ValにCSVが入っている．<br>
+	 * ユーザごとには出力せず、タスク内の意見ごとの度数分布をclose()で出力する。ReducerはDegreeHistogramReduce。
 	 * @author YuMatsuzawa
 	 *
 	 */
-	public static class VocalDegreeMap extends MapReduceBase implements Mapper<LongWritable, Text, IntWritable, IntWritable> {
-		private static final String linkname = AnalyzerMain.DIST_LINKNAME;
-		private static HashMap<Long, Integer> uxlist = new HashMap<Long, Integer>();
+	public static class VocalDegreeMap extends MonitoredMapReduceBase implements Mapper<LongWritable, Text, IntWritable, DegreeHistogram> {
+		private SideDataCache.Handle<LongIntLookup> side = null;
+		private LongIntLookup uxlist = null;
 		
-		private IntWritable op = new IntWritable();
-		private IntWritable inDegree = new IntWritable();
+		private DegreeHistograms histograms = new DegreeHistograms();
+		private CsvCursor cursor = new CsvCursor();
 		
-		/**configureメソッドはMapperがインスタンス化された時に呼ばれる。ここでHashMapにuflistを取り込む。
+		/**configureメソッドはMapperがインスタンス化された時に呼ばれる。ここでuflistを取り込む(JVM内で共有)。
 		 * @param job
 		 */
 		public void configure(JobConf job) {
-			BufferedReader br = null;
-			try {
-				br = new BufferedReader(new InputStreamReader(new FileInputStream(linkname)));
-				String line = "";
-				while((line=br.readLine())!=null) {
-					String[] splits = line.split("\t");
-					Long userid = Long.parseLong(splits[0]);
-					Integer freq = Integer.parseInt(splits[1]);
-					System.out.println(userid);
-					uxlist.put(userid, freq);
-				}
-			} catch(Exception e) {
-				e.printStackTrace();
-			} finally {
-				try {
-					br.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
+			super.configure(job);
+			side = loadUXList(job);
+			uxlist = side.get();
 		}
 
 		@Override
 		public void map(LongWritable key, Text value,
-				OutputCollector<IntWritable, IntWritable> output,
+				OutputCollector<IntWritable, DegreeHistogram> output,
 				Reporter reporter) throws IOException {
+			side.report(reporter);
 			try {
 //				User user = TwitterObjectFactory.createUser(key.toString());
 //				Long userid = user.getId();
-				String[] split = value.toString().split("\t");
-				Long userid = Long.valueOf(split[0]);
-				Integer opInt = uxlist.get(userid);
-				if (opInt == null) opInt = -1;
+				int tab = CsvCursor.indexOf(value, '\t');
+				if (tab < 0) throw new ArrayIndexOutOfBoundsException(1);
+				long userid = CsvCursor.parseLong(value.getBytes(), 0, tab);
+				int opInt = uxlist.get(userid, -1);
 				
-				op.set(opInt);
-				String[] csvStr = split[1].toString().split(",");
-				int numFollowed = Integer.valueOf(csvStr[1]);
+				int numFollowed = numFollowedOf(cursor, value, tab);
 				if(numFollowed >= 0) {
-					inDegree.set(numFollowed);
-					output.collect(op, inDegree);
+					histograms.add(opInt, numFollowed, output);
+				} else {
+					monitor.skip(reporter);
 				}
 			} catch(Exception e) {
-				e.printStackTrace();
+				monitor.parseError(key, value, e, reporter);
 			}
 		}
+
+		@Override
+		public void close() throws IOException {
+			histograms.close();
+			super.close();
+		}
 		
 	}
 	
-	/**結果をFreqに変えておく．Excelの頻度分布は低機能のため．
+	/**Mapperが出力した意見ごとの度数分布を合計し、"入次数\t人数"を入次数の昇順に出力する(Excelの頻度分布は低機能のため)．<br>
+	 * VDegree/TotalVDegree/GVDegree/GTotalVDegreeで共通。以前のVocalDegreeReduce/TotalDegreeReduceと同じ出力になる。<br>
+	 * 度数分布はKeyごとに作り直すので、同じJVMで複数のReduceタスクを動かしても混ざらない。
 	 * @author YuMatsuzawa
 	 *
 	 */
-	public static class VocalDegreeReduce extends MapReduceBase implements Reducer<IntWritable, IntWritable, IntWritable, Text>{
-		private TreeMap<Integer,Integer> freqMap = null;
+	public static class DegreeHistogramReduce extends MapReduceBase implements Reducer<IntWritable, DegreeHistogram, IntWritable, Text>, SkewMergeable {
+		private DegreeHistogram merged = new DegreeHistogram();
+		private Text line = new Text();
 		
 		@Override
-		public void reduce(IntWritable key, Iterator<IntWritable> values,
+		public void reduce(IntWritable key, Iterator<DegreeHistogram> values,
 				OutputCollector<IntWritable, Text> output, Reporter reporter)
 				throws IOException {
-			freqMap = new TreeMap<Integer,Integer>();
-			while (values.hasNext()) {
-				Integer degreeKey = values.next().get();
-				if (freqMap.containsKey(degreeKey)) {
-					int freqCount = freqMap.get(degreeKey);
-					freqMap.put(degreeKey, ++freqCount);
-				} else {
-					freqMap.put(degreeKey, 1);
-				}
-			}
-			for (Entry<Integer,Integer> freqEntry : freqMap.entrySet()) {
-				String outVal = freqEntry.getKey().toString() + "\t" + freqEntry.getValue().toString();
-				output.collect(key, new Text(outVal));
+			merged.clear();
+			while (values.hasNext()) merged.add(values.next());
+			for (int degree : merged.sortedDegrees()) {
+				line.set(degree + "\t" + merged.get(degree));
+				output.collect(key, line);
 			}
 		}
 		
 	}
 	
-	/**ネットワーク全体での次数分布を表示するためのMapper
+	/**"ユーザID\tCSV"という行から、CSVの2番目の要素(入次数＝#followed)を読む。行全体やCSVをStringにはしない。
+	 * @param cursor 再利用するカーソル
+	 * @param value
+	 * @param tab 行中の最初のタブの位置
+	 * @return
+	 * @throws NumberFormatException
+	 */
+	static int numFollowedOf(CsvCursor cursor, Text value, int tab) {
+		if (tab < 0) throw new ArrayIndexOutOfBoundsException(1);
+		int end = tab + 1;
+		byte[] bytes = value.getBytes();
+		while (end < value.getLength() && bytes[end] != '\t') end++;
+		cursor.reset(bytes, tab + 1, end);
+		if (cursor.skip(1) < 1 || !cursor.hasNext()) throw new ArrayIndexOutOfBoundsException(1);
+		return cursor.nextInt();
+	}
+	
+	/**ネットワーク全体での次数分布を表示するためのMapper。全ユーザを意見1として、タスク内の度数分布をclose()で出力する。ReducerはDegreeHistogramReduce。
 	 * @author YuMatsuzawa
 	 *
 	 */
-	public static class TotalDegreeMap extends MapReduceBase implements Mapper<LongWritable,Text,IntWritable,IntWritable> {
-		private IntWritable op = new IntWritable(1);
-		private IntWritable inDegree = new IntWritable();
+	public static class TotalDegreeMap extends MonitoredMapReduceBase implements Mapper<LongWritable,Text,IntWritable,DegreeHistogram> {
+		private DegreeHistograms histograms = new DegreeHistograms();
+		private CsvCursor cursor = new CsvCursor();
 		
 		@Override
 		public void map(LongWritable key, Text value,
-				OutputCollector<IntWritable, IntWritable> output,
+				OutputCollector<IntWritable, DegreeHistogram> output,
 				Reporter reporter) throws IOException {
 			try {
-				String[] split = value.toString().split("\t");
-				String[] csvStr = split[1].toString().split(",");
-				
-				int numFollowed = Integer.valueOf(csvStr[1]);
+				int numFollowed = numFollowedOf(cursor, value, CsvCursor.indexOf(value, '\t'));
 				if(numFollowed >= 0) {
-					inDegree.set(numFollowed);
-					output.collect(op, inDegree);
+					histograms.add(1, numFollowed, output);
+				} else {
+					monitor.skip(reporter);
 				}
 			} catch(Exception e) {
-				e.printStackTrace();
+				monitor.parseError(key, value, e, reporter);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			histograms.close();
+			super.close();
+		}
+		
+	}
+	
+	/**ToGraphで変換したグラフファイルを入力とする、VocalFriendsAttitudeMapと同じ集計のマップ。ReducerはVFAttitude/VFAttAvgと共通。<br>
+	 * #followingが未取得のユーザは、ReduceCSVで除かれるのと同様に除く。フレンドが0人の場合、Text版では空のCSVの要素数1で割っていたので、ここでも1で割る(結果は0.0)。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class VocalFriendsAttitudeGraphMap extends MapReduceBase implements Mapper<LongWritable, AdjacencyList, IntWritable, DoubleWritable> {
+		private SideDataCache.Handle<LongIntLookup> side = null;
+		private LongIntLookup uxlist = null;
+		
+		private IntWritable numRT = new IntWritable();
+		private DoubleWritable rate = new DoubleWritable();
+		
+		public void configure(JobConf job) {
+			side = loadUXList(job);
+			uxlist = side.get();
+		}
+
+		@Override
+		public void map(LongWritable key, AdjacencyList value,
+				OutputCollector<IntWritable, DoubleWritable> output,
+				Reporter reporter) throws IOException {
+			side.report(reporter);
+			long userId = key.get();
+			if (value.getNumFollowing() >= 0 && uxlist.containsKey(userId)) { // which means the user is Vocal
+				numRT.set(uxlist.get(userId, 0));
+				
+				long[] following = value.getFollowing();
+				int numFollowing = value.size();
+				double vocalRate = 0.0;
+				for (int i = 0; i < numFollowing; i++) {
+					if (uxlist.containsKey(following[i])) vocalRate += 1.0;
+				}
+				vocalRate /= (double) Math.max(1, numFollowing);
+				rate.set(vocalRate);
+				output.collect(numRT, rate);
 			}
 		}
+	}
+	
+	/**ToGraphで変換したグラフファイルを入力とする、VocalFriendsAverageMapと同じ集計のマップ。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class VocalFriendsAverageGraphMap extends MapReduceBase implements Mapper<LongWritable, AdjacencyList, IntWritable, Text> {
+		private SideDataCache.Handle<LongIntLookup> side = null;
+		private LongIntLookup uxlist = null;
+		
+		private IntWritable numRT = new IntWritable();
+		private Text rates = new Text();
 		
+		public void configure(JobConf job) {
+			side = loadUXList(job);
+			uxlist = side.get();
+		}
+
+		@Override
+		public void map(LongWritable key, AdjacencyList value,
+				OutputCollector<IntWritable, Text> output,
+				Reporter reporter) throws IOException {
+			side.report(reporter);
+			long userId = key.get();
+			if (value.getNumFollowing() >= 0 && uxlist.containsKey(userId)) { // which means the user is Vocal
+				numRT.set(uxlist.get(userId, 0));
+				
+				long[] following = value.getFollowing();
+				int numFollowing = value.size();
+				int numVocal = 0;
+				double avgRT = 0.0;
+				for (int i = 0; i < numFollowing; i++) {
+					if (uxlist.containsKey(following[i])) {
+						numVocal++;
+						avgRT += (double) uxlist.get(following[i], 0);
+					}
+				}
+				double vocalAvgRT = 0.0, totalAvgRT = 0.0;
+				if (numVocal > 0) {
+					vocalAvgRT = avgRT / (double) numVocal;
+				}
+				totalAvgRT = avgRT / (double) Math.max(1, numFollowing);
+				rates.set(vocalAvgRT + "," + totalAvgRT);
+				output.collect(numRT, rates);
+			}
+		}
 	}
 	
-	/**ネットワーク全体での次数分布を表示するためのReducer
+	/**ToGraphで変換したグラフファイルを入力とする、VocalFriendsOpinionMapと同じ集計のマップ。
 	 * @author YuMatsuzawa
 	 *
 	 */
-	public static class TotalDegreeReduce extends MapReduceBase implements Reducer<IntWritable, IntWritable, IntWritable, Text> {
-		private static TreeMap<Integer,Integer> totalFreqMap = new TreeMap<Integer,Integer>();
+	public static class VocalFriendsOpinionGraphMap extends MapReduceBase implements Mapper<LongWritable, AdjacencyList, IntWritable, DoubleWritable> {
+		private SideDataCache.Handle<LongIntLookup> side = null;
+		private LongIntLookup uxlist = null;
 		
+		private IntWritable op = new IntWritable();
+		private DoubleWritable rates = new DoubleWritable();
+		
+		public void configure(JobConf job) {
+			side = loadUXList(job);
+			uxlist = side.get();
+		}
+
 		@Override
-		public void reduce(IntWritable key, Iterator<IntWritable> values,
-				OutputCollector<IntWritable, Text> output, Reporter reporter)
+		public void map(LongWritable key, AdjacencyList value,
+				OutputCollector<IntWritable, DoubleWritable> output, Reporter reporter)
 				throws IOException {
-			while (values.hasNext()) {
-				Integer degreeKey = values.next().get();
-				if (totalFreqMap.containsKey(degreeKey)) {
-					int freqCount = totalFreqMap.get(degreeKey);
-					totalFreqMap.put(degreeKey, ++freqCount);
-				} else {
-					totalFreqMap.put(degreeKey, 1);
+			side.report(reporter);
+			long userId = key.get();
+			if (value.getNumFollowing() >= 0 && uxlist.containsKey(userId)) { // which means the user is Vocal
+				op.set(uxlist.get(userId, 0));
+				
+				long[] following = value.getFollowing();
+				int numVocal = 0;
+				double avgOP = 0.0;
+				for (int i = 0; i < value.size(); i++) {
+					if (uxlist.containsKey(following[i])) {
+						numVocal++;
+						avgOP += uxlist.get(following[i], 0);
+					}
+				}
+				double vocalAvgOP = 0.0;
+				if (numVocal > 0) {
+					vocalAvgOP = avgOP / (double) numVocal;
 				}
+				rates.set(vocalAvgOP);
+				output.collect(op, rates);
 			}
-			for (Entry<Integer,Integer> freqEntry : totalFreqMap.entrySet()) {
-				String outVal = freqEntry.getKey().toString() + "\t" + freqEntry.getValue().toString();
-				output.collect(key, new Text(outVal));
+		}
+	}
+	
+	/**ToGraphで変換したグラフファイルを入力とする、VocalDegreeMapと同じ集計のマップ。ReducerはDegreeHistogramReduce。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class VocalDegreeGraphMap extends MapReduceBase implements Mapper<LongWritable, AdjacencyList, IntWritable, DegreeHistogram> {
+		private SideDataCache.Handle<LongIntLookup> side = null;
+		private LongIntLookup uxlist = null;
+		
+		private DegreeHistograms histograms = new DegreeHistograms();
+		
+		public void configure(JobConf job) {
+			side = loadUXList(job);
+			uxlist = side.get();
+		}
+
+		@Override
+		public void map(LongWritable key, AdjacencyList value,
+				OutputCollector<IntWritable, DegreeHistogram> output,
+				Reporter reporter) throws IOException {
+			side.report(reporter);
+			if (value.getNumFollowed() >= 0) {
+				histograms.add(uxlist.get(key.get(), -1), value.getNumFollowed(), output);
 			}
 		}
+
+		@Override
+		public void close() throws IOException {
+			histograms.close();
+		}
+	}
+	
+	/**ToGraphで変換したグラフファイルを入力とする、TotalDegreeMapと同じ集計のマップ。ReducerはDegreeHistogramReduce。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class TotalDegreeGraphMap extends MapReduceBase implements Mapper<LongWritable, AdjacencyList, IntWritable, DegreeHistogram> {
+		private DegreeHistograms histograms = new DegreeHistograms();
 		
+		@Override
+		public void map(LongWritable key, AdjacencyList value,
+				OutputCollector<IntWritable, DegreeHistogram> output,
+				Reporter reporter) throws IOException {
+			if (value.getNumFollowed() >= 0) {
+				histograms.add(1, value.getNumFollowed(), output);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			histograms.close();
+		}
 	}
 	
 	/**シミュレーションに投入するためのサンプルネットワーク取得の元データを生成するMapR．出力はUserIDをKey，CSVをValueにもつ．ユーザプロファイルは使用しないので消すということになる．<br>
@@ -840,55 +1026,41 @@ public class GraphAnalysis {
 	 * @author YuMatsuzawa
 	 *
 	 */
-	public static class DropProfileAndFilterMap extends MapReduceBase implements Mapper<Text, Text, Text, Text> {
+	public static class DropProfileAndFilterMap extends MonitoredMapReduceBase implements Mapper<Text, Text, Text, Text> {
 //		private final static int USERID_INDEX = 0, NUM_FOLLOWED_INDEX = 1, NUM_FOLLOWING_INDEX = 2;
-		private static final String linkname = AnalyzerMain.DIST_LINKNAME;
 		private static final int followLimit = 2000;
-		private static HashMap<Long, Integer> uxlist = new HashMap<Long, Integer>();
+		private SideDataCache.Handle<LongIntLookup> side = null;
+		private LongIntLookup uxlist = null;
 
 		private Text userid = new Text();
-		/**configureメソッドはMapperがインスタンス化された時に呼ばれる。ここでHashMapにcacheを取り込む。
+		/**configureメソッドはMapperがインスタンス化された時に呼ばれる。ここでcacheを取り込む(JVM内で共有)。
 		 * @param job
 		 */
 		public void configure(JobConf job) {
-			BufferedReader br = null;
-			try {
-				br = new BufferedReader(new InputStreamReader(new FileInputStream(linkname)));
-				String line = "";
-				while((line=br.readLine())!=null) {
-					String[] splits = line.split("\t");
-					Long userid = Long.parseLong(splits[0]);
-					Integer freq = Integer.parseInt(splits[1]);
-//					System.out.println(userid);
-					uxlist.put(userid, freq);
-				}
-			} catch(Exception e) {
-				e.printStackTrace();
-			} finally {
-				try {
-					br.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
+			super.configure(job);
+			side = loadUXList(job);
+			uxlist = side.get();
 		}
 		
 		@Override
 		public void map(Text key, Text value,
 				OutputCollector<Text, Text> output, Reporter reporter)
 				throws IOException {
+			side.report(reporter);
 			User user = null;
 			try {
 				user = TwitterObjectFactory.createUser(key.toString());
-				if (user.getFriendsCount() < followLimit && uxlist.containsKey(user.getId())) { //followLimitによるフィルタ
+				if (monitor.filter(user.getFriendsCount() < followLimit && uxlist.containsKey(user.getId()), reporter)) { //followLimitによるフィルタ
 //					String[] csv = value.toString().split(",");
 //					if (csv[NUM_FOLLOWED_INDEX].equals("-1") || csv[NUM_FOLLOWING_INDEX].equals("-1")) return; //鍵付きユーザ除外→あとでやる
 					
 					userid.set(String.valueOf(user.getId()));
 					output.collect(userid, value);
 				}
-			} catch(Exception e) {
-				e.printStackTrace();
+			} catch (TwitterException e) {
+				monitor.parseError(key, value, e, reporter);
+			} catch (Exception e) {
+				monitor.recordError(key, value, e, reporter);
 			}
 		}
 	}
@@ -0,0 +1,165 @@
+/**
+ *
+ */
+package matz.election.analyzer;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.*;
+
+import matz.election.analyzer.util.MonitoredMapReduceBase;
+import matz.election.analyzer.util.SpaceSaving;
+import matz.election.analyzer.util.TweetFields;
+import matz.election.analyzer.util.TweetView;
+
+import twitter4j.TwitterException;
+
+/**URL・RT文面・ユーザのうち、出現数の上位K件を1回のジョブで求めるクラス。<br>
+ * バズURLを得るには、URLCount(全URLとそのカウントをBALANCED_REDUCE_NUM個のReducerで書く)、BuzzExtract(閾値)、getmergeの3段階が必要だった。<br>
+ * 出現数の大部分は1回しか現れない項目が占めるが、上位K件だけが欲しいならそれらを書き出す必要はない。<br>
+ * Mapperはタスク内の出現をSpaceSavingの要約(カウンタ数はK×CAPACITY_FACTOR、topk.capacityで変更可)で数え、close()で要約を1つだけ出力する。<br>
+ * 単一のReducer(TopKReduce)が全タスクの要約を併合し、上位K件をカウント・誤差の上限・上位K件に確実に入っているかと共に出力する。Kは3番目の引数で与える(既定はDEFAULT_K)。
+ * @author YuMatsuzawa
+ *
+ */
+public class HeavyHitters {
+	public static final String CAPACITY_KEY = "topk.capacity";
+	public static final int DEFAULT_K = 100;
+	public static final int CAPACITY_FACTOR = 100;
+	private static final IntWritable ZERO = new IntWritable(0);
+
+	/**3番目の引数のKを読む。不正・省略時はDEFAULT_K。
+	 * @param job
+	 * @return
+	 */
+	protected static int parseK(JobConf job) {
+		String extraArg = job.get("arg3");
+		if (extraArg != null) {
+			try {
+				int k = Integer.parseInt(extraArg);
+				if (k > 0) return k;
+			} catch (NumberFormatException e) {
+				//do nothing. default value will be kept.
+			}
+		}
+		return DEFAULT_K;
+	}
+
+	/**各Mapperに共通の部分。ツイートをTweetViewで読み、emitItems()で数える項目を決めて要約に加える。<br>
+	 * 要約はclose()でKey 0として出力する。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static abstract class TopKMap extends MonitoredMapReduceBase implements Mapper<LongWritable, Writable, IntWritable, SpaceSaving> {
+		private TweetView view = new TweetView();
+		private SpaceSaving summary = null;
+		private OutputCollector<IntWritable, SpaceSaving> output = null;
+
+		@Override
+		public void configure(JobConf job) {
+			super.configure(job);
+			summary = new SpaceSaving(job.getInt(CAPACITY_KEY, parseK(job) * CAPACITY_FACTOR));
+		}
+
+		@Override
+		public void map(LongWritable key, Writable value,
+				OutputCollector<IntWritable, SpaceSaving> output, Reporter reporter)
+				throws IOException {
+			this.output = output;
+			try {
+				emitItems(view.read(value));
+			} catch (TwitterException e) {
+				monitor.parseError(key, value, e, reporter);
+			} catch (RuntimeException e) {
+				monitor.recordError(key, value, e, reporter);
+			}
+		}
+
+		/**tweetの数えるべき項目ごとにoffer()を呼ぶ。
+		 * @param tweet
+		 */
+		protected abstract void emitItems(TweetFields tweet);
+
+		protected void offer(String item) {
+			summary.offer(item, 1);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (output != null && summary.size() > 0) output.collect(ZERO, summary);
+			super.close();
+		}
+	}
+
+	/**添付URLを数えるMapper。URLはURLCountと同じく展開も除去もせずに数える。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class TopURLMap extends TopKMap {
+		@Override
+		protected void emitItems(TweetFields tweet) {
+			for (String urlStr : tweet.getURLs()) offer(urlStr);
+		}
+	}
+
+	/**RTされた文面をRTの回数で数えるMapper。項目はRetweetと同じくBase64エンコードした文面。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class TopRTMap extends TopKMap {
+		@Override
+		protected void emitItems(TweetFields tweet) {
+			if (tweet.isRetweet()) offer(new String(Base64.encodeBase64(tweet.getRetweetedText().getBytes())));
+		}
+	}
+
+	/**ユーザIDをツイート数で数えるMapper。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class TopUserMap extends TopKMap {
+		@Override
+		protected void emitItems(TweetFields tweet) {
+			offer(String.valueOf(tweet.getUserId()));
+		}
+	}
+
+	/**全タスクの要約を併合し、上位K件を"カウント\t誤差\t確定"の形で出力するReducer。<br>
+	 * カウントは出現数の上限、カウント-誤差は下限。下限がK+1番目のカウント(要約に載っていない項目の上限である最小カウントも含む)以上なら、<br>
+	 * その項目は確実に上位K件に入っているので、確定を1にする。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class TopKReduce extends MapReduceBase implements Reducer<IntWritable, SpaceSaving, Text, Text> {
+		private int k = DEFAULT_K;
+		private SpaceSaving merged = null;
+
+		@Override
+		public void configure(JobConf job) {
+			k = parseK(job);
+			merged = new SpaceSaving(job.getInt(CAPACITY_KEY, k * CAPACITY_FACTOR));
+		}
+
+		@Override
+		public void reduce(IntWritable key, Iterator<SpaceSaving> values,
+				OutputCollector<Text, Text> output, Reporter reporter)
+				throws IOException {
+			merged.clear();
+			while (values.hasNext()) merged.add(values.next());
+			List<SpaceSaving.Item> top = merged.top(k + 1);
+			long next = merged.minCount();
+			if (top.size() > k) next = Math.max(next, top.get(k).getCount());
+			for (SpaceSaving.Item item : top.subList(0, Math.min(k, top.size()))) {
+				int guaranteed = (item.getCount() - item.getError() >= next)? 1 : 0;
+				output.collect(new Text(item.getItem()), new Text(item.getCount() + "\t" + item.getError() + "\t" + guaranteed));
+			}
+		}
+	}
+}
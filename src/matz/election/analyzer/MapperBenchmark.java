@@ -0,0 +1,478 @@
+/**
+ *
+ */
+package matz.election.analyzer;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import matz.election.analyzer.util.AdjacencyList;
+import matz.election.analyzer.util.TweetRecord;
+
+/**各ジョブのMapper/Reducerを、クラスタに流さずにmap()/reduce()を直接呼んで、1レコードあたりの性能を測るベンチマーク。<br>
+ * 出力は数えるだけのOutputCollectorに捨てるので、ソート・シャッフル・I/Oを除いたMapper/Reducer自体の処理だけを測ることになる。<br>
+ * 項目ごとに、処理したレコード数、経過時間、records/sec、1レコードあたりのヒープ割り当てバイト数、測定中のGC回数・時間、出力数をタブ区切りで出力する。<br>
+ * 割り当てバイト数はHotSpotのThreadMXBeanで測る。取れないJVMでは"-"になる。<br>
+ * 入力は以下のものを件数分だけ繰り返して使う。<br>
+ * ツイート: sampleTweetLog.txt(カレントディレクトリ)の各行。生JSONのTextと、ToRecordと同じTweetRecordの2通り。<br>
+ * フォローネットワーク: 乱数で作ったユーザについての、"ユーザID\tユーザID,#followed,#following,フォロワー...,フレンド..."の行(VDegree/TotalVDegreeの入力)、
+ * ユーザJSONとネットワークCSVの組(SimplifyAllの入力)、ユーザJSONとフレンドCSVの組(VFAttitudeの入力)、AdjacencyList(ToGraphの出力)。<br>
+ * URLペア: "URL,ユーザID...\tURL,ユーザID..."の行(JaccardLinkの入力)。<br>
+ * Reducerの入力は、対応するMapperの出力をKeyごとにまとめたもの。<br>
+ * UXリストを使うMapperのため、カレントディレクトリにdistがなければ乱数で作ったUXリストを置き、終わったら消す。<br>
+ * ネットワークにつなぐMapper(URLRefer等)や、HDFS上のファイルを読むMapper(PoliticalTweet)は対象にしない。URL展開の性能はURLBenchmarkで測る。<br>
+ * 使い方: MapperBenchmark [<レコード数>[ <rounds>[ <項目名の一部>]]]
+ * @author YuMatsuzawa
+ *
+ */
+public class MapperBenchmark {
+	private static final int DEFAULT_RECORDS = 20000, DEFAULT_ROUNDS = 5, WARMUP_ROUNDS = 2;
+	private static final int USERS = 20000, MAX_FRIENDS = 300, MAX_FOLLOWERS = 300;
+	private static final String SAMPLE = "sampleTweetLog.txt";
+	private static final long SEED = 20130721;
+
+	/**入力の種類。
+	 */
+	private static enum Input { TWEET_JSON, TWEET_RECORD, NETWORK, PROFILE, FRIENDS, GRAPH, PAIRS }
+
+	/**ベンチマークの1項目。Mapperならinputを、Reducerなら入力を作るMapperの項目sourceを持つ。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	private static class Case {
+		private final String name;
+		private final Class<?> cls;
+		private final Input input;
+		private final Case source;
+		private final String[] args;
+
+		private Case(String name, Class<?> cls, Input input, Case source, String[] args) {
+			this.name = name;
+			this.cls = cls;
+			this.input = input;
+			this.source = source;
+			this.args = args;
+		}
+
+		/**項目のargNを設定したJobConf。Reducerの場合は入力を作るMapperのものを使う。
+		 * @return
+		 */
+		private JobConf job() {
+			JobConf job = new JobConf();
+			String[] args = (source != null)? source.args : this.args;
+			for (int i = 0; i < args.length; i++) job.set("arg" + (i + 3), args[i]);
+			return job;
+		}
+	}
+
+	private static Case map(String name, Class<?> cls, Input input, String... args) {
+		return new Case(name, cls, input, null, args);
+	}
+
+	private static Case reduce(String name, Class<?> cls, Case source) {
+		return new Case(name, cls, null, source, new String[0]);
+	}
+
+	private static final Case TWEET_COUNT = map("TweetCount", TweetCount.Map.class, Input.TWEET_JSON);
+	private static final Case USER_TWEET = map("UserTweetCount", TweetCount.UserTweetMap.class, Input.TWEET_JSON);
+	private static final Case TIME_SERIES = map("TimeSeries", TweetCount.TimeStampMap.class, Input.TWEET_JSON);
+	private static final Case TIME_FREQ = map("TimeFreq", TweetCount.CreatedAtFreqMap.class, Input.TWEET_JSON);
+	private static final Case RETWEET_COUNT = map("RetweetCount", TweetCount.RetweetMap.class, Input.TWEET_JSON);
+	private static final Case URL_COUNT = map("URLCount", URLTweet.URLCountMap.class, Input.TWEET_JSON);
+	private static final Case PARTY_BUZZ = map("PartyBuzz", PoliticalTweet.PartyBuzzMap.class, Input.TWEET_JSON);
+	private static final Case TOPIC_URL = map("TopicURLCount", PoliticalTweet.TopicURLCountMap.class, Input.TWEET_JSON, "選挙,参院選");
+	private static final Case TOPIC_URL_USER = map("TopicURLUser", PoliticalTweet.TopicURLUserMap.class, Input.TWEET_JSON, "選挙,参院選");
+	private static final Case RETWEET = map("Retweet", Retweet.RetweetMap.class, Input.TWEET_JSON);
+	private static final Case PROFILE = map("CorpusProfile", CorpusProfile.ProfileMap.class, Input.TWEET_JSON);
+	private static final Case URL_USERS = map("URLUsers", DistinctUsers.URLUsersMap.class, Input.TWEET_JSON);
+	private static final Case TOP_URL = map("TopURL", HeavyHitters.TopURLMap.class, Input.TWEET_JSON);
+	private static final Case TOTAL_DEGREE = map("TotalVDegree", GraphAnalysis.TotalDegreeMap.class, Input.NETWORK);
+	private static final Case VOCAL_DEGREE = map("VDegree", GraphAnalysis.VocalDegreeMap.class, Input.NETWORK);
+	private static final Case JACCARD = map("JaccardLink", GraphAnalysis.JaccardLinkMap.class, Input.PAIRS, "0.0");
+
+	private static final Case[] CASES = {
+		TWEET_COUNT,
+		USER_TWEET,
+		map("UserTweetCount(record)", TweetCount.UserTweetMap.class, Input.TWEET_RECORD),
+		TIME_SERIES,
+		map("TimeSeries(record)", TweetCount.TimeStampMap.class, Input.TWEET_RECORD),
+		TIME_FREQ,
+		RETWEET_COUNT,
+		URL_COUNT,
+		map("URLCount(record)", URLTweet.URLCountMap.class, Input.TWEET_RECORD),
+		PARTY_BUZZ,
+		TOPIC_URL,
+		TOPIC_URL_USER,
+		RETWEET,
+		PROFILE,
+		map("CorpusProfile(record)", CorpusProfile.ProfileMap.class, Input.TWEET_RECORD),
+		URL_USERS,
+		TOP_URL,
+		TOTAL_DEGREE,
+		VOCAL_DEGREE,
+		map("GVDegree", GraphAnalysis.VocalDegreeGraphMap.class, Input.GRAPH),
+		map("VFAttitude", GraphAnalysis.VocalFriendsAttitudeMap.class, Input.FRIENDS),
+		map("GVFAttitude", GraphAnalysis.VocalFriendsAttitudeGraphMap.class, Input.GRAPH),
+		map("SimplifyAll", GraphAnalysis.SimplifyAllMap.class, Input.PROFILE),
+		JACCARD,
+		reduce("UserTweetCount/reduce", TweetCount.TextIntReduce.class, USER_TWEET),
+		reduce("TimeSeries/reduce", TweetCount.LongIntReduce.class, TIME_SERIES),
+		reduce("TimeFreq/reduce", TweetCount.CreatedAtFreqReduce.class, TIME_FREQ),
+		reduce("URLCount/reduce", URLTweet.TextIntReduce.class, URL_COUNT),
+		reduce("TopicURLUser/reduce", PoliticalTweet.TopicURLUserReduce.class, TOPIC_URL_USER),
+		reduce("Retweet/reduce", Retweet.RetweetReduce.class, RETWEET),
+		reduce("CorpusProfile/combine", CorpusProfile.ProfileCombine.class, PROFILE),
+		reduce("URLUsers/reduce", DistinctUsers.SketchReduce.class, URL_USERS),
+		reduce("TopURL/reduce", HeavyHitters.TopKReduce.class, TOP_URL),
+		reduce("TotalVDegree/reduce", GraphAnalysis.DegreeHistogramReduce.class, TOTAL_DEGREE),
+		reduce("VDegree/reduce", GraphAnalysis.DegreeHistogramReduce.class, VOCAL_DEGREE),
+		reduce("JaccardLink/reduce", GraphAnalysis.JaccardLinkReduce.class, JACCARD),
+	};
+
+	/**出力を数えるだけのOutputCollector。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	@SuppressWarnings("rawtypes")
+	private static class CountingCollector implements OutputCollector {
+		private long count = 0;
+
+		@Override
+		public void collect(Object key, Object value) throws IOException {
+			count++;
+		}
+	}
+
+	/**出力をコピーしてKeyごとにまとめるOutputCollector。Reducerの入力を作るのに使う。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	@SuppressWarnings("rawtypes")
+	private static class GroupingCollector implements OutputCollector {
+		private final JobConf job;
+		private final TreeMap<WritableComparable, List<Writable>> groups = new TreeMap<WritableComparable, List<Writable>>();
+
+		private GroupingCollector(JobConf job) {
+			this.job = job;
+		}
+
+		@Override
+		public void collect(Object key, Object value) throws IOException {
+			List<Writable> values = groups.get(key);
+			if (values == null) {
+				values = new ArrayList<Writable>();
+				groups.put(WritableUtils.clone((WritableComparable) key, job), values);
+			}
+			values.add(WritableUtils.clone((Writable) value, job));
+		}
+	}
+
+	/**1項目の測定。開始時と終了時の時刻、このスレッドの割り当てバイト数、GC回数・時間の差をとる。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	private static class Meter {
+		private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		private long nanos, allocated, gcCount, gcMillis;
+
+		private void start() {
+			allocated = allocatedBytes();
+			gcCount = gcCount();
+			gcMillis = gcMillis();
+			nanos = System.nanoTime();
+		}
+
+		private void stop(String name, long records, long outputs) {
+			long elapsed = Math.max(1, System.nanoTime() - nanos);
+			long bytes = allocatedBytes();
+			String perRecord = (bytes < 0 || allocated < 0 || records == 0)? "-" : String.valueOf((bytes - allocated) / records);
+			long rate = (long) (records * 1e9 / elapsed);
+			System.out.println(name + "\t" + records + "\t" + (elapsed / 1000000) + "\t" + rate + "\t" + perRecord
+					+ "\t" + (gcCount() - gcCount) + "\t" + (gcMillis() - gcMillis) + "\t" + outputs);
+		}
+
+		private static long allocatedBytes() {
+			if (threads instanceof com.sun.management.ThreadMXBean) {
+				return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+			return -1;
+		}
+
+		private static long gcCount() {
+			long count = 0;
+			for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) count += Math.max(0, gc.getCollectionCount());
+			return count;
+		}
+
+		private static long gcMillis() {
+			long millis = 0;
+			for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) millis += Math.max(0, gc.getCollectionTime());
+			return millis;
+		}
+	}
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		int records = (args.length > 0)? Integer.parseInt(args[0]) : DEFAULT_RECORDS;
+		int rounds = (args.length > 1)? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+		String filter = (args.length > 2)? args[2] : null;
+		File dist = new File(AnalyzerMain.DIST_LINKNAME);
+		boolean distCreated = false;
+		try {
+			Random random = new Random(SEED);
+			if (!dist.exists()) {
+				writeUXList(dist, random);
+				distCreated = true;
+			}
+			Writable[][] tweets = null, tweetRecords = null;
+			TreeMap<Input, Writable[][]> inputs = new TreeMap<Input, Writable[][]>();
+			System.out.println("# " + records + " records/round, " + rounds + " rounds (after " + WARMUP_ROUNDS + " warm-up rounds)");
+			System.out.println("# case\trecords\tmillis\trecords/sec\tbytes/record\tgc\tgc millis\toutputs");
+			for (Case c : CASES) {
+				if (filter != null && !c.name.contains(filter)) continue;
+				Input input = (c.source != null)? c.source.input : c.input;
+				Writable[][] data = inputs.get(input);
+				if (data == null) {
+					if (input == Input.TWEET_JSON || input == Input.TWEET_RECORD) {
+						if (tweets == null) {
+							tweets = readTweets(records);
+							tweetRecords = toRecords(tweets);
+						}
+						data = (input == Input.TWEET_JSON)? tweets : tweetRecords;
+					} else {
+						data = synthetic(input, records, new Random(SEED + input.ordinal()));
+					}
+					inputs.put(input, data);
+				}
+				if (c.source == null) {
+					benchMap(c, data, rounds);
+				} else {
+					benchReduce(c, data, rounds);
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		} finally {
+			if (distCreated) dist.delete();
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static void benchMap(Case c, Writable[][] data, int rounds) throws IOException {
+		Mapper mapper = (Mapper) ReflectionUtils.newInstance(c.cls, c.job());
+		CountingCollector output = new CountingCollector();
+		Writable[] keys = data[0], values = data[1];
+		Meter meter = new Meter();
+		for (int round = 0; round < WARMUP_ROUNDS + rounds; round++) {
+			if (round == WARMUP_ROUNDS) {
+				output.count = 0;
+				meter.start();
+			}
+			for (int i = 0; i < keys.length; i++) mapper.map(keys[i], values[i], output, Reporter.NULL);
+		}
+		//Mapper内で合計するもの(CountBuffer)はclose()で残りを出力するので、close()まで測る。
+		((Closeable) mapper).close();
+		meter.stop(c.name, (long) keys.length * rounds, output.count);
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static void benchReduce(Case c, Writable[][] data, int rounds) throws IOException {
+		JobConf job = c.job();
+		Mapper mapper = (Mapper) ReflectionUtils.newInstance(c.source.cls, job);
+		GroupingCollector grouped = new GroupingCollector(job);
+		Writable[] keys = data[0], values = data[1];
+		for (int i = 0; i < keys.length; i++) mapper.map(keys[i], values[i], grouped, Reporter.NULL);
+		((Closeable) mapper).close();
+		long numValues = 0;
+		for (List<Writable> group : grouped.groups.values()) numValues += group.size();
+
+		Reducer reducer = (Reducer) ReflectionUtils.newInstance(c.cls, job);
+		CountingCollector output = new CountingCollector();
+		Meter meter = new Meter();
+		for (int round = 0; round < WARMUP_ROUNDS + rounds; round++) {
+			if (round == WARMUP_ROUNDS) {
+				output.count = 0;
+				meter.start();
+			}
+			for (Entry<WritableComparable, List<Writable>> group : grouped.groups.entrySet()) {
+				Iterator<Writable> it = group.getValue().iterator();
+				reducer.reduce(group.getKey(), it, output, Reporter.NULL);
+			}
+		}
+		meter.stop(c.name, numValues * rounds, output.count);
+		((Closeable) reducer).close();
+	}
+
+	/**sampleTweetLog.txtの各行を、件数分だけ繰り返して並べる。Keyは1からの連番(0はエラー扱いになるので使わない)。
+	 * @param records
+	 * @return {keys, values}
+	 * @throws IOException
+	 */
+	private static Writable[][] readTweets(int records) throws IOException {
+		ArrayList<Text> lines = new ArrayList<Text>();
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(SAMPLE), "UTF-8"));
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (!line.isEmpty()) lines.add(new Text(line));
+			}
+		} finally {
+			br.close();
+		}
+		if (lines.isEmpty()) throw new IOException(SAMPLE + " has no tweets.");
+		Writable[][] data = new Writable[2][records];
+		for (int i = 0; i < records; i++) {
+			data[0][i] = new LongWritable(i + 1);
+			data[1][i] = lines.get(i % lines.size());
+		}
+		return data;
+	}
+
+	/**生JSONのツイートをTweetRecordにしたもの。同じ行は同じインスタンスを使う。
+	 * @param tweets
+	 * @return
+	 */
+	private static Writable[][] toRecords(Writable[][] tweets) {
+		Writable[][] data = new Writable[2][tweets[0].length];
+		TreeMap<Text, TweetRecord> records = new TreeMap<Text, TweetRecord>();
+		for (int i = 0; i < tweets[0].length; i++) {
+			Text line = (Text) tweets[1][i];
+			TweetRecord record = records.get(line);
+			if (record == null) {
+				try {
+					record = TweetRecord.read(line, new TweetRecord());
+				} catch (Exception e) {
+					e.printStackTrace();
+					record = new TweetRecord();
+				}
+				records.put(line, record);
+			}
+			data[0][i] = tweets[0][i];
+			data[1][i] = record;
+		}
+		return data;
+	}
+
+	/**フォローネットワーク・URLペアの入力を乱数で作る。ユーザIDは1からUSERSまで。
+	 * @param input
+	 * @param records
+	 * @param random
+	 * @return {keys, values}
+	 */
+	private static Writable[][] synthetic(Input input, int records, Random random) {
+		Writable[][] data = new Writable[2][records];
+		long offset = 0;
+		for (int i = 0; i < records; i++) {
+			long userId = 1 + random.nextInt(USERS);
+			long[] followers = users(random, MAX_FOLLOWERS);
+			long[] friends = users(random, MAX_FRIENDS);
+			switch (input) {
+			case NETWORK:
+				Text line = new Text(userId + "\t" + networkCSV(userId, followers, friends));
+				data[0][i] = new LongWritable(offset);
+				data[1][i] = line;
+				offset += line.getLength() + 1;
+				break;
+			case PROFILE:
+				data[0][i] = new Text(userJSON(userId, followers.length, friends.length));
+				data[1][i] = new Text(networkCSV(userId, followers, friends));
+				break;
+			case FRIENDS:
+				data[0][i] = new Text(userJSON(userId, followers.length, friends.length));
+				data[1][i] = new Text(join(friends, 0, friends.length));
+				break;
+			case GRAPH:
+				AdjacencyList adj = new AdjacencyList();
+				adj.set(followers.length, friends.length, friends, friends.length);
+				data[0][i] = new LongWritable(userId);
+				data[1][i] = adj;
+				break;
+			case PAIRS:
+				data[0][i] = new LongWritable(i);
+				data[1][i] = new Text("http://t.co/" + random.nextInt(1000) + "," + join(followers, 0, Math.min(50, followers.length))
+						+ "\thttp://t.co/" + random.nextInt(1000) + "," + join(friends, 0, Math.min(50, friends.length)));
+				break;
+			default:
+				throw new IllegalArgumentException(input.toString());
+			}
+		}
+		return data;
+	}
+
+	/**1からmaxまでの一様乱数の人数分、ユーザIDを選ぶ。人数の少ないユーザが多くなるよう、人数は一様乱数の2乗に比例させる。
+	 * @param random
+	 * @param max
+	 * @return
+	 */
+	private static long[] users(Random random, int max) {
+		double r = random.nextDouble();
+		long[] ids = new long[1 + (int) (r * r * max)];
+		for (int i = 0; i < ids.length; i++) ids[i] = 1 + random.nextInt(USERS);
+		return ids;
+	}
+
+	private static String networkCSV(long userId, long[] followers, long[] friends) {
+		return userId + "," + followers.length + "," + friends.length + "," + join(followers, 0, followers.length) + "," + join(friends, 0, friends.length);
+	}
+
+	private static String userJSON(long userId, int followers, int friends) {
+		return "{\"id\":" + userId + ",\"id_str\":\"" + userId + "\",\"screen_name\":\"user" + userId
+				+ "\",\"followers_count\":" + followers + ",\"friends_count\":" + friends + ",\"statuses_count\":0}";
+	}
+
+	private static String join(long[] ids, int from, int to) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = from; i < to; i++) {
+			if (i > from) sb.append(',');
+			sb.append(ids[i]);
+		}
+		return sb.toString();
+	}
+
+	/**ユーザの1/4をVocalとし、RT数(1-20)とともにTSVのUXリストとして書く。
+	 * @param file
+	 * @param random
+	 * @throws IOException
+	 */
+	private static void writeUXList(File file, Random random) throws IOException {
+		PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try {
+			for (long userId = 1; userId <= USERS; userId++) {
+				if (random.nextInt(4) == 0) pw.println(userId + "\t" + (1 + random.nextInt(20)));
+			}
+		} finally {
+			pw.close();
+		}
+	}
+}
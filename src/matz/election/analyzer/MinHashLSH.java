@@ -0,0 +1,233 @@
+/**
+ *
+ */
+package matz.election.analyzer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.*;
+import org.apache.hadoop.mapred.lib.IdentityReducer;
+
+import matz.election.analyzer.GraphAnalysis.JaccardLinkDecodeMap;
+import matz.election.analyzer.util.KeyedUserSet;
+import matz.election.analyzer.util.MinHashSignature;
+import matz.election.analyzer.util.MonitoredMapReduceBase;
+
+/**MinHashとLSH(Locality Sensitive Hashing)によって、URLやRTのユーザ集合の近似的なクラスタリングを行うためのクラス。<br>
+ * 全ペアのJaccard係数を正確に求める方法(URLJoin+JaccardLink、PrefixJaccard)は、フォローネットワーク規模のデータではペア数が多すぎて現実的でない。<br>
+ * ここではまずMinHashジョブで各集合をk個の値からなるシグネチャに縮約し、LSHジョブでシグネチャをb個のバンド(各r=k/b行)に分けてハッシュする。<br>
+ * いずれかのバンドが完全に一致した集合の組だけを候補ペアとし、シグネチャの一致率からJaccard係数を推定して出力する。<br>
+ * Jaccard係数sのペアが候補になる確率は1-(1-s^r)^bで、kとbを変えることで精度と計算量を調整できる(rを大きくすると候補が減り速くなるが、取りこぼしが増える)。<br>
+ * 計算量はほぼ集合の数に線形で、候補ペアの数だけ増える。
+ * @author YuMatsuzawa
+ *
+ */
+public class MinHashLSH {
+	private static final int DEFAULT_HASHES = 100;
+	private static final int DEFAULT_BANDS = 20;
+	/* バンド番号はLSHのKeyの上位16bitに入れる。 */
+	private static final int BAND_SHIFT = 48;
+
+	/**ジョブ引数から正の整数を読む。指定がないか不正な場合は既定値。
+	 * @param job
+	 * @param name
+	 * @param defaultValue
+	 * @return
+	 */
+	protected static int positiveArg(JobConf job, String name, int defaultValue) {
+		String extraArg = job.get(name);
+		if (extraArg != null) {
+			try {
+				int value = Integer.parseInt(extraArg);
+				if (value > 0) return value;
+			} catch (NumberFormatException e) {
+				//do nothing. default value will be kept.
+			}
+		}
+		return defaultValue;
+	}
+
+	/**MinHashシグネチャを計算するMapperの共通部分。ハッシュ関数の数は第3引数で指定する(既定100)。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static abstract class MinHashMapBase extends MonitoredMapReduceBase implements JobConfigurable {
+		protected int numHashes = DEFAULT_HASHES;
+		private KeyedUserSet userSet = new KeyedUserSet();
+		private MinHashSignature signature = new MinHashSignature();
+		private Text outKey = new Text();
+
+		public void configure(JobConf job) {
+			super.configure(job);
+			numHashes = positiveArg(job, "arg3", DEFAULT_HASHES);
+		}
+
+		protected void emit(String name, String csv, OutputCollector<Text, MinHashSignature> output, Reporter reporter) throws IOException {
+			try {
+				userSet.set(name, csv);
+			} catch (NumberFormatException e) {
+				monitor.parseError(name, csv, e, reporter);
+				return;
+			}
+			if (userSet.size() == 0) return;
+			signature.set(name, userSet.getUsers(), userSet.size(), numHashes);
+			outKey.set(name);
+			output.collect(outKey, signature);
+		}
+	}
+
+	/**URLReferList等の出力(<code>キー\tCSV</code>のTextFile)からシグネチャを作るMap。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class MinHashMap extends MinHashMapBase implements Mapper<LongWritable, Text, Text, MinHashSignature> {
+
+		@Override
+		public void map(LongWritable key, Text value,
+				OutputCollector<Text, MinHashSignature> output, Reporter reporter)
+				throws IOException {
+			String[] pair = value.toString().split("\\s");
+			if (pair.length==2) {
+				emit(pair[0], pair[1], output, reporter);
+			}
+		}
+	}
+
+	/**Retweetの出力(SeqFile)からシグネチャを作るMap。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class RTMinHashMap extends MinHashMapBase implements Mapper<Text, Text, Text, MinHashSignature> {
+
+		@Override
+		public void map(Text key, Text value,
+				OutputCollector<Text, MinHashSignature> output, Reporter reporter)
+				throws IOException {
+			emit(key.toString(), value.toString(), output, reporter);
+		}
+	}
+
+	/**Mapperで計算は済んでいるのでIdentityでよい。MapOnlyジョブとして実行する。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class MinHashReduce extends IdentityReducer<Text, MinHashSignature> {};
+
+	/**シグネチャをバンドに分け、各バンドの値のハッシュをKeyとして送るMap。バンド数は第3引数で指定する(既定20)。<br>
+	 * Keyの上位16bitはバンド番号、下位48bitはバンド内の値のハッシュなので、異なるバンドの値が同じKeyに入ることはない。<br>
+	 * シグネチャの長さがバンド数で割り切れない場合、余りの行はバンドに使われない(一致率の推定には使われる)。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class LSHMap extends MapReduceBase implements Mapper<Text, MinHashSignature, LongWritable, MinHashSignature>, JobConfigurable {
+		private int bands = DEFAULT_BANDS;
+		private LongWritable bucket = new LongWritable();
+
+		public void configure(JobConf job) {
+			bands = positiveArg(job, "arg3", DEFAULT_BANDS);
+		}
+
+		@Override
+		public void map(Text key, MinHashSignature value,
+				OutputCollector<LongWritable, MinHashSignature> output, Reporter reporter)
+				throws IOException {
+			int usedBands = Math.min(bands, value.length());
+			if (usedBands == 0) return;
+			int rows = value.length() / usedBands;
+			int[] values = value.getValues();
+			for (int band = 0; band < usedBands; band++) {
+				long h = band;
+				for (int i = band * rows; i < (band + 1) * rows; i++) h = MinHashSignature.mix(h * 31 + values[i]);
+				bucket.set(((long) band << BAND_SHIFT) | (h >>> (64 - BAND_SHIFT)));
+				output.collect(bucket, value);
+			}
+		}
+	}
+
+	/**同じバケットに入ったシグネチャ同士を候補ペアとし、推定Jaccard係数が第4引数の閾値(既定0)以上なら出力する。<br>
+	 * 同じペアは一致するバンドの数だけ出会うので、一致する最初のバンドで出会った時だけ出力する。<br>
+	 * ハッシュの衝突で入ったものは、バンドの値を直接比べて除く。<br>
+	 * 出力はJaccardLinkと同じく、Keyが<code>キー1,キー2</code>(キーは辞書順)、ValueがJaccard係数(推定値)。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class LSHReduce extends MapReduceBase implements Reducer<LongWritable, MinHashSignature, Text, DoubleWritable>, JobConfigurable {
+		private int bands = DEFAULT_BANDS;
+		private double threshold = 0.0;
+
+		public void configure(JobConf job) {
+			bands = positiveArg(job, "arg3", DEFAULT_BANDS);
+			String extraArg = job.get("arg4");
+			if (extraArg != null) {
+				try {
+					threshold = Double.parseDouble(extraArg);
+				} catch (NumberFormatException e) {
+					//do nothing. default value will be kept.
+				}
+			}
+		}
+
+		/**出力に用いるキーの表記。
+		 * @param key
+		 * @return
+		 */
+		protected String label(String key) {
+			return key;
+		}
+
+		@Override
+		public void reduce(LongWritable key, Iterator<MinHashSignature> values,
+				OutputCollector<Text, DoubleWritable> output, Reporter reporter)
+				throws IOException {
+			List<MinHashSignature> bucket = new ArrayList<MinHashSignature>();
+			while(values.hasNext()) {
+				MinHashSignature copy = new MinHashSignature();
+				copy.set(values.next());
+				bucket.add(copy);
+			}
+
+			int band = (int) (key.get() >>> BAND_SHIFT);
+			for (int a = 0; a < bucket.size(); a++) {
+				MinHashSignature sig1 = bucket.get(a);
+				int usedBands = Math.min(bands, sig1.length());
+				int rows = sig1.length() / usedBands;
+				for (int b = a + 1; b < bucket.size(); b++) {
+					MinHashSignature sig2 = bucket.get(b);
+					if (sig1.length() != sig2.length()) continue;
+					if (!sig1.agrees(sig2, band * rows, (band + 1) * rows)) continue;
+					boolean seenBefore = false;
+					for (int earlier = 0; earlier < band && !seenBefore; earlier++) {
+						seenBefore = sig1.agrees(sig2, earlier * rows, (earlier + 1) * rows);
+					}
+					if (seenBefore) continue;
+
+					double jaccard = sig1.estimate(sig2);
+					if (jaccard >= threshold) {
+						String key1 = sig1.getKey(), key2 = sig2.getKey();
+						String pair = (key1.compareTo(key2) <= 0)? label(key1)+","+label(key2) : label(key2)+","+label(key1);
+						output.collect(new Text(pair), new DoubleWritable(jaccard));
+					}
+				}
+				reporter.progress();
+			}
+		}
+	}
+
+	/**キーをBase64デコードして出力するLSHReduce。RTのシグネチャに対して使う。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class LSHDecodeReduce extends LSHReduce {
+
+		@Override
+		protected String label(String key) {
+			return JaccardLinkDecodeMap.decodeKey(key);
+		}
+	}
+}
@@ -0,0 +1,458 @@
+/**
+ *
+ */
+package matz.election.analyzer;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.KeyValueTextInputFormat;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.SequenceFileAsTextInputFormat;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
+import org.apache.hadoop.mapred.TextInputFormat;
+import org.apache.hadoop.mapred.TextOutputFormat;
+import org.apache.hadoop.mapred.lib.ChainReducer;
+import org.apache.hadoop.mapred.lib.IdentityReducer;
+
+import matz.election.analyzer.util.TextLineSequenceInputFormat;
+
+/**JOB_PROPに登録されたジョブを、定義ファイルに書いた順に続けて実行する。<br>
+ * AnalyzerMain [-local[:threads]] -pipeline <定義ファイル> <作業ディレクトリ> [name=value ...] で起動する。<br>
+ * 定義ファイルは1行1ステージで、"<ステージ名> <ジョブ名> <入力> [引数...]"と書く。入力はカンマ区切りで複数指定できる。<br>
+ * 入力・引数の"@ステージ名"はそのステージの出力ディレクトリ(<作業ディレクトリ>/<ステージ名>)を、"@ステージ名/part-00000"はその中のファイルを指す。<br>
+ * 参照できるのは前の行のステージだけなので、書いた順に実行すれば依存関係は満たされる。DIST_CACHEのジョブは、最初の引数が配布するファイル。<br>
+ * "${name}"は起動時のname=valueで置き換える。"#"以降はコメント。"keep <ステージ名>..."の行で、中間出力を消さずにテキストで残すステージを指定する。<br>
+ * 出力ディレクトリが既にあるステージ(と、その出力を使うステージが全て済んでいるステージ)は実行しないので、途中で失敗しても同じコマンドで再開できる。<br>
+ * 以下の2つの変換で、ジョブ間のHDFSへの書き出し・読み込みを減らす。<br>
+ * 連結: 前段だけが入力で、IdentityReducerかMap-onlyのジョブ(ThresholdURLなど)は、前段のReducerの後ろにChainReducerでMapperを連結し、1つのジョブにする。<br>
+ * 前段の出力は後段しか使わず、keepでないこと、どちらの出力も"@ステージ名/part-00000"で参照されないこと、前段のジョブの引数を後段が全て上書きすること、DistributedCacheは連結した中で1つまでであることが条件。<br>
+ * 出力は前段のReducer数のpartに分かれる。後段がTextInputFormatなら、間にTextOutputFormatと同じ行を作るLineMapを挟む。<br>
+ * 中間出力: 後のステージの主入力としてだけ使われるTextOutputFormatの出力は、ブロック圧縮のSeqFileで書き、読む側の入力形式をTextLineSequenceInputFormat(KeyValueTextInputFormatの場合はSequenceFileAsTextInputFormat)に差し替える。<br>
+ * 全ステージが成功したら、keepでない中間出力は消す。最後のステージの出力や、DistributedCacheなどで引数として参照される出力はテキストのまま残す。
+ * @author YuMatsuzawa
+ *
+ */
+public class Pipeline {
+	private static final String REF_PREFIX = "@";
+	private static final String KEEP = "keep";
+	private static final Pattern VARIABLE = Pattern.compile("\\$\\{([^}]+)\\}");
+	private static final Pattern ARG_KEY = Pattern.compile("arg\\d+");
+
+	/**TextInputFormatを前提とする後段のMapperに、前段の出力をTextOutputFormatと同じ行にして渡すMapper。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class LineMap extends MapReduceBase implements Mapper<Writable, Writable, LongWritable, Text> {
+		private LongWritable lineNum = new LongWritable();
+		private Text line = new Text();
+		private long lines = 0;
+
+		@Override
+		public void map(Writable key, Writable value,
+				OutputCollector<LongWritable, Text> output, Reporter reporter)
+				throws IOException {
+			lineNum.set(lines++);
+			TextLineSequenceInputFormat.render(key, value, line);
+			output.collect(lineNum, line);
+		}
+	}
+
+	/**定義ファイルの1行に当たるステージ。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	private static class Stage {
+		private final String name;
+		private final String[] prop;
+		private final String[] inputs;
+		private final String[] args;
+		private JobConf job = null;
+		private boolean kept = false;
+		/* このステージを参照する後のステージ(重複あり)と、参照のされ方 */
+		private List<Stage> consumers = new ArrayList<Stage>();
+		private boolean sideRef = false, subPathRef = false;
+		/* 連結先のステージ(自身が先頭なら自身)と、先頭ステージに連結された後段のステージ */
+		private Stage head = this;
+		private List<Stage> chain = new ArrayList<Stage>();
+		private boolean binary = false, done = false;
+
+		private Stage(String name, String[] prop, String[] inputs, String[] args) {
+			this.name = name;
+			this.prop = prop;
+			this.inputs = inputs;
+			this.args = args;
+		}
+
+		private boolean isDistCache() {
+			return prop.length > AnalyzerMain.PROP_INDEX_DIST_CACHE;
+		}
+
+		/**連結された中で最後のステージ。グループの出力はこのステージの出力になる。
+		 * @return
+		 */
+		private Stage tail() {
+			return (chain.isEmpty())? this : chain.get(chain.size() - 1);
+		}
+
+		/**入力が1つのステージの出力ディレクトリそのものなら、そのステージの名前。
+		 * @return
+		 */
+		private String soleInput() {
+			if (inputs.length != 1 || !inputs[0].startsWith(REF_PREFIX) || inputs[0].indexOf('/') >= 0) return null;
+			return inputs[0].substring(REF_PREFIX.length());
+		}
+	}
+
+	/**AnalyzerMainから呼ばれる。
+	 * @param args 定義ファイル、作業ディレクトリ、name=value...
+	 * @param localThreads 正ならLocalJobEngineで実行する
+	 * @return 全ステージが成功したらtrue
+	 */
+	public static boolean run(String[] args, int localThreads) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: " + AnalyzerMain.PIPELINE_OPTION + " <pipeline_File> <workDir>[ <name>=<value> ...]");
+			return false;
+		}
+		Map<String, String> vars = new HashMap<String, String>();
+		vars.put("work", args[1]);
+		for (int i = 2; i < args.length; i++) {
+			int eq = args[i].indexOf('=');
+			if (eq <= 0) {
+				System.err.println("Pipeline: variable must be <name>=<value>: " + args[i]);
+				return false;
+			}
+			vars.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+		}
+
+		List<Stage> stages = parse(args[0], vars);
+		if (stages == null || !prepare(stages, args[1], localThreads > 0)) return false;
+		plan(stages);
+		Map<String, Stage> byName = new HashMap<String, Stage>();
+		for (Stage stage : stages) byName.put(stage.name, stage);
+		for (Stage stage : stages) {
+			if (stage.head != stage) continue;
+			JobConf job = build(stage, byName);
+			FileSystem fs = FileOutputFormat.getOutputPath(job).getFileSystem(job);
+			if (stage.done) {
+				System.err.println("Pipeline: " + describe(stage) + " skipped (done)");
+				continue;
+			}
+			System.err.println("Pipeline: " + describe(stage) + " running");
+			try {
+				AnalyzerMain.runJob(job, localThreads);
+			} catch (IOException e) {
+				e.printStackTrace();
+				fs.delete(FileOutputFormat.getOutputPath(job), true);
+				System.err.println("Pipeline: " + describe(stage) + " failed. Rerun the same command to resume.");
+				return false;
+			}
+		}
+		for (Stage stage : stages) {
+			if (stage.head != stage || stage.tail().kept || stage.tail().consumers.isEmpty()) continue;
+			Path output = FileOutputFormat.getOutputPath(stage.tail().job);
+			output.getFileSystem(stage.tail().job).delete(output, true);
+		}
+		return true;
+	}
+
+	/**定義ファイルを読み、変数を置き換えてステージの列にする。
+	 * @param file
+	 * @param vars
+	 * @return 不正な行があればnull
+	 * @throws IOException
+	 */
+	private static List<Stage> parse(String file, Map<String, String> vars) throws IOException {
+		List<Stage> stages = new ArrayList<Stage>();
+		Map<String, Stage> byName = new HashMap<String, Stage>();
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			int lineNum = 0;
+			while ((line = br.readLine()) != null) {
+				lineNum++;
+				int comment = line.indexOf('#');
+				if (comment >= 0) line = line.substring(0, comment);
+				line = line.trim();
+				if (line.isEmpty()) continue;
+
+				Matcher m = VARIABLE.matcher(line);
+				StringBuffer sb = new StringBuffer();
+				while (m.find()) {
+					String value = vars.get(m.group(1));
+					if (value == null) {
+						System.err.println(String.format("Pipeline: %s:%d: undefined variable ${%s}", file, lineNum, m.group(1)));
+						return null;
+					}
+					m.appendReplacement(sb, Matcher.quoteReplacement(value));
+				}
+				m.appendTail(sb);
+				String[] tokens = sb.toString().split("\\s+");
+
+				if (tokens[0].equals(KEEP)) {
+					for (int i = 1; i < tokens.length; i++) {
+						Stage kept = byName.get(tokens[i]);
+						if (kept == null) {
+							System.err.println(String.format("Pipeline: %s:%d: unknown stage %s", file, lineNum, tokens[i]));
+							return null;
+						}
+						kept.kept = true;
+					}
+					continue;
+				}
+				if (tokens.length < 3) {
+					System.err.println(String.format("Pipeline: %s:%d: expected <stage> <job> <inputs>[ <args>...]", file, lineNum));
+					return null;
+				}
+				if (byName.containsKey(tokens[0])) {
+					System.err.println(String.format("Pipeline: %s:%d: duplicate stage %s", file, lineNum, tokens[0]));
+					return null;
+				}
+				String[] prop = null;
+				for (String[] candidate : AnalyzerMain.JOB_PROP) {
+					if (candidate[AnalyzerMain.PROP_INDEX_JOB_NAME].equals(tokens[1])) prop = candidate;
+				}
+				if (prop == null) {
+					System.err.println(String.format("Pipeline: %s:%d: unknown job %s", file, lineNum, tokens[1]));
+					return null;
+				}
+				String[] args = new String[tokens.length - 3];
+				System.arraycopy(tokens, 3, args, 0, args.length);
+				Stage stage = new Stage(tokens[0], prop, tokens[2].split(","), args);
+
+				//参照先は前の行のステージに限る。これでステージの列がそのままDAGの実行順になる。
+				for (String input : stage.inputs) {
+					if (!reference(stage, input, false, byName, file, lineNum)) return null;
+				}
+				for (String arg : stage.args) {
+					if (!reference(stage, arg, true, byName, file, lineNum)) return null;
+				}
+				stages.add(stage);
+				byName.put(stage.name, stage);
+			}
+		} finally {
+			br.close();
+		}
+		return stages;
+	}
+
+	private static boolean reference(Stage stage, String token, boolean side, Map<String, Stage> byName, String file, int lineNum) {
+		if (!token.startsWith(REF_PREFIX)) return true;
+		String name = token.substring(REF_PREFIX.length());
+		boolean subPath = name.indexOf('/') >= 0;
+		if (subPath) name = name.substring(0, name.indexOf('/'));
+		Stage producer = byName.get(name);
+		if (producer == null) {
+			System.err.println(String.format("Pipeline: %s:%d: %s does not refer to a preceding stage", file, lineNum, token));
+			return false;
+		}
+		producer.consumers.add(stage);
+		producer.sideRef |= side;
+		producer.subPathRef |= subPath;
+		return true;
+	}
+
+	/**各ステージのJobConfを組み立て、連結・中間出力の形式・実行済みかどうかを決める。
+	 * @param stages
+	 * @param workDir
+	 * @param local
+	 * @return ジョブの組み立てに失敗したらfalse
+	 * @throws Exception
+	 */
+	private static boolean prepare(List<Stage> stages, String workDir, boolean local) throws Exception {
+		Map<String, Stage> byName = new HashMap<String, Stage>();
+		for (Stage stage : stages) {
+			String[] jobArgs = new String[stage.args.length + 3];
+			jobArgs[0] = stage.prop[AnalyzerMain.PROP_INDEX_JOB_NAME];
+			StringBuilder inputs = new StringBuilder();
+			for (String input : stage.inputs) {
+				if (inputs.length() > 0) inputs.append(",");
+				inputs.append(resolve(input, workDir));
+			}
+			jobArgs[1] = inputs.toString();
+			jobArgs[2] = new Path(workDir, stage.name).toString();
+			for (int i = 0; i < stage.args.length; i++) jobArgs[i + 3] = resolve(stage.args[i], workDir);
+			stage.job = AnalyzerMain.createJob(jobArgs, local);
+			if (stage.job == null) {
+				System.err.println("Pipeline: cannot build stage " + stage.name);
+				return false;
+			}
+			byName.put(stage.name, stage);
+		}
+
+		for (Stage stage : stages) {
+			String upstream = stage.soleInput();
+			if (upstream != null && canChain(byName.get(upstream), stage)) {
+				Stage head = byName.get(upstream).head;
+				stage.head = head;
+				head.chain.add(stage);
+			}
+		}
+
+		for (Stage stage : stages) {
+			if (stage.head != stage) continue;
+			Stage tail = stage.tail();
+			tail.binary = !tail.kept && !tail.consumers.isEmpty() && !tail.sideRef && !tail.subPathRef
+					&& tail.job.getOutputFormat() instanceof TextOutputFormat;
+			for (Stage consumer : tail.consumers) {
+				Class<?> inputFormat = consumer.job.getInputFormat().getClass();
+				if (consumer.soleInput() == null
+						|| (inputFormat != TextInputFormat.class && inputFormat != KeyValueTextInputFormat.class)) {
+					tail.binary = false;
+				}
+			}
+		}
+
+		//後ろから、出力があるか、出力を使う後段が全て済んでいるグループを済みとする。
+		for (int i = stages.size() - 1; i >= 0; i--) {
+			Stage stage = stages.get(i);
+			if (stage.head != stage) continue;
+			Stage tail = stage.tail();
+			Path output = FileOutputFormat.getOutputPath(tail.job);
+			boolean consumed = !tail.consumers.isEmpty();
+			for (Stage consumer : tail.consumers) consumed &= consumer.head.done;
+			stage.done = consumed || output.getFileSystem(tail.job).exists(output);
+		}
+		return true;
+	}
+
+	/**downstreamを、upstreamが属するグループの後ろに連結できるか。
+	 * @param upstream
+	 * @param downstream
+	 * @return
+	 */
+	private static boolean canChain(Stage upstream, Stage downstream) {
+		Stage head = upstream.head;
+		if (upstream.kept || upstream.consumers.size() != 1 || upstream.sideRef || upstream.subPathRef) return false;
+		if (downstream.subPathRef || head.job.getNumReduceTasks() == 0) return false;
+		if (downstream.job.getNumReduceTasks() != 0
+				&& !IdentityReducer.class.isAssignableFrom(downstream.job.getReducerClass())) return false;
+		if (downstream.isDistCache()) {
+			if (head.isDistCache()) return false;
+			for (Stage fused : head.chain) if (fused.isDistCache()) return false;
+		}
+		//ジョブ全体の設定には先頭ステージの引数が入っているので、後段がそれを全て上書きしないと、後段のMapperに先頭の引数が見えてしまう。
+		for (Entry<String, String> entry : head.job) {
+			if (ARG_KEY.matcher(entry.getKey()).matches() && downstream.job.get(entry.getKey()) == null) return false;
+		}
+		Class<?> inputFormat = downstream.job.getInputFormat().getClass();
+		if (inputFormat == TextInputFormat.class) {
+			return upstream.job.getOutputFormat() instanceof TextOutputFormat;
+		} else if (inputFormat == SequenceFileInputFormat.class) {
+			return upstream.job.getOutputFormat().getClass() == SequenceFileOutputFormat.class;
+		}
+		return false;
+	}
+
+	private static String resolve(String token, String workDir) {
+		if (!token.startsWith(REF_PREFIX)) return token;
+		return new Path(workDir, token.substring(REF_PREFIX.length())).toString();
+	}
+
+	/**グループの先頭ステージについて、連結と入出力形式の変更を施したJobConfを作る。
+	 * @param head
+	 * @param byName
+	 * @return
+	 * @throws IOException
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static JobConf build(Stage head, Map<String, Stage> byName) throws IOException {
+		JobConf job = new JobConf(head.job);
+		if (!head.chain.isEmpty()) {
+			//Map出力のクラスが省略されていると、ジョブの出力クラス(連結で後段のものに変わる)が使われてしまうので、明示しておく。
+			job.setMapOutputKeyClass(head.job.getMapOutputKeyClass());
+			job.setMapOutputValueClass(head.job.getMapOutputValueClass());
+			Class reducer = head.job.getReducerClass();
+			ChainReducer.setReducer(job, reducer,
+					(Class) head.job.getMapOutputKeyClass(), (Class) head.job.getMapOutputValueClass(),
+					(Class) head.job.getOutputKeyClass(), (Class) head.job.getOutputValueClass(), true, new JobConf(false));
+			Stage previous = head;
+			for (Stage fused : head.chain) {
+				if (fused.job.getInputFormat() instanceof TextInputFormat) {
+					ChainReducer.addMapper(job, LineMap.class, Writable.class, Writable.class,
+							LongWritable.class, Text.class, true, new JobConf(false));
+				}
+				//後段の引数だけを、そのMapperの設定として渡す。
+				JobConf mapperConf = new JobConf(false);
+				for (Entry<String, String> entry : fused.job) {
+					if (ARG_KEY.matcher(entry.getKey()).matches()) mapperConf.set(entry.getKey(), entry.getValue());
+				}
+				Class inKey = LongWritable.class, inValue = Text.class;
+				if (!(fused.job.getInputFormat() instanceof TextInputFormat)) {
+					inKey = previous.job.getOutputKeyClass();
+					inValue = previous.job.getOutputValueClass();
+				}
+				Class mapper = fused.job.getMapperClass();
+				ChainReducer.addMapper(job, mapper, inKey, inValue,
+						(Class) fused.job.getMapOutputKeyClass(), (Class) fused.job.getMapOutputValueClass(), true, mapperConf);
+				URI[] cacheFiles = DistributedCache.getCacheFiles(fused.job);
+				if (cacheFiles != null) {
+					for (URI uri : cacheFiles) DistributedCache.addCacheFile(uri, job);
+					DistributedCache.createSymlink(job);
+				}
+				previous = fused;
+			}
+			Stage tail = head.tail();
+			job.setJobName(job.getJobName() + "+" + tail.job.getJobName());
+			job.setOutputFormat(tail.job.getOutputFormat().getClass());
+			job.setOutputKeyClass(tail.job.getOutputKeyClass());
+			job.setOutputValueClass(tail.job.getOutputValueClass());
+			FileOutputFormat.setOutputPath(job, FileOutputFormat.getOutputPath(tail.job));
+		}
+		if (head.tail().binary) {
+			job.setOutputFormat(SequenceFileOutputFormat.class);
+			FileOutputFormat.setCompressOutput(job, true);
+			SequenceFileOutputFormat.setOutputCompressionType(job, CompressionType.BLOCK);
+		}
+		//主入力のステージは、その出力を使うのがこのステージだけではないので、連結されずにグループの最後になっている。
+		Stage upstream = byName.get(head.soleInput());
+		if (upstream != null && upstream.binary) {
+			if (job.getInputFormat() instanceof KeyValueTextInputFormat) {
+				job.setInputFormat(SequenceFileAsTextInputFormat.class);
+			} else {
+				job.setInputFormat(TextLineSequenceInputFormat.class);
+			}
+		}
+		return job;
+	}
+
+	/**実行計画を出力する。
+	 * @param stages
+	 */
+	private static void plan(List<Stage> stages) {
+		for (Stage stage : stages) {
+			if (stage.head != stage) continue;
+			System.err.println("Pipeline: " + describe(stage) + " -> " + FileOutputFormat.getOutputPath(stage.tail().job)
+					+ (stage.tail().binary? " (SequenceFile)" : "") + (stage.done? " [done]" : ""));
+		}
+	}
+
+	private static String describe(Stage head) {
+		StringBuilder sb = new StringBuilder(head.name);
+		for (Stage fused : head.chain) sb.append("+").append(fused.name);
+		return sb.toString();
+	}
+}
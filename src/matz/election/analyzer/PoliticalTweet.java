@@ -2,6 +2,7 @@ package matz.election.analyzer;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.URL;
@@ -14,15 +15,22 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.*;
+import org.apache.hadoop.mapred.lib.IdentityReducer;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 
-import twitter4j.Status;
+import matz.election.analyzer.util.HostScheduler;
+import matz.election.analyzer.util.KeywordMatcher;
+import matz.election.analyzer.util.MonitoredMapReduceBase;
+import matz.election.analyzer.util.RedirectResolver;
+import matz.election.analyzer.util.TextCountBuffer;
+import matz.election.analyzer.util.TweetRecord;
+import matz.election.analyzer.util.URLResolutionCache;
+
 import twitter4j.TwitterException;
-import twitter4j.TwitterObjectFactory;
-import twitter4j.URLEntity;
 
 /**政治的な内容のツイートを抽出するためのクラス。<br>
  * 元データは政治的な内容のツイートを行ったアカウントについて、その時期に行ったその他のツイートも集める、という方式で収集した。<br>
@@ -36,15 +44,20 @@ public class PoliticalTweet extends URLTweet {
 	
 	/**政治的な内容のツイートを抽出するMap。元データのSeqFileを読み、抽出された同形式のSeqFileとして吐く。<br>
 	 * パース不可能なツイートはこの時点で排除する。よって出力されたSeqFileはより扱いやすいものになっている。<br>
-	 * Reducerはなしでもいい。が、なしというのの指定方法を定義してない気がするので適当に無内容なReducerを用意する。
+	 * Reducerはなしでもいい。が、なしというのの指定方法を定義してない気がするので適当に無内容なReducerを用意する。<br>
+	 * 入力がTweetRecordのSeqFileであれば、出力もTweetRecordのSeqFileになる(PoliticalRecordジョブ)。<br>
+	 * キーワードの照合はKeywordMatcherで本文1パスで行うので、queries.txtを大きくしてもMap時間はほとんど増えない。
 	 * @author Matsuzawa
 	 *
 	 */
-	public static class PoliticalTweetMap extends MapReduceBase implements Mapper<LongWritable, Text, LongWritable, Text>,JobConfigurable {
+	public static class PoliticalTweetMap extends MonitoredMapReduceBase implements Mapper<LongWritable, Writable, LongWritable, Writable>,JobConfigurable {
 		private List<String> queryList = new ArrayList<String>();
+		private KeywordMatcher matcher = null;
+		private TweetRecord record = new TweetRecord();
 		
 		public void configure(JobConf job) {
 			// configureを使ってqueryListを初期化する。うまく行けばこれでいいし、うまくいかなければ何か別の方法を考える必要がある。
+			super.configure(job);
 			BufferedReader br = null;
 			FSDataInputStream is = null;
 			try {
@@ -55,6 +68,7 @@ public class PoliticalTweet extends URLTweet {
 				while((line = br.readLine()) != null) {
 					queryList.add(line);
 				}
+				matcher = new KeywordMatcher(queryList);
 			} catch (IOException e) {
 				e.printStackTrace();
 				System.exit(1);
@@ -69,26 +83,19 @@ public class PoliticalTweet extends URLTweet {
 		};
 		
 		@Override
-		public void map(LongWritable key, Text value,
-				OutputCollector<LongWritable, Text> output, Reporter reporter)
+		public void map(LongWritable key, Writable value,
+				OutputCollector<LongWritable, Writable> output, Reporter reporter)
 				throws IOException {
 			if (key.get() != 0) {
-				boolean isPolitical = false;
-				Status tweet = null;
 				try {
-					tweet = TwitterObjectFactory.createStatus(value.toString());
-					for(String keyword : queryList) {
-						// キーワードリストの中に合致する語が一つでもあれば該当。なければ破棄
-						if (tweet.getText().contains(keyword)) {
-							isPolitical = true;
-							break;
-						}
-					}
-					if (isPolitical) {
+					TweetRecord tweet = TweetRecord.read(value, record);
+					// キーワードリストの中に合致する語が一つでもあれば該当。なければ破棄
+					boolean isPolitical = matcher.matchesAny(tweet.getText());
+					if (monitor.filter(isPolitical, reporter)) {
 						output.collect(key, value);
 					}
 				} catch (TwitterException e) {
-					e.printStackTrace();
+					monitor.parseError(key, value, e, reporter);
 				}
 			}
 		}
@@ -98,11 +105,11 @@ public class PoliticalTweet extends URLTweet {
 	 * @author Matsuzawa
 	 *
 	 */
-	public static class PoliticalTweetReduce extends MapReduceBase implements Reducer<LongWritable, Text, LongWritable, Text> {
+	public static class PoliticalTweetReduce extends MapReduceBase implements Reducer<LongWritable, Writable, LongWritable, Writable> {
 
 		@Override
-		public void reduce(LongWritable key, Iterator<Text> values,
-				OutputCollector<LongWritable, Text> output, Reporter reporter)
+		public void reduce(LongWritable key, Iterator<Writable> values,
+				OutputCollector<LongWritable, Writable> output, Reporter reporter)
 				throws IOException {
 			while(values.hasNext()) {
 				output.collect(key, values.next());
@@ -112,26 +119,44 @@ public class PoliticalTweet extends URLTweet {
 	
 	/**政党名ごとに、期間中にどれだけツイートされたかカウントするMap。実際の支持率や、議席割合との比較に用いる。<br>
 	 * PoloticalTweetMapで絞り込んだデータを入力に使えばいい。Key:TweetID,Value:RawJSON.<br>
-	 * TextIntReduceが使える。
+	 * TextIntReduceが使える。政党名ごとのカウントはTextCountBufferで合計してから出力する。
 	 * @author Yu
 	 *
 	 */
-	public static class PartyBuzzMap extends MapReduceBase implements Mapper<LongWritable, Text, Text, IntWritable> {
-		private String[] partyNames = {"自民党","民主党","日本維新の会","公明党","みんなの党","生活の党","共産党","社民党","新党改革","みどりの風"};
-		
+	public static class PartyBuzzMap extends MonitoredMapReduceBase implements Mapper<LongWritable, Writable, Text, IntWritable> {
+		/* CorpusProfileのPartyBuzzも同じ政党名を数える */
+		static final String[] partyNames = {"自民党","民主党","日本維新の会","公明党","みんなの党","生活の党","共産党","社民党","新党改革","みどりの風"};
+		private KeywordMatcher matcher = new KeywordMatcher(Arrays.asList(partyNames));
+		private Text[] partyTexts = new Text[partyNames.length];
+		private boolean[] found = new boolean[partyNames.length];
+		private TweetRecord record = new TweetRecord();
+		private TextCountBuffer counts = new TextCountBuffer();
+
 		@Override
-		public void map(LongWritable key, Text value, OutputCollector<Text, IntWritable> output, Reporter reporter)
+		public void configure(JobConf job) {
+			super.configure(job);
+			for (int i = 0; i < partyNames.length; i++) partyTexts[i] = new Text(partyNames[i]);
+			counts.configure(job);
+		}
+
+		@Override
+		public void close() throws IOException {
+			counts.close();
+			super.close();
+		}
+
+		@Override
+		public void map(LongWritable key, Writable value, OutputCollector<Text, IntWritable> output, Reporter reporter)
 				throws IOException {
-			Status tweet = null;
 			try {
-				tweet = TwitterObjectFactory.createStatus(value.toString());
-				for (String party : partyNames) {
-					if (tweet.getText().contains(party)) {
-						output.collect(new Text(party), new IntWritable(1));
+				TweetRecord tweet = TweetRecord.read(value, record);
+				if (matcher.match(tweet.getText(), found) > 0) {
+					for (int i = 0; i < partyNames.length; i++) {
+						if (found[i]) counts.add(partyTexts[i], 1, output, reporter);
 					}
 				}
 			} catch (TwitterException e) {
-				e.printStackTrace();
+				monitor.parseError(key, value, e, reporter);
 			}
 		}
 	}
@@ -142,16 +167,21 @@ public class PoliticalTweet extends URLTweet {
 	 * Topicはコマンドラインから取得するようにするので、インターフェイスJobConfigurableを実装する。<br>
 	 * 最終的なアウトプットは、URLをTextKey、言及数をIntValueとして持つ<s>Text</s>SeqFileとする。SeqFileのほうが扱いが良いので変更。TextIntReduceを使う。<br>
 	 * さらにそのアウトプットをインプットとして、URLをKey，そのリンク先ページのタイトルをValueとするようなマップを用意すると、簡単なチェックに使えるだろう。<br>
+	 * URLごとのカウントはTextCountBufferで合計してから出力する。
 	 * @author YuMatsuzawa
 	 *
 	 */
-	public static class TopicURLCountMap extends MapReduceBase implements Mapper<LongWritable, Text, Text, IntWritable>, JobConfigurable {
+	public static class TopicURLCountMap extends MonitoredMapReduceBase implements Mapper<LongWritable, Writable, Text, IntWritable>, JobConfigurable {
 		//引数など、設定情報をコマンドラインやmain内から得たい場合は、JobCinfigurableをimplementしてconfigureを実装する。
 		private List<String> topicQueries = new ArrayList<String>();
+		private KeywordMatcher matcher = null;
 		private Text urlText = new Text();
-		private IntWritable one = new IntWritable(1);
+		private TweetRecord record = new TweetRecord();
+		private TextCountBuffer counts = new TextCountBuffer();
 		
 		public void configure(JobConf job) {
+			super.configure(job);
+			counts.configure(job);
 			String extraArg = null;
 			int argIndex = 3;
 			while(true) {
@@ -163,33 +193,32 @@ public class PoliticalTweet extends URLTweet {
 					break;
 				}
 			}
+			matcher = new KeywordMatcher(topicQueries);
+		}
+
+		@Override
+		public void close() throws IOException {
+			counts.close();
+			super.close();
 		}
 		
 		@Override
-		public void map(LongWritable key, Text value,
+		public void map(LongWritable key, Writable value,
 				OutputCollector<Text, IntWritable> output, Reporter reporter)
 				throws IOException {
-			Status tweet = null;
 			try {
-				tweet = TwitterObjectFactory.createStatus(value.toString());
-				boolean isRelated = false;
-				for (String query : topicQueries){ //クエリに合致する語を含む（＝関連ツイートである）かどうかを調べる。
-					if (tweet.getText().contains(query)) {
-						isRelated = true;
-						break;
-					}
-				}
+				TweetRecord tweet = TweetRecord.read(value, record);
+				boolean isRelated = matcher.matchesAny(tweet.getText()); //クエリに合致する語を含む（＝関連ツイートである）かどうかを調べる。
 				
-				if (isRelated) { //関連しているなら添付URLを数える。
-					for (URLEntity url : tweet.getURLEntities()) { //もしURL添付がなければ配列は空である。よってループは1回も回らずに抜ける。
-						String urlStr = url.getExpandedURL(); //展開済みURLを使う。
-						if (urlStr == null) urlStr = url.getURL(); //展開済みが使えなければURLを使うが、ここには外部の短縮サービスで短縮されたURLが入っていることもある。
+				if (monitor.filter(isRelated, reporter)) { //関連しているなら添付URLを数える。
+					for (String urlStr : tweet.getURLs()) { //もしURL添付がなければ配列は空である。よってループは1回も回らずに抜ける。
+						//展開済みURLが使えなければURLが入っているが、ここには外部の短縮サービスで短縮されたURLが入っていることもある。
 						urlText.set(urlStr);
-						output.collect(urlText, one);
+						counts.add(urlText, 1, output, reporter);
 					}
 				}
 			} catch (TwitterException e) {
-				e.printStackTrace();
+				monitor.parseError(key, value, e, reporter);
 			}
 			
 		}
@@ -203,13 +232,16 @@ public class PoliticalTweet extends URLTweet {
 	 * @author YuMatsuzawa
 	 *
 	 */
-	public static class TopicURLUserMap extends MapReduceBase implements Mapper<LongWritable, Text, Text, LongWritable>, JobConfigurable {
+	public static class TopicURLUserMap extends MonitoredMapReduceBase implements Mapper<LongWritable, Writable, Text, LongWritable>, JobConfigurable {
 		//引数など、設定情報をコマンドラインやmain内から得たい場合は、JobCinfigurableをimplementしてconfigureを実装する。
 		private List<String> topicQueries = new ArrayList<String>();
+		private KeywordMatcher matcher = null;
 		private Text urlText = new Text();
+		private TweetRecord record = new TweetRecord();
 //		private int MAX_HOP = 10;
 		
 		public void configure(JobConf job) {
+			super.configure(job);
 			String extraArg = null;
 			int argIndex = 3;
 			while(true) {
@@ -221,27 +253,20 @@ public class PoliticalTweet extends URLTweet {
 					break;
 				}
 			}
+			matcher = new KeywordMatcher(topicQueries);
 		}
 		
 		@Override
-		public void map(LongWritable key, Text value,
+		public void map(LongWritable key, Writable value,
 				OutputCollector<Text, LongWritable> output, Reporter reporter)
 				throws IOException {
-			Status tweet = null;
 			try {
-				tweet = TwitterObjectFactory.createStatus(value.toString());
-				boolean isRelated = false;
-				for (String query : topicQueries){ //クエリに合致する語を含む（＝関連ツイートである）かどうかを調べる。
-					if (tweet.getText().contains(query)) {
-						isRelated = true;
-						break;
-					}
-				}
+				TweetRecord tweet = TweetRecord.read(value, record);
+				boolean isRelated = matcher.matchesAny(tweet.getText()); //クエリに合致する語を含む（＝関連ツイートである）かどうかを調べる。
 				
-				if (isRelated) { //関連しているなら添付URLを数える。
-					for (URLEntity url : tweet.getURLEntities()) { //もしURL添付がなければ配列は空である。よってループは1回も回らずに抜ける。
-						String urlStr = url.getExpandedURL(); //展開済みURLを使う。
-						if (urlStr == null) urlStr = url.getURL(); //展開済みが使えなければURLを使うが、ここには外部の短縮サービスで短縮されたURLが入っていることもある。
+				if (monitor.filter(isRelated, reporter)) { //関連しているなら添付URLを数える。
+					for (String urlStr : tweet.getURLs()) { //もしURL添付がなければ配列は空である。よってループは1回も回らずに抜ける。
+						//展開済みURLが使えなければURLが入っているが、ここには外部の短縮サービスで短縮されたURLが入っていることもある。
 						
 						//ここで末尾のアンカー/クエリで不要なものを除去。
 //						String tmp = URLExpander.trimURL(urlStr), destStr = null;
@@ -264,7 +289,7 @@ public class PoliticalTweet extends URLTweet {
 					}
 				}
 			} catch (TwitterException e) {
-				e.printStackTrace();
+				monitor.parseError(key, value, e, reporter);
 			}
 			
 		}
@@ -368,24 +393,22 @@ public class PoliticalTweet extends URLTweet {
 		}
 	}
 	
-	public static class ThresholdURLReduce extends MapReduceBase implements Reducer<Text, Text, Text, Text> {
-
-		@Override
-		public void reduce(Text key, Iterator<Text> values,
-				OutputCollector<Text, Text> output, Reporter reporter)
-				throws IOException {
-			while(values.hasNext()) output.collect(key, values.next());
-		}
-	}
+	/**Mapperで処理が完了するので、IdentityReducerで良い。Pipelineでは前段のReducerの後ろに連結される。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class ThresholdURLReduce extends IdentityReducer<Text, Text> {};
 	
 	/**FilterURLまたはThresholdURLで作成したURL-ユーザリストのデータから、任意の2URLについてレコードを接合したペアを出力する。<br>
 	 * 従ってこのMapRは、入力データが100件のレコードを持っていれば、出力は100x99=9900件のレコードを持つ。<br>
 	 * 入力に対し2乗オーダーで計算時間及びメモリ使用量を要するので、重いJOIN処理である。<br>
 	 * また、全組み合わせを網羅する必要上、combineが不可能で、単一のReducer内で処理するしかないため、MapR向きの処理ではない。<br>
 	 * Mapper内では、統一されたInt値のKeyに対し、入力レコードをValueとして添付してemitする。これによって単一のReducerに全てのレコードを集結させる。
+	 * @deprecated 単一Reducerに全レコードを集めるため規模に限界がある。PairedURLジョブは現在SimilarityJoinのBlockJoinMap/BlockJoinReduceで実行される。
 	 * @author YuMatsuzawa
 	 *
 	 */
+	@Deprecated
 	public static class PairedURLMap extends MapReduceBase implements Mapper<LongWritable, Text, IntWritable, Text> {
 		private IntWritable one = new IntWritable(1);
 		
@@ -401,9 +424,11 @@ public class PoliticalTweet extends URLTweet {
 	 * 入力はURL\tUserid,userid,userid,...という形式だが、この\tはReducerからText形式のデータに出力される際に自動で付けられたものである。<br>
 	 * このタブを保持してしまった場合、出力のテキストを読む際に問題が起きるような気がするので、これをカンマにしておく。即ち出力は以下の形式である。<br>
 	 * <code>URL1,userid,userid,userid,...\tURL2,userid,userid,userid,...</code>
+	 * @deprecated 単一Reducerに全レコードを集めるため規模に限界がある。PairedURLジョブは現在SimilarityJoinのBlockJoinMap/BlockJoinReduceで実行される。
 	 * @author YuMatsuzawa
 	 *
 	 */
+	@Deprecated
 	public static class PairedURLReduce extends MapReduceBase implements Reducer<IntWritable, Text, Text, Text> {
 
 		@Override
@@ -450,15 +475,21 @@ public class PoliticalTweet extends URLTweet {
 	 * TopicURLCountMapで取得した特定話題のURL群について、適当な閾値よりも多く言及されているURLにコネクションを開き、 記事のタイトルを取得してくるMap。<br>
 	 * <s>TextFile</s>SeqFileをインプットとし、<s>1行は空白区切りで、URL-CountNumペアが格納されている。</s>Text-IntWritableペアが格納されている<br>
 	 * コマンドラインから閾値を取得する。デフォルトは10。HTMLパースエンジン・Jsoupを使ってtitleタグの中身を取得する。<br>
+	 * 4番目の引数でURLResolutionCacheのディレクトリを指定すると、短縮URLをキャッシュ(なければRedirectResolver)で展開してから、展開後のURLに接続する。<br>
+	 * タイトルを取得する接続も、URL展開と同じHostSchedulerの許可を得てから行う(応答のないホストへは、サーキットブレーカが開いた後は接続しない)。<br>
 	 * @author YuMatsuzawa
 	 *
 	 */
-	public static class TopicURLTitleMap extends MapReduceBase implements Mapper<Text, IntWritable, Text, IntWritable>, JobConfigurable {
+	public static class TopicURLTitleMap extends MonitoredMapReduceBase implements Mapper<Text, IntWritable, Text, IntWritable>, JobConfigurable {
 		private int threshold = 10;
 		private IntWritable one = new IntWritable(1);
 		private Text title = new Text();
+		private RedirectResolver resolver = null;
+		private HostScheduler scheduler = null;
+		private URLResolutionCache cache = null;
 
 		public void configure(JobConf job) {
+			super.configure(job);
 			String extraArg = job.get("arg3");
 			if (extraArg != null) {
 				try {
@@ -467,6 +498,15 @@ public class PoliticalTweet extends URLTweet {
 					//do nothing. default value will be kept.
 				}
 			}
+			scheduler = HostScheduler.get(job);
+			resolver = new RedirectResolver(scheduler);
+			cache = URLResolutionCache.openIfGiven(job, job.get("arg4"));
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if (cache != null) cache.close();
+			super.close();
 		}
 		
 		@Override
@@ -478,23 +518,45 @@ public class PoliticalTweet extends URLTweet {
 			URL link = null;
 //			if (Integer.parseInt(pair[valIdx]) >= threshold) {
 			if (Integer.parseInt(value.toString()) >= threshold) {
-				link = new URL(key.toString());
+				String url = key.toString();
+				if (cache != null) {
+					RedirectResolver.Result result = cache.resolve(resolver, url);
+					if (result.isResolved()) url = result.getTarget();
+				}
+				link = new URL(url);
 				HttpURLConnection conn = null;
+				HostScheduler.Permit permit = null;
+				boolean success = false;
 				try {
+					permit = scheduler.acquire(link.getHost(), System.currentTimeMillis() + RedirectResolver.DEFAULT_URL_TIMEOUT);
 					conn = (HttpURLConnection) link.openConnection();
 		    		conn.setConnectTimeout(10*1000);
+		    		conn.setReadTimeout(10*1000);
 		    		conn.setInstanceFollowRedirects(true); // get actual contents
 		    		conn.connect();
+		    		success = !RedirectResolver.isTemporaryFailure(conn.getResponseCode()); //リンク切れ(404等)はホストの失敗に数えない。
 		    		
-		    		Document doc = Jsoup.parse(conn.getContent().toString());
+		    		InputStream in = conn.getInputStream(); //4xx・5xxならここで例外になる。
+		    		Document doc;
+		    		try {
+		    			doc = Jsoup.parse(in, null, url);
+		    		} finally {
+		    			in.close();
+		    		}
 		    		Element titleElement = doc.getElementsByTag("title").first();
-		    		title.set(titleElement.text());
-		    		
-		    		output.collect(title, one);
+		    		if (titleElement == null) {
+		    			monitor.skip(reporter);
+		    		} else {
+		    			title.set(titleElement.text());
+		    			output.collect(title, one);
+		    		}
 		    		
 				} catch (Exception e) {
-					e.printStackTrace();
+					monitor.recordError(key, value, e, reporter);
+				} finally {
+					if (permit != null) permit.release(success);
 				}
+				scheduler.report(reporter);
 			}
 		}
 	}
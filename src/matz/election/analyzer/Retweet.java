@@ -13,12 +13,16 @@ import org.apache.commons.codec.binary.Base64;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.*;
 import org.apache.hadoop.mapred.lib.IdentityReducer;
 
-import twitter4j.Status;
+import matz.election.analyzer.util.LongCountBuffer;
+import matz.election.analyzer.util.MonitoredMapReduceBase;
+import matz.election.analyzer.util.SideDataCache;
+import matz.election.analyzer.util.TweetRecord;
+
 import twitter4j.TwitterException;
-import twitter4j.TwitterObjectFactory;
 
 /**Collecting/Clustering of retweet
  * @author Yu
@@ -30,33 +34,32 @@ public class Retweet {
 	 * @author Yu
 	 *
 	 */
-	public static class RetweetMap extends MapReduceBase implements Mapper<LongWritable, Text, Text, LongWritable> {
+	public static class RetweetMap extends MonitoredMapReduceBase implements Mapper<LongWritable, Writable, Text, LongWritable> {
+		private TweetRecord record = new TweetRecord();
 
 		@Override
-		public void map(LongWritable key, Text value, OutputCollector<Text, LongWritable> output, Reporter reporter)
+		public void map(LongWritable key, Writable value, OutputCollector<Text, LongWritable> output, Reporter reporter)
 				throws IOException {
 			try {
-				Status tweet = TwitterObjectFactory.createStatus(value.toString());
+				TweetRecord tweet = TweetRecord.read(value, record);
 				if (tweet.isRetweet()) {
 					//retweet
-					Status retweet = tweet.getRetweetedStatus();
-//					String text = retweet.getText().replaceAll("[\t|\n]", "_");
-					String text = retweet.getText();
+//					String text = tweet.getRetweetedText().replaceAll("[\t|\n]", "_");
+					String text = tweet.getRetweetedText();
 					byte[] textByte = text.getBytes();
 					byte[] encodedByte = Base64.encodeBase64(textByte);
 					String encoded = new String(encodedByte);
-					output.collect(new Text(encoded), new LongWritable(tweet.getUser().getId()));
+					output.collect(new Text(encoded), new LongWritable(tweet.getUserId()));
 				} else if (tweet.getRetweetCount() > 0) {
 					//original
 					String text = tweet.getText();
 					byte[] textByte = text.getBytes();
 					byte[] encodedByte = Base64.encodeBase64(textByte);
 					String encoded = new String(encodedByte);
-					output.collect(new Text(encoded), new LongWritable(tweet.getUser().getId()));
+					output.collect(new Text(encoded), new LongWritable(tweet.getUserId()));
 				}
 			} catch (TwitterException e) {
-				//do nothing
-				e.printStackTrace();
+				monitor.parseError(key, value, e, reporter);
 			}
 			
 		}
@@ -98,9 +101,11 @@ public class Retweet {
 	}
 	
 	/**RT-usrの全ての組合せペアを作り出すMap
+	 * @deprecated 単一Reducerに全レコードを集めるため規模に限界がある。RTJoinジョブは現在SimilarityJoinのRTBlockJoinMap/BlockJoinReduceで実行される。
 	 * @author YuMatsuzawa
 	 *
 	 */
+	@Deprecated
 	public static class RTCrossJoinMap extends MapReduceBase implements Mapper<Text, Text, IntWritable, Text> {
 		private static IntWritable one = new IntWritable(1);
 		@Override
@@ -113,9 +118,11 @@ public class Retweet {
 	}
 	
 	/**既存のCrossJoinアルゴと同じだが、入力時点でCSVに加工済みなので多分こっちのほうが速い。
+	 * @deprecated 単一Reducerに全レコードを集めるため規模に限界がある。RTJoinジョブは現在SimilarityJoinのRTBlockJoinMap/BlockJoinReduceで実行される。
 	 * @author YuMatsuzawa
 	 *
 	 */
+	@Deprecated
 	public static class RTCrossJoinReduce extends MapReduceBase implements Reducer<IntWritable, Text, Text, Text> {
 
 		@Override
@@ -145,14 +152,26 @@ public class Retweet {
 	 * このマップは、RetweetMap/Reduceで抽出した、(エンコ済みRT文面)=(RTしたユーザリスト)というデータを入力とする。Seqファイルになっているはず。<br>
 	 * ユーザリストをまずカンマスプリットし、各ユーザIDについてIntの1をマップする。Reducerはこれを集計するので、出力は(ユーザID)=(RTしたツイートの数)となる。<br>
 	 * UFリストやUOリストは最終的にDistributedCacheとして配布され、参照データとされる。これを考えると、出力はTextファイルで、単一Reducerが望ましい。<br>
-	 * 出力Textは従ってTSVファイルとなる。これをDistributedCacheの利用法(Hacksの83P移行参照)に基づいて、別タスクから参照する。
+	 * 出力Textは従ってTSVファイルとなる。これをDistributedCacheの利用法(Hacksの83P移行参照)に基づいて、別タスクから参照する。<br>
+	 * RTFreqReduceは閾値があるのでCombinerにできないが、ユーザごとのカウントはLongCountBufferでMapper内で合計してから出力する。
 	 * @author YuMatsuzawa
 	 *
 	 */
-	public static class RTFreqMap extends MapReduceBase implements Mapper<Text, Text, LongWritable, IntWritable> {
-		private static final IntWritable one = new IntWritable(1);
-		private LongWritable userID = new LongWritable();
-		
+	public static class RTFreqMap extends MonitoredMapReduceBase implements Mapper<Text, Text, LongWritable, IntWritable> {
+		private LongCountBuffer counts = new LongCountBuffer();
+
+		@Override
+		public void configure(JobConf job) {
+			super.configure(job);
+			counts.configure(job);
+		}
+
+		@Override
+		public void close() throws IOException {
+			counts.close();
+			super.close();
+		}
+
 		@Override
 		public void map(Text key, Text value,
 				OutputCollector<LongWritable, IntWritable> output, Reporter reporter)
@@ -160,10 +179,9 @@ public class Retweet {
 			String[] users = value.toString().split(",");
 			for (String user : users) {
 				try {
-					userID.set(Long.valueOf(user));
-					output.collect(userID, one);
+					counts.add(Long.parseLong(user), 1, output, reporter);
 				} catch(NumberFormatException e) {
-					e.printStackTrace();
+					monitor.badField(reporter);
 				}
 			}
 		}
@@ -242,39 +260,46 @@ public class Retweet {
 	 */
 	public static class RTOpinionMap extends MapReduceBase implements Mapper<LongWritable, Text, LongWritable, IntWritable> {
 		private static final String linkname = AnalyzerMain.DIST_LINKNAME;
-		private static HashMap<String, Integer> RTOPList = new HashMap<String, Integer>();
+		/* RT文面\t意見というTSVを読む。読み込みはSideDataCacheによりJVM内で一度だけ行う。 */
+		private static final SideDataCache.Loader<HashMap<String, Integer>> RTOP_LOADER = new SideDataCache.Loader<HashMap<String, Integer>>() {
+			public HashMap<String, Integer> load(String path) throws IOException {
+				HashMap<String, Integer> list = new HashMap<String, Integer>();
+				BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(path)));
+				try {
+					String line = "";
+					while((line=br.readLine())!=null) {
+						String[] splits = line.split("\t");
+						list.put(splits[0], Integer.parseInt(splits[1]));
+					}
+				} finally {
+					br.close();
+				}
+				return list;
+			}
+			public int size(HashMap<String, Integer> data) {
+				return data.size();
+			}
+		};
+		private SideDataCache.Handle<HashMap<String, Integer>> side = null;
+		private HashMap<String, Integer> RTOPList = null;
 
 		private static final IntWritable op0 = new IntWritable(0);
 		private static final IntWritable op1 = new IntWritable(1);
 		
 		public void configure(JobConf job) {
-			BufferedReader br = null;
 			try {
-				br = new BufferedReader(new InputStreamReader(new FileInputStream(linkname)));
-				String line = "";
-				while((line=br.readLine())!=null) {
-					String[] splits = line.split("\t");
-					String rt = splits[0];
-					Integer op = Integer.parseInt(splits[1]);
-					System.out.println(rt);
-					RTOPList.put(rt, op);
-				}
-			} catch(Exception e) {
-				e.printStackTrace();
-			} finally {
-				try {
-					br.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
+				side = SideDataCache.get(job, linkname, RTOP_LOADER);
+			} catch (IOException e) {
+				throw new RuntimeException(e); //configure()は検査例外を投げられない。空のリストで続けずにタスクを失敗させる。
 			}
-			
+			RTOPList = side.get();
 		}
 
 		@Override
 		public void map(LongWritable key, Text value,
 				OutputCollector<LongWritable, IntWritable> output,
 				Reporter reporter) throws IOException {
+			side.report(reporter);
 			String[] RTs = value.toString().split(",");
 			int count0 = 0, count1 = 0;
 			for (String RT : RTs) { // base64encoded.
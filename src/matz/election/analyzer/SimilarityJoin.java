@@ -0,0 +1,365 @@
+/**
+ *
+ */
+package matz.election.analyzer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.*;
+
+import matz.election.analyzer.GraphAnalysis.JaccardLinkDecodeMap;
+import matz.election.analyzer.util.KeyedUserSet;
+import matz.election.analyzer.util.MonitoredMapReduceBase;
+
+/**レコード(キー,ユーザIDのCSV)の全ての組合せペアを、複数のReducerに分散して作るためのクラス。<br>
+ * 従来のPairedURL/URLJoin/RTJoinは全レコードをIntWritable(1)の単一Keyに集めていたため、N(N-1)/2件のペアを1つのReducerが1コアで作ることになり、数千件程度が限界だった。<br>
+ * ここでは、各レコードをキーのハッシュでB個のブロックに振り分け、ブロックの組(i,j)(i<=j)ごとにセルを作る(三角形分割)。<br>
+ * レコードは自分のブロックを含むB個のセルに複製されて送られ、各セルのReducerはブロックiとjの間のペア(i=jならブロック内のペア)だけを出力する。<br>
+ * 任意の2レコードはちょうど1つのセルで出会うので、出力されるペアの集合は従来と同じになる(ペア内の左右の順序は変わりうる)。<br>
+ * セル数はB(B+1)/2なので、Bは既定ではReducer数に収まる最大の値とする。第3引数で明示的に指定してもよい。<br>
+ * Reducer1つが保持するのは2ブロック分、すなわち約2N/B件のレコードだけである。<br>
+ * 出力はTextFile形式の<code>キー1,CSV\tキー2,CSV</code>で、GraphAnalysis.JaccardLinkMap(JaccardLink/JaccardLinkDecジョブ)の入力にそのまま使える。<br>
+ * <br>
+ * Jaccard係数の閾値が決まっている場合は、ペアを作らずに直接閾値以上のペアだけを求めるPrefixJaccard系のジョブを使う方がよい。<br>
+ * こちらはPrefix Filteringによる類似結合で、各集合の昇順に並べたユーザIDのうち先頭の|x|-ceil(t|x|)+1個(prefix)だけをKeyとして送る。<br>
+ * Jaccard係数がt以上の2集合は必ずprefixに共通のユーザを持つので、同じKeyに集まった集合同士だけを調べれば取りこぼしはない。<br>
+ * さらにサイズフィルタ(|x|/|y|がt未満なら係数もt未満)で候補を減らし、残った候補だけソート済配列のマージで正確な係数を求める。
+ * @author YuMatsuzawa
+ *
+ */
+public class SimilarityJoin {
+
+	/**ブロック数の既定値を求める。B(B+1)/2がReducer数を超えない最大のB(最低1)。
+	 * @param numReduceTasks
+	 * @return
+	 */
+	public static int defaultBlocks(int numReduceTasks) {
+		int blocks = 1;
+		while ((blocks + 1) * (blocks + 2) / 2 <= numReduceTasks) blocks++;
+		return blocks;
+	}
+
+	/**ブロックの組(i,j)(i<=j)を、0から始まる通し番号のセルIDにする。
+	 * @param i
+	 * @param j
+	 * @return
+	 */
+	public static int cellId(int i, int j) {
+		return j * (j + 1) / 2 + i;
+	}
+
+	/**ジョブ引数arg3からブロック数を読む。指定がないか不正な場合はReducer数から決める。
+	 * @param job
+	 * @return
+	 */
+	protected static int blocks(JobConf job) {
+		String extraArg = job.get("arg3");
+		if (extraArg != null) {
+			try {
+				int blocks = Integer.parseInt(extraArg);
+				if (blocks > 0) return blocks;
+			} catch (NumberFormatException e) {
+				//do nothing. default value will be used.
+			}
+		}
+		return defaultBlocks(job.getNumReduceTasks());
+	}
+
+	/**レコードの振り分けを行うMapperの共通部分。<br>
+	 * レコードのキー部分のハッシュでブロックbを決め、bを含む全セルにブロック番号付きのレコード<code>b\tキー,CSV</code>を送る。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static abstract class BlockJoinMapBase extends MapReduceBase implements JobConfigurable {
+		protected int blocks = 1;
+		private IntWritable cell = new IntWritable();
+		private Text tagged = new Text();
+
+		public void configure(JobConf job) {
+			blocks = blocks(job);
+		}
+
+		protected void emit(String name, String csv, OutputCollector<IntWritable, Text> output) throws IOException {
+			int block = (name.hashCode() & Integer.MAX_VALUE) % blocks;
+			tagged.set(block + "\t" + name + "," + csv);
+			for (int other = 0; other < blocks; other++) {
+				cell.set((block <= other)? cellId(block, other) : cellId(other, block));
+				output.collect(cell, tagged);
+			}
+		}
+	}
+
+	/**URLReferListやFilterURL/ThresholdURLの出力(<code>キー\tCSV</code>のTextFile)を入力とするMap。URLJoin、PairedURLジョブで使う。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class BlockJoinMap extends BlockJoinMapBase implements Mapper<LongWritable, Text, IntWritable, Text> {
+
+		@Override
+		public void map(LongWritable key, Text value,
+				OutputCollector<IntWritable, Text> output, Reporter reporter)
+				throws IOException {
+			String[] pair = value.toString().split("\\s");
+			if (pair.length==2) {
+				emit(pair[0], pair[1], output);
+			}
+		}
+	}
+
+	/**Retweetの出力(Keyにエンコード済文面、ValueにユーザIDのCSVを持つSeqFile)を入力とするMap。RTJoinジョブで使う。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class RTBlockJoinMap extends BlockJoinMapBase implements Mapper<Text, Text, IntWritable, Text> {
+
+		@Override
+		public void map(Text key, Text value,
+				OutputCollector<IntWritable, Text> output, Reporter reporter)
+				throws IOException {
+			emit(key.toString(), value.toString(), output);
+		}
+	}
+
+	/**セル(i,j)に集まったレコードをブロック番号で2つに分け、i≠jならブロック間の全ペアを、i=jならブロック内の重複しない全ペアを出力する。<br>
+	 * セルIDはReducer数以下に収まるように作ってあるので、既定のHashPartitionerでセルとReducerがほぼ1対1に対応する。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class BlockJoinReduce extends MapReduceBase implements Reducer<IntWritable, Text, Text, Text> {
+		private Text left = new Text(), right = new Text();
+
+		@Override
+		public void reduce(IntWritable key, Iterator<Text> values,
+				OutputCollector<Text, Text> output, Reporter reporter)
+				throws IOException {
+			int j = 0;
+			while (cellId(0, j + 1) <= key.get()) j++;
+			int i = key.get() - cellId(0, j);
+
+			List<String> blockI = new ArrayList<String>(), blockJ = new ArrayList<String>();
+			while(values.hasNext()) {
+				String tagged = values.next().toString();
+				int tab = tagged.indexOf('\t');
+				int block = Integer.parseInt(tagged.substring(0, tab));
+				if (block == i) blockI.add(tagged.substring(tab + 1));
+				else blockJ.add(tagged.substring(tab + 1));
+			}
+
+			if (i == j) {
+				for (int a = 0; a < blockI.size(); a++) {
+					left.set(blockI.get(a));
+					for (int b = a + 1; b < blockI.size(); b++) {
+						right.set(blockI.get(b));
+						output.collect(left, right);
+					}
+					reporter.progress();
+				}
+			} else {
+				for (String recordI : blockI) {
+					left.set(recordI);
+					for (String recordJ : blockJ) {
+						right.set(recordJ);
+						output.collect(left, right);
+					}
+					reporter.progress();
+				}
+			}
+		}
+	}
+
+	/**ジョブ引数arg3からJaccard係数の閾値を読む。JaccardLinkMapと同じく、既定値は0。
+	 * @param job
+	 * @return
+	 */
+	protected static double threshold(JobConf job) {
+		String extraArg = job.get("arg3");
+		if (extraArg != null) {
+			try {
+				return Double.parseDouble(extraArg);
+			} catch (NumberFormatException e) {
+				//do nothing. default value will be kept.
+			}
+		}
+		return 0.0;
+	}
+
+	/**サイズsizeの集合について、閾値thresholdに対するprefixの長さを求める。<br>
+	 * 係数がt以上の相手とは少なくともceil(t*size)個の要素を共有するので、先頭からsize-ceil(t*size)+1個のうちに必ず共通要素がある。<br>
+	 * 浮動小数の誤差で取りこぼさないよう、必要な共有数は小さめに(prefixは長めに)見積もる。
+	 * @param size
+	 * @param threshold
+	 * @return
+	 */
+	public static int prefixLength(int size, double threshold) {
+		if (threshold <= 0.0) return size;
+		int minOverlap = (int) Math.ceil(threshold * size - 1e-9);
+		int prefix = size - minOverlap + 1;
+		if (prefix > size) return size;
+		return (prefix < 0)? 0 : prefix;
+	}
+
+	/**PrefixJaccardのMapperの共通部分。集合のprefixに含まれる各ユーザIDをKeyとして、集合そのものを送る。<br>
+	 * 閾値が0以下の場合prefixは集合全体になるが、共通のユーザを持たない(係数0の)ペアは出力されない点がJaccardLinkと異なる。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static abstract class PrefixJaccardMapBase extends MonitoredMapReduceBase implements JobConfigurable {
+		protected double threshold = 0.0;
+		private KeyedUserSet userSet = new KeyedUserSet();
+		private LongWritable token = new LongWritable();
+
+		public void configure(JobConf job) {
+			super.configure(job);
+			threshold = threshold(job);
+		}
+
+		protected void emit(String name, String csv, OutputCollector<LongWritable, KeyedUserSet> output, Reporter reporter) throws IOException {
+			try {
+				userSet.set(name, csv);
+			} catch (NumberFormatException e) {
+				monitor.parseError(name, csv, e, reporter);
+				return;
+			}
+			long[] users = userSet.getUsers();
+			int prefix = prefixLength(userSet.size(), threshold);
+			for (int i = 0; i < prefix; i++) {
+				token.set(users[i]);
+				output.collect(token, userSet);
+			}
+		}
+	}
+
+	/**URLReferList等の出力(<code>キー\tCSV</code>のTextFile)を入力とするPrefixJaccardのMap。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class PrefixJaccardMap extends PrefixJaccardMapBase implements Mapper<LongWritable, Text, LongWritable, KeyedUserSet> {
+
+		@Override
+		public void map(LongWritable key, Text value,
+				OutputCollector<LongWritable, KeyedUserSet> output, Reporter reporter)
+				throws IOException {
+			String[] pair = value.toString().split("\\s");
+			if (pair.length==2) {
+				emit(pair[0], pair[1], output, reporter);
+			}
+		}
+	}
+
+	/**Retweetの出力(SeqFile)を入力とするPrefixJaccardのMap。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class RTPrefixJaccardMap extends PrefixJaccardMapBase implements Mapper<Text, Text, LongWritable, KeyedUserSet> {
+
+		@Override
+		public void map(Text key, Text value,
+				OutputCollector<LongWritable, KeyedUserSet> output, Reporter reporter)
+				throws IOException {
+			emit(key.toString(), value.toString(), output, reporter);
+		}
+	}
+
+	/**同じユーザIDをprefixに含む集合の組について、係数が閾値以上のものを出力する。<br>
+	 * 集合をサイズ順に並べておき、サイズ比が閾値を下回ったら以降の相手は調べない。<br>
+	 * 同じペアが複数のKeyで出会うことがあるので、両者の最小の共通ユーザIDがKeyと一致する場合だけ出力する(最小の共通要素は必ず両者のprefixに含まれる)。<br>
+	 * 出力はJaccardLinkと同じく、Keyが<code>キー1,キー2</code>(キーは辞書順)、ValueがJaccard係数。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class PrefixJaccardReduce extends MapReduceBase implements Reducer<LongWritable, KeyedUserSet, Text, DoubleWritable>, JobConfigurable {
+		private static final Comparator<KeyedUserSet> BY_SIZE = new Comparator<KeyedUserSet>() {
+			public int compare(KeyedUserSet o1, KeyedUserSet o2) {
+				return (o1.size() < o2.size())? -1 : (o1.size() == o2.size())? 0 : 1;
+			}
+		};
+		protected double threshold = 0.0;
+
+		public void configure(JobConf job) {
+			threshold = threshold(job);
+		}
+
+		/**出力に用いるキーの表記。
+		 * @param key
+		 * @return
+		 */
+		protected String label(String key) {
+			return key;
+		}
+
+		@Override
+		public void reduce(LongWritable key, Iterator<KeyedUserSet> values,
+				OutputCollector<Text, DoubleWritable> output, Reporter reporter)
+				throws IOException {
+			List<KeyedUserSet> candidates = new ArrayList<KeyedUserSet>();
+			while(values.hasNext()) {
+				KeyedUserSet copy = new KeyedUserSet();
+				copy.set(values.next());
+				candidates.add(copy);
+			}
+			Collections.sort(candidates, BY_SIZE);
+
+			long token = key.get();
+			for (int a = 0; a < candidates.size(); a++) {
+				KeyedUserSet small = candidates.get(a);
+				for (int b = a + 1; b < candidates.size(); b++) {
+					KeyedUserSet large = candidates.get(b);
+					if ((double) small.size() / (double) large.size() < threshold) break;
+
+					int common = commonFrom(small, large, token);
+					if (common < 0) continue;
+					double jaccard = (double) common / (double) (small.size() + large.size() - common);
+					if (jaccard >= threshold) {
+						String key1 = small.getKey(), key2 = large.getKey();
+						String pair = (key1.compareTo(key2) <= 0)? label(key1)+","+label(key2) : label(key2)+","+label(key1);
+						output.collect(new Text(pair), new DoubleWritable(jaccard));
+					}
+				}
+				reporter.progress();
+			}
+		}
+
+		/**2集合の共通要素数を数える。ただし最小の共通要素がtokenでなければ(他のKeyで処理されるので)-1を返す。
+		 * @param x
+		 * @param y
+		 * @param token
+		 * @return
+		 */
+		private static int commonFrom(KeyedUserSet x, KeyedUserSet y, long token) {
+			long[] xs = x.getUsers(), ys = y.getUsers();
+			int i = 0, j = 0, common = 0;
+			while (i < x.size() && j < y.size()) {
+				if (xs[i] < ys[j]) i++;
+				else if (xs[i] > ys[j]) j++;
+				else {
+					if (common == 0 && xs[i] != token) return -1;
+					common++;
+					i++;
+					j++;
+				}
+			}
+			return common;
+		}
+	}
+
+	/**キーをBase64デコードして出力するPrefixJaccardReduce。JaccardLinkDecに相当する。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class PrefixJaccardDecodeReduce extends PrefixJaccardReduce {
+
+		@Override
+		protected String label(String key) {
+			return JaccardLinkDecodeMap.decodeKey(key);
+		}
+	}
+}
@@ -0,0 +1,393 @@
+/**
+ *
+ */
+package matz.election.analyzer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.InputFormat;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.KeyValueTextInputFormat;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Partitioner;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.RecordWriter;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.TextOutputFormat;
+import org.apache.hadoop.mapred.lib.HashPartitioner;
+import org.apache.hadoop.util.Progressable;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import matz.election.analyzer.util.CountBuffer;
+import matz.election.analyzer.util.SkewMergeable;
+
+/**一部のKey(ホットキー)にレコードが集中して、1つのReducerだけが遅れるジョブを、2段階に分けて実行する。<br>
+ * AnalyzerMain [-local[:threads]] -skew[:<Key>,<Key>...] <ジョブ名> <入力> <出力> [引数...] で起動する。<br>
+ * 1段目: 元のジョブを、Reducer数をskew.reducers(既定BALANCED_REDUCE_NUM)にして実行する。ホットキーのレコードはSkewPartitionerで全Reducerに順に振り分け、それ以外はハッシュで振り分ける。<br>
+ * 出力は"<出力>_skew"に書き、ホットキーの行は"hot-"で始まるファイルに、それ以外の行はpart-*に分けておく(SkewOutputFormat)。<br>
+ * 2段目: hot-*だけを読み、同じKey(・項目)の数値を合計して、1つのReducerで<出力>/part-00000に書く(SkewMergeReduce)。<br>
+ * ホットキー以外の行は1段目で集計が済んでいるので、読み直さずにpart-*をそのまま<出力>に移す(空のファイルは移さない)。ロングテールのKeyを2回シャッフルしないで済む。<br>
+ * 出力のファイル数は元のReducer数ではなく、最大でskew.reducers+1個になる。各ファイルの中はKeyの順に並ぶ。<br>
+ * ホットキーは"-skew:"の後にカンマ区切りで指定する。省略した場合は、入力の一部(skew.sample件、既定10万件)をクライアントでMapperに通し、
+ * Map出力件数に占める割合がskew.threshold(既定は1/1段目のReducer数)以上のKeyとする。<br>
+ * 対象にできるのは、ReducerがSkewMergeableを実装し、出力がTextOutputFormatで、Map出力のKeyがText/IntWritable/LongWritableのジョブ。<br>
+ * DistributedCacheを使うジョブ(VDegree等)はクライアントでMapperを動かせないので、ホットキーを指定する。<br>
+ * CountBufferで合計するMapper(URLCount等)は、抽出時だけcount.buffer.mbを0にして出現ごとに出力させるので、合計する前の件数で判定する。<br>
+ * それ以外の方法でMapper内で合計するジョブは、Map出力の時点で件数が減っているので、抽出してもホットキーにならないことが多い。
+ * @author YuMatsuzawa
+ *
+ */
+public class SkewAggregation {
+	public static final String KEYS_KEY = "skew.keys";
+	public static final String REDUCES_KEY = "skew.reducers";
+	public static final String SAMPLE_KEY = "skew.sample";
+	public static final String THRESHOLD_KEY = "skew.threshold";
+	private static final String NUMERIC_KEY = "skew.numeric";
+	private static final int DEFAULT_SAMPLE = 100000, SAMPLE_SPLITS = 10;
+	private static final String PARTIAL_SUFFIX = "_skew";
+	private static final String HOT_PREFIX = "hot-", PART_PREFIX = "part-";
+
+	/**ホットキーのレコードを全Reducerに順に振り分け、それ以外のレコードはHashPartitionerと同じく振り分けるPartitioner。<br>
+	 * 振り分けの開始位置はMapタスクごとにずらす。ホットキーはskew.keysにタブ区切りで入っている。
+	 * @author YuMatsuzawa
+	 *
+	 * @param <K>
+	 * @param <V>
+	 */
+	public static class SkewPartitioner<K, V> implements Partitioner<K, V> {
+		private Set<Object> hotKeys = new HashSet<Object>();
+		private HashPartitioner<K, V> hash = new HashPartitioner<K, V>();
+		private int next = 0;
+
+		@Override
+		public void configure(JobConf job) {
+			for (String key : split(job.get(KEYS_KEY, ""))) hotKeys.add(toKey(key, job.getMapOutputKeyClass()));
+			next = job.getInt("mapred.task.partition", 0);
+		}
+
+		@Override
+		public int getPartition(K key, V value, int numPartitions) {
+			if (hotKeys.contains(key)) {
+				next = (next + 1) % numPartitions;
+				return next;
+			}
+			return hash.getPartition(key, value, numPartitions);
+		}
+	}
+
+	/**1段目の出力の行(KeyValueTextInputFormatで読む)をそのまま渡すMap。元のKeyが数値なら、数値の順に並ぶようにLongWritableにする。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	@SuppressWarnings("rawtypes")
+	public static class SkewMergeMap extends MapReduceBase implements Mapper<Text, Text, WritableComparable, Text> {
+		private boolean numeric = false;
+		private LongWritable longKey = new LongWritable();
+
+		@Override
+		public void configure(JobConf job) {
+			numeric = job.getBoolean(NUMERIC_KEY, false);
+		}
+
+		@Override
+		public void map(Text key, Text value,
+				OutputCollector<WritableComparable, Text> output, Reporter reporter)
+				throws IOException {
+			if (numeric) {
+				longKey.set(Long.parseLong(key.toString()));
+				output.collect(longKey, value);
+			} else {
+				output.collect(key, value);
+			}
+		}
+	}
+
+	/**Keyごとに、"数値"か"項目\t数値"という行の数値を項目ごとに合計するReducer。Combinerとしても使う。<br>
+	 * 項目は数値として読めれば数値の順(DegreeHistogramReduceの次数の順)、読めなければ文字列の順に出力する。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	@SuppressWarnings("rawtypes")
+	public static class SkewMergeReduce extends MapReduceBase implements Reducer<WritableComparable, Text, WritableComparable, Text> {
+		private static final Comparator<String> ITEM_ORDER = new Comparator<String>() {
+			public int compare(String a, String b) {
+				try {
+					long x = Long.parseLong(a), y = Long.parseLong(b);
+					return (x < y)? -1 : (x == y)? 0 : 1;
+				} catch (NumberFormatException e) {
+					return a.compareTo(b);
+				}
+			}
+		};
+		private Text line = new Text();
+
+		@Override
+		public void reduce(WritableComparable key, Iterator<Text> values,
+				OutputCollector<WritableComparable, Text> output, Reporter reporter)
+				throws IOException {
+			TreeMap<String, long[]> sums = new TreeMap<String, long[]>(ITEM_ORDER);
+			while (values.hasNext()) {
+				String value = values.next().toString();
+				int tab = value.lastIndexOf('\t');
+				String item = (tab < 0)? "" : value.substring(0, tab);
+				long[] sum = sums.get(item);
+				if (sum == null) sums.put(item, sum = new long[1]);
+				sum[0] += Long.parseLong(value.substring(tab + 1));
+			}
+			for (Entry<String, long[]> entry : sums.entrySet()) {
+				line.set(entry.getKey().isEmpty()? String.valueOf(entry.getValue()[0]) : entry.getKey() + "\t" + entry.getValue()[0]);
+				output.collect(key, line);
+			}
+		}
+	}
+
+	/**1段目の出力形式。TextOutputFormatと同じ行を、ホットキー(skew.keys)の行は"hot-<part>"に、それ以外の行は"<part>"に書き分ける。<br>
+	 * ホットキーは出力のKeyの文字列表現で比べる。SkewMergeableなReducerは、Map出力と同じKeyを出力する。
+	 * @author YuMatsuzawa
+	 *
+	 * @param <K>
+	 * @param <V>
+	 */
+	public static class SkewOutputFormat<K, V> extends TextOutputFormat<K, V> {
+		@Override
+		public RecordWriter<K, V> getRecordWriter(final FileSystem ignored, final JobConf job, final String name, final Progressable progress)
+				throws IOException {
+			final Set<String> hotKeys = new HashSet<String>(split(job.get(KEYS_KEY, "")));
+			final RecordWriter<K, V> cold = super.getRecordWriter(ignored, job, name, progress);
+			return new RecordWriter<K, V>() {
+				private RecordWriter<K, V> hot = null;
+
+				@Override
+				public void write(K key, V value) throws IOException {
+					if (key != null && hotKeys.contains(key.toString())) {
+						if (hot == null) hot = hotWriter(ignored, job, HOT_PREFIX + name, progress);
+						hot.write(key, value);
+					} else {
+						cold.write(key, value);
+					}
+				}
+
+				@Override
+				public void close(Reporter reporter) throws IOException {
+					cold.close(reporter);
+					if (hot != null) hot.close(reporter);
+				}
+			};
+		}
+
+		private RecordWriter<K, V> hotWriter(FileSystem ignored, JobConf job, String name, Progressable progress) throws IOException {
+			return super.getRecordWriter(ignored, job, name, progress);
+		}
+	}
+
+	/**Map出力の件数をKeyの文字列表現ごとに数えるOutputCollector。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	private static class KeyCounter implements OutputCollector<Writable, Writable> {
+		private Map<String, long[]> counts = new HashMap<String, long[]>();
+		private long total = 0;
+
+		@Override
+		public void collect(Writable key, Writable value) {
+			String str = key.toString();
+			long[] count = counts.get(str);
+			if (count == null) counts.put(str, count = new long[1]);
+			count[0]++;
+			total++;
+		}
+	}
+
+	/**createJobで組み立てたジョブを、ホットキーを分散させて2段階で実行する。
+	 * @param job
+	 * @param keys "-skew:"の後に指定されたホットキー(カンマ区切り)。空なら入力を抽出して決める
+	 * @param localThreads 正ならLocalJobEngineで実行する
+	 * @return 対象にできないジョブか、実行に失敗したらfalse
+	 * @throws IOException
+	 */
+	@SuppressWarnings("deprecation")
+	public static boolean run(JobConf job, String keys, int localThreads) throws IOException {
+		Class<?> keyClass = job.getMapOutputKeyClass();
+		if (!SkewMergeable.class.isAssignableFrom(job.getReducerClass())
+				|| !(job.getOutputFormat() instanceof TextOutputFormat)
+				|| !(keyClass == Text.class || keyClass == IntWritable.class || keyClass == LongWritable.class)) {
+			System.err.println("SkewAggregation: " + job.getJobName() + " cannot be split; the reducer must be SkewMergeable, "
+					+ "the output must be text and the map output key must be Text, IntWritable or LongWritable.");
+			return false;
+		}
+		int partialReduces = job.getInt(REDUCES_KEY, Integer.parseInt(AnalyzerMain.BALANCED_REDUCE_NUM));
+
+		List<String> hotKeys;
+		if (!keys.isEmpty()) {
+			hotKeys = split(keys.replace(',', '\t'));
+		} else if (DistributedCache.getCacheFiles(job) != null) {
+			System.err.println("SkewAggregation: " + job.getJobName() + " uses DistributedCache; specify hot keys with -skew:<key>,<key>...");
+			return false;
+		} else {
+			hotKeys = sample(job, partialReduces);
+		}
+		for (String key : hotKeys) {
+			try {
+				toKey(key, keyClass);
+			} catch (NumberFormatException e) {
+				System.err.println("SkewAggregation: hot key " + key + " is not a " + keyClass.getSimpleName());
+				return false;
+			}
+		}
+		if (hotKeys.isEmpty()) {
+			System.err.println("SkewAggregation: no hot keys found, running " + job.getJobName() + " as is.");
+			AnalyzerMain.runJob(job, localThreads);
+			return true;
+		}
+		System.err.println("SkewAggregation: hot keys " + hotKeys + " are spread over " + partialReduces + " reducers.");
+
+		Path output = FileOutputFormat.getOutputPath(job);
+		Path partial = new Path(output.getParent(), output.getName() + PARTIAL_SUFFIX);
+		FileSystem fs = output.getFileSystem(job);
+		if (fs.exists(output)) {
+			System.err.println("SkewAggregation: output " + output + " already exists.");
+			return false;
+		}
+		fs.delete(partial, true);
+
+		StringBuilder joined = new StringBuilder();
+		for (String key : hotKeys) joined.append(joined.length() > 0? "\t" : "").append(key);
+		job.set(KEYS_KEY, joined.toString());
+		job.setPartitionerClass(SkewPartitioner.class);
+		job.setOutputFormat(SkewOutputFormat.class);
+		job.setNumReduceTasks(partialReduces);
+		FileOutputFormat.setOutputPath(job, partial);
+		AnalyzerMain.runJob(job, localThreads);
+
+		Path hotFiles = new Path(partial, HOT_PREFIX + "*");
+		FileStatus[] hot = fs.globStatus(hotFiles);
+		if (hot != null && hot.length > 0) {
+			merge(job, hotFiles, output, localThreads);
+		} else {
+			fs.mkdirs(output);
+		}
+		//ホットキー以外の行は、1段目のpart-*をそのまま後ろに並べる。
+		int index = (hot != null && hot.length > 0)? 1 : 0;
+		for (FileStatus status : fs.listStatus(partial)) {
+			String name = status.getPath().getName();
+			if (!name.startsWith(PART_PREFIX) || status.getLen() == 0) continue;
+			//圧縮していれば拡張子(.gz等)が付いているので残す。
+			String suffix = name.substring(Math.min(name.length(), PART_PREFIX.length() + 5));
+			Path target = new Path(output, String.format("%s%05d%s", PART_PREFIX, index++, suffix));
+			if (!fs.rename(status.getPath(), target)) throw new IOException("Could not move " + status.getPath() + " to " + target);
+		}
+		fs.delete(partial, true);
+		return true;
+	}
+
+	/**1段目の出力のうちホットキーの行(hot-*)を読み、同じKey・項目の数値を合計して<出力>に書く。ホットキーは少ないのでReducerは1つ。
+	 * @param job 1段目のジョブ
+	 * @param hotFiles
+	 * @param output
+	 * @param localThreads
+	 * @throws IOException
+	 */
+	private static void merge(JobConf job, Path hotFiles, Path output, int localThreads) throws IOException {
+		JobConf merge = new JobConf(SkewAggregation.class);
+		merge.set("fs.default.name", job.get("fs.default.name"));
+		merge.set("mapred.job.tracker", job.get("mapred.job.tracker"));
+		merge.setJobName(job.getJobName() + "-merge");
+		FileInputFormat.setInputPaths(merge, hotFiles);
+		FileOutputFormat.setOutputPath(merge, output);
+		merge.setInputFormat(KeyValueTextInputFormat.class);
+		merge.setOutputFormat(TextOutputFormat.class);
+		boolean numeric = (job.getOutputKeyClass() != Text.class);
+		merge.setBoolean(NUMERIC_KEY, numeric);
+		merge.setOutputKeyClass(numeric? LongWritable.class : Text.class);
+		merge.setOutputValueClass(Text.class);
+		merge.setMapperClass(SkewMergeMap.class);
+		merge.setCombinerClass(SkewMergeReduce.class);
+		merge.setReducerClass(SkewMergeReduce.class);
+		merge.setNumReduceTasks(1);
+		AnalyzerMain.runJob(merge, localThreads);
+	}
+
+	/**入力の一部をクライアントでMapperに通し、Map出力件数の割合がskew.threshold以上のKeyを返す。<br>
+	 * 入力スプリットから最大SAMPLE_SPLITS個を等間隔に選び、それぞれの先頭から読む。<br>
+	 * CountBufferを使うMapperはタスク内でKeyごとに合計してから出力するので、そのままでは全てのKeyが1件ずつになりホットキーが見分けられない。<br>
+	 * 抽出時はcount.buffer.mbを0にして、出現ごとに出力させる。
+	 * @param job
+	 * @param reduces 1段目のReducer数。閾値の既定値は1/reduces
+	 * @return
+	 * @throws IOException
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static List<String> sample(JobConf job, int reduces) throws IOException {
+		InputFormat format = job.getInputFormat();
+		InputSplit[] splits = format.getSplits(job, 1);
+		int numSplits = Math.min(splits.length, SAMPLE_SPLITS);
+		int perSplit = job.getInt(SAMPLE_KEY, DEFAULT_SAMPLE) / Math.max(1, numSplits);
+		JobConf sampleJob = new JobConf(job);
+		sampleJob.setInt(CountBuffer.MEMORY_KEY, 0);
+		Mapper mapper = (Mapper) ReflectionUtils.newInstance(job.getMapperClass(), sampleJob);
+		KeyCounter counter = new KeyCounter();
+		for (int i = 0; i < numSplits; i++) {
+			RecordReader reader = format.getRecordReader(splits[(int) ((long) i * splits.length / numSplits)], job, Reporter.NULL);
+			try {
+				Object key = reader.createKey(), value = reader.createValue();
+				for (int n = 0; n < perSplit && reader.next(key, value); n++) mapper.map(key, value, counter, Reporter.NULL);
+			} finally {
+				reader.close();
+			}
+		}
+		mapper.close();
+
+		double threshold = job.getFloat(THRESHOLD_KEY, 1.0f / Math.max(1, reduces));
+		List<String> hotKeys = new ArrayList<String>();
+		for (Entry<String, long[]> entry : counter.counts.entrySet()) {
+			if (entry.getValue()[0] >= threshold * counter.total) hotKeys.add(entry.getKey());
+		}
+		System.err.println("SkewAggregation: sampled " + counter.total + " map output records, " + counter.counts.size() + " keys.");
+		return hotKeys;
+	}
+
+	private static List<String> split(String keys) {
+		List<String> list = new ArrayList<String>();
+		for (String key : keys.split("\t")) {
+			if (!key.isEmpty()) list.add(key);
+		}
+		return list;
+	}
+
+	/**ホットキーの文字列表現から、Map出力のKeyと同じクラスのインスタンスを作る。
+	 * @param key
+	 * @param keyClass
+	 * @return
+	 * @throws NumberFormatException
+	 */
+	private static Object toKey(String key, Class<?> keyClass) {
+		if (keyClass == IntWritable.class) return new IntWritable(Integer.parseInt(key));
+		if (keyClass == LongWritable.class) return new LongWritable(Long.parseLong(key));
+		return new Text(key);
+	}
+}
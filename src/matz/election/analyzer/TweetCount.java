@@ -7,17 +7,26 @@ import java.util.Iterator;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.*;
 import org.apache.hadoop.mapred.lib.IdentityReducer;
 
-import twitter4j.Status;
+import matz.election.analyzer.util.LongCountBuffer;
+import matz.election.analyzer.util.MonitoredMapReduceBase;
+import matz.election.analyzer.util.SkewMergeable;
+import matz.election.analyzer.util.TextCountBuffer;
+import matz.election.analyzer.util.TweetFields;
+import matz.election.analyzer.util.TweetRecord;
+import matz.election.analyzer.util.TweetView;
+
 import twitter4j.TwitterException;
-import twitter4j.TwitterObjectFactory;
 
 /**選挙データ解析の端緒としてとりあえずMapReduceプログラミングを練習。<br>
  * →入力データはSeqFileに変換し直したので、[UserID]=[RawJSON]というk=vペアになっている。UserIDが読み取れなかったTweetはKeyに0が入っている。<br>
  * SequenceFileInputFormatは1つのK=VペアごとにMapperを呼び出すことに注意。TextInputFormatの場合は行ごと。<br>
- * 色々と異なるMapper/Reducerを実装して、ツイートstatusに含まれる色々なキーに対してカウントを行えるようにしてみる。
+ * 色々と異なるMapper/Reducerを実装して、ツイートstatusに含まれる色々なキーに対してカウントを行えるようにしてみる。<br>
+ * 生ツイートを読むMapperは、ValueがRawJSON(Text)でもBinaryTweetで変換したTweetRecordでもよい。<br>
+ * 作成時刻やユーザIDなど少数のフィールドしか読まないMapperは、Statusを構築せずにTweetViewでRawJSONを直接読む。
  * @author Matsuzawa
  *
  */
@@ -29,16 +38,16 @@ public class TweetCount {
 	 * @author Matsuzawa
 	 *
 	 */
-	public static class Map extends MapReduceBase implements Mapper<LongWritable, Text, Text, IntWritable> {
+	public static class Map extends MapReduceBase implements Mapper<LongWritable, Writable, Text, IntWritable> {
 		private static final IntWritable one = new IntWritable(1);
 		private Text tweetNum = new Text("tweetNum");
 		private Text errorNum = new Text("errorNum");
 		
 		@Override
-		public void map(LongWritable key, Text value,
+		public void map(LongWritable key, Writable value,
 				OutputCollector<Text, IntWritable> output, Reporter reporter)
 				throws IOException {
-			if (value.getLength()>1) output.collect(tweetNum, one);		//ValueはRawJSON．中身があることを一応確認してカウントアップする。
+			if (value instanceof TweetRecord || ((Text) value).getLength()>1) output.collect(tweetNum, one);		//ValueはRawJSON．中身があることを一応確認してカウントアップする。TweetRecordは変換時に検証済み。
 			if (key.get()==0) output.collect(errorNum, one);			//UserIDが0ならカウントアップ。
 		}
 	}
@@ -49,29 +58,42 @@ public class TweetCount {
 	 * これを前提としてMapperの作業内容を構築する。<br>
 	 * SeqFileInputFormatならK=Vペア単位でMapperが呼ばれ、k1,v1はそれぞれ入力ファイルのkey形式、value形式。<br>
 	 * 返り値に当たるのはk2,v2で、これの形式はMapper内で指定し、これをOutputCollectorに渡す。<br>
+	 * 1ずつ出力するとMap出力が膨れるので、TextCountBufferでユーザごとに合計してから出力する。
 	 * @author Matsuzawa
 	 *
 	 */
-	public static class UserTweetMap extends MapReduceBase implements Mapper<LongWritable, Text, Text, IntWritable> {
-		private static final IntWritable one = new IntWritable(1);
+	public static class UserTweetMap extends MonitoredMapReduceBase implements Mapper<LongWritable, Writable, Text, IntWritable> {
 		private Text userid = new Text();
-		
+		private TweetView view = new TweetView();
+		private TextCountBuffer counts = new TextCountBuffer();
+
 		@Override
-		public void map(LongWritable key, Text value,
+		public void configure(JobConf job) {
+			super.configure(job);
+			counts.configure(job);
+		}
+
+		@Override
+		public void close() throws IOException {
+			counts.close();
+			super.close();
+		}
+
+		@Override
+		public void map(LongWritable key, Writable value,
 				OutputCollector<Text, IntWritable> output, Reporter reporter)
 				throws IOException {
 			/*if (key.get() != 0) {
 				userid.set(key.toString());
 				output.collect(userid, one);
 			}*/
-			Status tweet = null;
 			try {
-				tweet = TwitterObjectFactory.createStatus(value.toString());
-				Long useridLong = tweet.getUser().getId();
+				TweetFields tweet = view.read(value);
+				Long useridLong = tweet.getUserId();
 				userid.set(useridLong.toString());
-				output.collect(userid, one);
+				counts.add(userid, 1, output, reporter);
 			} catch (Exception e) {
-				e.printStackTrace();
+				monitor.parseError(key, value, e, reporter);
 			}
 		}
 		
@@ -104,24 +126,37 @@ public class TweetCount {
 	/**ミリ秒単位で、時刻あたりのツイート数をカウントするMapper。<br>
 	 * 例：XXXX/YY/ZZ-AA:BB:CCにV個のツイート。<br>
 	 * ただ、ソートしたい関係上KeyはLongにする。後にデータを使うときに可読カレンダー型にパースせよ。<br>
-	 * SeqFileをInputとする。
+	 * SeqFileをInputとする。LongCountBufferで時刻ごとに合計してから出力する。
 	 * @author Matsuzawa
 	 *
 	 */
-	public static class TimeStampMap extends MapReduceBase implements Mapper<LongWritable, Text, LongWritable, IntWritable> {
-		private static IntWritable one = new IntWritable(1);
-		private LongWritable dateLong = new LongWritable();
+	public static class TimeStampMap extends MonitoredMapReduceBase implements Mapper<LongWritable, Writable, LongWritable, IntWritable> {
+		private TweetView view = new TweetView();
+		private LongCountBuffer counts = new LongCountBuffer();
+
 		@Override
-		public void map(LongWritable key, Text value,
+		public void configure(JobConf job) {
+			super.configure(job);
+			counts.configure(job);
+		}
+
+		@Override
+		public void close() throws IOException {
+			counts.close();
+			super.close();
+		}
+
+		@Override
+		public void map(LongWritable key, Writable value,
 				OutputCollector<LongWritable, IntWritable> output, Reporter reporter)
 				throws IOException {
-			Status tweet;
 			try {
-				tweet = TwitterObjectFactory.createStatus(value.toString());
-				dateLong.set(tweet.getCreatedAt().getTime());
-				output.collect(dateLong, one);
+				TweetFields tweet = view.read(value);
+				counts.add(tweet.getCreatedAt(), 1, output, reporter);
 			} catch (TwitterException e) {
-				e.printStackTrace();
+				monitor.parseError(key, value, e, reporter);
+			} catch (RuntimeException e) {
+				monitor.parseError(key, value, e, reporter);
 			}
 		}
 	}
@@ -152,20 +187,20 @@ public class TweetCount {
 	 * @author Romancer
 	 *
 	 */
-	public static class CreatedAtFreqMap extends MapReduceBase implements Mapper<LongWritable, Text, LongWritable, IntWritable> {
+	public static class CreatedAtFreqMap extends MonitoredMapReduceBase implements Mapper<LongWritable, Writable, LongWritable, IntWritable> {
 		private static long july27sec = 1374850800;
 		private static long oneDayInMillisec = 86400000;
 		private LongWritable mark = new LongWritable();
 		private static IntWritable one = new IntWritable(1);
+		private TweetView view = new TweetView();
 		
 		@Override
-		public void map(LongWritable key, Text value,
+		public void map(LongWritable key, Writable value,
 				OutputCollector<LongWritable, IntWritable> output,
 				Reporter reporter) throws IOException {
-			Status tweet;
 			try {
-				tweet = TwitterObjectFactory.createStatus(value.toString());
-				long dateLong = tweet.getCreatedAt().getTime();
+				TweetFields tweet = view.read(value);
+				long dateLong = tweet.getCreatedAt();
 				long minRange = july27sec * 1000, maxRange = minRange + oneDayInMillisec;
 				int pitch = 31;
 				for (int i = 0; i < pitch; i++) {
@@ -180,7 +215,9 @@ public class TweetCount {
 				}
 				output.collect(mark, one);
 			} catch (TwitterException e) {
-				e.printStackTrace();
+				monitor.parseError(key, value, e, reporter);
+			} catch (RuntimeException e) {
+				monitor.parseError(key, value, e, reporter);
 			}
 		}
 	}
@@ -189,21 +226,21 @@ public class TweetCount {
 	 * @author Romancer
 	 *
 	 */
-	public static class OriginalCreatedAtFreqMap extends MapReduceBase implements Mapper<LongWritable, Text, LongWritable, IntWritable> {
+	public static class OriginalCreatedAtFreqMap extends MonitoredMapReduceBase implements Mapper<LongWritable, Writable, LongWritable, IntWritable> {
 		private static long july27sec = 1374850800;
 		private static long oneDayInMillisec = 86400000;
 		private LongWritable mark = new LongWritable();
 		private static IntWritable one = new IntWritable(1);
+		private TweetView view = new TweetView();
 		
 		@Override
-		public void map(LongWritable key, Text value,
+		public void map(LongWritable key, Writable value,
 				OutputCollector<LongWritable, IntWritable> output,
 				Reporter reporter) throws IOException {
-			Status tweet;
 			try {
-				tweet = TwitterObjectFactory.createStatus(value.toString());
+				TweetFields tweet = view.read(value);
 				if (tweet.isRetweet()) return;
-				long dateLong = tweet.getCreatedAt().getTime();
+				long dateLong = tweet.getCreatedAt();
 				long minRange = july27sec * 1000, maxRange = minRange + oneDayInMillisec;
 				int pitch = 31;
 				for (int i = 0; i < pitch; i++) {
@@ -218,7 +255,9 @@ public class TweetCount {
 				}
 				output.collect(mark, one);
 			} catch (TwitterException e) {
-				e.printStackTrace();
+				monitor.parseError(key, value, e, reporter);
+			} catch (RuntimeException e) {
+				monitor.parseError(key, value, e, reporter);
 			}
 		}
 	}
@@ -246,22 +285,22 @@ public class TweetCount {
 	 * @author Yu
 	 *
 	 */
-	public static class RetweetMap extends MapReduceBase implements Mapper<LongWritable, Text, LongWritable, IntWritable> {
+	public static class RetweetMap extends MonitoredMapReduceBase implements Mapper<LongWritable, Writable, LongWritable, IntWritable> {
 		private static IntWritable one = new IntWritable(1);
+		private TweetView view = new TweetView();
 		
 		@Override
-		public void map(LongWritable key, Text value, OutputCollector<LongWritable, IntWritable> output,
+		public void map(LongWritable key, Writable value, OutputCollector<LongWritable, IntWritable> output,
 				Reporter reporter) throws IOException {
 			try {
-				Status tweet = TwitterObjectFactory.createStatus(value.toString());
-				Status retweet = tweet.getRetweetedStatus();
-				if (retweet != null) {
-					output.collect(new LongWritable(retweet.getId()), one);
+				TweetFields tweet = view.read(value);
+				if (tweet.isRetweet()) {
+					output.collect(new LongWritable(tweet.getRetweetedId()), one);
 				}
 			} catch(TwitterException e) {
-				//do nothing
+				monitor.parseError(key, value, e, reporter);
 			} catch(Exception e) {
-				//do nothing
+				monitor.recordError(key, value, e, reporter);
 			}
 		}
 	}
@@ -289,7 +328,7 @@ public class TweetCount {
 	 * @author Matsuzawa
 	 *
 	 */
-	public static class TextIntReduce extends MapReduceBase implements Reducer<Text, IntWritable, Text, IntWritable> {
+	public static class TextIntReduce extends MapReduceBase implements Reducer<Text, IntWritable, Text, IntWritable>, SkewMergeable {
 
 		@Override
 		public void reduce(Text key, Iterator<IntWritable> values,
@@ -309,7 +348,7 @@ public class TweetCount {
 	 * @author Matsuzawa
 	 *
 	 */
-	public static class LongIntReduce extends MapReduceBase implements Reducer<LongWritable, IntWritable, LongWritable, IntWritable> {
+	public static class LongIntReduce extends MapReduceBase implements Reducer<LongWritable, IntWritable, LongWritable, IntWritable>, SkewMergeable {
 		
 		@Override
 		public void reduce(LongWritable key, Iterator<IntWritable> values,
@@ -327,7 +366,7 @@ public class TweetCount {
 	 * @author Matsuzawa
 	 *
 	 */
-	public static class IntIntReduce extends MapReduceBase implements Reducer<IntWritable, IntWritable, IntWritable, IntWritable> {
+	public static class IntIntReduce extends MapReduceBase implements Reducer<IntWritable, IntWritable, IntWritable, IntWritable>, SkewMergeable {
 		
 		@Override
 		public void reduce(IntWritable key, Iterator<IntWritable> values,
@@ -344,12 +383,13 @@ public class TweetCount {
 	 * @author YuMatsuzawa
 	 *
 	 */
-	public static class FilterUserTweetCountMap extends MapReduceBase implements Mapper<LongWritable, Text, LongWritable, IntWritable> {
+	public static class FilterUserTweetCountMap extends MonitoredMapReduceBase implements Mapper<LongWritable, Text, LongWritable, IntWritable> {
 		private static int threshold = 10;
 		private LongWritable userid = new LongWritable();
 		private IntWritable count = new IntWritable();
 
 		public void configure(JobConf job) {
+			super.configure(job);
 			String extraArg = job.get("arg3");
 			if (extraArg != null) {
 				try {
@@ -367,7 +407,7 @@ public class TweetCount {
 			String[] pair = value.toString().split("\t");
 			Long useridLong = Long.parseLong(pair[0]);
 			Integer countInt = Integer.parseInt(pair[1]);
-			if (countInt > threshold) {
+			if (monitor.filter(countInt > threshold, reporter)) {
 				userid.set(useridLong);
 				count.set(countInt);
 				output.collect(userid, count);
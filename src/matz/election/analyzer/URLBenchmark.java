@@ -0,0 +1,220 @@
+/**
+ *
+ */
+package matz.election.analyzer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+
+import matz.election.analyzer.util.AsyncURLExpander;
+import matz.election.analyzer.util.RedirectResolver;
+import matz.election.analyzer.util.ReplayHTTPServer;
+
+/**URL展開・タイトル取得の性能を、ReplayHTTPServerで再生したコーパスに対して測るベンチマーク。インターネットへの接続は不要。<br>
+ * 以下の経路それぞれについて、処理したURL数、経過時間、URLs/sec、URL1件あたりの所要時間の分布(p50/p90/p99/max)、結果の内訳を出力する。<br>
+ * resolve-seq: RedirectResolver.resolve()を1件ずつ呼ぶ(URLExpanderと同じ経路)。<br>
+ * resolve-async: AsyncURLExpanderで並行に展開する。所要時間はRedirectResolver.Resultのもの。<br>
+ * URLExpandMap: URLTweet.URLExpandMapをmap()/close()で直接駆動する。所要時間の分布はなく、全体の速度だけを測る。<br>
+ * TopicURLTitleMap: PoliticalTweet.TopicURLTitleMapをmap()で直接駆動する。所要時間はmap()1回ごとのもの。<br>
+ * 再生サーバは1つのホスト(127.0.0.1)なので、HostSchedulerのホストごとの制限は無効にして測る。<br>
+ * 使い方: URLBenchmark <コーパス>|synthetic:<件数>[ <maxInFlight>[ <rounds>]]
+ * @author YuMatsuzawa
+ *
+ */
+public class URLBenchmark {
+	private static final int DEFAULT_SYNTHETIC = 200;
+
+	/**出力を数えるだけのOutputCollector。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	private static class CountingCollector implements OutputCollector<Text, IntWritable> {
+		private int count = 0;
+
+		@Override
+		public void collect(Text key, IntWritable value) throws IOException {
+			count++;
+		}
+	}
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("Usage: URLBenchmark <corpus>|synthetic:<num>[ <maxInFlight>[ <rounds>]]");
+			System.exit(1);
+		}
+		try {
+			List<ReplayHTTPServer.Entry> corpus;
+			if (args[0].startsWith("synthetic")) {
+				int num = (args[0].indexOf(':') >= 0)? Integer.parseInt(args[0].substring(args[0].indexOf(':') + 1)) : DEFAULT_SYNTHETIC;
+				corpus = ReplayHTTPServer.synthetic(num, 0);
+			} else {
+				corpus = ReplayHTTPServer.load(args[0]);
+			}
+			int maxInFlight = AsyncURLExpander.parseMaxInFlight((args.length > 1)? args[1] : null);
+			int rounds = (args.length > 2)? Integer.parseInt(args[2]) : 1;
+
+			ReplayHTTPServer server = new ReplayHTTPServer(corpus);
+			server.start(0);
+			try {
+				List<String> urls = server.entryURLs();
+				System.out.println("# " + urls.size() + " URLs, maxInFlight=" + maxInFlight);
+				System.out.println("# path\turls\tmillis\turls/sec\tp50\tp90\tp99\tmax\toutcomes");
+				JobConf job = benchJob(maxInFlight);
+				for (int round = 0; round < rounds; round++) {
+					resolveSequential(urls);
+					resolveAsync(urls, maxInFlight);
+					urlExpandMap(urls, job);
+					topicURLTitleMap(urls, job);
+				}
+			} finally {
+				server.stop();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**各Mapperに渡すJobConf。再生サーバは1つのホストなので、HostSchedulerのホストごとの制限を外しておく。
+	 * @param maxInFlight
+	 * @return
+	 */
+	private static JobConf benchJob(int maxInFlight) {
+		JobConf job = new JobConf();
+		job.setLong("url.host.interval", 0);
+		job.setInt("url.host.concurrency", Integer.MAX_VALUE);
+		job.setInt("url.host.failures", Integer.MAX_VALUE);
+		job.set("arg3", String.valueOf(maxInFlight));
+		return job;
+	}
+
+	private static void resolveSequential(List<String> urls) {
+		RedirectResolver resolver = new RedirectResolver();
+		long[] millis = new long[urls.size()];
+		TreeMap<String, Integer> outcomes = new TreeMap<String, Integer>();
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < urls.size(); i++) {
+			RedirectResolver.Result result = resolver.resolve(urls.get(i));
+			millis[i] = result.getMillis();
+			count(outcomes, result.getOutcome().toString());
+		}
+		print("resolve-seq", millis, System.currentTimeMillis() - start, outcomes);
+	}
+
+	private static void resolveAsync(List<String> urls, int maxInFlight) throws InterruptedException {
+		AsyncURLExpander<Integer> expander = new AsyncURLExpander<Integer>(maxInFlight, new RedirectResolver());
+		long[] millis = new long[urls.size()];
+		TreeMap<String, Integer> outcomes = new TreeMap<String, Integer>();
+		int done = 0;
+		long start = System.currentTimeMillis();
+		try {
+			AsyncURLExpander.Completion<Integer> completion;
+			for (int i = 0; i < urls.size(); i++) {
+				expander.submit(urls.get(i), i);
+				while ((completion = expander.poll(false, null)) != null) {
+					millis[done++] = completion.getResult().getMillis();
+					count(outcomes, completion.getResult().getOutcome().toString());
+				}
+			}
+			while ((completion = expander.poll(true, null)) != null) {
+				millis[done++] = completion.getResult().getMillis();
+				count(outcomes, completion.getResult().getOutcome().toString());
+			}
+		} finally {
+			expander.shutdown();
+		}
+		print("resolve-async", millis, System.currentTimeMillis() - start, outcomes);
+	}
+
+	private static void urlExpandMap(List<String> urls, JobConf job) throws IOException {
+		URLTweet.URLExpandMap mapper = new URLTweet.URLExpandMap();
+		mapper.configure(job);
+		CountingCollector output = new CountingCollector();
+		Text key = new Text();
+		IntWritable value = new IntWritable(1);
+		long start = System.currentTimeMillis();
+		for (String url : urls) {
+			key.set(url);
+			mapper.map(key, value, output, Reporter.NULL);
+		}
+		mapper.close();
+		TreeMap<String, Integer> outcomes = new TreeMap<String, Integer>();
+		outcomes.put("OUTPUT", output.count);
+		print("URLExpandMap", null, System.currentTimeMillis() - start, outcomes);
+	}
+
+	private static void topicURLTitleMap(List<String> urls, JobConf job) throws IOException {
+		JobConf titleJob = new JobConf(job);
+		titleJob.set("arg3", "1");
+		PoliticalTweet.TopicURLTitleMap mapper = new PoliticalTweet.TopicURLTitleMap();
+		mapper.configure(titleJob);
+		CountingCollector output = new CountingCollector();
+		Text key = new Text();
+		IntWritable value = new IntWritable(1);
+		long[] millis = new long[urls.size()];
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < urls.size(); i++) {
+			key.set(urls.get(i));
+			long begin = System.currentTimeMillis();
+			mapper.map(key, value, output, Reporter.NULL);
+			millis[i] = System.currentTimeMillis() - begin;
+		}
+		mapper.close();
+		TreeMap<String, Integer> outcomes = new TreeMap<String, Integer>();
+		outcomes.put("TITLE", output.count);
+		outcomes.put("NO_TITLE", urls.size() - output.count);
+		print("TopicURLTitleMap", millis, System.currentTimeMillis() - start, outcomes);
+	}
+
+	private static void count(TreeMap<String, Integer> outcomes, String outcome) {
+		Integer count = outcomes.get(outcome);
+		outcomes.put(outcome, (count == null)? 1 : count + 1);
+	}
+
+	/**1つの経路の結果を1行で出力する。
+	 * @param path
+	 * @param millis URLごとの所要時間。nullなら分布は出力しない
+	 * @param elapsed
+	 * @param outcomes
+	 */
+	private static void print(String path, long[] millis, long elapsed, TreeMap<String, Integer> outcomes) {
+		int num = 0;
+		for (int count : outcomes.values()) num += count;
+		if (millis != null) num = millis.length;
+		StringBuilder sb = new StringBuilder();
+		sb.append(path).append("\t").append(num).append("\t").append(elapsed).append("\t");
+		sb.append(String.format("%.1f", (elapsed > 0)? num * 1000.0 / elapsed : 0.0));
+		if (millis != null && millis.length > 0) {
+			long[] sorted = Arrays.copyOf(millis, millis.length);
+			Arrays.sort(sorted);
+			sb.append("\t").append(percentile(sorted, 50)).append("\t").append(percentile(sorted, 90));
+			sb.append("\t").append(percentile(sorted, 99)).append("\t").append(sorted[sorted.length - 1]);
+		} else {
+			sb.append("\t-\t-\t-\t-");
+		}
+		sb.append("\t");
+		String sep = "";
+		for (Entry<String, Integer> outcome : outcomes.entrySet()) {
+			sb.append(sep).append(outcome.getKey()).append("=").append(outcome.getValue());
+			sep = ",";
+		}
+		System.out.println(sb.toString());
+	}
+
+	private static long percentile(long[] sorted, int p) {
+		int index = (int) Math.ceil(sorted.length * p / 100.0) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+}
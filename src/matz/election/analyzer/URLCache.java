@@ -0,0 +1,53 @@
+/**
+ *
+ */
+package matz.election.analyzer;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.*;
+import org.apache.hadoop.mapred.lib.IdentityMapper;
+
+import matz.election.analyzer.util.URLResolution;
+import matz.election.analyzer.util.URLResolutionCache;
+
+/**URL展開結果の永続キャッシュ(URLResolutionCache)を保守するためのクラス。<br>
+ * 各ジョブが<root>/pendingに書き足した展開結果と、既存の<root>/resolvedを併合し、新しいresolved(ソート済・索引付きのMapFile群)を作る。<br>
+ * 出力ディレクトリを<root>/resolvedと置き換え、併合済みのpending内のファイルを消せば、以後のジョブはそれを参照する。
+ * @author YuMatsuzawa
+ *
+ */
+public class URLCache {
+
+	/**SeqFile(resolvedのMapFileのdataファイルと、pendingのファイル)をそのまま読む。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class MergeMap extends IdentityMapper<Text, URLResolution> {};
+
+	/**同じURLの展開結果が複数あれば、取得時刻の最も新しいものを採る。<br>
+	 * 一時的な結果(URLResolutionCache.isTemporary)は捨てる。以前のput()は5xx・429の結果も書き足していたので、それらもここで消える。<br>
+	 * 出力はMapFileOutputFormatで、URLResolutionCacheはReducerの数とHashPartitionerで引く先のファイルを決める。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class MergeReduce extends MapReduceBase implements Reducer<Text, URLResolution, Text, URLResolution> {
+		private URLResolution latest = new URLResolution();
+
+		@Override
+		public void reduce(Text key, Iterator<URLResolution> values,
+				OutputCollector<Text, URLResolution> output, Reporter reporter)
+				throws IOException {
+			boolean found = false;
+			while (values.hasNext()) {
+				URLResolution value = values.next();
+				if (URLResolutionCache.isTemporary(value.getOutcome(), value.getStatus())) continue;
+				if (!found || value.getFetchTime() > latest.getFetchTime()) latest.set(value);
+				found = true;
+			}
+			if (found) output.collect(key, latest);
+		}
+	}
+}
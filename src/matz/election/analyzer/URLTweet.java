@@ -1,22 +1,24 @@
 package matz.election.analyzer;
 
 import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.util.*;
 
+import matz.election.analyzer.util.AsyncURLExpander;
+import matz.election.analyzer.util.HostScheduler;
+import matz.election.analyzer.util.MonitoredMapReduceBase;
+import matz.election.analyzer.util.RedirectResolver;
+import matz.election.analyzer.util.TextCountBuffer;
+import matz.election.analyzer.util.TweetRecord;
+import matz.election.analyzer.util.URLResolutionCache;
 import matz.election.analyzer.util.URLExpander;
 
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.*;
 
-import twitter4j.Status;
 import twitter4j.TwitterException;
-import twitter4j.TwitterObjectFactory;
-import twitter4j.URLEntity;
 
 /**ツイートに含まれるURLを元にして内容の傾向を判定し、分析するためのクラス。
  * @author Matsuzawa
@@ -27,36 +29,47 @@ public class URLTweet extends matz.election.analyzer.TweetCount {
 	
 	/**URLを含むツイートと、各URLごとの出現回数を数え上げるMapper。<br>
 	 * SeqFile<LongWritable, Text>を読み、Val内のJSONをパースし、添付されたURLの有無を確認する。<br>
-	 * 面倒なのでパースエラーが出ていたツイート(Keyが0のもの)は最初からスキップする。
+	 * 面倒なのでパースエラーが出ていたツイート(Keyが0のもの)は最初からスキップする。<br>
+	 * カウントはTextCountBufferでMapper内で合計し、部分和を出力する。
 	 * @author Matsuzawa
 	 *
 	 */
-	public static class URLCountMap extends MapReduceBase implements Mapper<LongWritable, Text, Text, IntWritable> {
-		private static final IntWritable one = new IntWritable(1);
-		private Text urlText = new Text("noURL");
+	public static class URLCountMap extends MonitoredMapReduceBase implements Mapper<LongWritable, Writable, Text, IntWritable> {
+		private static final Text noURL = new Text("noURL"), withURL = new Text("withURL");
+		private Text urlText = new Text();
+		private TweetRecord record = new TweetRecord();
+		private TextCountBuffer counts = new TextCountBuffer();
 
-		
 		@Override
-		public void map(LongWritable key, Text value,
+		public void configure(JobConf job) {
+			super.configure(job);
+			counts.configure(job);
+		}
+
+		@Override
+		public void close() throws IOException {
+			counts.close();
+			super.close();
+		}
+
+		@Override
+		public void map(LongWritable key, Writable value,
 				OutputCollector<Text, IntWritable> output, Reporter reporter)
 				throws IOException {
 			if (key.get() != 0) {
-				Status tweet = null;
+				Text flag = noURL; //以前はurlTextを"noURL"で初期化して使い回していたので、一度URL付きツイートを読むと以後は全て"withURL"になっていた。
 				try {
-					tweet = TwitterObjectFactory.createStatus(value.toString());
-					for (URLEntity url : tweet.getURLEntities()) { //もしURL添付がなければ配列は空である。よってループは1回も回らずに抜ける。すると初期化時の"noURL"キーがそのまま残る。
-						String urlStr = url.getExpandedURL(); //展開済みURLを使う。
-						if (urlStr == null) urlStr = url.getURL(); //展開済みが使えなければURLを使うが、ここには外部の短縮サービスで短縮されたURLが入っていることもある。
+					TweetRecord tweet = TweetRecord.read(value, record);
+					for (String urlStr : tweet.getURLs()) { //もしURL添付がなければ配列は空である。よってループは1回も回らずに抜ける。
+						//展開済みURLがあればそれが、なければ外部の短縮サービスで短縮されたURLが入っていることもある。
 						urlText.set(urlStr);
-						output.collect(urlText, one);
-						
-						urlText.set("withURL"); //ループが回ったということはURLがあったということなので、最後にこのキーを代入しておく。
+						counts.add(urlText, 1, output, reporter);
+						flag = withURL; //ループが回ったということはURLがあったということ。
 					}
 				} catch (TwitterException e) {
-					e.printStackTrace();
-					System.out.println(value.toString());
- 				}
-				output.collect(urlText, one); //URLがなかった場合は"noURL"のまま、あった場合は"withURL"になっている。
+					monitor.parseError(key, value, e, reporter);
+				}
+				counts.add(flag, 1, output, reporter);
 			}
 		}	
 	}
@@ -66,38 +79,44 @@ public class URLTweet extends matz.election.analyzer.TweetCount {
 	 * @author YuMatsuzawa
 	 *
 	 */
-	public static class URLReferMap extends MapReduceBase implements Mapper<LongWritable, Text, Text, LongWritable> {
+	public static class URLReferMap extends MonitoredMapReduceBase implements Mapper<LongWritable, Writable, Text, LongWritable> {
+		private TweetRecord record = new TweetRecord();
 
 		@Override
-		public void map(LongWritable key, Text value,
+		public void map(LongWritable key, Writable value,
 				OutputCollector<Text, LongWritable> output, Reporter reporter)
 				throws IOException {
 			try {
-				Status tweet = TwitterObjectFactory.createStatus(value.toString());
-				for (URLEntity url : tweet.getURLEntities()) {
-					String urlStr = url.getExpandedURL();
-					if (urlStr == null) urlStr = url.getURL();
+				TweetRecord tweet = TweetRecord.read(value, record);
+				for (String urlStr : tweet.getURLs()) {
 					urlStr = URLExpander.trimURL(urlStr);
 					
-					output.collect(new Text(urlStr), new LongWritable(tweet.getUser().getId()));
+					output.collect(new Text(urlStr), new LongWritable(tweet.getUserId()));
 				}
 			} catch (TwitterException e) {
-				e.printStackTrace();
+				monitor.parseError(key, value, e, reporter);
 			} catch (Exception e) {
-				e.printStackTrace();
+				monitor.recordError(key, value, e, reporter);
 			}
 			
 		}
 	}
 	
-	/**Mapperのところで書いたように、このReducerではURLコネクションを開くので、Combinerとして使用しないこと。そのために、MapperOutputClassを指定しておくこと。また、閾値を受け取る。
+	/**Mapperのところで書いたように、このReducerではURLコネクションを開くので、Combinerとして使用しないこと。そのために、MapperOutputClassを指定しておくこと。また、閾値を受け取る。<br>
+	 * URL展開はAsyncURLExpanderで並行に行い、展開の済んだURLから出力する。残りはclose()で待って出力する。同時処理数は4番目の引数で指定できる。<br>
+	 * 5番目の引数でURLResolutionCacheのディレクトリを指定すると、展開済のURLには接続せず、新たな展開結果をキャッシュに書き足す。<br>
+	 * URLとして不正なものは出力しない。リダイレクトループや接続できなかったものは元のURLのまま出力する。
 	 * @author YuMatsuzawa
 	 *
 	 */
-	public static class URLReferReduce extends MapReduceBase implements Reducer<Text, LongWritable, Text, LongWritable>, JobConfigurable {
+	public static class URLReferReduce extends MonitoredMapReduceBase implements Reducer<Text, LongWritable, Text, LongWritable>, JobConfigurable {
 		private int threshold = 10;
+		private AsyncURLExpander<Set<String>> expander = null;
+		private OutputCollector<Text, LongWritable> output = null;
+		private Reporter reporter = null;
 
 		public void configure(JobConf job) {
+			super.configure(job);
 			String extraArg = job.get("arg3");
 			if (extraArg != null) {
 				try {
@@ -106,53 +125,53 @@ public class URLTweet extends matz.election.analyzer.TweetCount {
 					//do nothing. default value will be kept.
 				}
 			}
+			expander = new AsyncURLExpander<Set<String>>(AsyncURLExpander.parseMaxInFlight(job.get("arg4")), new RedirectResolver(HostScheduler.get(job)),
+					URLResolutionCache.openIfGiven(job, job.get("arg5")));
 		}
 		
 		@Override
 		public void reduce(Text key, Iterator<LongWritable> values,
 				OutputCollector<Text, LongWritable> output, Reporter reporter)
 				throws IOException {
+			this.output = output;
+			this.reporter = reporter;
 			Set<String> collected = new HashSet<String>();
 			while(values.hasNext()) collected.add(values.next().toString());
 
 			if (collected.size() >= threshold) {
-				String urlStr = "";
-				String tmpStr = key.toString();
-				int count = 0;
-				@SuppressWarnings("unused")
-				boolean isLoop = false, isMalformed = false, isReachable = true;
-				while (tmpStr!=null) {
-					urlStr = tmpStr;
-					count++;
-					if (count >= 10) {
-						isLoop = true;
-						break;
-					}
-					try {
-						Thread.sleep(50);
-						tmpStr = URLExpander.connectWithoutRedirect(tmpStr,false);
-					} catch (MalformedURLException e) {
-						isMalformed = true;
-						e.printStackTrace();
-						break;
-					} catch (InterruptedException e) {
-						//do nothing.
-					} catch (Exception e) {
-						/* Exceptions other than MalformedURL are including IOException and UnknownhostException,
-						 * which practically means specified URL is somehow unreachable at the moment. 
-						 */
-						e.printStackTrace();
-						isReachable = false;
-					}
+				try {
+					expander.submit(key.toString(), collected);
+					emit(false);
+				} catch (InterruptedException e) {
+					throw new IOException(e.toString());
 				}
-				if (!isMalformed) {
-					if (isLoop) urlStr = key.toString();
-
-					Text urlText = new Text(urlStr);
-					for (String user : collected) {
-						output.collect(urlText, new LongWritable(Long.valueOf(user)));
-					}
+			}
+		}
+		
+		private void emit(boolean wait) throws IOException, InterruptedException {
+			AsyncURLExpander.Completion<Set<String>> done;
+			while ((done = expander.poll(wait, reporter)) != null) {
+				RedirectResolver.Result result = done.getResult();
+				if (result.getOutcome() == RedirectResolver.Outcome.MALFORMED) {
+					monitor.skip(reporter);
+					continue;
 				}
+				Text urlText = new Text(result.isResolved()? result.getTarget() : result.getUrl());
+				for (String user : done.getPayload()) {
+					output.collect(urlText, new LongWritable(Long.valueOf(user)));
+				}
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			try {
+				if (output != null) emit(true);
+			} catch (InterruptedException e) {
+				throw new IOException(e.toString());
+			} finally {
+				expander.shutdown();
+				super.close();
 			}
 		}
 	}
@@ -197,9 +216,11 @@ public class URLTweet extends matz.election.analyzer.TweetCount {
 	}
 	
 	/**URL-ユーザCSVのファイルを読み、全ての重複しない組合せを出力する。即ちJOIN。Mapperは行を読み、カンマで結合し、統一KeyのもとでReducerに投入する。
+	 * @deprecated 単一Reducerに全レコードを集めるため規模に限界がある。URLJoinジョブは現在SimilarityJoinのBlockJoinMap/BlockJoinReduceで実行される。
 	 * @author YuMatsuzawa
 	 *
 	 */
+	@Deprecated
 	public static class URLJoinMap extends MapReduceBase implements Mapper<LongWritable, Text, IntWritable, Text> {
 		private static IntWritable one = new IntWritable(1);
 		
@@ -215,9 +236,11 @@ public class URLTweet extends matz.election.analyzer.TweetCount {
 	}
 	
 	/**重複しない組合せを出力する。出力Textはタブ区切りで読める。
+	 * @deprecated 単一Reducerに全レコードを集めるため規模に限界がある。URLJoinジョブは現在SimilarityJoinのBlockJoinMap/BlockJoinReduceで実行される。
 	 * @author YuMatsuzawa
 	 *
 	 */
+	@Deprecated
 	public static class URLJoinReduce extends MapReduceBase implements Reducer<IntWritable, Text, Text, Text> {
 
 		@Override
@@ -247,7 +270,7 @@ public class URLTweet extends matz.election.analyzer.TweetCount {
 	 * @author Matsuzawa
 	 *
 	 */
-	public static class URLFreqMap extends MapReduceBase implements Mapper<LongWritable, Text, IntWritable, IntWritable> {
+	public static class URLFreqMap extends MonitoredMapReduceBase implements Mapper<LongWritable, Text, IntWritable, IntWritable> {
 		private static final IntWritable one = new IntWritable(1);
 		private IntWritable count = new IntWritable();
 		
@@ -260,10 +283,9 @@ public class URLTweet extends matz.election.analyzer.TweetCount {
 				try {
 					count.set(Integer.parseInt(splitLine[1]));
 				} catch (NumberFormatException e) {
-					e.printStackTrace();
-					System.err.println(splitLine);
+					monitor.parseError(key, value, e, reporter);
 				} catch (Exception e) {
-					e.printStackTrace();
+					monitor.recordError(key, value, e, reporter);
 				}
 			}
 			output.collect(count, one);
@@ -277,7 +299,7 @@ public class URLTweet extends matz.election.analyzer.TweetCount {
 	 * @author Matsuzawa
 	 *
 	 */
-	public static class BuzzExtractMap extends MapReduceBase implements Mapper<LongWritable, Text, IntWritable, Text>, JobConfigurable {
+	public static class BuzzExtractMap extends MonitoredMapReduceBase implements Mapper<LongWritable, Text, IntWritable, Text>, JobConfigurable {
 		//引数など、設定情報をコマンドラインやmain内から得たい場合は、JobCinfigurableをimplementしてconfigureを実装する。
 		private int buzzThreshold = URLTweet.BUZZ_THRESHOLD;
 		
@@ -290,6 +312,7 @@ public class URLTweet extends matz.election.analyzer.TweetCount {
 		private String extraArg = new String();
 		
 		public void configure(JobConf job) {
+			super.configure(job);
 			extraArg = job.get("arg3");
 			if (extraArg != null) {
 				try {
@@ -308,14 +331,13 @@ public class URLTweet extends matz.election.analyzer.TweetCount {
 			if (!excludedKeys.contains(splitLine[0])) {
 				try {
 					int intCount = Integer.parseInt(splitLine[1]);
-					if (intCount > this.buzzThreshold) {
+					if (monitor.filter(intCount > this.buzzThreshold, reporter)) {
 						count.set(intCount);
 						url.set(splitLine[0]);
 						output.collect(count, url);
 					}
 				} catch (NumberFormatException e) {
-					e.printStackTrace();
-					System.err.println(splitLine);
+					monitor.parseError(key, value, e, reporter);
 				}
 			}
 		}
@@ -342,97 +364,117 @@ public class URLTweet extends matz.election.analyzer.TweetCount {
 	/**リストアップされたBuzzURLに実際にコネクションを開き、URLを取得する。結果、転送先が同一のURLだったものについてはマージ(言及数を合計)する。<br>
 	 * 出力としてはURLCountと同じ、Text,Int形式になる。このMapReduceの結果を再びBuzzExtractに飲ませれば、URLが展開されたBuzzリストが得られる。<br>
 	 * ReducerはTextIntReduceでよい。出力はTextFileとする。<br>
-	 * 多分このマップはHTTPコネクションを開きまくるので非常にネットワーク負荷・メモリ負荷が高い。<br>
-	 * 多少なりとも抑制するためにwaitを入れた方がいい？
+	 * URL展開はAsyncURLExpanderで並行に行い(同時処理数は3番目の引数で指定できる)、リダイレクトを最後まで辿る。4番目の引数でURLResolutionCacheのディレクトリを指定できる。<br>
+	 * 最初の接続から失敗したURLは出力しない。リダイレクトループは元のURLのまま、途中で失敗したものはその時点のURLで出力する。
 	 * @author Matsuzawa
 	 *
 	 */
-	public static class BuzzURLExpandMap extends MapReduceBase implements Mapper<LongWritable, Text, Text, IntWritable> {
-//		private IntWritable count = new IntWritable();
+	public static class BuzzURLExpandMap extends MapReduceBase implements Mapper<LongWritable, Text, Text, IntWritable>, JobConfigurable {
 		private Text url = new Text();
+		private AsyncURLExpander<Integer> expander = null;
+		private OutputCollector<Text, IntWritable> output = null;
+		private Reporter reporter = null;
+		
+		public void configure(JobConf job) {
+			expander = new AsyncURLExpander<Integer>(AsyncURLExpander.parseMaxInFlight(job.get("arg3")), new RedirectResolver(HostScheduler.get(job)),
+					URLResolutionCache.openIfGiven(job, job.get("arg4")));
+		}
 		
 		@Override
 		public void map(LongWritable key, Text value,
 				OutputCollector<Text, IntWritable> output, Reporter reporter)
 				throws IOException {
+			this.output = output;
+			this.reporter = reporter;
 			String[] urls = value.toString().split("\\s");
 			int count = Integer.parseInt(urls[0]);
-			for (String shortOrLongUrl : urls) {
-				String longUrlOrNull = URLExpander.expand(shortOrLongUrl);		// let expand() return null if given URL cannot be opened (Exception'ed)
-				try {
-					Thread.sleep(50); //waitを入れてみる
-				} catch (InterruptedException e) {
-					//do nothing
-				}
-				if (longUrlOrNull != null) {
-//					count.set();
-					url.set(longUrlOrNull);
-//					url.set("hoge");
-					output.collect(url, new IntWritable(count));
+			try {
+				for (int i = 1; i < urls.length; i++) {
+					expander.submit(urls[i], count);
+					emit(false);
 				}
+			} catch (InterruptedException e) {
+				throw new IOException(e.toString());
+			}
+		}
+		
+		private void emit(boolean wait) throws IOException, InterruptedException {
+			AsyncURLExpander.Completion<Integer> done;
+			while ((done = expander.poll(wait, reporter)) != null) {
+				RedirectResolver.Result result = done.getResult();
+				RedirectResolver.Outcome outcome = result.getOutcome();
+				//UNREACHABLE/TIMEOUTでも、途中まで辿れたものはその時点のURLで出力する
+				if (outcome == RedirectResolver.Outcome.MALFORMED
+						|| ((outcome == RedirectResolver.Outcome.UNREACHABLE || outcome == RedirectResolver.Outcome.TIMEOUT) && result.getHops() == 0)) continue;
+				url.set(result.getTarget());
+				output.collect(url, new IntWritable(done.getPayload()));
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			try {
+				if (output != null) emit(true);
+			} catch (InterruptedException e) {
+				throw new IOException(e.toString());
+			} finally {
+				expander.shutdown();
 			}
-//			output.collect(new Text("soto"),new IntWritable(count));
 		}
 	}
 	
 	/**Seq形式のText-Intファイルで、KeyにURLが入っているものに対し、そのURLの実際のリンク先（展開URL）を取得するためのMap。<br>
 	 * このMapでは、元KeyのURLを展開したものを新Keyとしたペア（Valueは元の値のまま）を生成し、それをReducerに投入することで短縮URLによって別個のものとされていた同一のリンクの頻度を合計する。<br>
 	 * 最終的なアウトプットはインプットと同形式のText-Intファイルとなる。Seq形式で出力するかText形式で出力するかはその後の用途によるので、AnalyzerMainのテーブルで指定する。<br>
-	 * URL展開のための再帰的なリダイレクト参照のスニペットはURLExpanderのmain関数内にある。リダイレクトループを抜けるための処理を設けること。<br>
-	 * また、URL展開のAPIが失効しているような場合には、初期ホップの時点でHTTPアクセスに対する返り値がない場合がある。このようなURLを除去するか、そのままにするかも用途による。
+	 * URL展開はAsyncURLExpander(RedirectResolver)で並行に行う。ホップ数の上限・ループ検出・URLごとの制限時間はRedirectResolverが持つ。同時処理数は3番目の引数で、URLResolutionCacheのディレクトリは4番目の引数で指定できる。<br>
+	 * また、URL展開のAPIが失効しているような場合には、初期ホップの時点でHTTPアクセスに対する返り値がない場合がある。このようなURLは、リダイレクトループと同様に元のURLのまま残す。
 	 * @author YuMatsuzawa
 	 *
 	 */
-	public static class URLExpandMap extends MapReduceBase implements Mapper<Text, IntWritable, Text, IntWritable> {
-		private static int MAX_HOP = 10; 
+	public static class URLExpandMap extends MapReduceBase implements Mapper<Text, IntWritable, Text, IntWritable>, JobConfigurable {
+		private AsyncURLExpander<Integer> expander = null;
+		private OutputCollector<Text, IntWritable> output = null;
+		private Reporter reporter = null;
+		
+		public void configure(JobConf job) {
+			expander = new AsyncURLExpander<Integer>(AsyncURLExpander.parseMaxInFlight(job.get("arg3")), new RedirectResolver(HostScheduler.get(job)),
+					URLResolutionCache.openIfGiven(job, job.get("arg4")));
+		}
 		
 		@Override
 		public void map(Text key, IntWritable value,
 				OutputCollector<Text, IntWritable> output, Reporter reporter)
 				throws IOException {
-			String tmp = key.toString(), destURL = null;
-			int hopNum = 0;
-			while(tmp!=null && hopNum < MAX_HOP) { //loop until find some reachable destination. but be carful of redirection loop.
-				hopNum++;
-				destURL = tmp;
-				tmp = connectWithoutRedirect(tmp);
+			this.output = output;
+			this.reporter = reporter;
+			try {
+				expander.submit(key.toString(), value.get());
+				emit(false);
+			} catch (InterruptedException e) {
+				throw new IOException(e.toString());
 			}
-			
-			//At this point, destURL always have the same String as initial tmp, or acquired URL String.
-			//Take note: The acquired ones might indicate error page or something meaningless.
-			if (hopNum < MAX_HOP) {
-				//if destURL was the same as the initial key or reached some URL within MAX_HOP window, replace the key with it.
-				output.collect(new Text(destURL), value);
-			} else {
-				//if the URL deemed as causation of redirection loop, simply keep the initial URL.
-				output.collect(key, value);
+		}
+		
+		private void emit(boolean wait) throws IOException, InterruptedException {
+			AsyncURLExpander.Completion<Integer> done;
+			while ((done = expander.poll(wait, reporter)) != null) {
+				RedirectResolver.Result result = done.getResult();
+				//Take note: The acquired ones might indicate error page or something meaningless.
+				//if the URL could not be resolved (redirection loop, unreachable), simply keep the initial URL.
+				String destURL = result.isResolved()? result.getTarget() : result.getUrl();
+				output.collect(new Text(destURL), new IntWritable(done.getPayload()));
 			}
 		}
-		private static String connectWithoutRedirect(String args) {
-			URL inputUrl = null;
-			HttpURLConnection conn = null;
-			String ret = null;
+		
+		@Override
+		public void close() throws IOException {
 			try {
-				inputUrl = new URL(args);
-				conn = (HttpURLConnection) inputUrl.openConnection();
-				conn.setInstanceFollowRedirects(false);
-				conn.setConnectTimeout(10*1000);
-				
-//				for (Entry<String, List<String>> headers : conn.getHeaderFields().entrySet()) {
-//					System.out.print(headers.getKey() + " :");
-//					for (String value : headers.getValue()) {
-//						System.out.println("\t"+value);
-//					}
-//				}
-//				System.out.println();
-				
-				ret = (conn.getHeaderField("Location") != null)? conn.getHeaderField("Location") : null;
-				
-				return ret;
-			} catch (Exception e) {
-				e.printStackTrace();
+				if (output != null) emit(true);
+			} catch (InterruptedException e) {
+				throw new IOException(e.toString());
+			} finally {
+				expander.shutdown();
 			}
-			return args;
 		}
 	}
 	
@@ -0,0 +1,67 @@
+/**
+ * 
+ */
+package matz.election.analyzer;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.*;
+
+import matz.election.analyzer.util.MonitoredMapReduceBase;
+
+/**DistributedCacheで配布するUX/UF/UOリスト(ユーザID\t値のTSV)を、MappedUserListで読める固定長バイナリ形式に変換するためのクラス。<br>
+ * 変換済みのファイル(出力ディレクトリ内のpart-00000)をTSVの代わりにCacheとして渡せば、各Mapperはconfigure()でTSVをパースせず、ファイルをメモリマップして二分探索で引く。<br>
+ * Cacheのファイルがどちらの形式かは先頭のマジックナンバーで判別するので、TSVをそのまま渡すこともできる。
+ * @author YuMatsuzawa
+ *
+ */
+public class UserList {
+
+	/**TSVの各行をユーザIDと値に分けて出力するMap。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class ToBinaryMap extends MonitoredMapReduceBase implements Mapper<LongWritable, Text, LongWritable, IntWritable> {
+		private LongWritable userid = new LongWritable();
+		private IntWritable freq = new IntWritable();
+
+		@Override
+		public void map(LongWritable key, Text value,
+				OutputCollector<LongWritable, IntWritable> output, Reporter reporter)
+				throws IOException {
+			String line = value.toString();
+			int tab = line.indexOf('\t');
+			if (tab < 0) return;
+			int end = line.indexOf('\t', tab + 1);
+			if (end < 0) end = line.length();
+			try {
+				userid.set(Long.parseLong(line.substring(0, tab)));
+				freq.set(Integer.parseInt(line.substring(tab + 1, end)));
+				output.collect(userid, freq);
+			} catch (NumberFormatException e) {
+				monitor.parseError(key, value, e, reporter);
+			}
+		}
+	}
+
+	/**単一Reducerにすることで、ユーザIDの昇順に全レコードが並ぶ。<br>
+	 * 同じユーザIDが複数あればそのうち1つの値を採るが、Reducerに値が届く順序は決まっていないので、どれになるかは不定(TSVをHashMapに読んでいた時は最後の行だった)。入力のリストにユーザIDの重複がないことを前提とする。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class ToBinaryReduce extends MapReduceBase implements Reducer<LongWritable, IntWritable, LongWritable, IntWritable> {
+		private IntWritable freq = new IntWritable();
+
+		@Override
+		public void reduce(LongWritable key, Iterator<IntWritable> values,
+				OutputCollector<LongWritable, IntWritable> output, Reporter reporter)
+				throws IOException {
+			while (values.hasNext()) freq.set(values.next().get());
+			output.collect(key, freq);
+		}
+	}
+}
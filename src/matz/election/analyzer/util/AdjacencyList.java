@@ -0,0 +1,106 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**フォローネットワーク上の1ユーザ分の情報(入次数＝#followedと、フレンド(Following)のユーザID列)を保持するWritable。<br>
+ * ネットワークCSVのうち、後段の解析で使う部分だけを持つ。フォロワーのID列は持たない。<br>
+ * フレンドIDは昇順に並べて保持し、シリアライズ時は差分をVLongで書く(重複はそのまま残す)。<br>
+ * #followed/#followingが未取得(-1)の場合はそのまま-1を保持し、#followingが-1ならフレンドIDは空である。
+ * @author YuMatsuzawa
+ *
+ */
+public class AdjacencyList implements Writable {
+	private static final long[] NO_USERS = new long[0];
+
+	private int numFollowed = 0;
+	private int numFollowing = 0;
+	private long[] following = NO_USERS;
+
+	public AdjacencyList() {}
+
+	/**内容を設定する。ids[0]からn個をコピーして昇順に並べる。
+	 * @param numFollowed
+	 * @param numFollowing -1なら未取得(idsは無視される)
+	 * @param ids
+	 * @param n
+	 */
+	public void set(int numFollowed, int numFollowing, long[] ids, int n) {
+		this.numFollowed = numFollowed;
+		this.numFollowing = (numFollowing < 0)? -1 : n;
+		if (this.numFollowing > 0) {
+			if (following.length < n) following = new long[n];
+			System.arraycopy(ids, 0, following, 0, n);
+			Arrays.sort(following, 0, n);
+		}
+	}
+
+	/**入次数。未取得なら-1。
+	 * @return
+	 */
+	public int getNumFollowed() {
+		return numFollowed;
+	}
+
+	/**フレンド数。未取得なら-1。
+	 * @return
+	 */
+	public int getNumFollowing() {
+		return numFollowing;
+	}
+
+	/**昇順のフレンドID配列。有効な要素はsize()個までで、それ以降は不定。
+	 * @return
+	 */
+	public long[] getFollowing() {
+		return following;
+	}
+
+	/**保持しているフレンドIDの数(#followingが未取得なら0)。
+	 * @return
+	 */
+	public int size() {
+		return Math.max(0, numFollowing);
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		WritableUtils.writeVInt(out, numFollowed);
+		WritableUtils.writeVInt(out, numFollowing);
+		long prev = 0;
+		for (int i = 0; i < numFollowing; i++) {
+			WritableUtils.writeVLong(out, following[i] - prev);
+			prev = following[i];
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		numFollowed = WritableUtils.readVInt(in);
+		numFollowing = WritableUtils.readVInt(in);
+		if (following.length < numFollowing) following = new long[numFollowing];
+		long prev = 0;
+		for (int i = 0; i < numFollowing; i++) {
+			prev += WritableUtils.readVLong(in);
+			following[i] = prev;
+		}
+	}
+
+	/**ネットワークCSVと同じ並び(#followed,#following,フレンドID群)で出力する。フォロワーのID群は含まない。
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(numFollowed).append(',').append(numFollowing);
+		for (int i = 0; i < numFollowing; i++) sb.append(',').append(following[i]);
+		return sb.toString();
+	}
+}
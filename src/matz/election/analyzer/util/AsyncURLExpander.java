@@ -0,0 +1,184 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.mapred.Reporter;
+
+/**RedirectResolverによるURL展開を、スレッドプールで並行に行うクラス。<br>
+ * 以前はMapper/Reducerが1件ずつ接続を開き、ホップごとにThread.sleep(50)を挟んでいたので、タスクの時間のほとんどが応答待ちだった。<br>
+ * submit()でURLと付随データ(出力に使う値など)を投入し、poll()で展開の済んだものから受け取る。<br>
+ * 同時に処理中のURLはmaxInFlight件までで、それを超えるsubmit()は空きが出るまで待つ。<br>
+ * Mapper/Reducerから使う場合は、map()/reduce()の中でsubmit()の後にpoll(false, reporter)で済んだ分を出力し、<br>
+ * close()でpoll(true, reporter)により残りを全て出力する(OutputCollectorはフィールドに保持しておく)。<br>
+ * RedirectResolverにHostSchedulerを与えた場合は、poll()に渡されたreporterでその判断をカウンタに記録する。<br>
+ * URLResolutionCacheを与えた場合は、submit()の時点でキャッシュを引き、あれば接続せずにそのまま完了扱いにする。新たに展開した結果はキャッシュに書き足す。<br>
+ * submit()とpoll()は1つのスレッド(タスクのスレッド)から呼ぶこと。
+ * @author YuMatsuzawa
+ *
+ * @param <T> 付随データの型
+ */
+public class AsyncURLExpander<T> {
+	public static final int DEFAULT_MAX_IN_FLIGHT = 16;
+	private static final long POLL_INTERVAL = 1000;
+
+	/**展開の済んだURLと付随データの組。
+	 * @author YuMatsuzawa
+	 *
+	 * @param <T>
+	 */
+	public static class Completion<T> {
+		private final RedirectResolver.Result result;
+		private final T payload;
+
+		private Completion(RedirectResolver.Result result, T payload) {
+			this.result = result;
+			this.payload = payload;
+		}
+
+		public RedirectResolver.Result getResult() {
+			return result;
+		}
+
+		public T getPayload() {
+			return payload;
+		}
+	}
+
+	private final RedirectResolver resolver;
+	private final URLResolutionCache cache;
+	private final ExecutorService executor;
+	private final Semaphore inFlight;
+	private final LinkedBlockingQueue<Completion<T>> completions = new LinkedBlockingQueue<Completion<T>>();
+	private int pending = 0;
+
+	public AsyncURLExpander() {
+		this(DEFAULT_MAX_IN_FLIGHT, new RedirectResolver());
+	}
+
+	/**
+	 * @param maxInFlight 同時に処理するURLの上限(スレッド数)
+	 * @param resolver
+	 */
+	public AsyncURLExpander(int maxInFlight, RedirectResolver resolver) {
+		this(maxInFlight, resolver, null);
+	}
+
+	/**
+	 * @param maxInFlight 同時に処理するURLの上限(スレッド数)
+	 * @param resolver
+	 * @param cache 展開結果のキャッシュ(null可)。shutdown()で閉じられる
+	 */
+	public AsyncURLExpander(int maxInFlight, RedirectResolver resolver, URLResolutionCache cache) {
+		if (maxInFlight < 1) maxInFlight = 1;
+		this.resolver = resolver;
+		this.cache = cache;
+		this.inFlight = new Semaphore(maxInFlight);
+		this.executor = Executors.newFixedThreadPool(maxInFlight, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "URLExpander");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		// JDKのKeep-Aliveキャッシュが保持するホストあたりの接続数(既定5)。最初のHTTP接続より前に設定されていれば有効になる。
+		if (System.getProperty("http.maxConnections") == null) {
+			System.setProperty("http.maxConnections", String.valueOf(Math.max(5, maxInFlight)));
+		}
+	}
+
+	/**ジョブ引数で同時処理数が指定されていればそれを、なければ既定値を返す。
+	 * @param arg job.get("argN")の値(null可)
+	 * @return
+	 */
+	public static int parseMaxInFlight(String arg) {
+		if (arg != null) {
+			try {
+				return Integer.parseInt(arg);
+			} catch (NumberFormatException e) {
+				//do nothing. default value will be used.
+			}
+		}
+		return DEFAULT_MAX_IN_FLIGHT;
+	}
+
+	/**URLの展開を投入する。処理中のURLがmaxInFlight件あれば、空きが出るまで待つ。
+	 * @param url
+	 * @param payload 結果と一緒に返される付随データ
+	 * @throws InterruptedException
+	 */
+	public void submit(final String url, final T payload) throws InterruptedException {
+		if (cache != null) {
+			RedirectResolver.Result cached = cache.get(url);
+			if (cached != null) {
+				pending++;
+				completions.add(new Completion<T>(cached, payload));
+				return;
+			}
+		}
+		inFlight.acquire();
+		pending++;
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						RedirectResolver.Result result = resolver.resolve(url);
+						if (cache != null) cache.put(result);
+						completions.add(new Completion<T>(result, payload));
+					} finally {
+						inFlight.release();
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			pending--;
+			inFlight.release();
+			throw e;
+		}
+	}
+
+	/**展開の済んだものを1件取り出す。
+	 * @param wait trueなら、未完了のものがある限り完了を待つ。待つ間はreporterで進捗を報告する
+	 * @param reporter null可
+	 * @return 取り出せるものがなければnull
+	 * @throws InterruptedException
+	 */
+	public Completion<T> poll(boolean wait, Reporter reporter) throws InterruptedException {
+		Completion<T> completion = completions.poll();
+		while (completion == null && wait && pending > 0) {
+			completion = completions.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+			if (reporter != null) reporter.progress();
+		}
+		if (completion != null) pending--;
+		if (reporter != null && resolver.getScheduler() != null) resolver.getScheduler().report(reporter);
+		return completion;
+	}
+
+	/**未完了のURLの数。
+	 * @return
+	 */
+	public int pending() {
+		return pending;
+	}
+
+	/**スレッドプールを止め、キャッシュを閉じる。未完了のURLは捨てられる。
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+		if (cache != null) {
+			try {
+				executor.awaitTermination(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+				cache.close();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
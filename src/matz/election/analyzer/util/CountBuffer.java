@@ -0,0 +1,123 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+
+/**カウントを数えるMapperの中で、Keyごとのカウントを合計してから出力するためのバッファ(in-mapper combining)。<br>
+ * (Key, 1)を出現ごとに出力すると、Map出力バッファが小さなレコードで埋まり、Combinerが効くのはソートしてspillする時になる。<br>
+ * このバッファはカウントをメモリ上の表で合計しておき、表が上限(count.buffer.mb、既定16MB)に達したら(Key, 部分和)を全て出力して空にする。close()でも残りを出力する。<br>
+ * 出力は部分和なので、Reducer(Combiner)は従来通りカウントを合計するもの(TextIntReduce/LongIntReduce等)でよい。<br>
+ * count.buffer.mbを0にすると合計せずに1件ずつそのまま出力する。<br>
+ * Mapperのconfigure()でconfigure()を、map()でadd()を、close()でclose()を呼ぶ。OutputCollectorはadd()で受け取ったものを覚えておき、close()での出力に使う。
+ * @author YuMatsuzawa
+ *
+ * @param <K> 出力Keyの型
+ */
+public abstract class CountBuffer<K extends Writable> {
+	public static final String MEMORY_KEY = "count.buffer.mb";
+	public static final int DEFAULT_MEMORY_MB = 16;
+	protected static final double LOAD_FACTOR = 0.6;
+	protected static final int INITIAL_CAPACITY = 1024;
+
+	/**バッファの動作を表すカウンタ。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static enum Counter {
+		/** add()されたカウントの件数 */
+		ADDED,
+		/** 部分和として出力したレコード数 */
+		EMITTED,
+		/** 上限に達して出力した回数(close()での出力は含まない) */
+		FLUSHES
+	}
+
+	/** 表に使ってよいバイト数。0なら合計しない。 */
+	protected long memoryLimit = DEFAULT_MEMORY_MB * 1024L * 1024L;
+	private OutputCollector<K, IntWritable> output = null;
+	private Reporter reporter = Reporter.NULL;
+	private IntWritable count = new IntWritable();
+	private long added = 0, emitted = 0;
+
+	/**ジョブ設定から表の上限を読む。Mapperのconfigure()で呼ぶ。
+	 * @param job
+	 */
+	public void configure(JobConf job) {
+		memoryLimit = Math.max(0, job.getInt(MEMORY_KEY, DEFAULT_MEMORY_MB)) * 1024L * 1024L;
+		reset();
+	}
+
+	/**add()の前に呼ぶ。OutputCollectorとReporterを覚えておき、合計しない設定ならtrueを返す。
+	 * @param output
+	 * @param reporter
+	 * @return 合計せずにそのまま出力すべきならtrue
+	 */
+	protected boolean bind(OutputCollector<K, IntWritable> output, Reporter reporter) {
+		this.output = output;
+		this.reporter = reporter;
+		added++;
+		return memoryLimit == 0;
+	}
+
+	/**Keyとカウントを1件出力する。
+	 * @param key
+	 * @param n
+	 * @throws IOException
+	 */
+	protected void collect(K key, int n) throws IOException {
+		count.set(n);
+		output.collect(key, count);
+		emitted++;
+	}
+
+	/**上限に達したので、表の中身を全て出力して空にする。
+	 * @throws IOException
+	 */
+	protected void flush() throws IOException {
+		reporter.incrCounter(Counter.FLUSHES, 1);
+		drain();
+	}
+
+	private void drain() throws IOException {
+		if (output != null) emitAll();
+		reporter.incrCounter(Counter.ADDED, added);
+		reporter.incrCounter(Counter.EMITTED, emitted);
+		added = emitted = 0;
+		reset();
+	}
+
+	/**表の中身を全てcollect()で出力する。
+	 * @throws IOException
+	 */
+	protected abstract void emitAll() throws IOException;
+
+	/**表を空にする。
+	 */
+	protected abstract void reset();
+
+	/**表の中身を全て出力する。Mapperのclose()で呼ぶ。
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		drain();
+	}
+
+	/**capacityスロットの表が1スロットあたりslotBytesバイト使うとして、budgetバイトに収まる最大の2の冪のスロット数を返す。
+	 * @param budget
+	 * @param slotBytes
+	 * @return
+	 */
+	protected static int maxCapacity(long budget, double slotBytes) {
+		int capacity = 16;
+		while (capacity < (1 << 29) && (capacity << 1) * slotBytes <= budget) capacity <<= 1;
+		return capacity;
+	}
+}
@@ -0,0 +1,206 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+import org.apache.hadoop.io.Text;
+
+/**Textのバイト列上で、カンマ区切りの数値リスト(フォローネットワークのCSV等)を先頭から順に読むカーソル。<br>
+ * value.toString().split(",")は、数十万件のIDを持つCSVに対してStringの配列と要素ごとのStringを作り、これがタイムアウトやOOMの原因になっていた。<br>
+ * このカーソルはUTF-8のバイト列を直接走査して要素をlong/intとして返すので、要素ごとのオブジェクト生成がない。<br>
+ * また、連続する要素の範囲をバイト列の区間として得られるので、CSVの一部を中間のStringなしに出力のTextへ切り出せる(slice参照)。<br>
+ * インスタンスはreset()で使い回す。スレッドセーフではない。
+ * @author YuMatsuzawa
+ *
+ */
+public class CsvCursor {
+	private static final byte COMMA = ',';
+
+	private byte[] bytes;
+	private int pos;
+	private int end;
+	private boolean done;
+
+	public CsvCursor() {
+		reset(new byte[0], 0, 0);
+	}
+
+	/**Textの内容全体を走査対象にする。
+	 * @param text
+	 * @return this
+	 */
+	public CsvCursor reset(Text text) {
+		return reset(text.getBytes(), 0, text.getLength());
+	}
+
+	/**バイト列のstartからend(含まない)までを走査対象にする。
+	 * @param bytes
+	 * @param start
+	 * @param end
+	 * @return this
+	 */
+	public CsvCursor reset(byte[] bytes, int start, int end) {
+		this.bytes = bytes;
+		this.pos = start;
+		this.end = end;
+		this.done = false;
+		return this;
+	}
+
+	/**まだ読んでいない要素があるか。空文字列は要素1つ(空)とみなす。
+	 * @return
+	 */
+	public boolean hasNext() {
+		return !done;
+	}
+
+	/**現在位置(次の要素の先頭)。
+	 * @return
+	 */
+	public int position() {
+		return pos;
+	}
+
+	/**次の要素の終わり(カンマまたは終端)の位置を返す。
+	 * @return
+	 */
+	private int fieldEnd() {
+		int i = pos;
+		while (i < end && bytes[i] != COMMA) i++;
+		return i;
+	}
+
+	/**次の要素へ進む。fieldEndは現在の要素の終わり。
+	 * @param fieldEnd
+	 */
+	private void advance(int fieldEnd) {
+		if (fieldEnd >= end) {
+			pos = end;
+			done = true;
+		} else {
+			pos = fieldEnd + 1;
+		}
+	}
+
+	/**次の要素をlongとして読む。数値でない場合もカーソルは次の要素に進んでからNumberFormatExceptionを投げる。
+	 * @return
+	 * @throws NumberFormatException
+	 */
+	public long nextLong() {
+		if (done) throw new NumberFormatException("No more fields");
+		int start = pos, stop = fieldEnd();
+		advance(stop);
+		return parseLong(bytes, start, stop);
+	}
+
+	/**次の要素をintとして読む。
+	 * @return
+	 * @throws NumberFormatException
+	 */
+	public int nextInt() {
+		long value = nextLong();
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) throw new NumberFormatException("Out of int range: " + value);
+		return (int) value;
+	}
+
+	/**次の要素が文字列strと等しいか調べる。カーソルは進めない。
+	 * @param str ASCII文字列
+	 * @return
+	 */
+	public boolean peekEquals(String str) {
+		if (done) return false;
+		int stop = fieldEnd();
+		if (stop - pos != str.length()) return false;
+		for (int i = 0; i < str.length(); i++) {
+			if (bytes[pos + i] != str.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	/**要素をn個読み飛ばす。
+	 * @param n
+	 * @return 実際に読み飛ばせた数
+	 */
+	public int skip(int n) {
+		int skipped = 0;
+		while (skipped < n && !done) {
+			advance(fieldEnd());
+			skipped++;
+		}
+		return skipped;
+	}
+
+	/**次のn個の要素を、区切りのカンマも含めてそのままoutにコピーする(outの内容は置き換えられる)。<br>
+	 * 要素の文字列化・再連結を行わないので、出力はsplitしてカンマで連結し直したものと同じになる。
+	 * @param n
+	 * @param out
+	 * @return 実際にコピーした要素数。nに満たない場合は要素が足りなかったことを示す
+	 */
+	public int slice(int n, Text out) {
+		int start = pos, stop = pos, copied = 0;
+		while (copied < n && !done) {
+			stop = fieldEnd();
+			advance(stop);
+			copied++;
+		}
+		out.set(bytes, start, stop - start);
+		return copied;
+	}
+
+	/**残りの要素数を、String.split(",")の配列長と同じ規則で数える(末尾の空要素は数えないが、全体が空文字列なら1)。カーソルは進めない。
+	 * @return
+	 */
+	public int countRemaining() {
+		if (done) return 0;
+		if (pos == end) return 1;
+		int count = 0, nonEmpty = 0, fieldStart = pos;
+		for (int i = pos; i <= end; i++) {
+			if (i == end || bytes[i] == COMMA) {
+				count++;
+				if (i > fieldStart) nonEmpty = count;
+				fieldStart = i + 1;
+			}
+		}
+		return nonEmpty;
+	}
+
+	/**バイト列中で最初にcが現れる位置を返す。なければ-1。
+	 * @param text
+	 * @param c
+	 * @return
+	 */
+	public static int indexOf(Text text, char c) {
+		byte[] bytes = text.getBytes();
+		for (int i = 0; i < text.getLength(); i++) {
+			if (bytes[i] == c) return i;
+		}
+		return -1;
+	}
+
+	/**ASCIIの10進数を読む。Long.parseLongと同じく、先頭の+/-を許す。
+	 * @param bytes
+	 * @param start
+	 * @param stop
+	 * @return
+	 * @throws NumberFormatException
+	 */
+	public static long parseLong(byte[] bytes, int start, int stop) {
+		int i = start;
+		boolean negative = false;
+		if (i < stop && (bytes[i] == '-' || bytes[i] == '+')) {
+			negative = bytes[i] == '-';
+			i++;
+		}
+		if (i >= stop || stop - i > 18) {
+			// 空要素や19桁以上はLong.parseLongに任せる(例外やオーバーフローの判定を含めて同じ挙動になる)。
+			return Long.parseLong(new String(bytes, start, stop - start));
+		}
+		long value = 0;
+		for (; i < stop; i++) {
+			int digit = bytes[i] - '0';
+			if (digit < 0 || digit > 9) throw new NumberFormatException("For input string: \"" + new String(bytes, start, stop - start) + "\"");
+			value = value * 10 + digit;
+		}
+		return negative? -value : value;
+	}
+}
@@ -0,0 +1,159 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**次数→人数の度数分布(疎なヒストグラム)を表すWritable。VDegree/TotalVDegree等で、Mapperがユーザごとに次数を出力する代わりに、Mapタスク内の度数分布を出力するのに使う。<br>
+ * メモリ上ではint→longのオープンアドレス法(線形探査)のハッシュ表で持ち、add()はオブジェクトを生成しない。次数は0以上で、-1を空きスロットの印に使う。<br>
+ * シリアライズ形式は次数の種類数のVInt、続いて次数の昇順に、前の次数との差分のVIntと人数のVLong。<br>
+ * 度数分布同士はadd(DegreeHistogram)で足し合わせられるので、Combiner/Reducerでいくつに分けて合計しても結果は同じになる。
+ * @author YuMatsuzawa
+ *
+ */
+public class DegreeHistogram implements Writable {
+	private static final double LOAD_FACTOR = 0.6;
+	private static final int EMPTY = -1;
+
+	private int[] degrees;
+	private long[] counts;
+	private int mask;
+	private int size = 0;
+
+	public DegreeHistogram() {
+		allocate(64);
+	}
+
+	private void allocate(int capacity) {
+		degrees = new int[capacity];
+		counts = new long[capacity];
+		Arrays.fill(degrees, EMPTY);
+		mask = capacity - 1;
+	}
+
+	private int slotOf(int degree) {
+		int slot = (degree * 0x9E3779B9) & mask;
+		while (degrees[slot] != EMPTY && degrees[slot] != degree) slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	/**次数degreeの人数にnを足す。
+	 * @param degree
+	 * @param n
+	 * @throws IllegalArgumentException 次数が負の場合
+	 */
+	public void add(int degree, long n) {
+		if (degree < 0) throw new IllegalArgumentException("negative degree: " + degree);
+		int slot = slotOf(degree);
+		if (degrees[slot] == EMPTY) {
+			if ((size + 1) > degrees.length * LOAD_FACTOR) {
+				rehash(degrees.length << 1);
+				slot = slotOf(degree);
+			}
+			degrees[slot] = degree;
+			size++;
+		}
+		counts[slot] += n;
+	}
+
+	/**他の度数分布を足し合わせる。
+	 * @param other
+	 */
+	public void add(DegreeHistogram other) {
+		for (int i = 0; i < other.degrees.length; i++) {
+			if (other.degrees[i] != EMPTY) add(other.degrees[i], other.counts[i]);
+		}
+	}
+
+	private void rehash(int capacity) {
+		int[] oldDegrees = degrees;
+		long[] oldCounts = counts;
+		allocate(capacity);
+		for (int i = 0; i < oldDegrees.length; i++) {
+			if (oldDegrees[i] != EMPTY) {
+				int slot = slotOf(oldDegrees[i]);
+				degrees[slot] = oldDegrees[i];
+				counts[slot] = oldCounts[i];
+			}
+		}
+	}
+
+	/**次数degreeの人数を返す。
+	 * @param degree
+	 * @return
+	 */
+	public long get(int degree) {
+		if (degree < 0) return 0;
+		int slot = slotOf(degree);
+		return (degrees[slot] != EMPTY)? counts[slot] : 0;
+	}
+
+	/**次数の種類数を返す。
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**現れた次数を昇順に並べて返す。
+	 * @return
+	 */
+	public int[] sortedDegrees() {
+		int[] sorted = new int[size];
+		int n = 0;
+		for (int degree : degrees) {
+			if (degree != EMPTY) sorted[n++] = degree;
+		}
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	public void clear() {
+		if (size > 0) {
+			Arrays.fill(degrees, EMPTY);
+			Arrays.fill(counts, 0);
+		}
+		size = 0;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		WritableUtils.writeVInt(out, size);
+		int prev = 0;
+		for (int degree : sortedDegrees()) {
+			WritableUtils.writeVInt(out, degree - prev);
+			WritableUtils.writeVLong(out, get(degree));
+			prev = degree;
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		clear();
+		int num = WritableUtils.readVInt(in);
+		int degree = 0;
+		for (int i = 0; i < num; i++) {
+			degree += WritableUtils.readVInt(in);
+			add(degree, WritableUtils.readVLong(in));
+		}
+	}
+
+	/**"次数:人数"をカンマ区切りで、次数の昇順に並べる。
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int degree : sortedDegrees()) {
+			if (sb.length() > 0) sb.append(',');
+			sb.append(degree).append(':').append(get(degree));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,66 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+
+/**ToGraphジョブで作ったグラフファイル(FollowGraphOutputFormat)を入力とするInputFormat。<br>
+ * KeyはユーザID(LongWritable)、Valueはそのユーザの入次数とフレンドID列(AdjacencyList)。<br>
+ * グラフファイルは分割せず、1ファイルを1つのMapで読む。ToGraphのReducer数だけファイルがあるので、Map数もそれと同じになる。
+ * @author YuMatsuzawa
+ *
+ */
+public class FollowGraphInputFormat extends FileInputFormat<LongWritable, AdjacencyList> {
+
+	@Override
+	protected boolean isSplitable(FileSystem fs, Path filename) {
+		return false;
+	}
+
+	@Override
+	public RecordReader<LongWritable, AdjacencyList> getRecordReader(InputSplit split, JobConf job,
+			Reporter reporter) throws IOException {
+		reporter.setStatus(split.toString());
+		Path path = ((FileSplit) split).getPath();
+		final FollowGraphReader reader = new FollowGraphReader(path.getFileSystem(job), path);
+
+		return new RecordReader<LongWritable, AdjacencyList>() {
+			public boolean next(LongWritable key, AdjacencyList value) throws IOException {
+				if (!reader.next(value)) return false;
+				key.set(reader.userId());
+				return true;
+			}
+
+			public LongWritable createKey() {
+				return new LongWritable();
+			}
+
+			public AdjacencyList createValue() {
+				return new AdjacencyList();
+			}
+
+			public long getPos() throws IOException {
+				return reader.nodesRead();
+			}
+
+			public float getProgress() throws IOException {
+				return (reader.nodeCount() == 0)? 1.0f : (float) reader.nodesRead() / reader.nodeCount();
+			}
+
+			public void close() throws IOException {
+				reader.close();
+			}
+		};
+	}
+}
@@ -0,0 +1,85 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordWriter;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.Progressable;
+
+/**ユーザID-AdjacencyListのペアを、FollowGraphReaderで読める圧縮隣接リスト(CSR)形式のグラフファイルとして書き出すOutputFormat。<br>
+ * ファイルの構成は、ヘッダ(マジックナンバー)、ノードのブロック列、ノード索引、トレーラの順。<br>
+ * ノードはユーザIDの昇順に並び、FollowGraphReader.INDEX_INTERVAL個ごとのブロックにまとめられる。<br>
+ * 各ノードは、ブロック内の直前のノードからのユーザIDの差分(VLong)とAdjacencyList(入次数・フレンド数・フレンドIDの差分VLong列)からなる。<br>
+ * 索引は各ブロックの先頭ノードのユーザIDとファイル内オフセットの組(固定長long×2)で、トレーラは索引のオフセット・ノード数・エッジ数・マジックナンバー(固定長long×4)。<br>
+ * レコードはユーザIDの昇順で渡される必要がある(Reducerの入力はキーでソート済なので、Reducerの出力に使えばよい)。
+ * @author YuMatsuzawa
+ *
+ */
+public class FollowGraphOutputFormat extends FileOutputFormat<LongWritable, AdjacencyList> {
+
+	@Override
+	public RecordWriter<LongWritable, AdjacencyList> getRecordWriter(FileSystem ignored, JobConf job,
+			String name, Progressable progress) throws IOException {
+		Path file = FileOutputFormat.getTaskOutputPath(job, name);
+		FileSystem fs = file.getFileSystem(job);
+		final FSDataOutputStream out = fs.create(file, progress);
+		out.writeLong(FollowGraphReader.MAGIC);
+
+		return new RecordWriter<LongWritable, AdjacencyList>() {
+			private long nodes = 0;
+			private long edges = 0;
+			private long last = 0;
+			private long prev = 0;
+			private long[] indexIds = new long[16];
+			private long[] indexOffsets = new long[16];
+			private int indexSize = 0;
+
+			public void write(LongWritable key, AdjacencyList value) throws IOException {
+				long userid = key.get();
+				if (nodes > 0 && userid <= last) {
+					throw new IOException("Graph nodes must be written in strictly ascending order: " + userid + " after " + last);
+				}
+				if (nodes % FollowGraphReader.INDEX_INTERVAL == 0) {
+					if (indexSize == indexIds.length) {
+						indexIds = Arrays.copyOf(indexIds, indexSize * 2);
+						indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+					}
+					indexIds[indexSize] = userid;
+					indexOffsets[indexSize] = out.getPos();
+					indexSize++;
+					prev = 0;
+				}
+				WritableUtils.writeVLong(out, userid - prev);
+				value.write(out);
+				prev = userid;
+				last = userid;
+				nodes++;
+				edges += value.size();
+			}
+
+			public void close(Reporter reporter) throws IOException {
+				long indexOffset = out.getPos();
+				for (int i = 0; i < indexSize; i++) {
+					out.writeLong(indexIds[i]);
+					out.writeLong(indexOffsets[i]);
+				}
+				out.writeLong(indexOffset);
+				out.writeLong(nodes);
+				out.writeLong(edges);
+				out.writeLong(FollowGraphReader.MAGIC);
+				out.close();
+			}
+		};
+	}
+}
@@ -0,0 +1,173 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.WritableUtils;
+
+/**FollowGraphOutputFormat(ToGraphジョブ)で書き出したフォローネットワークのグラフファイルを読むためのクラス。<br>
+ * ファイル形式はFollowGraphOutputFormatを参照。ネットワークCSVのTextに比べて、数値のパースが不要で、HDFS上のサイズも小さい。<br>
+ * next()でユーザIDの昇順に全ノードを順に読む。seek()で索引を引いて、任意のユーザIDのノードに移動することもできる。<br>
+ * 読み込んだ内容は呼び出し側が渡すAdjacencyListに書き込まれ、配列は使い回されるので、走査中のオブジェクト生成はない。<br>
+ * スレッドセーフではない。
+ * @author YuMatsuzawa
+ *
+ */
+public class FollowGraphReader {
+	/** ファイル先頭と末尾のマジックナンバー("MZFGRPH1")。 */
+	public static final long MAGIC = 0x4D5A464752504831L;
+	public static final int HEADER_SIZE = 8;
+	public static final int TRAILER_SIZE = 32;
+	/** 索引を置くノードの間隔。ブロック内のユーザIDは直前のノードからの差分で記録される。 */
+	public static final int INDEX_INTERVAL = 128;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Path path;
+	private final FSDataInputStream file;
+	private DataInputStream in;
+	private final long indexOffset;
+	private final long nodeCount;
+	private final long edgeCount;
+	private long[] indexIds = null;
+	private long[] indexOffsets = null;
+
+	private long nodesRead = 0;
+	private long prev = 0;
+	private long userId = -1;
+
+	/**グラフファイルを開く。
+	 * @param fs
+	 * @param path
+	 * @throws IOException 形式が不正な場合
+	 */
+	public FollowGraphReader(FileSystem fs, Path path) throws IOException {
+		this.path = path;
+		long length = fs.getFileStatus(path).getLen();
+		if (length < HEADER_SIZE + TRAILER_SIZE) throw new IOException("Malformed follow graph: " + path + " (" + length + " bytes)");
+		file = fs.open(path);
+		try {
+			if (file.readLong() != MAGIC) throw new IOException("Not a follow graph: " + path);
+			file.seek(length - TRAILER_SIZE);
+			indexOffset = file.readLong();
+			nodeCount = file.readLong();
+			edgeCount = file.readLong();
+			if (file.readLong() != MAGIC || indexOffset < HEADER_SIZE || indexOffset > length - TRAILER_SIZE) {
+				throw new IOException("Truncated follow graph: " + path);
+			}
+			position(HEADER_SIZE);
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/**ローカルファイルシステム上のグラフファイル(DistributedCacheで配布したもの等)を開く。
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	public static FollowGraphReader openLocal(String path) throws IOException {
+		return new FollowGraphReader(FileSystem.getLocal(new Configuration()), new Path(path));
+	}
+
+	private void position(long offset) throws IOException {
+		file.seek(offset);
+		in = new DataInputStream(new BufferedInputStream(file, BUFFER_SIZE));
+	}
+
+	/**次のノードを読んでvalueに入れる。ユーザIDはuserId()で得る。
+	 * @param value
+	 * @return 全ノードを読み終えていればfalse
+	 * @throws IOException
+	 */
+	public boolean next(AdjacencyList value) throws IOException {
+		if (nodesRead >= nodeCount) return false;
+		if (nodesRead % INDEX_INTERVAL == 0) prev = 0;
+		userId = prev + WritableUtils.readVLong(in);
+		value.readFields(in);
+		prev = userId;
+		nodesRead++;
+		return true;
+	}
+
+	/**指定したユーザIDのノードに移動してvalueに読み込む。<br>
+	 * ノードがなければfalseを返し、その場合もカーソルはuserid以上の最初のノードの直後(またはファイル末尾)に移動している。
+	 * @param userid
+	 * @param value
+	 * @return
+	 * @throws IOException
+	 */
+	public boolean seek(long userid, AdjacencyList value) throws IOException {
+		loadIndex();
+		int lo = 0, hi = indexIds.length - 1, block = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (indexIds[mid] <= userid) {
+				block = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		if (block < 0) block = 0;
+		if (indexIds.length > 0) position(indexOffsets[block]);
+		nodesRead = (long) block * INDEX_INTERVAL;
+		while (next(value)) {
+			if (userId >= userid) return userId == userid;
+		}
+		return false;
+	}
+
+	private void loadIndex() throws IOException {
+		if (indexIds != null) return;
+		int blocks = (int) ((nodeCount + INDEX_INTERVAL - 1) / INDEX_INTERVAL);
+		long[] ids = new long[blocks], offsets = new long[blocks];
+		file.seek(indexOffset);
+		DataInputStream index = new DataInputStream(new BufferedInputStream(file, BUFFER_SIZE));
+		for (int i = 0; i < blocks; i++) {
+			ids[i] = index.readLong();
+			offsets[i] = index.readLong();
+		}
+		indexIds = ids;
+		indexOffsets = offsets;
+		// ファイル位置が動くが、呼び出し元のseek()がこの後position()で位置を決め直す。
+	}
+
+	/**直前にnext()/seek()で読んだノードのユーザID。
+	 * @return
+	 */
+	public long userId() {
+		return userId;
+	}
+
+	/**これまでに読んだノード数(seek後はブロック先頭からの通し番号)。
+	 * @return
+	 */
+	public long nodesRead() {
+		return nodesRead;
+	}
+
+	public long nodeCount() {
+		return nodeCount;
+	}
+
+	public long edgeCount() {
+		return edgeCount;
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	public void close() throws IOException {
+		file.close();
+	}
+}
@@ -0,0 +1,365 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+
+/**外向きのHTTP接続を、接続先ホストごとに調停するクラス。RedirectResolverが各ホップの前にacquire()で許可を得る。<br>
+ * 以前は全接続の間に一律のsleepを挟んでいたので、行儀の良いホストには遅すぎ、1つの短縮URLドメインに数千件が集中する場合には速すぎた。<br>
+ * また、応答しないホストには1件ごとに接続タイムアウトを待っていた。このクラスはホストごとに以下を行う。<br>
+ * ・レート制限: 同じホストへの接続の開始間隔をinterval(ミリ秒)以上にする。<br>
+ * ・同時接続数の上限: 同じホストへの同時接続をconcurrency本までにする。<br>
+ * ・DNSキャッシュ: 名前解決の結果を保持し、解決できなかったホストも一定時間は覚えておいて(ネガティブキャッシュ)、接続を試みずに失敗させる。<br>
+ * ・サーキットブレーカ: 接続失敗(タイムアウト・5xx・429を含む)がfailures回続いたホストへの接続を、cooldown(ミリ秒)の間は試みずに失敗させる。<br>
+ * cooldownの後は1件だけ試し(半開)、成功すれば元に戻し、失敗すれば再びcooldownだけ止める。<br>
+ * 待ち時間はURLごとの期限(RedirectResolverの制限時間)までで、それを超える場合はSocketTimeoutExceptionになる。<br>
+ * 判断の結果はHostScheduler.Counterとしてreport()でHadoopのカウンタに記録する。<br>
+ * JVM内で1つのインスタンスをget()で共有するので、JVM再利用時にも同じホストへの制限はタスクをまたいで効く。設定値はJobConfの以下のプロパティで変えられる。<br>
+ * url.host.interval(既定100)、url.host.concurrency(既定4)、url.host.failures(既定5)、url.host.cooldown(既定60000)、url.dns.ttl(既定300000)、url.dns.negative.ttl(既定60000)
+ * @author YuMatsuzawa
+ *
+ */
+public class HostScheduler {
+	public static final long DEFAULT_INTERVAL = 100;
+	public static final int DEFAULT_CONCURRENCY = 4;
+	public static final int DEFAULT_FAILURES = 5;
+	public static final long DEFAULT_COOLDOWN = 60 * 1000;
+	public static final long DEFAULT_DNS_TTL = 5 * 60 * 1000;
+	public static final long DEFAULT_DNS_NEGATIVE_TTL = 60 * 1000;
+	/* DNSキャッシュに保持するホスト数の上限。超えたら古いものから捨てる。 */
+	private static final int DNS_CACHE_SIZE = 10000;
+
+	/**スケジューラの判断を表すカウンタ。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static enum Counter {
+		/** 許可した接続の数 */
+		PERMITS,
+		/** レート制限で待たせた接続の数 */
+		THROTTLED,
+		/** レート制限で待たせた時間の合計(ミリ秒) */
+		THROTTLE_MILLIS,
+		/** 同時接続数の上限で待たせた接続の数 */
+		CONCURRENCY_WAITS,
+		/** 期限までに許可を出せなかった接続の数 */
+		DEADLINE_EXCEEDED,
+		/** DNSキャッシュで名前解決を省いた数 */
+		DNS_HITS,
+		/** 名前解決を行った数 */
+		DNS_LOOKUPS,
+		/** 解決できないホストとして接続せずに失敗させた数(ネガティブキャッシュによるものを含む) */
+		DNS_FAILURES,
+		/** 失敗として記録した接続の数 */
+		HOST_FAILURES,
+		/** サーキットブレーカが開いた回数 */
+		CIRCUIT_OPENED,
+		/** サーキットブレーカが開いていたので接続せずに失敗させた数 */
+		CIRCUIT_REJECTED
+	}
+
+	/**サーキットブレーカが開いているホストへの接続を拒否した時の例外。RedirectResolverではUNREACHABLEになる。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class CircuitOpenException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public CircuitOpenException(String host) {
+			super("Circuit open for " + host);
+		}
+	}
+
+	/**acquire()で得た接続の許可。接続が終わったら、成否を与えてrelease()を1回だけ呼ぶ。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public class Permit {
+		private final Host host;
+		private boolean released = false;
+
+		private Permit(Host host) {
+			this.host = host;
+		}
+
+		/**
+		 * @param success 応答が得られたか(5xx・429は失敗とする)
+		 */
+		public void release(boolean success) {
+			if (released) return;
+			released = true;
+			host.slots.release();
+			if (!success) count(Counter.HOST_FAILURES, 1);
+			if (host.record(success, System.currentTimeMillis())) count(Counter.CIRCUIT_OPENED, 1);
+		}
+	}
+
+	/**ホストごとの状態。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	private class Host {
+		private final Semaphore slots = new Semaphore(concurrency);
+		/* 次の接続を開始してよい時刻 */
+		private long next = 0;
+		private int failures = 0;
+		/* サーキットブレーカが開いている期限。0なら閉じている */
+		private long openUntil = 0;
+		/* 半開状態で試行中の接続があるか */
+		private boolean trial = false;
+
+		/**サーキットブレーカを確かめる。半開状態に移る場合は、この呼び出しが試行の1件になる。
+		 * @param now
+		 * @return 接続してよければtrue
+		 */
+		private synchronized boolean allow(long now) {
+			if (openUntil == 0) return true;
+			if (now < openUntil || trial) return false;
+			trial = true;
+			return true;
+		}
+
+		/**レート制限の枠を予約する。
+		 * @param now
+		 * @param deadline
+		 * @return 接続を開始してよい時刻。期限までに枠がなければ-1
+		 */
+		private synchronized long reserve(long now, long deadline) {
+			long start = Math.max(now, next);
+			if (start > deadline) return -1;
+			next = start + interval;
+			return start;
+		}
+
+		/**接続の成否を記録する。
+		 * @param success
+		 * @param now
+		 * @return この呼び出しでサーキットブレーカが開いたらtrue
+		 */
+		private synchronized boolean record(boolean success, long now) {
+			if (success) {
+				failures = 0;
+				openUntil = 0;
+				trial = false;
+				return false;
+			}
+			failures++;
+			if (trial || (openUntil == 0 && failures >= failureThreshold)) {
+				trial = false;
+				openUntil = now + cooldown;
+				return true;
+			}
+			return false;
+		}
+
+		/* 半開状態の試行が接続前に終わった(DNSや待ち時間で失敗した)場合に、次の試行を許す。 */
+		private synchronized void abandon() {
+			trial = false;
+		}
+	}
+
+	/**DNSキャッシュの要素。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	private static class Resolution {
+		private final boolean resolved;
+		private final long expires;
+
+		private Resolution(boolean resolved, long expires) {
+			this.resolved = resolved;
+			this.expires = expires;
+		}
+	}
+
+	private static HostScheduler shared = null;
+
+	private final long interval;
+	private final int concurrency;
+	private final int failureThreshold;
+	private final long cooldown;
+	private final long dnsTtl;
+	private final long dnsNegativeTtl;
+	private final ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<String, Host>();
+	private final Map<String, Resolution> dns = new LinkedHashMap<String, Resolution>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Resolution> eldest) {
+			return size() > DNS_CACHE_SIZE;
+		}
+	};
+	private final AtomicLongArray counts = new AtomicLongArray(Counter.values().length);
+	private final long[] reported = new long[Counter.values().length];
+
+	public HostScheduler() {
+		this(DEFAULT_INTERVAL, DEFAULT_CONCURRENCY, DEFAULT_FAILURES, DEFAULT_COOLDOWN, DEFAULT_DNS_TTL, DEFAULT_DNS_NEGATIVE_TTL);
+	}
+
+	/**
+	 * @param interval 同じホストへの接続の開始間隔の下限(ミリ秒)
+	 * @param concurrency 同じホストへの同時接続数の上限
+	 * @param failureThreshold サーキットブレーカを開くまでの連続失敗回数
+	 * @param cooldown サーキットブレーカを開いておく時間(ミリ秒)
+	 * @param dnsTtl 名前解決の結果を保持する時間(ミリ秒)
+	 * @param dnsNegativeTtl 解決できなかったことを保持する時間(ミリ秒)
+	 */
+	public HostScheduler(long interval, int concurrency, int failureThreshold, long cooldown, long dnsTtl, long dnsNegativeTtl) {
+		this.interval = Math.max(0, interval);
+		this.concurrency = Math.max(1, concurrency);
+		this.failureThreshold = Math.max(1, failureThreshold);
+		this.cooldown = cooldown;
+		this.dnsTtl = dnsTtl;
+		this.dnsNegativeTtl = dnsNegativeTtl;
+	}
+
+	/**JVM内で共有するインスタンスを得る。最初の呼び出しの時にjobのプロパティから設定値を読む。
+	 * @param job
+	 * @return
+	 */
+	public static synchronized HostScheduler get(JobConf job) {
+		if (shared == null) {
+			shared = new HostScheduler(job.getLong("url.host.interval", DEFAULT_INTERVAL),
+					job.getInt("url.host.concurrency", DEFAULT_CONCURRENCY),
+					job.getInt("url.host.failures", DEFAULT_FAILURES),
+					job.getLong("url.host.cooldown", DEFAULT_COOLDOWN),
+					job.getLong("url.dns.ttl", DEFAULT_DNS_TTL),
+					job.getLong("url.dns.negative.ttl", DEFAULT_DNS_NEGATIVE_TTL));
+		}
+		return shared;
+	}
+
+	/**hostへの接続の許可を得る。必要なら、レート制限・同時接続数の上限により期限まで待つ。
+	 * @param hostname
+	 * @param deadline 待つ期限(エポックミリ秒)
+	 * @return
+	 * @throws CircuitOpenException サーキットブレーカが開いている場合
+	 * @throws UnknownHostException 名前解決できない場合
+	 * @throws SocketTimeoutException 期限までに許可を出せない場合
+	 * @throws InterruptedIOException 待っている間に割り込まれた場合
+	 */
+	public Permit acquire(String hostname, long deadline) throws IOException {
+		String key = hostname.toLowerCase();
+		Host host = hosts.get(key);
+		if (host == null) {
+			Host created = new Host();
+			host = hosts.putIfAbsent(key, created);
+			if (host == null) host = created;
+		}
+
+		if (!host.allow(System.currentTimeMillis())) {
+			count(Counter.CIRCUIT_REJECTED, 1);
+			throw new CircuitOpenException(hostname);
+		}
+		boolean granted = false;
+		try {
+			lookup(key);
+			try {
+				if (!host.slots.tryAcquire()) {
+					count(Counter.CONCURRENCY_WAITS, 1);
+					if (!host.slots.tryAcquire(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS)) {
+						count(Counter.DEADLINE_EXCEEDED, 1);
+						throw new SocketTimeoutException("No connection slot for " + hostname + " before the deadline");
+					}
+				}
+				long now = System.currentTimeMillis(), start = host.reserve(now, deadline);
+				if (start < 0) {
+					host.slots.release();
+					count(Counter.DEADLINE_EXCEEDED, 1);
+					throw new SocketTimeoutException("Rate limit for " + hostname + " exceeds the deadline");
+				}
+				if (start > now) {
+					count(Counter.THROTTLED, 1);
+					count(Counter.THROTTLE_MILLIS, start - now);
+					try {
+						Thread.sleep(start - now);
+					} catch (InterruptedException e) {
+						host.slots.release();
+						throw e;
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for " + hostname);
+			}
+			granted = true;
+		} finally {
+			if (!granted) host.abandon();
+		}
+		count(Counter.PERMITS, 1);
+		return new Permit(host);
+	}
+
+	/**DNSキャッシュを引き、なければ名前解決する。解決できなければUnknownHostExceptionを投げる(その結果もキャッシュする)。
+	 * @param hostname 小文字にしたホスト名
+	 * @throws UnknownHostException
+	 */
+	private void lookup(String hostname) throws UnknownHostException {
+		long now = System.currentTimeMillis();
+		Resolution cached;
+		synchronized (dns) {
+			cached = dns.get(hostname);
+		}
+		if (cached == null || cached.expires <= now) {
+			count(Counter.DNS_LOOKUPS, 1);
+			boolean resolved;
+			try {
+				InetAddress.getAllByName(hostname);
+				resolved = true;
+			} catch (UnknownHostException e) {
+				resolved = false;
+			} catch (SecurityException e) {
+				resolved = false;
+			}
+			cached = new Resolution(resolved, now + (resolved? dnsTtl : dnsNegativeTtl));
+			synchronized (dns) {
+				dns.put(hostname, cached);
+			}
+		} else {
+			count(Counter.DNS_HITS, 1);
+		}
+		if (!cached.resolved) {
+			count(Counter.DNS_FAILURES, 1);
+			throw new UnknownHostException(hostname);
+		}
+	}
+
+	private void count(Counter counter, long amount) {
+		counts.addAndGet(counter.ordinal(), amount);
+	}
+
+	/**カウンタの現在値。
+	 * @param counter
+	 * @return
+	 */
+	public long get(Counter counter) {
+		return counts.get(counter.ordinal());
+	}
+
+	/**前回のreport()以降に増えた分をHadoopのカウンタに記録する。タスクのスレッドから呼ぶ。
+	 * @param reporter
+	 */
+	public synchronized void report(Reporter reporter) {
+		for (Counter counter : Counter.values()) {
+			long current = counts.get(counter.ordinal()), delta = current - reported[counter.ordinal()];
+			if (delta != 0) {
+				reporter.incrCounter(counter, delta);
+				reported[counter.ordinal()] = current;
+			}
+		}
+	}
+}
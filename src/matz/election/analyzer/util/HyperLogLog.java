@@ -0,0 +1,266 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.JobConf;
+
+/**ユーザIDの異なり数を近似するHyperLogLogスケッチのWritable。DistinctUsersのジョブで、Keyごとのユーザ集合の代わりに使う。<br>
+ * 精度pに対してm=2^p個のレジスタを持ち、相対標準誤差はおよそ1.04/√m(既定のp=12で約1.6%)。pはmapred-site.xml等のhll.precision(4～16)で変えられる。<br>
+ * 埋まっているレジスタが少ない間は、精度25ビット相当の(レジスタ番号, 値)の組を番号順に並べた疎な形で持ち、シリアライズした大きさが密な形を超えないよう、m/6組を超えたら精度pに落としてmバイトの密な配列に切り替える(HyperLogLog++の疎な表現と同じ考え方)。<br>
+ * 疎な形の間はレジスタが2^25個あるのとほぼ同じなので、数百人程度までの異なり数は衝突がほとんどなく、ほぼ正確に数えられる。<br>
+ * 疎な形のシリアライズは番号の差分のVIntと値の1バイトなので、数人しか言及していないURLのスケッチは数バイト～十数バイトで済む。<br>
+ * 同じ精度のスケッチ同士はadd(HyperLogLog)で併合でき、併合の順序や分け方によらず同じレジスタになるので、Combinerで何度併合してもよい。
+ * @author YuMatsuzawa
+ *
+ */
+public class HyperLogLog implements Writable {
+	public static final String PRECISION_KEY = "hll.precision";
+	public static final int DEFAULT_PRECISION = 12;
+	public static final int MIN_PRECISION = 4, MAX_PRECISION = 16;
+	/** 疎な形のレジスタ番号のビット数。値は64-25+1以下なので6ビットに収まり、番号<<6 | 値がintに収まる。 */
+	private static final int SPARSE_PRECISION = 25;
+	private static final int RANK_BITS = 6, RANK_MASK = (1 << RANK_BITS) - 1;
+	private static final int[] NO_ENTRIES = new int[0];
+
+	private int precision;
+	private int m;
+	/** 疎な形の(精度25ビットのレジスタ番号<<6 | 値)。番号の昇順。denseがnullでない間は使わない。 */
+	private int[] entries = NO_ENTRIES;
+	private int size = 0;
+	private byte[] dense = null;
+	/** clear()で捨てた密な配列。Reducerで値ごとにreadFields()しても配列を作り直さないように取っておく。 */
+	private byte[] spare = null;
+
+	public HyperLogLog() {
+		this(DEFAULT_PRECISION);
+	}
+
+	/**
+	 * @param precision
+	 * @throws IllegalArgumentException 精度がMIN_PRECISION～MAX_PRECISIONの範囲にない場合
+	 */
+	public HyperLogLog(int precision) {
+		setPrecision(precision);
+	}
+
+	/**ジョブ設定のhll.precisionの精度で空のスケッチを作る。
+	 * @param job
+	 * @return
+	 */
+	public static HyperLogLog fromConf(JobConf job) {
+		return new HyperLogLog(job.getInt(PRECISION_KEY, DEFAULT_PRECISION));
+	}
+
+	private void setPrecision(int precision) {
+		if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+			throw new IllegalArgumentException("precision out of range: " + precision);
+		}
+		this.precision = precision;
+		this.m = 1 << precision;
+		clear();
+		spare = null;
+	}
+
+	public int getPrecision() {
+		return precision;
+	}
+
+	/**空にする。密な形に切り替わっていれば、疎な形に戻す。
+	 */
+	public void clear() {
+		size = 0;
+		if (dense != null) spare = dense;
+		dense = null;
+	}
+
+	private static long hash(long key) {
+		key = (key ^ (key >>> 33)) * 0xFF51AFD7ED558CCDL;
+		key = (key ^ (key >>> 33)) * 0xC4CEB9FE1A85EC53L;
+		return key ^ (key >>> 33);
+	}
+
+	/**ユーザIDを1つ加える。
+	 * @param id
+	 */
+	public void offer(long id) {
+		long h = hash(id);
+		if (dense != null) {
+			updateDense((int) (h >>> (64 - precision)), Long.numberOfLeadingZeros((h << precision) | (1L << (precision - 1))) + 1);
+		} else {
+			updateSparse((int) (h >>> (64 - SPARSE_PRECISION)),
+					Long.numberOfLeadingZeros((h << SPARSE_PRECISION) | (1L << (SPARSE_PRECISION - 1))) + 1);
+		}
+	}
+
+	private void updateDense(int index, int rank) {
+		if (dense[index] < rank) dense[index] = (byte) rank;
+	}
+
+	/**疎な形の組を精度pのレジスタに落として更新する。<br>
+	 * 25ビットの番号のうち上位pビットがレジスタ番号になり、残りのビットに1があればそこまでの0の数+1が値、全て0なら残りのビット数に疎な形の値を足したものが値になる。
+	 */
+	private void updateDense(int entry) {
+		int shift = SPARSE_PRECISION - precision;
+		int index = entry >>> RANK_BITS;
+		int low = index & ((1 << shift) - 1);
+		int rank = (low != 0)? Integer.numberOfLeadingZeros(low) - (32 - shift) + 1 : shift + (entry & RANK_MASK);
+		updateDense(index >>> shift, rank);
+	}
+
+	private void updateSparse(int index, int rank) {
+		int pos = find(index);
+		if (pos >= 0) {
+			if ((entries[pos] & RANK_MASK) < rank) entries[pos] = (index << RANK_BITS) | rank;
+			return;
+		}
+		if (size >= m / 6) {
+			toDense();
+			updateDense((index << RANK_BITS) | rank);
+			return;
+		}
+		pos = -pos - 1;
+		if (size == entries.length) entries = Arrays.copyOf(entries, Math.max(8, size * 2));
+		System.arraycopy(entries, pos, entries, pos + 1, size - pos);
+		entries[pos] = (index << RANK_BITS) | rank;
+		size++;
+	}
+
+	/**疎な形でレジスタ番号indexの位置を二分探索する。なければ(-(挿入位置) - 1)を返す。
+	 */
+	private int find(int index) {
+		int lo = 0, hi = size - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int midIndex = entries[mid] >>> RANK_BITS;
+			if (midIndex < index) lo = mid + 1;
+			else if (midIndex > index) hi = mid - 1;
+			else return mid;
+		}
+		return -(lo + 1);
+	}
+
+	private void toDense() {
+		dense = newDense();
+		for (int i = 0; i < size; i++) updateDense(entries[i]);
+		size = 0;
+	}
+
+	private byte[] newDense() {
+		if (spare == null) return new byte[m];
+		byte[] array = spare;
+		spare = null;
+		Arrays.fill(array, (byte) 0);
+		return array;
+	}
+
+	/**他のスケッチを併合する。
+	 * @param other
+	 * @throws IllegalArgumentException 精度が異なる場合
+	 */
+	public void add(HyperLogLog other) {
+		if (other.precision != precision) {
+			throw new IllegalArgumentException("precision mismatch: " + precision + " and " + other.precision);
+		}
+		if (other.dense != null) {
+			if (dense == null) toDense();
+			for (int i = 0; i < m; i++) {
+				if (dense[i] < other.dense[i]) dense[i] = other.dense[i];
+			}
+		} else {
+			//途中で密な形に切り替わることがある。
+			for (int i = 0; i < other.size; i++) {
+				if (dense != null) updateDense(other.entries[i]);
+				else updateSparse(other.entries[i] >>> RANK_BITS, other.entries[i] & RANK_MASK);
+			}
+		}
+	}
+
+	/**異なり数の推定値を返す。疎な形の間と、推定値が小さい(2.5m以下で空のレジスタがある)間は、空のレジスタの割合から求める(Linear Counting)。
+	 * @return
+	 */
+	public long estimate() {
+		if (dense == null) {
+			double sparseM = 1 << SPARSE_PRECISION;
+			return Math.round(sparseM * Math.log(sparseM / (sparseM - size)));
+		}
+		double sum = 0;
+		int zeros = 0;
+		for (int i = 0; i < m; i++) {
+			if (dense[i] == 0) zeros++;
+			sum += 1.0 / (1L << dense[i]);
+		}
+		double estimate = alpha() * m * m / sum;
+		if (estimate <= 2.5 * m && zeros > 0) estimate = m * Math.log((double) m / zeros);
+		return Math.round(estimate);
+	}
+
+	private double alpha() {
+		switch (m) {
+		case 16: return 0.673;
+		case 32: return 0.697;
+		case 64: return 0.709;
+		default: return 0.7213 / (1 + 1.079 / m);
+		}
+	}
+
+	/**密な形に切り替わっているか。
+	 * @return
+	 */
+	public boolean isDense() {
+		return dense != null;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeByte(precision);
+		out.writeBoolean(dense != null);
+		if (dense != null) {
+			out.write(dense);
+		} else {
+			WritableUtils.writeVInt(out, size);
+			int prev = 0;
+			for (int i = 0; i < size; i++) {
+				int index = entries[i] >>> RANK_BITS;
+				WritableUtils.writeVInt(out, index - prev);
+				out.writeByte(entries[i] & RANK_MASK);
+				prev = index;
+			}
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		int p = in.readByte();
+		if (p != precision) {
+			setPrecision(p);
+		} else {
+			clear();
+		}
+		if (in.readBoolean()) {
+			dense = (spare != null)? spare : new byte[m];
+			spare = null;
+			in.readFully(dense);
+		} else {
+			size = WritableUtils.readVInt(in);
+			if (entries.length < size) entries = new int[size];
+			int index = 0;
+			for (int i = 0; i < size; i++) {
+				index += WritableUtils.readVInt(in);
+				entries[i] = (index << RANK_BITS) | (in.readByte() & 0xFF);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.valueOf(estimate());
+	}
+}
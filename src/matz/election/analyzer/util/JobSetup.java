@@ -0,0 +1,20 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+import org.apache.hadoop.mapred.JobConf;
+
+/**JOB_PROPの記述だけでは組み立てられないジョブ(Combinerを別に持つ、名前付き出力を使うなど)のMapperが実装するインタフェース。<br>
+ * AnalyzerMainはJOB_PROPに従ってジョブを組み立てた後、Mapperがこれを実装していればそのインスタンスを作ってsetup()を呼び、それからジョブを投入する。<br>
+ * setup()はクライアント側で呼ばれるので、configure()は呼ばれていない。コマンドライン引数はjob.get("argN")で読める。
+ * @author YuMatsuzawa
+ *
+ */
+public interface JobSetup {
+
+	/**ジョブの設定を追加・変更する。
+	 * @param job
+	 */
+	public void setup(JobConf job);
+}
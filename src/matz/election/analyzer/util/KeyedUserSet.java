@@ -0,0 +1,103 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**キー(URLやエンコード済RT文面)と、それに言及したユーザIDの集合を組にしたWritable。<br>
+ * ユーザIDは重複を除いて昇順に並べたlong配列として保持するので、集合演算はソート済配列のマージで行える。<br>
+ * シリアライズ時は差分をVLongで書くので、CSVのTextより小さい。
+ * @author YuMatsuzawa
+ *
+ */
+public class KeyedUserSet implements Writable {
+	private static final long[] NO_USERS = new long[0];
+
+	private String key = "";
+	private long[] users = NO_USERS;
+	private int size = 0;
+
+	public KeyedUserSet() {}
+
+	/**キーとユーザIDのCSVから集合を作る。重複は除かれ、昇順に並べられる。
+	 * @param key
+	 * @param csv
+	 * @throws NumberFormatException CSVに数値でない要素が含まれる場合
+	 */
+	public void set(String key, String csv) {
+		this.key = key;
+		String[] ids = csv.split(",");
+		if (users.length < ids.length) users = new long[ids.length];
+		int n = 0;
+		for (String id : ids) {
+			if (!id.isEmpty()) users[n++] = Long.parseLong(id);
+		}
+		Arrays.sort(users, 0, n);
+		size = 0;
+		for (int i = 0; i < n; i++) {
+			if (size == 0 || users[size - 1] != users[i]) users[size++] = users[i];
+		}
+	}
+
+	/**他のインスタンスの内容を写す。Reducerの値イテレータはインスタンスを使い回すので、保持する場合はコピーを取ること。
+	 * @param other
+	 */
+	public void set(KeyedUserSet other) {
+		key = other.key;
+		users = Arrays.copyOf(other.users, other.size);
+		size = other.size;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	/**昇順・重複なしのユーザID配列。有効な要素はsize()個までで、それ以降は不定。
+	 * @return
+	 */
+	public long[] getUsers() {
+		return users;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		Text.writeString(out, key);
+		WritableUtils.writeVInt(out, size);
+		long prev = 0;
+		for (int i = 0; i < size; i++) {
+			WritableUtils.writeVLong(out, users[i] - prev);
+			prev = users[i];
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		key = Text.readString(in);
+		size = WritableUtils.readVInt(in);
+		if (users.length < size) users = new long[size];
+		long prev = 0;
+		for (int i = 0; i < size; i++) {
+			prev += WritableUtils.readVLong(in);
+			users[i] = prev;
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(key);
+		for (int i = 0; i < size; i++) sb.append(',').append(users[i]);
+		return sb.toString();
+	}
+}
@@ -0,0 +1,185 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**複数のキーワードを本文中から1パスで探すための、Aho-Corasickオートマトンによるマッチャ。<br>
+ * キーワードごとにString.containsを繰り返すと、コストはキーワード数×本文長になる。<br>
+ * このクラスはconfigure()等で一度だけ構築しておき、map()の中では本文を先頭から1回なめるだけで全てのキーワードの出現を判定する。<br>
+ * 判定結果はString.containsを各キーワードに対して行った場合と同一である(空文字列のキーワードは常に含まれるとみなす)。<br>
+ * 構築後は読み取り専用なので、複数スレッドから同時に使ってよい。
+ * @author YuMatsuzawa
+ *
+ */
+public class KeywordMatcher {
+	private final String[] keywords;
+	private final boolean hasEmpty;
+
+	/* ノードごとの遷移ラベル(昇順)と遷移先、失敗遷移、出力を持つノードへの辞書リンク、出力キーワード番号。 */
+	private char[][] labels;
+	private int[][] targets;
+	private int[] fail;
+	private int[] dict;
+	private int[][] outputs;
+
+	/**キーワードのリストからオートマトンを構築する。キーワードの番号はリスト内の順序になる。
+	 * @param keywordList
+	 */
+	public KeywordMatcher(Collection<String> keywordList) {
+		keywords = keywordList.toArray(new String[keywordList.size()]);
+		boolean empty = false;
+
+		List<TreeMap<Character, Integer>> trie = new ArrayList<TreeMap<Character, Integer>>();
+		List<List<Integer>> out = new ArrayList<List<Integer>>();
+		trie.add(new TreeMap<Character, Integer>());
+		out.add(null);
+		for (int i = 0; i < keywords.length; i++) {
+			String keyword = keywords[i];
+			if (keyword.isEmpty()) {
+				empty = true;
+				continue;
+			}
+			int node = 0;
+			for (int j = 0; j < keyword.length(); j++) {
+				Character c = keyword.charAt(j);
+				Integer next = trie.get(node).get(c);
+				if (next == null) {
+					next = trie.size();
+					trie.add(new TreeMap<Character, Integer>());
+					out.add(null);
+					trie.get(node).put(c, next);
+				}
+				node = next;
+			}
+			if (out.get(node) == null) out.set(node, new ArrayList<Integer>());
+			out.get(node).add(i);
+		}
+		hasEmpty = empty;
+
+		int size = trie.size();
+		labels = new char[size][];
+		targets = new int[size][];
+		outputs = new int[size][];
+		for (int n = 0; n < size; n++) {
+			TreeMap<Character, Integer> children = trie.get(n);
+			labels[n] = new char[children.size()];
+			targets[n] = new int[children.size()];
+			int k = 0;
+			for (Entry<Character, Integer> child : children.entrySet()) {
+				labels[n][k] = child.getKey();
+				targets[n][k] = child.getValue();
+				k++;
+			}
+			if (out.get(n) != null) {
+				outputs[n] = new int[out.get(n).size()];
+				for (int o = 0; o < outputs[n].length; o++) outputs[n][o] = out.get(n).get(o);
+			}
+		}
+
+		// 幅優先で失敗遷移と辞書リンクを張る。
+		fail = new int[size];
+		dict = new int[size];
+		int[] queue = new int[size];
+		int head = 0, tail = 0;
+		dict[0] = -1;
+		for (int k = 0; k < targets[0].length; k++) {
+			int child = targets[0][k];
+			fail[child] = 0;
+			dict[child] = -1;
+			queue[tail++] = child;
+		}
+		while (head < tail) {
+			int node = queue[head++];
+			for (int k = 0; k < targets[node].length; k++) {
+				int child = targets[node][k];
+				char c = labels[node][k];
+				int f = fail[node];
+				while (f != 0 && next(f, c) < 0) f = fail[f];
+				int to = next(f, c);
+				fail[child] = (to >= 0)? to : 0;
+				dict[child] = (outputs[fail[child]] != null)? fail[child] : dict[fail[child]];
+				queue[tail++] = child;
+			}
+		}
+	}
+
+	private int next(int node, char c) {
+		char[] label = labels[node];
+		int lo = 0, hi = label.length - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (label[mid] < c) lo = mid + 1;
+			else if (label[mid] > c) hi = mid - 1;
+			else return targets[node][mid];
+		}
+		return -1;
+	}
+
+	private int step(int state, char c) {
+		while (true) {
+			int to = next(state, c);
+			if (to >= 0) return to;
+			if (state == 0) return 0;
+			state = fail[state];
+		}
+	}
+
+	/**本文にいずれかのキーワードが含まれるか判定する。最初の一致で打ち切る。
+	 * @param text
+	 * @return
+	 */
+	public boolean matchesAny(CharSequence text) {
+		if (hasEmpty) return true;
+		int state = 0;
+		for (int i = 0; i < text.length(); i++) {
+			state = step(state, text.charAt(i));
+			if (outputs[state] != null || dict[state] >= 0) return true;
+		}
+		return false;
+	}
+
+	/**本文に含まれる全てのキーワードを調べ、found[キーワード番号]をtrueにする。foundは呼び出し側で確保し、使い回してよい。
+	 * @param text
+	 * @param found 長さsize()以上の配列。呼び出し時にfalseで初期化される。
+	 * @return 本文に含まれていたキーワードの数(重複して登録されたキーワードはそれぞれ数える)
+	 */
+	public int match(CharSequence text, boolean[] found) {
+		for (int i = 0; i < keywords.length; i++) found[i] = false;
+		int count = 0;
+		if (hasEmpty) {
+			for (int i = 0; i < keywords.length; i++) {
+				if (keywords[i].isEmpty()) {
+					found[i] = true;
+					count++;
+				}
+			}
+		}
+		int state = 0;
+		for (int i = 0; i < text.length(); i++) {
+			state = step(state, text.charAt(i));
+			for (int o = (outputs[state] != null)? state : dict[state]; o >= 0; o = dict[o]) {
+				for (int id : outputs[o]) {
+					if (!found[id]) {
+						found[id] = true;
+						count++;
+					}
+				}
+			}
+		}
+		return count;
+	}
+
+	public int size() {
+		return keywords.length;
+	}
+
+	public String getKeyword(int index) {
+		return keywords[index];
+	}
+}
@@ -0,0 +1,941 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.FileOutputCommitter;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.InputFormat;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.JobID;
+import org.apache.hadoop.mapred.MapRunnable;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.OutputFormat;
+import org.apache.hadoop.mapred.Partitioner;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.RecordWriter;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.TaskAttemptID;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**AnalyzerMainで組み立てたジョブ(JobConf)を、クラスタやLocalJobRunnerを使わずにこのJVMの中で並列に実行するエンジン。<br>
+ * LocalJobRunnerはMapもReduceも1つずつ順に実行するので、手元のマシンで試すとコアを1つしか使わない。このエンジンは以下のように実行する。<br>
+ * ・Map: 入力をInputFormatで分割し(スレッド数の2倍程度)、スレッドプールで並列に実行する。MapperはMapRunnerで駆動するので、MultithreadedMapRunner等の指定もそのまま効く。<br>
+ * ・Shuffle: Mapの出力はPartitioner(既定はハッシュ)で振り分け、シリアライズしてメモリ上に溜める。溜めた量がタスクごとの上限を超えたら、<br>
+ * キーでソートし、Combinerがあればかけて、一時ファイルに書き出す(spill)。Map終了時の残りは、全体の上限に収まる限りメモリに残す。<br>
+ * ・Reduce: パーティションごとにソート済の断片をマージし、スレッドプールで並列にReducerを実行する。出力はOutputFormatで書き、part-NNNNNとする。<br>
+ * パーティション数(出力ファイル数)はジョブのReducer数とスレッド数の小さい方とする(1ならそのまま1)。Reducer数0のジョブはMapの出力をそのまま書く。<br>
+ * DistributedCacheのファイルはカレントディレクトリにリンク名でシンボリックリンクを張ってから実行し、終了後に消す。<br>
+ * カウンタはまとめて集計し、終了時に標準エラー出力に出す。<br>
+ * メモリ上に溜めるMap出力の上限は、既定で最大ヒープの1/4(ジョブのプロパティかシステムプロパティのlocal.engine.memory.mbで指定可)。一時ファイルはjava.io.tmpdirに作り、終了時に消す。
+ * @author YuMatsuzawa
+ *
+ */
+public class LocalJobEngine {
+	public static final String MEMORY_KEY = "local.engine.memory.mb";
+	private static final int SPLITS_PER_THREAD = 2;
+	private static final int RUN_BUFFER_SIZE = 64 * 1024;
+
+	/**エンジン自身が記録するカウンタ。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static enum Counter {
+		MAP_TASKS,
+		MAP_INPUT_RECORDS,
+		MAP_OUTPUT_RECORDS,
+		MAP_OUTPUT_BYTES,
+		/** 一時ファイルに書き出したソート済断片の数 */
+		SPILLED_RUNS,
+		SPILLED_BYTES,
+		COMBINE_INPUT_RECORDS,
+		COMBINE_OUTPUT_RECORDS,
+		REDUCE_TASKS,
+		REDUCE_INPUT_GROUPS,
+		REDUCE_INPUT_RECORDS,
+		OUTPUT_RECORDS
+	}
+
+	/**シリアライズされた1件のキーと値を順に読み出す元。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	private static interface RecordSource {
+		/**次のレコードに進む。
+		 * @return なければfalse
+		 * @throws IOException
+		 */
+		boolean next() throws IOException;
+		byte[] keyData();
+		int keyStart();
+		int keyLength();
+		byte[] valueData();
+		int valueStart();
+		int valueLength();
+	}
+
+	/**Map出力を1パーティション分溜めるバッファ。キーと値のバイト列を続けて格納し、位置を別の配列で持つ。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	private static class SortBuffer {
+		private final DataOutputBuffer data = new DataOutputBuffer();
+		private int[] starts = new int[1024], keyLengths = new int[1024], valueLengths = new int[1024];
+		private int[] order = null;
+		private int count = 0;
+
+		/**
+		 * @return 追加したバイト数
+		 * @throws IOException
+		 */
+		private int add(Writable key, Writable value) throws IOException {
+			if (count == starts.length) {
+				starts = Arrays.copyOf(starts, count * 2);
+				keyLengths = Arrays.copyOf(keyLengths, count * 2);
+				valueLengths = Arrays.copyOf(valueLengths, count * 2);
+			}
+			int start = data.getLength();
+			key.write(data);
+			int keyEnd = data.getLength();
+			value.write(data);
+			starts[count] = start;
+			keyLengths[count] = keyEnd - start;
+			valueLengths[count] = data.getLength() - keyEnd;
+			count++;
+			return data.getLength() - start;
+		}
+
+		/**キーで安定ソートする(マージソート)。
+		 * @param comparator
+		 */
+		private void sort(RawComparator<?> comparator) {
+			order = new int[count];
+			for (int i = 0; i < count; i++) order[i] = i;
+			int[] work = new int[count];
+			mergeSort(comparator, order, work, 0, count);
+		}
+
+		private void mergeSort(RawComparator<?> comparator, int[] a, int[] work, int from, int to) {
+			if (to - from < 2) return;
+			int mid = (from + to) >>> 1;
+			mergeSort(comparator, a, work, from, mid);
+			mergeSort(comparator, a, work, mid, to);
+			if (compare(comparator, a[mid - 1], a[mid]) <= 0) return;
+			System.arraycopy(a, from, work, from, to - from);
+			int i = from, j = mid, k = from;
+			while (i < mid && j < to) a[k++] = (compare(comparator, work[j], work[i]) < 0)? work[j++] : work[i++];
+			while (i < mid) a[k++] = work[i++];
+			while (j < to) a[k++] = work[j++];
+		}
+
+		private int compare(RawComparator<?> comparator, int x, int y) {
+			byte[] buf = data.getData();
+			return comparator.compare(buf, starts[x], keyLengths[x], buf, starts[y], keyLengths[y]);
+		}
+
+		/**ソート順に読み出す。sort()の後に呼ぶ。
+		 * @return
+		 */
+		private RecordSource source() {
+			return new RecordSource() {
+				private int position = -1;
+
+				public boolean next() {
+					return ++position < count;
+				}
+
+				public byte[] keyData() {
+					return data.getData();
+				}
+
+				public int keyStart() {
+					return starts[order[position]];
+				}
+
+				public int keyLength() {
+					return keyLengths[order[position]];
+				}
+
+				public byte[] valueData() {
+					return data.getData();
+				}
+
+				public int valueStart() {
+					return starts[order[position]] + keyLengths[order[position]];
+				}
+
+				public int valueLength() {
+					return valueLengths[order[position]];
+				}
+			};
+		}
+
+		private int size() {
+			return data.getLength();
+		}
+
+		private void clear() {
+			data.reset();
+			count = 0;
+			order = null;
+		}
+	}
+
+	/**ソート済のレコード列(断片)。メモリ上のバイト列か、一時ファイル。<br>
+	 * 形式は、レコードごとに可変長整数でキー長・値長、続けてキー・値のバイト列。最後にキー長-1。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	private class Run {
+		private final byte[] bytes;
+		private final File file;
+		private final long size;
+
+		private Run(byte[] bytes) {
+			this.bytes = bytes;
+			this.file = null;
+			this.size = bytes.length;
+		}
+
+		private Run(File file) {
+			this.bytes = null;
+			this.file = file;
+			this.size = file.length();
+		}
+
+		private RunReader open() throws IOException {
+			if (bytes != null) {
+				DataInputBuffer in = new DataInputBuffer();
+				in.reset(bytes, bytes.length);
+				return new RunReader(in, null);
+			}
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), RUN_BUFFER_SIZE));
+			return new RunReader(in, in);
+		}
+
+		/* Reduceが読み終えたら、メモリと一時ファイルを解放する */
+		private void release() {
+			if (bytes != null) {
+				retained.addAndGet(-size);
+			} else if (!file.delete()) {
+				file.deleteOnExit();
+			}
+		}
+	}
+
+	/**断片を先頭から読むRecordSource。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	private static class RunReader implements RecordSource {
+		private final DataInput in;
+		private final DataInputStream closeable;
+		private byte[] key = new byte[64], value = new byte[256];
+		private int keyLength, valueLength;
+
+		private RunReader(DataInput in, DataInputStream closeable) {
+			this.in = in;
+			this.closeable = closeable;
+		}
+
+		public boolean next() throws IOException {
+			keyLength = WritableUtils.readVInt(in);
+			if (keyLength < 0) {
+				close();
+				return false;
+			}
+			valueLength = WritableUtils.readVInt(in);
+			if (key.length < keyLength) key = new byte[Math.max(keyLength, key.length * 2)];
+			if (value.length < valueLength) value = new byte[Math.max(valueLength, value.length * 2)];
+			in.readFully(key, 0, keyLength);
+			in.readFully(value, 0, valueLength);
+			return true;
+		}
+
+		private void close() throws IOException {
+			if (closeable != null) closeable.close();
+		}
+
+		public byte[] keyData() {
+			return key;
+		}
+
+		public int keyStart() {
+			return 0;
+		}
+
+		public int keyLength() {
+			return keyLength;
+		}
+
+		public byte[] valueData() {
+			return value;
+		}
+
+		public int valueStart() {
+			return 0;
+		}
+
+		public int valueLength() {
+			return valueLength;
+		}
+	}
+
+	/**複数の断片をキー順にマージして読むRecordSource。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	private static class MergeSource implements RecordSource {
+		private final PriorityQueue<RunReader> queue;
+		private RunReader current = null;
+
+		private MergeSource(List<RunReader> readers, final RawComparator<?> comparator) throws IOException {
+			queue = new PriorityQueue<RunReader>(Math.max(1, readers.size()), new Comparator<RunReader>() {
+				public int compare(RunReader x, RunReader y) {
+					return comparator.compare(x.keyData(), 0, x.keyLength(), y.keyData(), 0, y.keyLength());
+				}
+			});
+			for (RunReader reader : readers) {
+				if (reader.next()) queue.add(reader);
+			}
+		}
+
+		public boolean next() throws IOException {
+			if (current != null && current.next()) queue.add(current);
+			current = queue.poll();
+			return current != null;
+		}
+
+		private void close() throws IOException {
+			if (current != null) current.close();
+			for (RunReader reader : queue) reader.close();
+		}
+
+		public byte[] keyData() {
+			return current.keyData();
+		}
+
+		public int keyStart() {
+			return 0;
+		}
+
+		public int keyLength() {
+			return current.keyLength();
+		}
+
+		public byte[] valueData() {
+			return current.valueData();
+		}
+
+		public int valueStart() {
+			return 0;
+		}
+
+		public int valueLength() {
+			return current.valueLength();
+		}
+	}
+
+	/**同じキーの値を順に返すIterator。値のインスタンスは使い回す(Hadoopと同じ)。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	private static class GroupIterator<V extends Writable> implements Iterator<V> {
+		private final RecordSource source;
+		private final RawComparator<?> grouping;
+		private final V value;
+		private final DataInputBuffer in = new DataInputBuffer();
+		private final DataOutputBuffer groupKey = new DataOutputBuffer();
+		private boolean inGroup = false;
+		private boolean more = false;
+		private long records = 0;
+
+		private GroupIterator(RecordSource source, RawComparator<?> grouping, V value) {
+			this.source = source;
+			this.grouping = grouping;
+			this.value = value;
+		}
+
+		/**sourceの現在のレコードから新しいグループを始める。
+		 * @throws IOException
+		 */
+		private void start() throws IOException {
+			groupKey.reset();
+			groupKey.write(source.keyData(), source.keyStart(), source.keyLength());
+			inGroup = true;
+		}
+
+		public boolean hasNext() {
+			return inGroup;
+		}
+
+		public V next() {
+			if (!inGroup) throw new NoSuchElementException();
+			try {
+				in.reset(source.valueData(), source.valueStart(), source.valueLength());
+				value.readFields(in);
+				advance();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			return value;
+		}
+
+		private void advance() throws IOException {
+			records++;
+			more = source.next();
+			inGroup = more && grouping.compare(groupKey.getData(), 0, groupKey.getLength(),
+					source.keyData(), source.keyStart(), source.keyLength()) == 0;
+		}
+
+		/* Reducerが読み残した値を読み飛ばす */
+		private void skip() throws IOException {
+			while (inGroup) advance();
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**断片を書き出すOutputCollector(Combinerの出力先)。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	private static class RunCollector implements OutputCollector<Writable, Writable> {
+		private final DataOutput out;
+		private final DataOutputBuffer key = new DataOutputBuffer(), value = new DataOutputBuffer();
+		private long records = 0;
+
+		private RunCollector(DataOutput out) {
+			this.out = out;
+		}
+
+		public void collect(Writable k, Writable v) throws IOException {
+			key.reset();
+			k.write(key);
+			value.reset();
+			v.write(value);
+			append(key.getData(), 0, key.getLength(), value.getData(), 0, value.getLength());
+		}
+
+		private void append(byte[] k, int kStart, int kLength, byte[] v, int vStart, int vLength) throws IOException {
+			WritableUtils.writeVInt(out, kLength);
+			WritableUtils.writeVInt(out, vLength);
+			out.write(k, kStart, kLength);
+			out.write(v, vStart, vLength);
+			records++;
+		}
+
+		private void finish() throws IOException {
+			WritableUtils.writeVInt(out, -1);
+		}
+	}
+
+	/**全タスクのカウンタを集めるReporter。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	private class TaskReporter implements Reporter {
+		private final InputSplit split;
+
+		private TaskReporter(InputSplit split) {
+			this.split = split;
+		}
+
+		public void progress() {}
+
+		public void setStatus(String status) {}
+
+		public Counters.Counter getCounter(Enum<?> name) {
+			return counters.findCounter(name);
+		}
+
+		public Counters.Counter getCounter(String group, String name) {
+			return counters.findCounter(group, name);
+		}
+
+		public void incrCounter(Enum<?> key, long amount) {
+			counters.incrCounter(key, amount);
+		}
+
+		public void incrCounter(String group, String counter, long amount) {
+			counters.incrCounter(group, counter, amount);
+		}
+
+		public InputSplit getInputSplit() throws UnsupportedOperationException {
+			if (split == null) throw new UnsupportedOperationException("Not a map task");
+			return split;
+		}
+	}
+
+	/**Map出力をパーティションごとに溜め、上限を超えたらspillするOutputCollector。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	private class MapOutputBuffer implements OutputCollector<Writable, Writable> {
+		private final JobConf taskJob;
+		private final Reporter reporter;
+		private final Partitioner<Writable, Writable> partitioner;
+		private final SortBuffer[] buffers;
+		private long buffered = 0;
+
+		@SuppressWarnings("unchecked")
+		private MapOutputBuffer(JobConf taskJob, Reporter reporter) {
+			this.taskJob = taskJob;
+			this.reporter = reporter;
+			this.partitioner = ReflectionUtils.newInstance(taskJob.getPartitionerClass(), taskJob);
+			this.buffers = new SortBuffer[partitions];
+			for (int i = 0; i < partitions; i++) buffers[i] = new SortBuffer();
+		}
+
+		public void collect(Writable key, Writable value) throws IOException {
+			int partition = (partitions == 1)? 0 : partitioner.getPartition(key, value, partitions);
+			int bytes = buffers[partition].add(key, value);
+			buffered += bytes;
+			reporter.incrCounter(Counter.MAP_OUTPUT_RECORDS, 1);
+			reporter.incrCounter(Counter.MAP_OUTPUT_BYTES, bytes);
+			if (buffered >= taskLimit) flush(true);
+		}
+
+		/**溜めた分をパーティションごとにソートし、Combinerをかけて断片にする。
+		 * @param spill trueなら必ず一時ファイルに、falseなら全体の上限に収まる限りメモリに置く
+		 * @throws IOException
+		 */
+		private void flush(boolean spill) throws IOException {
+			for (int partition = 0; partition < partitions; partition++) {
+				SortBuffer buffer = buffers[partition];
+				if (buffer.count == 0) continue;
+				buffer.sort(sortComparator);
+				if (!spill && retained.addAndGet(buffer.size()) <= memoryLimit / 2) {
+					DataOutputBuffer out = new DataOutputBuffer(buffer.size() + 16);
+					writeRun(buffer, out);
+					byte[] bytes = Arrays.copyOf(out.getData(), out.getLength());
+					retained.addAndGet(bytes.length - buffer.size());
+					addRun(partition, new Run(bytes));
+				} else {
+					if (!spill) retained.addAndGet(-buffer.size());
+					File file = File.createTempFile("run-" + partition + "-", ".tmp", tempDir);
+					DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), RUN_BUFFER_SIZE));
+					try {
+						writeRun(buffer, out);
+					} finally {
+						out.close();
+					}
+					reporter.incrCounter(Counter.SPILLED_RUNS, 1);
+					reporter.incrCounter(Counter.SPILLED_BYTES, file.length());
+					addRun(partition, new Run(file));
+				}
+				buffer.clear();
+			}
+			buffered = 0;
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private void writeRun(SortBuffer buffer, DataOutput out) throws IOException {
+			RunCollector collector = new RunCollector(out);
+			RecordSource source = buffer.source();
+			if (combinerClass == null) {
+				while (source.next()) {
+					collector.append(source.keyData(), source.keyStart(), source.keyLength(),
+							source.valueData(), source.valueStart(), source.valueLength());
+				}
+			} else {
+				Reducer combiner = ReflectionUtils.newInstance(combinerClass, taskJob);
+				try {
+					long input = reduceAll(source, combiner, sortComparator, null, collector, reporter);
+					reporter.incrCounter(Counter.COMBINE_INPUT_RECORDS, input);
+					reporter.incrCounter(Counter.COMBINE_OUTPUT_RECORDS, collector.records);
+				} finally {
+					combiner.close();
+				}
+			}
+			collector.finish();
+		}
+	}
+
+	private final JobConf job;
+	private final int threads;
+	private final int partitions;
+	private final long memoryLimit;
+	private final long taskLimit;
+	private final RawComparator<?> sortComparator;
+	private final RawComparator<?> groupingComparator;
+	private final Class<? extends Reducer<?, ?, ?, ?>> combinerClass;
+	private final Class<?> mapKeyClass, mapValueClass;
+	private final Counters counters = new Counters();
+	private final AtomicLong retained = new AtomicLong();
+	private final List<List<Run>> runs = new ArrayList<List<Run>>();
+	private final JobID jobId = new JobID("local", (int) (System.currentTimeMillis() / 1000 % 100000));
+	private File tempDir = null;
+
+	/**
+	 * @param job 実行するジョブ。パーティション数はここで書き換えられる
+	 * @param threads 並列に実行するタスクの数
+	 */
+	@SuppressWarnings("unchecked")
+	public LocalJobEngine(JobConf job, int threads) {
+		this.job = job;
+		this.threads = Math.max(1, threads);
+		int reduces = job.getNumReduceTasks();
+		this.partitions = (reduces > this.threads)? this.threads : reduces;
+		job.setNumReduceTasks(partitions);
+		long mb = job.getLong(MEMORY_KEY, Long.getLong(MEMORY_KEY, Runtime.getRuntime().maxMemory() / 4 / (1024 * 1024)));
+		this.memoryLimit = Math.max(1, mb) * 1024 * 1024;
+		this.taskLimit = Math.max(1024 * 1024, memoryLimit / 2 / this.threads);
+		this.sortComparator = job.getOutputKeyComparator();
+		this.groupingComparator = job.getOutputValueGroupingComparator();
+		this.combinerClass = (Class<? extends Reducer<?, ?, ?, ?>>) job.getCombinerClass();
+		this.mapKeyClass = job.getMapOutputKeyClass();
+		this.mapValueClass = job.getMapOutputValueClass();
+		for (int i = 0; i < partitions; i++) runs.add(Collections.synchronizedList(new ArrayList<Run>()));
+	}
+
+	/**ジョブを実行し、カウンタを標準エラー出力に出す。
+	 * @param job
+	 * @param threads
+	 * @throws IOException タスクが失敗した場合
+	 */
+	public static void runJob(JobConf job, int threads) throws IOException {
+		LocalJobEngine engine = new LocalJobEngine(job, threads);
+		long start = System.currentTimeMillis();
+		engine.run();
+		System.err.println("Job " + job.getJobName() + " completed in " + (System.currentTimeMillis() - start) + " ms with "
+				+ engine.threads + " threads, " + engine.partitions + " partitions.");
+		for (Counters.Group group : engine.counters) {
+			System.err.println(group.getDisplayName());
+			for (Counters.Counter counter : group) {
+				System.err.println("\t" + counter.getDisplayName() + "=" + counter.getCounter());
+			}
+		}
+	}
+
+	/**ジョブを実行する。
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	public void run() throws IOException {
+		Path outputPath = FileOutputFormat.getOutputPath(job);
+		FileSystem outFs = outputPath.getFileSystem(job);
+		OutputFormat<Writable, Writable> outputFormat = job.getOutputFormat();
+		outputFormat.checkOutputSpecs(outFs, job);
+		//FileOutputFormatは、タスクの作業ディレクトリの親(_temporary)があることを前提にしている。
+		outFs.mkdirs(new Path(outputPath, FileOutputCommitter.TEMP_DIR_NAME));
+
+		tempDir = File.createTempFile("local-engine-", "");
+		if (!tempDir.delete() || !tempDir.mkdirs()) throw new IOException("Could not create " + tempDir);
+		List<File> links = new ArrayList<File>();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			links = linkCacheFiles();
+
+			InputFormat<Writable, Writable> inputFormat = job.getInputFormat();
+			InputSplit[] splits = inputFormat.getSplits(job, threads * SPLITS_PER_THREAD);
+			List<Future<?>> maps = new ArrayList<Future<?>>();
+			for (int i = 0; i < splits.length; i++) {
+				final int index = i;
+				final InputSplit split = splits[i];
+				maps.add(executor.submit(new Callable<Object>() {
+					public Object call() throws Exception {
+						runMap(index, split);
+						return null;
+					}
+				}));
+			}
+			await(maps);
+
+			if (partitions > 0) {
+				List<Future<?>> reduces = new ArrayList<Future<?>>();
+				for (int i = 0; i < partitions; i++) {
+					final int partition = i;
+					reduces.add(executor.submit(new Callable<Object>() {
+						public Object call() throws Exception {
+							runReduce(partition);
+							return null;
+						}
+					}));
+				}
+				await(reduces);
+			}
+			outFs.delete(new Path(outputPath, FileOutputCommitter.TEMP_DIR_NAME), true);
+		} finally {
+			executor.shutdownNow();
+			FileUtil.fullyDelete(tempDir);
+			for (File link : links) link.delete();
+		}
+	}
+
+	/**全てのタスクの終了を待つ。1つでも失敗していれば、その例外をIOExceptionとして投げる。
+	 * @param futures
+	 * @throws IOException
+	 */
+	private void await(List<Future<?>> futures) throws IOException {
+		IOException failure = null;
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted: " + e);
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					if (e.getCause() instanceof IOException) {
+						failure = (IOException) e.getCause();
+					} else {
+						failure = new IOException(e.getCause().toString());
+						failure.initCause(e.getCause());
+					}
+					for (Future<?> other : futures) other.cancel(true);
+				}
+			}
+		}
+		if (failure != null) throw failure;
+	}
+
+	/**タスクごとのJobConf。タスクIDと、FileOutputFormatが書き込む作業ディレクトリを設定する。
+	 * @param attempt
+	 * @return
+	 */
+	private JobConf taskConf(TaskAttemptID attempt) {
+		JobConf taskJob = new JobConf(job);
+		taskJob.set("mapred.task.id", attempt.toString());
+		taskJob.setBoolean("mapred.task.is.map", attempt.isMap());
+		taskJob.setInt("mapred.task.partition", attempt.getTaskID().getId());
+		taskJob.set("mapred.job.id", jobId.toString());
+		Path outputPath = FileOutputFormat.getOutputPath(job);
+		if (outputPath != null) {
+			taskJob.set("mapred.work.output.dir", workPath(outputPath, attempt).toString());
+		}
+		return taskJob;
+	}
+
+	/* FileOutputCommitterと同じ作業ディレクトリ */
+	private static Path workPath(Path outputPath, TaskAttemptID attempt) {
+		return new Path(outputPath, FileOutputCommitter.TEMP_DIR_NAME + Path.SEPARATOR + "_" + attempt.toString());
+	}
+
+	/**作業ディレクトリに書かれたファイルを出力ディレクトリに移す。
+	 * @param taskJob
+	 * @param attempt
+	 * @throws IOException
+	 */
+	private void commit(JobConf taskJob, TaskAttemptID attempt) throws IOException {
+		Path outputPath = FileOutputFormat.getOutputPath(taskJob);
+		FileSystem fs = outputPath.getFileSystem(taskJob);
+		Path work = workPath(outputPath, attempt);
+		if (!fs.exists(work)) return;
+		for (FileStatus status : fs.listStatus(work)) {
+			Path target = new Path(outputPath, status.getPath().getName());
+			if (!fs.rename(status.getPath(), target)) throw new IOException("Could not commit " + status.getPath() + " to " + target);
+		}
+		fs.delete(work, true);
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private void runMap(int index, InputSplit split) throws IOException {
+		TaskAttemptID attempt = new TaskAttemptID(jobId.getJtIdentifier(), jobId.getId(), true, index, 0);
+		JobConf taskJob = taskConf(attempt);
+		if (split instanceof FileSplit) {
+			FileSplit fileSplit = (FileSplit) split;
+			taskJob.set("map.input.file", fileSplit.getPath().toString());
+			taskJob.setLong("map.input.start", fileSplit.getStart());
+			taskJob.setLong("map.input.length", fileSplit.getLength());
+		}
+		final TaskReporter reporter = new TaskReporter(split);
+		final RecordReader<Writable, Writable> reader = taskJob.getInputFormat().getRecordReader(split, taskJob, reporter);
+		RecordReader<Writable, Writable> counting = new RecordReader<Writable, Writable>() {
+			public boolean next(Writable key, Writable value) throws IOException {
+				if (!reader.next(key, value)) return false;
+				reporter.incrCounter(Counter.MAP_INPUT_RECORDS, 1);
+				return true;
+			}
+
+			public Writable createKey() {
+				return reader.createKey();
+			}
+
+			public Writable createValue() {
+				return reader.createValue();
+			}
+
+			public long getPos() throws IOException {
+				return reader.getPos();
+			}
+
+			public void close() throws IOException {
+				reader.close();
+			}
+
+			public float getProgress() throws IOException {
+				return reader.getProgress();
+			}
+		};
+		MapRunnable runner = ReflectionUtils.newInstance(taskJob.getMapRunnerClass(), taskJob);
+		try {
+			if (partitions == 0) {
+				Path outputPath = FileOutputFormat.getOutputPath(taskJob);
+				final RecordWriter writer = taskJob.getOutputFormat().getRecordWriter(outputPath.getFileSystem(taskJob), taskJob,
+						String.format("part-%05d", index), reporter);
+				try {
+					runner.run(counting, new OutputCollector<Writable, Writable>() {
+						public void collect(Writable key, Writable value) throws IOException {
+							writer.write(key, value);
+							reporter.incrCounter(Counter.OUTPUT_RECORDS, 1);
+						}
+					}, reporter);
+				} finally {
+					writer.close(reporter);
+				}
+				commit(taskJob, attempt);
+			} else {
+				MapOutputBuffer buffer = new MapOutputBuffer(taskJob, reporter);
+				runner.run(counting, buffer, reporter);
+				buffer.flush(false);
+				//Reducerのあるジョブでも、Mapperが作業ディレクトリに書いたファイル(隔離ファイル等)は出力ディレクトリに移す。
+				commit(taskJob, attempt);
+			}
+		} finally {
+			counting.close();
+		}
+		reporter.incrCounter(Counter.MAP_TASKS, 1);
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private void runReduce(int partition) throws IOException {
+		TaskAttemptID attempt = new TaskAttemptID(jobId.getJtIdentifier(), jobId.getId(), false, partition, 0);
+		JobConf taskJob = taskConf(attempt);
+		TaskReporter reporter = new TaskReporter(null);
+		List<Run> partitionRuns = runs.get(partition);
+		List<RunReader> readers = new ArrayList<RunReader>();
+		for (Run run : partitionRuns) readers.add(run.open());
+		MergeSource source = new MergeSource(readers, sortComparator);
+		Path outputPath = FileOutputFormat.getOutputPath(taskJob);
+		final RecordWriter writer = taskJob.getOutputFormat().getRecordWriter(outputPath.getFileSystem(taskJob), taskJob,
+				String.format("part-%05d", partition), reporter);
+		final TaskReporter counting = reporter;
+		Reducer reducer = ReflectionUtils.newInstance(taskJob.getReducerClass(), taskJob);
+		try {
+			long input = reduceAll(source, reducer, groupingComparator, Counter.REDUCE_INPUT_GROUPS, new OutputCollector<Writable, Writable>() {
+				public void collect(Writable key, Writable value) throws IOException {
+					writer.write(key, value);
+					counting.incrCounter(Counter.OUTPUT_RECORDS, 1);
+				}
+			}, reporter);
+			reporter.incrCounter(Counter.REDUCE_INPUT_RECORDS, input);
+		} finally {
+			try {
+				reducer.close();
+			} finally {
+				writer.close(reporter);
+				source.close();
+				for (Run run : partitionRuns) run.release();
+				partitionRuns.clear();
+			}
+		}
+		commit(taskJob, attempt);
+		reporter.incrCounter(Counter.REDUCE_TASKS, 1);
+	}
+
+	/**ソート済のレコードをキーでまとめてReducer(Combiner)にかける。
+	 * @param groupCounter まとめたキーの数を記録するカウンタ(null可)
+	 * @return 読んだレコード数
+	 * @throws IOException
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private long reduceAll(RecordSource source, Reducer reducer, RawComparator<?> grouping, Counter groupCounter,
+			OutputCollector output, Reporter reporter) throws IOException {
+		Writable key = (Writable) ReflectionUtils.newInstance(mapKeyClass, job);
+		Writable value = (Writable) ReflectionUtils.newInstance(mapValueClass, job);
+		DataInputBuffer in = new DataInputBuffer();
+		GroupIterator<Writable> values = new GroupIterator<Writable>(source, grouping, value);
+		boolean more = source.next();
+		while (more) {
+			in.reset(source.keyData(), source.keyStart(), source.keyLength());
+			key.readFields(in);
+			values.start();
+			reducer.reduce(key, values, output, reporter);
+			values.skip();
+			more = values.more;
+			if (groupCounter != null) reporter.incrCounter(groupCounter, 1);
+		}
+		return values.records;
+	}
+
+	private void addRun(int partition, Run run) {
+		runs.get(partition).add(run);
+	}
+
+	/**DistributedCacheのファイルに、カレントディレクトリからリンク名でシンボリックリンクを張る(既にあれば張らない)。<br>
+	 * ローカルでないファイルは一時ディレクトリにコピーしてから張る。
+	 * @return 張ったリンク
+	 * @throws IOException
+	 */
+	private List<File> linkCacheFiles() throws IOException {
+		List<File> links = new ArrayList<File>();
+		URI[] uris = DistributedCache.getCacheFiles(job);
+		if (uris == null) return links;
+		for (URI uri : uris) {
+			String linkname = uri.getFragment();
+			if (linkname == null) continue;
+			File link = new File(linkname);
+			if (link.exists()) {
+				System.err.println("Cache link " + linkname + " already exists. It is used as is.");
+				continue;
+			}
+			Path path = new Path(uri.getScheme(), uri.getAuthority(), uri.getPath());
+			FileSystem fs = path.getFileSystem(job);
+			String target;
+			if (fs.getUri().getScheme().equals("file")) {
+				target = new File(path.toUri().getPath()).getAbsolutePath();
+			} else {
+				File local = new File(tempDir, linkname);
+				fs.copyToLocalFile(path, new Path(local.getAbsolutePath()));
+				target = local.getAbsolutePath();
+			}
+			if (FileUtil.symLink(target, linkname) != 0) throw new IOException("Could not link " + linkname + " to " + target);
+			links.add(link);
+		}
+		return links;
+	}
+
+}
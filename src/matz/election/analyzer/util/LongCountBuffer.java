@@ -0,0 +1,122 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+
+/**LongWritableのKey(ユーザID・時刻等)についてカウントを合計するCountBuffer。<br>
+ * 表はLongIntMapと同じく、long配列とint配列のオープンアドレス法(線形探査)で、1スロット12バイト。add()はオブジェクトを生成しない。<br>
+ * 表は件数に応じて倍々に拡張し、上限のスロット数で埋まったら全て出力して空にする。キー0は空きスロットの印に使うので別に保持する。
+ * @author YuMatsuzawa
+ *
+ */
+public class LongCountBuffer extends CountBuffer<LongWritable> {
+	private static final long EMPTY = 0L;
+	private static final int SLOT_BYTES = 12;
+
+	private long[] keys;
+	private int[] counts;
+	private int mask;
+	private int size = 0;
+	private int zeroCount = 0;
+	private LongWritable outKey = new LongWritable();
+
+	public LongCountBuffer() {
+		allocate(INITIAL_CAPACITY);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		counts = new int[capacity];
+		mask = capacity - 1;
+	}
+
+	private static int hash(long key) {
+		key = (key ^ (key >>> 33)) * 0xFF51AFD7ED558CCDL;
+		key = (key ^ (key >>> 33)) * 0xC4CEB9FE1A85EC53L;
+		return (int) (key ^ (key >>> 33));
+	}
+
+	private int slotOf(long key) {
+		int slot = hash(key) & mask;
+		while (keys[slot] != EMPTY && keys[slot] != key) slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	/**keyのカウントにnを足す。表が上限に達していれば、先に中身を出力する。
+	 * @param key
+	 * @param n
+	 * @param output
+	 * @param reporter
+	 * @throws IOException
+	 */
+	public void add(long key, int n, OutputCollector<LongWritable, IntWritable> output, Reporter reporter) throws IOException {
+		if (bind(output, reporter)) {
+			outKey.set(key);
+			collect(outKey, n);
+			return;
+		}
+		if (key == EMPTY) {
+			zeroCount += n;
+			return;
+		}
+		int slot = slotOf(key);
+		if (keys[slot] == EMPTY) {
+			if ((size + 1) > keys.length * LOAD_FACTOR) {
+				if (keys.length < maxCapacity(memoryLimit, SLOT_BYTES)) {
+					rehash(keys.length << 1);
+				} else {
+					flush();
+				}
+				slot = slotOf(key);
+			}
+			keys[slot] = key;
+			size++;
+		}
+		counts[slot] += n;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		int[] oldCounts = counts;
+		allocate(capacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != EMPTY) {
+				int slot = slotOf(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				counts[slot] = oldCounts[i];
+			}
+		}
+	}
+
+	@Override
+	protected void emitAll() throws IOException {
+		if (zeroCount != 0) {
+			outKey.set(EMPTY);
+			collect(outKey, zeroCount);
+		}
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != EMPTY) {
+				outKey.set(keys[i]);
+				collect(outKey, counts[i]);
+			}
+		}
+	}
+
+	@Override
+	protected void reset() {
+		if (size > 0) {
+			Arrays.fill(keys, EMPTY);
+			Arrays.fill(counts, 0);
+		}
+		size = 0;
+		zeroCount = 0;
+	}
+}
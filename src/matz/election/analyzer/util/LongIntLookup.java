@@ -0,0 +1,28 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+/**ユーザIDから頻度値や意見を引くための参照表。UX/UF/UOリストを保持する。<br>
+ * ヒープ上のハッシュ表(LongIntMap)と、メモリマップしたバイナリファイル(MappedUserList)の2つの実装がある。
+ * @author YuMatsuzawa
+ *
+ */
+public interface LongIntLookup {
+
+	public boolean containsKey(long key);
+
+	/**キーに対応する値を返す。なければdefaultValueを返す。
+	 * @param key
+	 * @param defaultValue
+	 * @return
+	 */
+	public int get(long key, int defaultValue);
+
+	public int size();
+
+	/**任意の1件のキーを返す。空であれば-1。
+	 * @return
+	 */
+	public long anyKey();
+}
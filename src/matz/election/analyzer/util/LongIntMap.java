@@ -0,0 +1,150 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/**long→intのオープンアドレス法(線形探査)によるハッシュ表。<br>
+ * DistributedCacheで配布するUX/UF/UOリスト(ユーザID\t頻度値または意見)の保持に使う。<br>
+ * HashMap&lt;Long, Integer&gt;ではLong/Integer/Entryのオブジェクトで1件あたり80バイト以上を消費し、大きなリストでタスクのヒープを使い切っていた。<br>
+ * この表はlong配列とint配列だけで構成され、1件あたり20バイト程度で済む。get/containsKeyはオブジェクトを生成しない。<br>
+ * キー0は空きスロットの印に使うので、別に保持する。構築後に読むだけなら複数スレッドから同時に使ってよい。
+ * @author YuMatsuzawa
+ *
+ */
+public class LongIntMap implements LongIntLookup {
+	private static final double LOAD_FACTOR = 0.6;
+	private static final long EMPTY = 0L;
+
+	private long[] keys;
+	private int[] values;
+	private int mask;
+	private int size = 0;
+	private boolean hasZero = false;
+	private int zeroValue = 0;
+
+	public LongIntMap() {
+		this(16);
+	}
+
+	/**想定件数を指定して表を作る。件数が増えれば自動で拡張される。
+	 * @param expected
+	 */
+	public LongIntMap(int expected) {
+		int capacity = 16;
+		while (capacity * LOAD_FACTOR < expected) capacity <<= 1;
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new int[capacity];
+		mask = capacity - 1;
+	}
+
+	private static int hash(long key) {
+		key = (key ^ (key >>> 33)) * 0xFF51AFD7ED558CCDL;
+		key = (key ^ (key >>> 33)) * 0xC4CEB9FE1A85EC53L;
+		return (int) (key ^ (key >>> 33));
+	}
+
+	private int slotOf(long key) {
+		int slot = hash(key) & mask;
+		while (keys[slot] != EMPTY && keys[slot] != key) slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	/**値を登録する。既にキーがあれば上書きする。
+	 * @param key
+	 * @param value
+	 */
+	public void put(long key, int value) {
+		if (key == EMPTY) {
+			if (!hasZero) size++;
+			hasZero = true;
+			zeroValue = value;
+			return;
+		}
+		int slot = slotOf(key);
+		if (keys[slot] == EMPTY) {
+			if ((size + 1) > keys.length * LOAD_FACTOR) {
+				rehash(keys.length << 1);
+				slot = slotOf(key);
+			}
+			keys[slot] = key;
+			size++;
+		}
+		values[slot] = value;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		allocate(capacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != EMPTY) {
+				int slot = slotOf(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	public boolean containsKey(long key) {
+		if (key == EMPTY) return hasZero;
+		return keys[slotOf(key)] != EMPTY;
+	}
+
+	/**キーに対応する値を返す。なければdefaultValueを返す。
+	 * @param key
+	 * @param defaultValue
+	 * @return
+	 */
+	public int get(long key, int defaultValue) {
+		if (key == EMPTY) return hasZero? zeroValue : defaultValue;
+		int slot = slotOf(key);
+		return (keys[slot] != EMPTY)? values[slot] : defaultValue;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**任意の1件のキーを返す。空であれば-1。
+	 * @return
+	 */
+	public long anyKey() {
+		if (hasZero) return EMPTY;
+		for (long key : keys) {
+			if (key != EMPTY) return key;
+		}
+		return -1;
+	}
+
+	/**ユーザID\t値という形式のTSVファイルを読み込んで表を作る。
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 * @throws NumberFormatException
+	 */
+	public static LongIntMap readTSV(String path) throws IOException {
+		LongIntMap map = new LongIntMap();
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(path)));
+		try {
+			String line = "";
+			while((line=br.readLine())!=null) {
+				int tab = line.indexOf('\t');
+				int end = line.indexOf('\t', tab + 1);
+				if (end < 0) end = line.length();
+				map.put(Long.parseLong(line.substring(0, tab)), Integer.parseInt(line.substring(tab + 1, end)));
+			}
+		} finally {
+			br.close();
+		}
+		return map;
+	}
+}
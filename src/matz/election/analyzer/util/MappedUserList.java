@@ -0,0 +1,104 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**ユーザIDの昇順に並べた固定長レコード(long ユーザID + int 値)のバイナリファイルを、メモリマップして引く参照表。<br>
+ * ファイルはToUserListジョブ(UserList.ToBinaryMap/Reduce、UserListOutputFormat)で、TSVのUX/UF/UOリストから作る。<br>
+ * TSVを各タスクのconfigure()でパースしてヒープ上の表に詰め直す代わりに、FileChannel.mapで写像して二分探索で引くので、<br>
+ * タスクの起動はほぼ一瞬で、表の実体はヒープ外(ページキャッシュ)に置かれ、同じノード上のタスク間で共有される。<br>
+ * 読み出しは絶対位置指定なので、複数スレッドから同時に使ってよい。
+ * @author YuMatsuzawa
+ *
+ */
+public class MappedUserList implements LongIntLookup {
+	/** ファイル先頭のマジックナンバー("MZUXLST1")。 */
+	public static final long MAGIC = 0x4D5A55584C535431L;
+	public static final int HEADER_SIZE = 8;
+	public static final int RECORD_SIZE = 12;
+
+	private final MappedByteBuffer buffer;
+	private final int size;
+
+	private MappedUserList(MappedByteBuffer buffer, int size) {
+		this.buffer = buffer;
+		this.size = size;
+	}
+
+	/**ファイルがこの形式(マジックナンバーで始まる)かどうかを調べる。
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean isBinary(String path) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(path));
+		try {
+			return in.readLong() == MAGIC;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**ファイルをメモリマップして開く。マップはチャネルを閉じた後も有効である。
+	 * @param path
+	 * @return
+	 * @throws IOException 形式が不正な場合
+	 */
+	public static MappedUserList open(String path) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			long length = channel.size();
+			if (length < HEADER_SIZE || (length - HEADER_SIZE) % RECORD_SIZE != 0 || length > Integer.MAX_VALUE) {
+				throw new IOException("Malformed user list: " + path + " (" + length + " bytes)");
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			if (buffer.getLong(0) != MAGIC) throw new IOException("Not a binary user list: " + path);
+			return new MappedUserList(buffer, (int) ((length - HEADER_SIZE) / RECORD_SIZE));
+		} finally {
+			file.close();
+		}
+	}
+
+	private long keyAt(int index) {
+		return buffer.getLong(HEADER_SIZE + index * RECORD_SIZE);
+	}
+
+	private int indexOf(long key) {
+		int lo = 0, hi = size - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			long midKey = keyAt(mid);
+			if (midKey < key) lo = mid + 1;
+			else if (midKey > key) hi = mid - 1;
+			else return mid;
+		}
+		return -1;
+	}
+
+	public boolean containsKey(long key) {
+		return indexOf(key) >= 0;
+	}
+
+	public int get(long key, int defaultValue) {
+		int index = indexOf(key);
+		return (index >= 0)? buffer.getInt(HEADER_SIZE + index * RECORD_SIZE + 8) : defaultValue;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public long anyKey() {
+		return (size > 0)? keyAt(0) : -1;
+	}
+}
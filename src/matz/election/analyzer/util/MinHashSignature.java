@@ -0,0 +1,141 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+
+/**キー(URLやエンコード済RT文面)と、そのユーザ集合のMinHashシグネチャを組にしたWritable。<br>
+ * i番目の値は、集合中の各ユーザIDをi番目のハッシュ関数にかけた値の最小値(上位32bit)である。<br>
+ * 2つのシグネチャで値が一致する位置の割合が、元の集合のJaccard係数の推定値になる。<br>
+ * ハッシュ関数は固定の種から決まるので、どのノードで計算しても同じユーザ集合には同じシグネチャが得られる。
+ * @author YuMatsuzawa
+ *
+ */
+public class MinHashSignature implements Writable {
+	private static final long SEED = 0x5DEECE66DL;
+	private static long[] seeds = new long[0];
+
+	private String key = "";
+	private int[] values = new int[0];
+
+	public MinHashSignature() {}
+
+	/**num個のハッシュ関数の種を返す。種は固定の乱数列から作るので、呼び出し順やJVMによらず同じになる。
+	 * @param num
+	 * @return
+	 */
+	private static synchronized long[] seeds(int num) {
+		if (seeds.length < num) {
+			long[] newSeeds = new long[num];
+			long state = SEED;
+			for (int i = 0; i < num; i++) {
+				state += 0x9E3779B97F4A7C15L;
+				newSeeds[i] = mix(state);
+			}
+			seeds = newSeeds;
+		}
+		return seeds;
+	}
+
+	/**64bitの値を攪拌する(SplitMix64の最終段)。
+	 * @param z
+	 * @return
+	 */
+	public static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**ユーザ集合からnumHashes個のハッシュ関数によるシグネチャを計算する。
+	 * @param key
+	 * @param users ユーザID配列。重複があってもよい
+	 * @param size 有効な要素数
+	 * @param numHashes
+	 */
+	public void set(String key, long[] users, int size, int numHashes) {
+		this.key = key;
+		if (values.length != numHashes) values = new int[numHashes];
+		Arrays.fill(values, Integer.MAX_VALUE);
+		long[] seeds = seeds(numHashes);
+		for (int u = 0; u < size; u++) {
+			long base = mix(users[u]);
+			for (int i = 0; i < numHashes; i++) {
+				int h = (int) (mix(base ^ seeds[i]) >>> 33);
+				if (h < values[i]) values[i] = h;
+			}
+		}
+	}
+
+	/**他のインスタンスの内容を写す。
+	 * @param other
+	 */
+	public void set(MinHashSignature other) {
+		key = other.key;
+		values = Arrays.copyOf(other.values, other.values.length);
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public int[] getValues() {
+		return values;
+	}
+
+	public int length() {
+		return values.length;
+	}
+
+	/**from番目からto番目(含まない)までの値が他のシグネチャと全て一致するか。
+	 * @param other
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public boolean agrees(MinHashSignature other, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (values[i] != other.values[i]) return false;
+		}
+		return true;
+	}
+
+	/**値が一致する位置の割合、すなわちJaccard係数の推定値。
+	 * @param other
+	 * @return
+	 */
+	public double estimate(MinHashSignature other) {
+		int same = 0, len = Math.min(values.length, other.values.length);
+		for (int i = 0; i < len; i++) {
+			if (values[i] == other.values[i]) same++;
+		}
+		return (double) same / (double) len;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		Text.writeString(out, key);
+		out.writeInt(values.length);
+		for (int value : values) out.writeInt(value);
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		key = Text.readString(in);
+		int len = in.readInt();
+		if (values.length != len) values = new int[len];
+		for (int i = 0; i < len; i++) values[i] = in.readInt();
+	}
+
+	@Override
+	public String toString() {
+		return key + "\t" + Arrays.toString(values);
+	}
+}
@@ -0,0 +1,28 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+import java.io.IOException;
+
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+
+/**RecordMonitorを持つMapReduceBase。読めないレコードをmonitorに記録するMapper/Reducerはこれを継承する。<br>
+ * configure()/close()をオーバーライドする場合は、superのものを呼ぶこと。
+ * @author YuMatsuzawa
+ *
+ */
+public class MonitoredMapReduceBase extends MapReduceBase {
+	protected final RecordMonitor monitor = new RecordMonitor(getClass());
+
+	@Override
+	public void configure(JobConf job) {
+		monitor.configure(job);
+	}
+
+	@Override
+	public void close() throws IOException {
+		monitor.close();
+	}
+}
@@ -0,0 +1,158 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Random;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+
+/**Mapperが読めなかったレコードや読み飛ばしたレコードを、ログに書かずにHadoopのカウンタと隔離ファイルに記録する。<br>
+ * 以前は読めないレコードごとにprintStackTrace()(とレコード全体の出力)をしていたので、汚れた入力ではタスクログが数GBになり、map自体も遅くなっていた。<br>
+ * 件数はRecordMonitor.Counterのカウンタに記録する。読めなかったレコードは、タスクごとに最大quarantine.sample件(既定20件)を一様に抽出してメモリに持っておき、
+ * close()で出力ディレクトリの"_quarantine-<Mapper名>-<タスクID>"に書く。"_"で始まるファイルは後段のジョブの入力には含まれない。<br>
+ * 隔離ファイルは1行1レコードで、"種別\t例外\tKey\tValue"(長すぎるものは切り詰め、タブ・改行は空白に置き換える)。<br>
+ * quarantine.sampleを0にすると隔離ファイルは書かない。出力ディレクトリのないジョブ(ベンチマーク等)でも書かない。
+ * @author YuMatsuzawa
+ *
+ */
+public class RecordMonitor {
+	public static final String SAMPLE_KEY = "quarantine.sample";
+	public static final int DEFAULT_SAMPLE = 20;
+	public static final String QUARANTINE_PREFIX = "_quarantine-";
+	private static final int MAX_CHARS = 2000;
+
+	/**レコードの処理状況を表すカウンタ。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static enum Counter {
+		/** JSON・CSV等のパースに失敗したレコード数 */
+		PARSE_ERRORS,
+		/** パースはできたが、処理の途中で例外が出たレコード数 */
+		RECORD_ERRORS,
+		/** レコードの中の読めない要素(CSV中の不正なユーザID等)を読み飛ばした数 */
+		BAD_FIELDS,
+		/** 条件に合わず(必要な値が未取得等)読み飛ばしたレコード数 */
+		SKIPPED,
+		/** フィルタを通ったレコード数 */
+		FILTER_PASSED,
+		/** フィルタで落としたレコード数 */
+		FILTER_REJECTED,
+		/** 隔離ファイルに書いたレコード数 */
+		QUARANTINED
+	}
+
+	private final String stage;
+	private JobConf job = null;
+	private String[] samples = new String[DEFAULT_SAMPLE];
+	private long seen = 0;
+	private Random random = new Random(0);
+	private Reporter reporter = Reporter.NULL;
+
+	/**
+	 * @param stage 記録するMapper等のクラス。隔離ファイルの名前に使う。
+	 */
+	public RecordMonitor(Class<?> stage) {
+		this.stage = stage.getSimpleName();
+	}
+
+	/**ジョブ設定から抽出件数と出力先を読む。Mapperのconfigure()で呼ぶ。
+	 * @param job
+	 */
+	public void configure(JobConf job) {
+		this.job = job;
+		this.samples = new String[Math.max(0, job.getInt(SAMPLE_KEY, DEFAULT_SAMPLE))];
+		this.random = new Random(job.getInt("mapred.task.partition", 0));
+	}
+
+	/**パースできなかったレコードを記録する。
+	 * @param key
+	 * @param value
+	 * @param e
+	 * @param reporter
+	 */
+	public void parseError(Object key, Object value, Exception e, Reporter reporter) {
+		bad(Counter.PARSE_ERRORS, key, value, e, reporter);
+	}
+
+	/**処理の途中で例外が出たレコードを記録する。
+	 * @param key
+	 * @param value
+	 * @param e
+	 * @param reporter
+	 */
+	public void recordError(Object key, Object value, Exception e, Reporter reporter) {
+		bad(Counter.RECORD_ERRORS, key, value, e, reporter);
+	}
+
+	/**レコードの中の読めない要素を1つ読み飛ばしたことを記録する。隔離ファイルには書かない。
+	 * @param reporter
+	 */
+	public void badField(Reporter reporter) {
+		reporter.incrCounter(Counter.BAD_FIELDS, 1);
+	}
+
+	/**レコードを読み飛ばしたことを記録する。
+	 * @param reporter
+	 */
+	public void skip(Reporter reporter) {
+		reporter.incrCounter(Counter.SKIPPED, 1);
+	}
+
+	/**フィルタの結果を記録し、そのまま返す。
+	 * @param passed
+	 * @param reporter
+	 * @return passed
+	 */
+	public boolean filter(boolean passed, Reporter reporter) {
+		reporter.incrCounter(passed? Counter.FILTER_PASSED : Counter.FILTER_REJECTED, 1);
+		return passed;
+	}
+
+	/**件数を数え、リザーバ抽出で隔離ファイルに書くレコードを選ぶ。選ばれた場合だけレコードを文字列にする。
+	 */
+	private void bad(Counter counter, Object key, Object value, Exception e, Reporter reporter) {
+		reporter.incrCounter(counter, 1);
+		if (samples.length == 0) return;
+		this.reporter = reporter;
+		seen++;
+		int slot = (seen <= samples.length)? (int) (seen - 1) : (int) (random.nextDouble() * seen);
+		if (slot < samples.length) {
+			samples[slot] = counter + "\t" + clip(String.valueOf(e)) + "\t" + clip(String.valueOf(key)) + "\t" + clip(String.valueOf(value));
+		}
+	}
+
+	private static String clip(String str) {
+		if (str.length() > MAX_CHARS) str = str.substring(0, MAX_CHARS) + "...";
+		return str.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+	}
+
+	/**抽出したレコードを隔離ファイルに書く。Mapperのclose()で呼ぶ。書いた件数は、最後に受け取ったReporterのカウンタに記録する。
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if (seen == 0 || job == null) return;
+		Path dir = FileOutputFormat.getWorkOutputPath(job);
+		if (dir == null) return;
+		int n = (int) Math.min(seen, samples.length);
+		Path file = new Path(dir, QUARANTINE_PREFIX + stage + "-" + job.get("mapred.task.id", "local"));
+		FileSystem fs = file.getFileSystem(job);
+		PrintWriter pw = new PrintWriter(new OutputStreamWriter(fs.create(file), "UTF-8"));
+		try {
+			pw.println("# " + stage + "\t" + seen + " bad records, " + n + " sampled");
+			for (int i = 0; i < n; i++) pw.println(samples[i]);
+		} finally {
+			pw.close();
+		}
+		reporter.incrCounter(Counter.QUARANTINED, n);
+		seen = 0;
+	}
+}
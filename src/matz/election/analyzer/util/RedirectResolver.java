@@ -0,0 +1,334 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**短縮URL等のリダイレクトを、自動転送を切ったHTTPコネクションで1ホップずつ辿って最終的なURLを求めるクラス。<br>
+ * 各ホップはまずHEADで問い合わせ、サーバがHEADを受け付けない(405/501)場合だけGETで問い合わせ直す。<br>
+ * 応答の本体は読み切ってから閉じ、disconnect()は呼ばないので、同じホストへの次の接続はJDKのKeep-Aliveキャッシュから再利用される。<br>
+ * ホップ数の上限、同じURLへの再訪(リダイレクトループ)の検出、URL1件あたりの制限時間を持つ。<br>
+ * HostSchedulerを与えた場合は、各ホップの前に接続先ホストごとのレート制限・同時接続数・DNSキャッシュ・サーキットブレーカによる許可を得る。<br>
+ * 許可を待つ時間もURL1件あたりの制限時間に含まれる。<br>
+ * 状態を持たないので、複数スレッドから同時に使ってよい(AsyncURLExpander参照)。
+ * @author YuMatsuzawa
+ *
+ */
+public class RedirectResolver {
+	public static final int DEFAULT_MAX_HOPS = 10;
+	public static final int DEFAULT_HOP_TIMEOUT = 10 * 1000;
+	public static final int DEFAULT_URL_TIMEOUT = 30 * 1000;
+	/* Keep-Aliveのために読み捨てる応答本体の上限。これを超える本体は読み捨てずに閉じる(その接続は再利用されない)。 */
+	private static final int DRAIN_LIMIT = 64 * 1024;
+	/* HttpURLConnectionに定数がない */
+	private static final int TOO_MANY_REQUESTS = 429;
+
+	/**ホストの不調を表す応答コードか。5xxと429は時間を置けば結果が変わりうるので、HostSchedulerに失敗として報告し、URLResolutionCacheにも残さない。<br>
+	 * 404・410等の4xxはリンク切れで、ホスト自体は正常に応答しているとみなす。
+	 * @param status
+	 * @return
+	 */
+	public static boolean isTemporaryFailure(int status) {
+		return status >= 500 || status == TOO_MANY_REQUESTS;
+	}
+
+	/**URL1件の展開結果の種類。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static enum Outcome {
+		/** リダイレクトでない応答(2xx、4xx等を含む)に到達した */
+		RESOLVED,
+		/** 一度辿ったURLに戻ってきた */
+		LOOP,
+		/** ホップ数の上限を超えた */
+		TOO_MANY_HOPS,
+		/** URLとして解釈できない、またはHTTP(S)でない */
+		MALFORMED,
+		/** 接続・通信に失敗した */
+		UNREACHABLE,
+		/** 制限時間を超えた */
+		TIMEOUT
+	}
+
+	/**1ホップ分の応答。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class Hop {
+		private final int status;
+		private final String location;
+		private final Map<String, List<String>> headers;
+
+		private Hop(int status, String location, Map<String, List<String>> headers) {
+			this.status = status;
+			this.location = location;
+			this.headers = headers;
+		}
+
+		/**HTTPステータスコード。HTTPとして解釈できない応答なら-1。
+		 * @return
+		 */
+		public int getStatus() {
+			return status;
+		}
+
+		/**3xx応答のLocationヘッダ(相対URLのまま)。リダイレクトでなければnull。
+		 * @return
+		 */
+		public String getLocation() {
+			return location;
+		}
+
+		public Map<String, List<String>> getHeaders() {
+			return headers;
+		}
+	}
+
+	/**URL1件の展開結果。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class Result {
+		private final String url;
+		private final String target;
+		private final int hops;
+		private final int status;
+		private final Outcome outcome;
+		private final long millis;
+
+		public Result(String url, String target, int hops, int status, Outcome outcome, long millis) {
+			this.url = url;
+			this.target = target;
+			this.hops = hops;
+			this.status = status;
+			this.outcome = outcome;
+			this.millis = millis;
+		}
+
+		/**展開を依頼したURL。
+		 * @return
+		 */
+		public String getUrl() {
+			return url;
+		}
+
+		/**RESOLVEDなら最終的なURL。LOOP/TOO_MANY_HOPS/MALFORMEDなら元のURL。<br>
+		 * UNREACHABLE/TIMEOUTなら失敗した時点で辿っていたURL(最初のホップで失敗すれば元のURL)。
+		 * @return
+		 */
+		public String getTarget() {
+			return target;
+		}
+
+		/**辿ったリダイレクトの数。
+		 * @return
+		 */
+		public int getHops() {
+			return hops;
+		}
+
+		/**最後に得られたHTTPステータスコード。応答がなければ-1。
+		 * @return
+		 */
+		public int getStatus() {
+			return status;
+		}
+
+		public Outcome getOutcome() {
+			return outcome;
+		}
+
+		public boolean isResolved() {
+			return outcome == Outcome.RESOLVED;
+		}
+
+		/**展開にかかった時間(ミリ秒)。
+		 * @return
+		 */
+		public long getMillis() {
+			return millis;
+		}
+
+		@Override
+		public String toString() {
+			return outcome + "\t" + hops + "\t" + status + "\t" + url + "\t" + target;
+		}
+	}
+
+	private final int maxHops;
+	private final int hopTimeout;
+	private final int urlTimeout;
+	private final HostScheduler scheduler;
+
+	public RedirectResolver() {
+		this(DEFAULT_MAX_HOPS, DEFAULT_HOP_TIMEOUT, DEFAULT_URL_TIMEOUT, null);
+	}
+
+	/**
+	 * @param scheduler 接続先ホストごとの調停を行うスケジューラ(null可)
+	 */
+	public RedirectResolver(HostScheduler scheduler) {
+		this(DEFAULT_MAX_HOPS, DEFAULT_HOP_TIMEOUT, DEFAULT_URL_TIMEOUT, scheduler);
+	}
+
+	/**
+	 * @param maxHops 辿るリダイレクトの上限
+	 * @param hopTimeout 1ホップあたりの接続・読み込みのタイムアウト(ミリ秒)
+	 * @param urlTimeout URL1件あたりの制限時間(ミリ秒)
+	 */
+	public RedirectResolver(int maxHops, int hopTimeout, int urlTimeout) {
+		this(maxHops, hopTimeout, urlTimeout, null);
+	}
+
+	/**
+	 * @param maxHops 辿るリダイレクトの上限
+	 * @param hopTimeout 1ホップあたりの接続・読み込みのタイムアウト(ミリ秒)
+	 * @param urlTimeout URL1件あたりの制限時間(ミリ秒)
+	 * @param scheduler 接続先ホストごとの調停を行うスケジューラ(null可)
+	 */
+	public RedirectResolver(int maxHops, int hopTimeout, int urlTimeout, HostScheduler scheduler) {
+		this.maxHops = maxHops;
+		this.hopTimeout = hopTimeout;
+		this.urlTimeout = urlTimeout;
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * @return スケジューラ。与えられていなければnull
+	 */
+	public HostScheduler getScheduler() {
+		return scheduler;
+	}
+
+	/**リダイレクトを辿ってURLを展開する。例外は投げず、失敗はResultのOutcomeで表す。
+	 * @param url
+	 * @return
+	 */
+	public Result resolve(String url) {
+		long start = System.currentTimeMillis(), deadline = start + urlTimeout;
+		HashSet<String> visited = new HashSet<String>();
+		String current = url;
+		int hops = 0, status = -1;
+		while (true) {
+			if (!visited.add(current)) return new Result(url, url, hops, status, Outcome.LOOP, System.currentTimeMillis() - start);
+			if (hops > maxHops) return new Result(url, url, hops, status, Outcome.TOO_MANY_HOPS, System.currentTimeMillis() - start);
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) return new Result(url, current, hops, status, Outcome.TIMEOUT, System.currentTimeMillis() - start);
+			try {
+				Hop hop = scheduledProbe(current, deadline);
+				status = hop.getStatus();
+				if (hop.getLocation() == null) return new Result(url, current, hops, status, Outcome.RESOLVED, System.currentTimeMillis() - start);
+				current = new URL(new URL(current), hop.getLocation()).toString();
+				hops++;
+			} catch (MalformedURLException e) {
+				Outcome outcome = (hops == 0)? Outcome.MALFORMED : Outcome.UNREACHABLE;
+				return new Result(url, (hops == 0)? url : current, hops, status, outcome, System.currentTimeMillis() - start);
+			} catch (SocketTimeoutException e) {
+				return new Result(url, current, hops, status, Outcome.TIMEOUT, System.currentTimeMillis() - start);
+			} catch (IOException e) {
+				return new Result(url, current, hops, status, Outcome.UNREACHABLE, System.currentTimeMillis() - start);
+			} catch (RuntimeException e) {
+				// URLやヘッダが不正な場合に、JDKの内部で非検査例外が出ることがある。
+				return new Result(url, current, hops, status, Outcome.UNREACHABLE, System.currentTimeMillis() - start);
+			}
+		}
+	}
+
+	/**URLに1回だけ問い合わせる(リダイレクトは辿らない)。HEADを受け付けないサーバにはGETで問い合わせ直す。
+	 * @param url
+	 * @return
+	 * @throws MalformedURLException URLが不正、またはHTTP(S)でない場合
+	 * @throws IOException
+	 */
+	public Hop probe(String url) throws IOException {
+		return probe(url, hopTimeout);
+	}
+
+	/**スケジューラがあれば許可を得てから問い合わせ、応答の成否を記録する。
+	 * @param url
+	 * @param deadline URL1件あたりの期限(エポックミリ秒)
+	 * @return
+	 * @throws IOException
+	 */
+	private Hop scheduledProbe(String url, long deadline) throws IOException {
+		if (scheduler == null) return probe(url, timeoutUntil(deadline));
+		URL target = new URL(url);
+		String protocol = target.getProtocol();
+		if (!"http".equals(protocol) && !"https".equals(protocol)) throw new MalformedURLException("Not an HTTP URL: " + url);
+		HostScheduler.Permit permit = scheduler.acquire(target.getHost(), deadline);
+		boolean success = false;
+		try {
+			Hop hop = probe(url, timeoutUntil(deadline));
+			success = !isTemporaryFailure(hop.getStatus());
+			return hop;
+		} finally {
+			permit.release(success);
+		}
+	}
+
+	private int timeoutUntil(long deadline) throws SocketTimeoutException {
+		long remaining = deadline - System.currentTimeMillis();
+		if (remaining <= 0) throw new SocketTimeoutException("Deadline exceeded");
+		return (int) Math.min(hopTimeout, remaining);
+	}
+
+	private Hop probe(String url, int timeout) throws IOException {
+		URL target = new URL(url);
+		Hop hop = request(target, "HEAD", timeout);
+		if (hop.getStatus() == HttpURLConnection.HTTP_BAD_METHOD || hop.getStatus() == HttpURLConnection.HTTP_NOT_IMPLEMENTED) {
+			hop = request(target, "GET", timeout);
+		}
+		return hop;
+	}
+
+	private Hop request(URL url, String method, int timeout) throws IOException {
+		URLConnection connection = url.openConnection();
+		if (!(connection instanceof HttpURLConnection)) throw new MalformedURLException("Not an HTTP URL: " + url);
+		HttpURLConnection conn = (HttpURLConnection) connection;
+		conn.setInstanceFollowRedirects(false);
+		conn.setConnectTimeout(timeout);
+		conn.setReadTimeout(timeout);
+		conn.setRequestMethod(method);
+		try {
+			int status = conn.getResponseCode();
+			String location = (status >= 300 && status < 400)? conn.getHeaderField("Location") : null;
+			Hop hop = new Hop(status, location, conn.getHeaderFields());
+			release(conn, status);
+			return hop;
+		} catch (IOException e) {
+			conn.disconnect();
+			throw e;
+		}
+	}
+
+	/**応答本体を読み捨てて閉じ、接続をKeep-Aliveキャッシュに返す。
+	 * @param conn
+	 * @param status
+	 */
+	private static void release(HttpURLConnection conn, int status) {
+		try {
+			InputStream in = (status >= 400)? conn.getErrorStream() : conn.getInputStream();
+			if (in == null) return;
+			try {
+				byte[] buf = new byte[4096];
+				int total = 0, read;
+				while (total < DRAIN_LIMIT && (read = in.read(buf)) >= 0) total += read;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			conn.disconnect();
+		}
+	}
+}
@@ -0,0 +1,431 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**URL展開・タイトル取得を、インターネットに接続せずに試すためのローカルHTTPサーバ。<br>
+ * 記録したコーパス(リダイレクトの連鎖、各応答の遅延、HTMLページのタイトル)を、記録した通りのステータス・遅延で再生する。<br>
+ * コーパスはタブ区切りのテキストで、1行が1つのパスへの応答を表す。<br>
+ * <path>\t<status>\t<遅延(ミリ秒)>\t<3xxならLocation、それ以外ならページのタイトル>[\t<フラグ(カンマ区切り)>]<br>
+ * フラグ"entry"のある行は展開を始めるURL(短縮URL等)、"nohead"のある行はHEADに405を返す。コーパスにないパスには404を返す。<br>
+ * 外部のURL(http://host/path)は、このサーバ上の"/host/path"として記録する。Locationは"/"で始まるパスで書く。<br>
+ * mainから以下のように使う。<br>
+ * record <URLリスト> <コーパス>: URLリストの各URLを実際に辿って(GETで)コーパスに記録する。<br>
+ * generate <件数> <コーパス>[ <seed>]: 連鎖・ループ・404・遅いホスト・HEAD非対応等を含む合成コーパスを作る。<br>
+ * serve <コーパス> <port>: コーパスを再生するサーバを起動する。<br>
+ * ベンチマークはURLBenchmark(matz.election.analyzerパッケージ)を参照。
+ * @author YuMatsuzawa
+ *
+ */
+public class ReplayHTTPServer {
+	public static final String FLAG_ENTRY = "entry";
+	public static final String FLAG_NO_HEAD = "nohead";
+	/* 記録時に辿るリダイレクトの上限 */
+	private static final int RECORD_MAX_HOPS = 15;
+	/* 合成コーパスの応答しないホストの遅延 */
+	private static final long HANG_LATENCY = 2 * RedirectResolver.DEFAULT_HOP_TIMEOUT;
+
+	/**コーパスの1行(1つのパスへの応答)。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class Entry {
+		private final String path;
+		private final int status;
+		private final long latency;
+		private final String text;
+		private final boolean entry;
+		private final boolean noHead;
+
+		public Entry(String path, int status, long latency, String text, boolean entry, boolean noHead) {
+			this.path = path;
+			this.status = status;
+			this.latency = latency;
+			this.text = (text == null)? "" : text.replaceAll("[\\t\\r\\n]", " ");
+			this.entry = entry;
+			this.noHead = noHead;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		public long getLatency() {
+			return latency;
+		}
+
+		public boolean isRedirect() {
+			return status >= 300 && status < 400;
+		}
+
+		/**3xxならLocation、それ以外ならページのタイトル。
+		 * @return
+		 */
+		public String getText() {
+			return text;
+		}
+
+		public boolean isEntry() {
+			return entry;
+		}
+
+		public boolean isNoHead() {
+			return noHead;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder flags = new StringBuilder();
+			if (entry) flags.append(FLAG_ENTRY);
+			if (noHead) flags.append((flags.length() > 0)? "," : "").append(FLAG_NO_HEAD);
+			return path + "\t" + status + "\t" + latency + "\t" + text + ((flags.length() > 0)? "\t" + flags : "");
+		}
+
+		private byte[] body() {
+			if (isRedirect()) return new byte[0];
+			String html = "<html><head><title>" + text + "</title></head><body><p>" + text + "</p></body></html>";
+			try {
+				return html.getBytes("UTF-8");
+			} catch (IOException e) {
+				return html.getBytes();
+			}
+		}
+	}
+
+	private final LinkedHashMap<String, Entry> corpus = new LinkedHashMap<String, Entry>();
+	private HttpServer server = null;
+	private ExecutorService executor = null;
+
+	public ReplayHTTPServer(List<Entry> entries) {
+		for (Entry entry : entries) corpus.put(entry.getPath(), entry);
+	}
+
+	/**コーパスのファイルを読み込む。空行と#で始まる行は無視する。
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<Entry> load(String file) throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (line.isEmpty() || line.startsWith("#")) continue;
+				String[] cols = line.split("\t");
+				if (cols.length < 3) {
+					System.err.println("Skipped corpus line:\t" + line);
+					continue;
+				}
+				String flags = (cols.length > 4)? "," + cols[4] + "," : "";
+				entries.add(new Entry(cols[0], Integer.parseInt(cols[1]), Long.parseLong(cols[2]), (cols.length > 3)? cols[3] : "",
+						flags.contains("," + FLAG_ENTRY + ","), flags.contains("," + FLAG_NO_HEAD + ",")));
+			}
+		} finally {
+			br.close();
+		}
+		return entries;
+	}
+
+	/**コーパスをファイルに書き出す。
+	 * @param entries
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void save(List<Entry> entries, String file) throws IOException {
+		PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try {
+			for (Entry entry : entries) pw.println(entry);
+		} finally {
+			pw.close();
+		}
+	}
+
+	/**合成コーパスを作る。num件の展開開始URLのうち、おおよそ以下の割合で各種の応答を含む。<br>
+	 * 1-3ホップの連鎖でページに到達(55%)、リダイレクトなしのページ(10%)、連鎖の先が404(10%)、リダイレクトループ(5%)、<br>
+	 * 12ホップの連鎖(5%)、HEAD非対応のサーバ(5%)、遅いホスト(1-3秒の遅延、8%)、応答しないホスト(RedirectResolverのタイムアウトより長い遅延、2%)。<br>
+	 * 通常の応答の遅延は5-50ミリ秒とする。
+	 * @param num
+	 * @param seed
+	 * @return
+	 */
+	public static List<Entry> synthetic(int num, long seed) {
+		Random random = new Random(seed);
+		List<Entry> entries = new ArrayList<Entry>();
+		for (int i = 0; i < num; i++) {
+			String base = "/s" + i;
+			int kind = random.nextInt(100);
+			if (kind < 55) {
+				chain(entries, random, base, 1 + random.nextInt(3), 200, false, 0);
+			} else if (kind < 65) {
+				entries.add(new Entry(base, 200, latency(random), "Page " + i, true, false));
+			} else if (kind < 75) {
+				chain(entries, random, base, 1, 404, false, 0);
+			} else if (kind < 80) {
+				entries.add(new Entry(base, 301, latency(random), base + "/a", true, false));
+				entries.add(new Entry(base + "/a", 302, latency(random), base, false, false));
+			} else if (kind < 85) {
+				chain(entries, random, base, 12, 200, false, 0);
+			} else if (kind < 90) {
+				chain(entries, random, base, 1, 200, true, 0);
+			} else if (kind < 98) {
+				chain(entries, random, base, 1, 200, false, 1000 + random.nextInt(2000));
+			} else {
+				entries.add(new Entry(base, 200, HANG_LATENCY, "Hang " + i, true, false));
+			}
+		}
+		return entries;
+	}
+
+	private static void chain(List<Entry> entries, Random random, String base, int hops, int status, boolean noHead, long extraLatency) {
+		for (int hop = 0; hop < hops; hop++) {
+			String path = (hop == 0)? base : base + "/" + hop;
+			entries.add(new Entry(path, (hop % 2 == 0)? 301 : 302, latency(random) + extraLatency, base + "/" + (hop + 1), hop == 0, noHead));
+		}
+		entries.add(new Entry(base + "/" + hops, status, latency(random) + extraLatency, (status == 200)? "Page " + base : "Not Found", false, noHead));
+	}
+
+	private static long latency(Random random) {
+		return 5 + random.nextInt(46);
+	}
+
+	/**URLリストの各URLを実際に辿り、各ホップの応答と遅延をコーパスとして記録する。<br>
+	 * 自動転送を切ったGETで1ホップずつ辿り、最後に到達したHTMLページのタイトルを記録する。接続できなかったホップは記録しない(再生時は404になる)。
+	 * @param urls
+	 * @param timeout 1ホップあたりのタイムアウト(ミリ秒)
+	 * @return
+	 */
+	public static List<Entry> record(List<String> urls, int timeout) {
+		LinkedHashMap<String, Entry> recorded = new LinkedHashMap<String, Entry>();
+		for (String url : urls) {
+			String current = url;
+			boolean first = true;
+			for (int hop = 0; hop < RECORD_MAX_HOPS; hop++) {
+				String path = localPath(current);
+				if (path == null) break;
+				if (recorded.containsKey(path)) {
+					if (first) {
+						Entry known = recorded.get(path);
+						recorded.put(path, new Entry(path, known.getStatus(), known.getLatency(), known.getText(), true, known.isNoHead()));
+					}
+					break;
+				}
+				HttpURLConnection conn = null;
+				try {
+					long start = System.currentTimeMillis();
+					conn = (HttpURLConnection) new URL(current).openConnection();
+					conn.setInstanceFollowRedirects(false);
+					conn.setConnectTimeout(timeout);
+					conn.setReadTimeout(timeout);
+					int status = conn.getResponseCode();
+					long latency = System.currentTimeMillis() - start;
+					String location = (status >= 300 && status < 400)? conn.getHeaderField("Location") : null;
+					if (location != null) {
+						String next = new URL(new URL(current), location).toString();
+						recorded.put(path, new Entry(path, status, latency, localPath(next), first, false));
+						current = next;
+						first = false;
+						continue;
+					}
+					String title = "";
+					String contentType = conn.getContentType();
+					if (status < 400 && contentType != null && contentType.startsWith("text/html")) {
+						InputStream in = conn.getInputStream();
+						try {
+							Document doc = Jsoup.parse(in, null, current);
+							title = doc.title();
+						} finally {
+							in.close();
+						}
+					}
+					recorded.put(path, new Entry(path, status, latency, title, first, false));
+				} catch (Exception e) {
+					System.err.println("Could not record:\t" + current + "\t" + e);
+				} finally {
+					if (conn != null) conn.disconnect();
+				}
+				break;
+			}
+		}
+		return new ArrayList<Entry>(recorded.values());
+	}
+
+	/**外部のURLを、このサーバ上のパス("/host/path?query")に変換する。HTTP(S)でなければnull。
+	 * @param url
+	 * @return
+	 */
+	public static String localPath(String url) {
+		try {
+			URI uri = new URI(url);
+			if (!"http".equalsIgnoreCase(uri.getScheme()) && !"https".equalsIgnoreCase(uri.getScheme())) return null;
+			if (uri.getHost() == null) return null;
+			String path = (uri.getRawPath() == null || uri.getRawPath().isEmpty())? "/" : uri.getRawPath();
+			return "/" + uri.getHost().toLowerCase() + path + ((uri.getRawQuery() != null)? "?" + uri.getRawQuery() : "");
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**サーバを起動する。
+	 * @param port 0なら空いているポート
+	 * @throws IOException
+	 */
+	public synchronized void start(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 128);
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange);
+			}
+		});
+		server.start();
+	}
+
+	private void serve(HttpExchange exchange) throws IOException {
+		try {
+			URI uri = exchange.getRequestURI();
+			String path = uri.getRawPath() + ((uri.getRawQuery() != null)? "?" + uri.getRawQuery() : "");
+			Entry entry = corpus.get(path);
+			boolean head = "HEAD".equals(exchange.getRequestMethod());
+			if (entry == null) {
+				exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_FOUND, -1);
+				return;
+			}
+			if (entry.getLatency() > 0) {
+				try {
+					Thread.sleep(entry.getLatency());
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			if (head && entry.isNoHead()) {
+				exchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_METHOD, -1);
+				return;
+			}
+			if (entry.isRedirect()) {
+				exchange.getResponseHeaders().set("Location", entry.getText());
+				exchange.sendResponseHeaders(entry.getStatus(), -1);
+				return;
+			}
+			byte[] body = entry.body();
+			exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+			if (head) {
+				exchange.sendResponseHeaders(entry.getStatus(), -1);
+			} else {
+				exchange.sendResponseHeaders(entry.getStatus(), body.length);
+				OutputStream os = exchange.getResponseBody();
+				os.write(body);
+				os.close();
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**このサーバ上のパスをURLにする。
+	 * @param path
+	 * @return
+	 */
+	public String url(String path) {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+	}
+
+	/**展開を始めるURL(フラグentryのある行)の一覧。
+	 * @return
+	 */
+	public List<String> entryURLs() {
+		List<String> urls = new ArrayList<String>();
+		for (Entry entry : corpus.values()) {
+			if (entry.isEntry()) urls.add(url(entry.getPath()));
+		}
+		return urls;
+	}
+
+	/**コーパスの行。
+	 * @param path
+	 * @return なければnull
+	 */
+	public Entry entry(String path) {
+		return corpus.get(path);
+	}
+
+	/**サーバを止める。遅延中の応答は打ち切る。
+	 */
+	public synchronized void stop() {
+		if (server != null) {
+			server.stop(0);
+			executor.shutdownNow();
+			server = null;
+		}
+	}
+
+	/**
+	 * @param args record <URLリスト> <コーパス> | generate <件数> <コーパス>[ <seed>] | serve <コーパス> <port>
+	 */
+	public static void main(String[] args) {
+		try {
+			if (args.length >= 3 && args[0].equals("record")) {
+				List<String> urls = new ArrayList<String>();
+				BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(args[1]), "UTF-8"));
+				try {
+					String line;
+					while ((line = br.readLine()) != null) {
+						if (!line.trim().isEmpty()) urls.add(line.trim());
+					}
+				} finally {
+					br.close();
+				}
+				List<Entry> entries = record(urls, RedirectResolver.DEFAULT_HOP_TIMEOUT);
+				save(entries, args[2]);
+				System.out.println("Recorded " + entries.size() + " responses from " + urls.size() + " URLs.");
+			} else if (args.length >= 3 && args[0].equals("generate")) {
+				long seed = (args.length > 3)? Long.parseLong(args[3]) : 0;
+				List<Entry> entries = synthetic(Integer.parseInt(args[1]), seed);
+				save(entries, args[2]);
+				System.out.println("Generated " + entries.size() + " responses.");
+			} else if (args.length >= 3 && args[0].equals("serve")) {
+				ReplayHTTPServer server = new ReplayHTTPServer(load(args[1]));
+				server.start(Integer.parseInt(args[2]));
+				System.out.println("Serving " + server.corpus.size() + " responses at " + server.url("/"));
+			} else {
+				System.err.println("Usage: ReplayHTTPServer record <urlList> <corpus> | generate <num> <corpus>[ <seed>] | serve <corpus> <port>");
+				System.exit(1);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,177 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashMap;
+
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+
+/**DistributedCacheで配布された参照データ(UX/UF/UOリスト、RT-意見リスト等)を、JVM内で一度だけ読み込んで共有するためのキャッシュ。<br>
+ * 以前は各Mapperがstaticなマップにconfigure()で読み込んでいたが、JVM再利用(mapred.job.reuse.jvm.num.tasks)時には<br>
+ * タスクごとに同じファイルを読み直して同じマップに再投入しており、別のジョブのデータが残ることもありえた。<br>
+ * このキャッシュはCacheファイルのURIと更新時刻をキーにして読み込み結果を保持し、同じキーであれば読み直さず、キーが変われば古い内容を捨てて読み直す。<br>
+ * 取得はsynchronizedで、読み込んだデータは読み出し専用として扱うので、MultithreadedMapRunnerから使ってもよい。<br>
+ * 読み込みにかかった時間と件数は、Handle.report()でHadoopのカウンタ(SideDataCache.Counter)に記録される。<br>
+ * 読み込みに失敗した場合はIOExceptionを投げる。空のデータで続けると、ジョブは成功するが結果が誤ったものになるので、タスクごと失敗させる。
+ * @author YuMatsuzawa
+ *
+ */
+public class SideDataCache {
+
+	/**参照データの読み込み状況を表すカウンタ。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static enum Counter {
+		/** ファイルを読み込んだタスクの数 */
+		LOADS,
+		/** JVM内の読み込み済みデータを再利用したタスクの数 */
+		HITS,
+		/** 読み込みにかかった時間(ミリ秒) */
+		LOAD_MILLIS,
+		/** 読み込んだ件数 */
+		ENTRIES
+	}
+
+	/**Cacheファイルを読み込んで参照データを作る方法。
+	 * @author YuMatsuzawa
+	 *
+	 * @param <T>
+	 */
+	public static abstract class Loader<T> {
+		/**ローカルのファイルを読み込む。
+		 * @param path
+		 * @return
+		 * @throws IOException
+		 */
+		public abstract T load(String path) throws IOException;
+
+		/**読み込んだデータの件数。
+		 * @param data
+		 * @return
+		 */
+		public abstract int size(T data);
+	}
+
+	/**キャッシュされた参照データ。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	private static class Entry {
+		private final String key;
+		private final Object data;
+		private final int size;
+
+		private Entry(String key, Object data, int size) {
+			this.key = key;
+			this.data = data;
+			this.size = size;
+		}
+	}
+
+	/**Mapperが参照データを得るためのハンドル。Mapperのインスタンスごとに1つ取得する。
+	 * @author YuMatsuzawa
+	 *
+	 * @param <T>
+	 */
+	public static class Handle<T> {
+		private final T data;
+		private final Counter result;
+		private final long loadMillis;
+		private final int size;
+		private boolean reported = false;
+
+		private Handle(T data, Counter result, long loadMillis, int size) {
+			this.data = data;
+			this.result = result;
+			this.loadMillis = loadMillis;
+			this.size = size;
+		}
+
+		public T get() {
+			return data;
+		}
+
+		/**読み込み状況をカウンタに記録する。configure()ではReporterが得られないので、map()の中で呼ぶ。2回目以降の呼び出しは何もしない。
+		 * @param reporter
+		 */
+		public synchronized void report(Reporter reporter) {
+			if (reported) return;
+			reported = true;
+			reporter.incrCounter(result, 1);
+			if (result == Counter.LOADS) {
+				reporter.incrCounter(Counter.LOAD_MILLIS, loadMillis);
+				reporter.incrCounter(Counter.ENTRIES, size);
+			}
+		}
+	}
+
+	/* リンク名ごとに、最後に読み込んだデータを1つだけ保持する。 */
+	private static final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+
+	/**リンク名linknameで配布されたCacheファイルの参照データを得る。<br>
+	 * JVM内に同じファイル(同じURI・更新時刻)から読み込んだデータがあればそれを返し、なければloaderで読み込む。<br>
+	 * 読み込みに失敗した場合は何もキャッシュせず、IOExceptionを投げる(ファイルの形式が不正な場合も含む)。
+	 * @param job
+	 * @param linkname
+	 * @param loader
+	 * @return
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	public static synchronized <T> Handle<T> get(JobConf job, String linkname, Loader<T> loader) throws IOException {
+		String key = keyOf(job, linkname) + "|" + loader.getClass().getName();
+		Entry entry = entries.get(linkname);
+		if (entry != null && entry.key.equals(key)) {
+			return new Handle<T>((T) entry.data, Counter.HITS, 0, entry.size);
+		}
+		entries.remove(linkname);
+
+		long start = System.currentTimeMillis();
+		try {
+			T data = loader.load(linkname);
+			long loadMillis = System.currentTimeMillis() - start;
+			int size = loader.size(data);
+			entries.put(linkname, new Entry(key, data, size));
+			return new Handle<T>(data, Counter.LOADS, loadMillis, size);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			//行の形式が不正な場合など。
+			IOException wrapped = new IOException("Could not load side data " + linkname + ": " + e);
+			wrapped.initCause(e);
+			throw wrapped;
+		}
+	}
+
+	/**Cacheファイルを識別するキー(URIと更新時刻)を作る。同じファイルでも読み方(Loader)が違えば別に保持する。<br>
+	 * ジョブ設定にリンク名に対応するCacheファイルがなければ(ローカル実行時など)、ローカルファイルの絶対パスと更新時刻を使う。
+	 * @param job
+	 * @param linkname
+	 * @return
+	 */
+	private static String keyOf(JobConf job, String linkname) {
+		try {
+			URI[] uris = DistributedCache.getCacheFiles(job);
+			String[] timestamps = DistributedCache.getFileTimestamps(job);
+			if (uris != null) {
+				for (int i = 0; i < uris.length; i++) {
+					if (linkname.equals(uris[i].getFragment())) {
+						String timestamp = (timestamps != null && i < timestamps.length)? timestamps[i] : "";
+						return uris[i].toString() + "@" + timestamp;
+					}
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		File file = new File(linkname);
+		return file.getAbsolutePath() + "@" + file.lastModified();
+	}
+}
@@ -0,0 +1,14 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+/**同じKeyを複数のReducerに分けて処理し、後で出力を足し合わせても、1つのReducerで処理したのと同じ結果になるReducerが実装する目印のインタフェース。<br>
+ * 出力は"Key\t数値"か"Key\t項目\t数値"(DegreeHistogramReduceの"意見\t次数\t人数"など)の行で、同じKey・項目の行の数値を合計すればよいものに限る。<br>
+ * 閾値で行を落とすもの(RTFreqReduce等)や、平均を出すものは実装してはいけない。<br>
+ * SkewAggregationは、このインタフェースを実装したReducerのジョブだけを、偏ったKeyを分散させて実行する。
+ * @author YuMatsuzawa
+ *
+ */
+public interface SkewMergeable {
+}
@@ -0,0 +1,280 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**Space-Savingアルゴリズムで、頻出する項目(URL・RT文面・ユーザ等)の上位を固定個数のカウンタで数える要約のWritable。HeavyHittersのジョブで使う。<br>
+ * カウンタが埋まった後に新しい項目が来ると、最小のカウンタをその項目に付け替え、元の最小値をその項目の誤差とする。<br>
+ * 各項目のカウントは真の出現数以上で、カウント-誤差は真の出現数以下になる。誤差は全体の出現数/カウンタ数を超えない。<br>
+ * 最小のカウンタはヒープで探すので、offer()はO(log カウンタ数)。<br>
+ * 要約同士はadd(SpaceSaving)で併合できる。片方にしかない項目には、もう片方が埋まっていればその最小値をカウントと誤差に足すので、併合後も上の性質は保たれる。
+ * @author YuMatsuzawa
+ *
+ */
+public class SpaceSaving implements Writable {
+	private int capacity;
+	private long total = 0;
+	private int size = 0;
+	private String[] items;
+	private long[] counts, errors;
+	/** 最小ヒープ。heap[位置]がカウンタの番号、where[番号]がヒープ上の位置。 */
+	private int[] heap, where;
+	private HashMap<String, Integer> slots = new HashMap<String, Integer>();
+
+	/**1項目の結果。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class Item {
+		private final String item;
+		private final long count, error;
+
+		private Item(String item, long count, long error) {
+			this.item = item;
+			this.count = count;
+			this.error = error;
+		}
+
+		public String getItem() {
+			return item;
+		}
+
+		/**出現数の上限。
+		 * @return
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**カウントの誤差の上限。getCount()-getError()が出現数の下限になる。
+		 * @return
+		 */
+		public long getError() {
+			return error;
+		}
+	}
+
+	private static final Comparator<Item> BY_COUNT = new Comparator<Item>() {
+		@Override
+		public int compare(Item o1, Item o2) {
+			if (o1.count != o2.count) return (o1.count > o2.count)? -1 : 1;
+			if (o1.error != o2.error) return (o1.error < o2.error)? -1 : 1;
+			return o1.item.compareTo(o2.item);
+		}
+	};
+
+	public SpaceSaving() {
+		this(1);
+	}
+
+	/**
+	 * @param capacity カウンタの数
+	 * @throws IllegalArgumentException カウンタの数が正でない場合
+	 */
+	public SpaceSaving(int capacity) {
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		this.capacity = capacity;
+		items = new String[capacity];
+		counts = new long[capacity];
+		errors = new long[capacity];
+		heap = new int[capacity];
+		where = new int[capacity];
+		clear();
+	}
+
+	public void clear() {
+		for (int i = 0; i < size; i++) items[i] = null;
+		size = 0;
+		total = 0;
+		slots.clear();
+	}
+
+	/**itemの出現をn回数える。
+	 * @param item
+	 * @param n
+	 */
+	public void offer(String item, long n) {
+		total += n;
+		Integer slot = slots.get(item);
+		if (slot != null) {
+			counts[slot] += n;
+			siftDown(where[slot]);
+		} else if (size < capacity) {
+			put(size, item, n, 0);
+			heap[size] = size;
+			where[size] = size;
+			size++;
+			siftUp(size - 1);
+		} else {
+			//最小のカウンタを付け替える。
+			int min = heap[0];
+			slots.remove(items[min]);
+			put(min, item, counts[min] + n, counts[min]);
+			siftDown(0);
+		}
+	}
+
+	private void put(int slot, String item, long count, long error) {
+		items[slot] = item;
+		counts[slot] = count;
+		errors[slot] = error;
+		slots.put(item, slot);
+	}
+
+	private void siftUp(int pos) {
+		int slot = heap[pos];
+		while (pos > 0) {
+			int parent = (pos - 1) >>> 1;
+			if (counts[heap[parent]] <= counts[slot]) break;
+			move(heap[parent], pos);
+			pos = parent;
+		}
+		move(slot, pos);
+	}
+
+	private void siftDown(int pos) {
+		int slot = heap[pos];
+		while (true) {
+			int child = 2 * pos + 1;
+			if (child >= size) break;
+			if (child + 1 < size && counts[heap[child + 1]] < counts[heap[child]]) child++;
+			if (counts[slot] <= counts[heap[child]]) break;
+			move(heap[child], pos);
+			pos = child;
+		}
+		move(slot, pos);
+	}
+
+	private void move(int slot, int pos) {
+		heap[pos] = slot;
+		where[slot] = pos;
+	}
+
+	/**カウンタが全て埋まっている場合は最小のカウント、そうでなければ0。要約に載っていない項目の出現数はこれ以下。
+	 * @return
+	 */
+	public long minCount() {
+		return (size < capacity)? 0 : counts[heap[0]];
+	}
+
+	/**他の要約を併合する。カウンタの数は両者の大きい方になる。
+	 * @param other
+	 */
+	public void add(SpaceSaving other) {
+		long thisMin = minCount(), otherMin = other.minCount();
+		List<Item> merged = new ArrayList<Item>(size + other.size);
+		for (int i = 0; i < size; i++) {
+			Integer slot = other.slots.get(items[i]);
+			if (slot != null) {
+				merged.add(new Item(items[i], counts[i] + other.counts[slot], errors[i] + other.errors[slot]));
+			} else {
+				merged.add(new Item(items[i], counts[i] + otherMin, errors[i] + otherMin));
+			}
+		}
+		for (int i = 0; i < other.size; i++) {
+			if (!slots.containsKey(other.items[i])) {
+				merged.add(new Item(other.items[i], other.counts[i] + thisMin, other.errors[i] + thisMin));
+			}
+		}
+		long mergedTotal = total + other.total;
+		Collections.sort(merged, BY_COUNT);
+		if (other.capacity > capacity) {
+			allocate(other.capacity);
+		} else {
+			clear();
+		}
+		for (Item item : merged.subList(0, Math.min(capacity, merged.size()))) {
+			put(size, item.item, item.count, item.error);
+			heap[size] = size;
+			where[size] = size;
+			size++;
+			siftUp(size - 1);
+		}
+		total = mergedTotal;
+	}
+
+	/**カウントの大きい順に上位k項目を返す。
+	 * @param k
+	 * @return
+	 */
+	public List<Item> top(int k) {
+		List<Item> all = new ArrayList<Item>(size);
+		for (int i = 0; i < size; i++) all.add(new Item(items[i], counts[i], errors[i]));
+		Collections.sort(all, BY_COUNT);
+		return all.subList(0, Math.min(k, size));
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**数えた出現数の合計。
+	 * @return
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		WritableUtils.writeVInt(out, capacity);
+		WritableUtils.writeVLong(out, total);
+		WritableUtils.writeVInt(out, size);
+		for (int i = 0; i < size; i++) {
+			Text.writeString(out, items[i]);
+			WritableUtils.writeVLong(out, counts[i]);
+			WritableUtils.writeVLong(out, errors[i]);
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		int c = WritableUtils.readVInt(in);
+		if (c != capacity) {
+			allocate(c);
+		} else {
+			clear();
+		}
+		long t = WritableUtils.readVLong(in);
+		int num = WritableUtils.readVInt(in);
+		for (int i = 0; i < num; i++) {
+			put(size, Text.readString(in), WritableUtils.readVLong(in), WritableUtils.readVLong(in));
+			heap[size] = size;
+			where[size] = size;
+			size++;
+			siftUp(size - 1);
+		}
+		total = t;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Item item : top(size)) {
+			if (sb.length() > 0) sb.append(',');
+			sb.append(item.item).append(':').append(item.count);
+		}
+		return sb.toString();
+	}
+}
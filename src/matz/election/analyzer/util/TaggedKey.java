@@ -0,0 +1,118 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+/**1つのジョブで複数の集計を同時に行うための、集計の種類(タグ)付きのKey。<br>
+ * 元の集計のKeyはLongかTextなので、数値と文字列を両方持ち、使わない側は0/空にしておく。<br>
+ * ソート順はタグ、数値(符号付き)、文字列(バイト順)の順で、同じタグの中ではLongWritable/Textをそれぞれ単独でKeyにした場合と同じ並びになる。<br>
+ * シリアライズ形式はタグ1バイト、数値のVLong、文字列のTextで、比較はデシリアライズせずにバイト列のまま行う。
+ * @author YuMatsuzawa
+ *
+ */
+public class TaggedKey implements WritableComparable<TaggedKey> {
+	private byte tag = 0;
+	private long num = 0;
+	private Text text = new Text();
+
+	static {
+		WritableComparator.define(TaggedKey.class, new Comparator());
+	}
+
+	public TaggedKey() {}
+
+	public void set(int tag, long num) {
+		this.tag = (byte) tag;
+		this.num = num;
+		this.text.clear();
+	}
+
+	public void set(int tag, String str) {
+		this.tag = (byte) tag;
+		this.num = 0;
+		this.text.set(str);
+	}
+
+	public int getTag() {
+		return tag;
+	}
+
+	public long getNum() {
+		return num;
+	}
+
+	public Text getText() {
+		return text;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeByte(tag);
+		WritableUtils.writeVLong(out, num);
+		text.write(out);
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		tag = in.readByte();
+		num = WritableUtils.readVLong(in);
+		text.readFields(in);
+	}
+
+	@Override
+	public int compareTo(TaggedKey other) {
+		if (tag != other.tag) return (tag < other.tag)? -1 : 1;
+		if (num != other.num) return (num < other.num)? -1 : 1;
+		return text.compareTo(other.text);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof TaggedKey)) return false;
+		return compareTo((TaggedKey) o) == 0;
+	}
+
+	@Override
+	public int hashCode() {
+		return tag * 163 + (int) (num ^ (num >>> 32)) * 31 + text.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return tag + "\t" + num + "\t" + text.toString();
+	}
+
+	/**シリアライズされたままのTaggedKeyを比較する。
+	 * @author YuMatsuzawa
+	 *
+	 */
+	public static class Comparator extends WritableComparator {
+		public Comparator() {
+			super(TaggedKey.class);
+		}
+
+		@Override
+		public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+			if (b1[s1] != b2[s2]) return (b1[s1] < b2[s2])? -1 : 1;
+			try {
+				long n1 = readVLong(b1, s1 + 1), n2 = readVLong(b2, s2 + 1);
+				if (n1 != n2) return (n1 < n2)? -1 : 1;
+				int p1 = s1 + 1 + WritableUtils.decodeVIntSize(b1[s1 + 1]);
+				int p2 = s2 + 1 + WritableUtils.decodeVIntSize(b2[s2 + 1]);
+				int t1 = WritableUtils.decodeVIntSize(b1[p1]), t2 = WritableUtils.decodeVIntSize(b2[p2]);
+				return compareBytes(b1, p1 + t1, readVInt(b1, p1), b2, p2 + t2, readVInt(b2, p2));
+			} catch (IOException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+	}
+}
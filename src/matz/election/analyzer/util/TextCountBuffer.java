@@ -0,0 +1,154 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+
+/**TextのKey(URL・政党名等)についてカウントを合計するCountBuffer。<br>
+ * KeyはStringやTextのオブジェクトとしては持たず、UTF-8のバイト列を1つのbyte配列に詰めて、その位置・長さ・ハッシュ値・カウントをint配列で持つ。<br>
+ * ハッシュ表(オープンアドレス法、線形探査)にはエントリの番号だけを入れる。add()は新しいKeyでも配列に書き込むだけで、オブジェクトを生成しない。<br>
+ * 上限の半分をハッシュ表とエントリ、残りをバイト列に使い、どちらかが埋まったら全て出力して空にする。
+ * @author YuMatsuzawa
+ *
+ */
+public class TextCountBuffer extends CountBuffer<Text> {
+	/** ハッシュ表1スロットあたりのバイト数。エントリ(位置・長さ・ハッシュ値・カウント)は負荷率の分だけある。 */
+	private static final double SLOT_BYTES = 4 + 16 * LOAD_FACTOR;
+
+	private int[] table;
+	private int mask;
+	private int size = 0;
+	private int[] starts, lengths, hashes, counts;
+	private byte[] bytes = new byte[64 * 1024];
+	private int used = 0;
+	private Text outKey = new Text();
+
+	public TextCountBuffer() {
+		allocate(INITIAL_CAPACITY);
+	}
+
+	private void allocate(int capacity) {
+		table = new int[capacity];
+		mask = capacity - 1;
+		int entries = (int) (capacity * LOAD_FACTOR) + 1;
+		starts = grow(starts, entries);
+		lengths = grow(lengths, entries);
+		hashes = grow(hashes, entries);
+		counts = grow(counts, entries);
+	}
+
+	private static int[] grow(int[] array, int length) {
+		return (array == null)? new int[length] : Arrays.copyOf(array, length);
+	}
+
+	private static int hash(byte[] b, int start, int length) {
+		int h = 1;
+		for (int i = start; i < start + length; i++) h = 31 * h + b[i];
+		return h ^ (h >>> 16);
+	}
+
+	/**表の中のKeyのスロットを返す。なければ空きスロット(table[slot]==0)を返す。
+	 */
+	private int slotOf(byte[] b, int start, int length, int h) {
+		int slot = h & mask;
+		while (table[slot] != 0) {
+			int e = table[slot] - 1;
+			if (hashes[e] == h && lengths[e] == length && equal(bytes, starts[e], b, start, length)) break;
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private static boolean equal(byte[] b1, int s1, byte[] b2, int s2, int length) {
+		for (int i = 0; i < length; i++) {
+			if (b1[s1 + i] != b2[s2 + i]) return false;
+		}
+		return true;
+	}
+
+	/**keyのカウントにnを足す。表かバイト列が上限に達していれば、先に中身を出力する。
+	 * @param key
+	 * @param n
+	 * @param output
+	 * @param reporter
+	 * @throws IOException
+	 */
+	public void add(Text key, int n, OutputCollector<Text, IntWritable> output, Reporter reporter) throws IOException {
+		if (bind(output, reporter)) {
+			collect(key, n);
+			return;
+		}
+		byte[] b = key.getBytes();
+		int length = key.getLength();
+		int h = hash(b, 0, length);
+		int slot = slotOf(b, 0, length, h);
+		if (table[slot] == 0) {
+			if (!reserve(length)) {
+				flush();
+				if (!reserve(length)) {
+					//1つのKeyだけでバイト列の上限を超える場合は合計しない。
+					collect(key, n);
+					return;
+				}
+			}
+			slot = slotOf(b, 0, length, h);
+			System.arraycopy(b, 0, bytes, used, length);
+			starts[size] = used;
+			lengths[size] = length;
+			hashes[size] = h;
+			counts[size] = 0;
+			used += length;
+			table[slot] = ++size;
+		}
+		counts[table[slot] - 1] += n;
+	}
+
+	/**新しいKeyを1つ(lengthバイト)追加できるように表とバイト列を拡張する。上限を超えるならfalseを返す。
+	 */
+	private boolean reserve(int length) {
+		long tableBudget = memoryLimit / 2;
+		if ((size + 1) > table.length * LOAD_FACTOR) {
+			if (table.length >= maxCapacity(tableBudget, SLOT_BYTES)) return false;
+			rehash(table.length << 1);
+		}
+		if (used + length > bytes.length) {
+			long byteBudget = memoryLimit - tableBudget;
+			if (used + length > byteBudget) return false;
+			long capacity = bytes.length;
+			while (capacity < used + length) capacity <<= 1;
+			bytes = Arrays.copyOf(bytes, (int) Math.min(capacity, byteBudget));
+		}
+		return true;
+	}
+
+	private void rehash(int capacity) {
+		allocate(capacity);
+		for (int e = 0; e < size; e++) {
+			int slot = hashes[e] & mask;
+			while (table[slot] != 0) slot = (slot + 1) & mask;
+			table[slot] = e + 1;
+		}
+	}
+
+	@Override
+	protected void emitAll() throws IOException {
+		for (int e = 0; e < size; e++) {
+			outKey.set(bytes, starts[e], lengths[e]);
+			collect(outKey, counts[e]);
+		}
+	}
+
+	@Override
+	protected void reset() {
+		if (size > 0) Arrays.fill(table, 0);
+		size = 0;
+		used = 0;
+	}
+}
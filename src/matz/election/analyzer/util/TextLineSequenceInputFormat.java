@@ -0,0 +1,96 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.SequenceFileRecordReader;
+
+/**SeqFileを、TextOutputFormatで書かれていた場合と同じ行としてTextInputFormat向けのMapperに渡すInputFormat。<br>
+ * Pipelineで中間出力をSeqFileに切り替えたとき、それを読む後段のジョブの入力形式をこれに差し替える。Mapperの行の解釈はそのまま使える。<br>
+ * Keyは行番号(TextInputFormatのようなバイト位置ではない)、Valueは"Key\tValue"(NullWritableの側は省く)。
+ * @author YuMatsuzawa
+ *
+ */
+public class TextLineSequenceInputFormat extends SequenceFileInputFormat<LongWritable, Text> {
+	private static final byte[] TAB = {'\t'};
+
+	@Override
+	public RecordReader<LongWritable, Text> getRecordReader(InputSplit split, JobConf job,
+			Reporter reporter) throws IOException {
+		reporter.setStatus(split.toString());
+		final SequenceFileRecordReader<Writable, Writable> reader = new SequenceFileRecordReader<Writable, Writable>(job, (FileSplit) split);
+		final Writable innerKey = reader.createKey();
+		final Writable innerValue = reader.createValue();
+
+		return new RecordReader<LongWritable, Text>() {
+			private long lines = 0;
+
+			public boolean next(LongWritable key, Text value) throws IOException {
+				if (!reader.next(innerKey, innerValue)) return false;
+				key.set(lines++);
+				render(innerKey, innerValue, value);
+				return true;
+			}
+
+			public LongWritable createKey() {
+				return new LongWritable();
+			}
+
+			public Text createValue() {
+				return new Text();
+			}
+
+			public long getPos() throws IOException {
+				return reader.getPos();
+			}
+
+			public float getProgress() throws IOException {
+				return reader.getProgress();
+			}
+
+			public void close() throws IOException {
+				reader.close();
+			}
+		};
+	}
+
+	/**KeyとValueを、TextOutputFormatが書くのと同じ1行(改行なし)にする。
+	 * @param key
+	 * @param value
+	 * @param line 結果を入れるText
+	 */
+	public static void render(Object key, Object value, Text line) {
+		line.clear();
+		boolean nullKey = (key == null || key instanceof NullWritable);
+		boolean nullValue = (value == null || value instanceof NullWritable);
+		if (!nullKey) append(key, line);
+		if (!nullKey && !nullValue) line.append(TAB, 0, TAB.length);
+		if (!nullValue) append(value, line);
+	}
+
+	private static void append(Object o, Text line) {
+		if (o instanceof Text) {
+			Text text = (Text) o;
+			line.append(text.getBytes(), 0, text.getLength());
+		} else {
+			try {
+				byte[] bytes = o.toString().getBytes("UTF-8");
+				line.append(bytes, 0, bytes.length);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,66 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+import java.io.IOException;
+
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapRunnable;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.SkipBadRecords;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**MapRunnerと同じ処理をしながら、mapタスクの時間を段階ごとにカウンタ(グループ"Map stage millis")に記録するMapRunnable。<br>
+ * 段階は、RecordReaderによる入力の読み込み("<Mapper名>.read")、map()("<Mapper名>.map"。Combinerやソートバッファへの書き込みを含む)、
+ * close()("<Mapper名>.close")の3つ。時刻はレコードごとに1回だけ取る。<br>
+ * AnalyzerMainで組み立てるジョブは全てこれで動かす。
+ * @author YuMatsuzawa
+ *
+ */
+public class TimedMapRunner<K1, V1, K2, V2> implements MapRunnable<K1, V1, K2, V2> {
+	public static final String GROUP = "Map stage millis";
+
+	private Mapper<K1, V1, K2, V2> mapper;
+	private String stage;
+	private boolean incrProcCount;
+
+	@SuppressWarnings("unchecked")
+	public void configure(JobConf job) {
+		mapper = ReflectionUtils.newInstance(job.getMapperClass(), job);
+		stage = job.getMapperClass().getSimpleName();
+		incrProcCount = SkipBadRecords.getMapperMaxSkipRecords(job) > 0 && SkipBadRecords.getAutoIncrMapperProcCount(job);
+	}
+
+	public void run(RecordReader<K1, V1> input, OutputCollector<K2, V2> output,
+			Reporter reporter) throws IOException {
+		K1 key = input.createKey();
+		V1 value = input.createValue();
+		long readNanos = 0, mapNanos = 0;
+		try {
+			long last = System.nanoTime();
+			while (input.next(key, value)) {
+				long read = System.nanoTime();
+				readNanos += read - last;
+				mapper.map(key, value, output, reporter);
+				last = System.nanoTime();
+				mapNanos += last - read;
+				if (incrProcCount) {
+					reporter.incrCounter(SkipBadRecords.COUNTER_GROUP, SkipBadRecords.COUNTER_MAP_PROCESSED_RECORDS, 1);
+				}
+			}
+		} finally {
+			long start = System.nanoTime();
+			try {
+				mapper.close();
+			} finally {
+				reporter.incrCounter(GROUP, stage + ".read", readNanos / 1000000);
+				reporter.incrCounter(GROUP, stage + ".map", mapNanos / 1000000);
+				reporter.incrCounter(GROUP, stage + ".close", (System.nanoTime() - start) / 1000000);
+			}
+		}
+	}
+}
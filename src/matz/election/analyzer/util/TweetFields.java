@@ -0,0 +1,43 @@
+/**
+ * 
+ */
+package matz.election.analyzer.util;
+
+/**解析ジョブが参照するツイートのフィールドへのアクセサ。<br>
+ * バイナリ形式のTweetRecordと、RawJSONを遅延デコードするTweetViewとが実装する。<br>
+ * 値の意味はどちらの実装でも、twitter4jのStatusから読んだ場合と同一になるようにしてある。
+ * @author YuMatsuzawa
+ *
+ */
+public interface TweetFields {
+
+	public long getId();
+
+	/**@return ユーザID。ユーザ情報がなければ0。
+	 */
+	public long getUserId();
+
+	/**@return 作成時刻のエポックミリ秒。作成時刻がなければ0。
+	 */
+	public long getCreatedAt();
+
+	public String getText();
+
+	public boolean isRetweet();
+
+	/**@return RT元ツイートのID。RTでなければ-1。
+	 */
+	public long getRetweetedId();
+
+	/**@return RT元ツイートの本文。RTでなければ空文字列。
+	 */
+	public String getRetweetedText();
+
+	/**@return 添付URLの配列。展開済みURLがあればそれを、なければ元のURLを格納している。添付がなければ空配列。
+	 */
+	public String[] getURLs();
+
+	public int getRetweetCount();
+
+	public String getLang();
+}
@@ -0,0 +1,172 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+import twitter4j.Status;
+import twitter4j.TwitterException;
+import twitter4j.TwitterObjectFactory;
+import twitter4j.URLEntity;
+
+/**解析ジョブが実際に参照するフィールドだけを保持する、コンパクトなツイートレコード。<br>
+ * RawJSONのSeqFileをBinaryTweet(ToRecordジョブ)で一度だけ変換しておけば、以後のジョブはJSONパースを省略できる。<br>
+ * 保持するのはツイートID、ユーザID、作成時刻(エポックミリ秒)、本文、RT元のID・本文、添付URL、RT数、言語。<br>
+ * URLは各Mapperと同様に、展開済みURLがあればそれを、なければURLをそのまま格納する。<br>
+ * RTでないツイートのRT元IDは-1とする。
+ * @author YuMatsuzawa
+ *
+ */
+public class TweetRecord implements Writable, TweetFields {
+	private static final String[] NO_URLS = new String[0];
+
+	private long id = 0;
+	private long userId = 0;
+	private long createdAt = 0;
+	private String text = "";
+	private long retweetedId = -1;
+	private String retweetedText = "";
+	private String[] urls = NO_URLS;
+	private int retweetCount = 0;
+	private String lang = "";
+
+	public TweetRecord() {}
+
+	public TweetRecord(Status tweet) {
+		set(tweet);
+	}
+
+	/**twitter4jのStatusから必要なフィールドを写し取る。インスタンスは使い回してよい。
+	 * @param tweet
+	 */
+	public void set(Status tweet) {
+		id = tweet.getId();
+		userId = (tweet.getUser() != null)? tweet.getUser().getId() : 0;
+		createdAt = (tweet.getCreatedAt() != null)? tweet.getCreatedAt().getTime() : 0;
+		text = nonNull(tweet.getText());
+		Status retweet = tweet.getRetweetedStatus();
+		if (retweet != null) {
+			retweetedId = retweet.getId();
+			retweetedText = nonNull(retweet.getText());
+		} else {
+			retweetedId = -1;
+			retweetedText = "";
+		}
+		URLEntity[] entities = tweet.getURLEntities();
+		if (entities == null || entities.length == 0) {
+			urls = NO_URLS;
+		} else {
+			urls = new String[entities.length];
+			for (int i = 0; i < entities.length; i++) {
+				String urlStr = entities[i].getExpandedURL();
+				if (urlStr == null) urlStr = entities[i].getURL();
+				urls[i] = nonNull(urlStr);
+			}
+		}
+		retweetCount = tweet.getRetweetCount();
+		lang = nonNull(tweet.getLang());
+	}
+
+	/**Mapperの入力Valueから、TweetRecordを得る。<br>
+	 * ValueがすでにTweetRecordであればそのまま返し、RawJSONのTextであればパースした結果をreuseに詰めて返す。<br>
+	 * これによって、同じMapperがRawJSONのSeqFileとTweetRecordのSeqFileの両方を入力にとれる。
+	 * @param value
+	 * @param reuse
+	 * @return
+	 * @throws TwitterException
+	 */
+	public static TweetRecord read(Writable value, TweetRecord reuse) throws TwitterException {
+		if (value instanceof TweetRecord) return (TweetRecord) value;
+		reuse.set(TwitterObjectFactory.createStatus(value.toString()));
+		return reuse;
+	}
+
+	private static String nonNull(String str) {
+		return (str != null)? str : "";
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		WritableUtils.writeVLong(out, id);
+		WritableUtils.writeVLong(out, userId);
+		WritableUtils.writeVLong(out, createdAt);
+		Text.writeString(out, text);
+		WritableUtils.writeVLong(out, retweetedId);
+		if (retweetedId >= 0) Text.writeString(out, retweetedText);
+		WritableUtils.writeVInt(out, urls.length);
+		for (String url : urls) Text.writeString(out, url);
+		WritableUtils.writeVInt(out, retweetCount);
+		Text.writeString(out, lang);
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		id = WritableUtils.readVLong(in);
+		userId = WritableUtils.readVLong(in);
+		createdAt = WritableUtils.readVLong(in);
+		text = Text.readString(in);
+		retweetedId = WritableUtils.readVLong(in);
+		retweetedText = (retweetedId >= 0)? Text.readString(in) : "";
+		int numURLs = WritableUtils.readVInt(in);
+		if (numURLs == 0) {
+			urls = NO_URLS;
+		} else {
+			urls = new String[numURLs];
+			for (int i = 0; i < numURLs; i++) urls[i] = Text.readString(in);
+		}
+		retweetCount = WritableUtils.readVInt(in);
+		lang = Text.readString(in);
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public long getUserId() {
+		return userId;
+	}
+
+	public long getCreatedAt() {
+		return createdAt;
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	public boolean isRetweet() {
+		return retweetedId >= 0;
+	}
+
+	public long getRetweetedId() {
+		return retweetedId;
+	}
+
+	public String getRetweetedText() {
+		return retweetedText;
+	}
+
+	public String[] getURLs() {
+		return urls;
+	}
+
+	public int getRetweetCount() {
+		return retweetCount;
+	}
+
+	public String getLang() {
+		return lang;
+	}
+
+	@Override
+	public String toString() {
+		return id + "\t" + userId + "\t" + createdAt + "\t" + text;
+	}
+}
@@ -0,0 +1,408 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+import java.lang.reflect.Method;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+
+import twitter4j.TwitterException;
+
+/**RawJSONのバイト列(TextのUTF-8バッファ)を直接走査し、要求されたフィールドだけをデコードするツイートビュー。<br>
+ * TwitterObjectFactory.createStatusはユーザオブジェクトやエンティティ、日付など全てを構築するので、<br>
+ * 作成時刻やユーザIDしか読まないMapperにとっては無駄なアロケーションが大きい。<br>
+ * read()の時点ではトップレベルのキー位置だけを1パスで記録し(このとき構造の検査も兼ねる)、値のデコードは各getterが呼ばれた時点で行う。<br>
+ * 値の意味はcreateStatusで読んだ場合(TweetRecord.set)と同一にしてある。本文のHTMLエンティティ(&amp;amp;等)もtwitter4jと同様に戻す。<br>
+ * Mapperは、TweetRecord.read(value, record)の代わりにview.read(value)を呼ぶことで、この経路を使うように切り替えられる。<br>
+ * インスタンスは使い回す前提で、スレッドセーフではない。
+ * @author YuMatsuzawa
+ *
+ */
+public class TweetView implements TweetFields {
+	private static final String[] NO_URLS = new String[0];
+
+	private static final int ID = 0, USER = 1, CREATED_AT = 2, TEXT = 3, RETWEETED_STATUS = 4, ENTITIES = 5, RETWEET_COUNT = 6, LANG = 7;
+	private static final byte[][] KEYS = {
+		ascii("id"), ascii("user"), ascii("created_at"), ascii("text"),
+		ascii("retweeted_status"), ascii("entities"), ascii("retweet_count"), ascii("lang"),
+	};
+	private static final byte[] KEY_URLS = ascii("urls"), KEY_URL = ascii("url"), KEY_EXPANDED_URL = ascii("expanded_url");
+
+	private static final String[] MONTHS = {"Jan","Feb","Mar","Apr","May","Jun","Jul","Aug","Sep","Oct","Nov","Dec"};
+	private static final String DATE_FORMAT = "EEE MMM d HH:mm:ss z yyyy";
+	private static Method htmlUnescape = null;
+
+	private byte[] buf = null;
+	private int limit = 0;
+	private int[] pos = new int[KEYS.length];
+	private TweetView retweeted = null;
+	private boolean retweetedLoaded = false;
+	private StringBuilder sb = new StringBuilder();
+	private SimpleDateFormat dateFormat = null;
+
+	/**Mapperの入力Valueからツイートを得る。ValueがTweetRecordであればそのまま返し、RawJSONのTextであればこのビューを向け直して返す。
+	 * @param value
+	 * @return
+	 * @throws TwitterException 構造が壊れたJSONの場合。createStatusと同様、Mapper側でスキップする。<br>
+	 * フィールドの値は遅延デコードするので、値が壊れている場合(created_atが日付でない、IDが数値でない等)はgetterがIllegalArgumentExceptionを投げる。<br>
+	 * createStatusならここでTwitterExceptionになっていたものなので、Mapperはこれもパースエラーとしてスキップすること。
+	 */
+	public TweetFields read(Writable value) throws TwitterException {
+		if (value instanceof TweetRecord) return (TweetRecord) value;
+		Text text = (Text) value;
+		reset(text.getBytes(), 0, text.getLength());
+		return this;
+	}
+
+	/**バッファのoffsetから始まるJSONオブジェクトにビューを向ける。バッファはコピーしないので、次のreset()まで内容を保つこと。
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @throws TwitterException
+	 */
+	public void reset(byte[] bytes, int offset, int length) throws TwitterException {
+		buf = bytes;
+		limit = offset + length;
+		retweetedLoaded = false;
+		int p = skipWs(offset, limit);
+		if (p >= limit || buf[p] != '{') throw new TwitterException("Not a JSON object.");
+		if (skipWs(index(p, limit, KEYS, pos), limit) != limit) {
+			throw new TwitterException("Trailing characters after JSON object.");
+		}
+	}
+
+	/**objPosにある'{'から対応する'}'までを走査し、keysに一致するキーの値の開始位置をoutに記録する。見つからないキーは-1。
+	 * @return オブジェクト直後の位置
+	 */
+	private int index(int objPos, int end, byte[][] keys, int[] out) throws TwitterException {
+		for (int i = 0; i < out.length; i++) out[i] = -1;
+		int p = skipWs(objPos + 1, end);
+		if (p < end && buf[p] == '}') return p + 1;
+		while (p < end) {
+			if (buf[p] != '"') throw new TwitterException("Malformed JSON key.");
+			int keyStart = p + 1, keyEnd = skipString(p, end) - 1;
+			p = skipWs(keyEnd + 1, end);
+			if (p >= end || buf[p] != ':') throw new TwitterException("Malformed JSON object.");
+			p = skipWs(p + 1, end);
+			for (int k = 0; k < keys.length; k++) {
+				if (out[k] < 0 && equalsKey(keyStart, keyEnd, keys[k])) {
+					out[k] = p;
+					break;
+				}
+			}
+			p = skipWs(skipValue(p, end), end);
+			if (p >= end) break;
+			if (buf[p] == '}') return p + 1;
+			if (buf[p] != ',') throw new TwitterException("Malformed JSON object.");
+			p = skipWs(p + 1, end);
+		}
+		throw new TwitterException("Unterminated JSON object.");
+	}
+
+	/**objPosにあるオブジェクトから1つのキーの値の位置を探す。ネストしたオブジェクト用。
+	 */
+	private int find(int objPos, byte[] key) {
+		if (objPos < 0 || buf[objPos] != '{') return -1;
+		int[] out = new int[1];
+		try {
+			index(objPos, limit, new byte[][] {key}, out);
+		} catch (TwitterException e) {
+			return -1;
+		}
+		return out[0];
+	}
+
+	private boolean equalsKey(int start, int end, byte[] key) {
+		if (end - start != key.length) return false;
+		for (int i = 0; i < key.length; i++) {
+			if (buf[start + i] != key[i]) return false;
+		}
+		return true;
+	}
+
+	private int skipWs(int p, int end) {
+		while (p < end && (buf[p] == ' ' || buf[p] == '\t' || buf[p] == '\n' || buf[p] == '\r')) p++;
+		return p;
+	}
+
+	/**pにある'"'から始まる文字列の、閉じ'"'の直後の位置を返す。
+	 */
+	private int skipString(int p, int end) throws TwitterException {
+		p++;
+		while (p < end) {
+			byte b = buf[p];
+			if (b == '\\') {
+				p += 2;
+			} else if (b == '"') {
+				return p + 1;
+			} else {
+				p++;
+			}
+		}
+		throw new TwitterException("Unterminated JSON string.");
+	}
+
+	/**pから始まる値(文字列・オブジェクト・配列・リテラル)の直後の位置を返す。ネストは括弧の対応だけを見て読み飛ばす。
+	 */
+	private int skipValue(int p, int end) throws TwitterException {
+		if (p >= end) throw new TwitterException("Missing JSON value.");
+		byte b = buf[p];
+		if (b == '"') return skipString(p, end);
+		if (b == '{' || b == '[') {
+			int depth = 0;
+			while (p < end) {
+				b = buf[p];
+				if (b == '"') {
+					p = skipString(p, end);
+					continue;
+				}
+				if (b == '{' || b == '[') depth++;
+				else if (b == '}' || b == ']') {
+					depth--;
+					if (depth == 0) return p + 1;
+				}
+				p++;
+			}
+			throw new TwitterException("Unterminated JSON object or array.");
+		}
+		while (p < end) {
+			b = buf[p];
+			if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\t' || b == '\n' || b == '\r') return p;
+			p++;
+		}
+		return p;
+	}
+
+	private boolean isNull(int p) {
+		return p < 0 || (buf[p] == 'n' && p + 3 < limit && buf[p+1] == 'u' && buf[p+2] == 'l' && buf[p+3] == 'l');
+	}
+
+	/**ParseUtil.getLongと同様に、数値あるいは数値の文字列を読む。nullや欠損は-1、末尾の"+"は+1として扱う。
+	 */
+	private long parseLong(int p) {
+		if (isNull(p)) return -1;
+		boolean quoted = buf[p] == '"';
+		if (quoted) p++;
+		if (quoted && buf[p] == '"') return -1;
+		boolean negative = buf[p] == '-';
+		if (negative) p++;
+		long val = 0;
+		int digits = 0;
+		while (p < limit && buf[p] >= '0' && buf[p] <= '9') {
+			val = val * 10 + (buf[p] - '0');
+			p++;
+			digits++;
+		}
+		if (digits == 0) throw new NumberFormatException("Not a number in tweet JSON.");
+		if (negative) val = -val;
+		if (quoted && buf[p] == '+') val++;
+		return val;
+	}
+
+	/**pにあるJSON文字列をデコードする。UTF-8のバイト列と\\uXXXX等のエスケープを直接Stringに組み立てる。nullはnullを返す。
+	 */
+	private String parseString(int p) {
+		if (isNull(p) || buf[p] != '"') return null;
+		sb.setLength(0);
+		p++;
+		while (p < limit) {
+			int b = buf[p] & 0xff;
+			if (b == '"') break;
+			if (b == '\\') {
+				byte e = buf[p+1];
+				p += 2;
+				switch (e) {
+				case 'n': sb.append('\n'); break;
+				case 't': sb.append('\t'); break;
+				case 'r': sb.append('\r'); break;
+				case 'b': sb.append('\b'); break;
+				case 'f': sb.append('\f'); break;
+				case 'u':
+					sb.append((char) ((hex(buf[p]) << 12) | (hex(buf[p+1]) << 8) | (hex(buf[p+2]) << 4) | hex(buf[p+3])));
+					p += 4;
+					break;
+				default: sb.append((char) e); break;
+				}
+			} else if (b < 0x80) {
+				sb.append((char) b);
+				p++;
+			} else if (b < 0xe0) {
+				sb.append((char) (((b & 0x1f) << 6) | (buf[p+1] & 0x3f)));
+				p += 2;
+			} else if (b < 0xf0) {
+				sb.append((char) (((b & 0x0f) << 12) | ((buf[p+1] & 0x3f) << 6) | (buf[p+2] & 0x3f)));
+				p += 3;
+			} else {
+				int cp = ((b & 0x07) << 18) | ((buf[p+1] & 0x3f) << 12) | ((buf[p+2] & 0x3f) << 6) | (buf[p+3] & 0x3f);
+				sb.append(Character.toChars(cp));
+				p += 4;
+			}
+		}
+		return sb.toString();
+	}
+
+	private static int hex(byte b) {
+		if (b >= '0' && b <= '9') return b - '0';
+		if (b >= 'a' && b <= 'f') return b - 'a' + 10;
+		if (b >= 'A' && b <= 'F') return b - 'A' + 10;
+		throw new NumberFormatException("Invalid unicode escape in tweet JSON.");
+	}
+
+	/**twitter4jはStatusの本文に対してHTMLエンティティを戻す処理をかけているので、同じ結果になるよう同じ処理を呼ぶ。'&amp;'を含まない本文では何もしない。
+	 */
+	private static String unescapeHTML(String str) {
+		if (str == null || str.indexOf('&') < 0) return str;
+		try {
+			if (htmlUnescape == null) {
+				Method m = Class.forName("twitter4j.HTMLEntity").getDeclaredMethod("unescape", String.class);
+				m.setAccessible(true);
+				htmlUnescape = m;
+			}
+			return (String) htmlUnescape.invoke(null, str);
+		} catch (Exception e) {
+			throw new IllegalStateException("twitter4j.HTMLEntity is not accessible.", e);
+		}
+	}
+
+	/**"Fri Jul 26 14:42:04 +0000 2013"形式の作成時刻をエポックミリ秒にする。形式が想定と異なる場合はtwitter4jと同じSimpleDateFormatで読む。
+	 */
+	private long parseDate(String str) {
+		if (str == null || str.equals("null")) return 0;
+		String[] f = str.split(" ");
+		if (f.length == 6 && f[3].length() == 8 && f[4].length() == 5 && (f[4].charAt(0) == '+' || f[4].charAt(0) == '-')) {
+			int month = -1;
+			for (int i = 0; i < MONTHS.length; i++) {
+				if (MONTHS[i].equals(f[1])) month = i + 1;
+			}
+			if (month > 0) {
+				try {
+					int day = Integer.parseInt(f[2]), year = Integer.parseInt(f[5]);
+					int hour = Integer.parseInt(f[3].substring(0, 2)), min = Integer.parseInt(f[3].substring(3, 5)), sec = Integer.parseInt(f[3].substring(6, 8));
+					int offset = Integer.parseInt(f[4].substring(1, 3)) * 60 + Integer.parseInt(f[4].substring(3, 5));
+					if (f[4].charAt(0) == '-') offset = -offset;
+					long seconds = daysFromCivil(year, month, day) * 86400L + hour * 3600L + min * 60L + sec - offset * 60L;
+					return seconds * 1000L;
+				} catch (NumberFormatException e) {
+					//fall through to SimpleDateFormat.
+				}
+			}
+		}
+		try {
+			if (dateFormat == null) {
+				dateFormat = new SimpleDateFormat(DATE_FORMAT, Locale.US);
+				dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+			}
+			return dateFormat.parse(str).getTime();
+		} catch (ParseException e) {
+			throw new IllegalArgumentException("Unexpected created_at: " + str);
+		}
+	}
+
+	/**グレゴリオ暦の年月日から1970/1/1からの日数を求める。
+	 */
+	private static long daysFromCivil(int y, int m, int d) {
+		y -= (m <= 2)? 1 : 0;
+		long era = (y >= 0 ? y : y - 399) / 400;
+		long yoe = y - era * 400;
+		long doy = (153 * (m + (m > 2 ? -3 : 9)) + 2) / 5 + d - 1;
+		long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097 + doe - 719468;
+	}
+
+	private static byte[] ascii(String str) {
+		byte[] bytes = new byte[str.length()];
+		for (int i = 0; i < bytes.length; i++) bytes[i] = (byte) str.charAt(i);
+		return bytes;
+	}
+
+	private TweetView retweeted() {
+		if (!retweetedLoaded) {
+			retweetedLoaded = true;
+			int p = pos[RETWEETED_STATUS];
+			if (isNull(p) || buf[p] != '{') {
+				if (retweeted != null) retweeted.buf = null;
+			} else {
+				if (retweeted == null) retweeted = new TweetView();
+				try {
+					retweeted.buf = buf;
+					retweeted.limit = limit;
+					retweeted.retweetedLoaded = false;
+					retweeted.index(p, limit, KEYS, retweeted.pos);
+				} catch (TwitterException e) {
+					retweeted.buf = null;
+				}
+			}
+		}
+		return (retweeted != null && retweeted.buf != null)? retweeted : null;
+	}
+
+	public long getId() {
+		return parseLong(pos[ID]);
+	}
+
+	public long getUserId() {
+		int p = pos[USER];
+		if (isNull(p)) return 0;
+		return parseLong(find(p, KEYS[ID]));
+	}
+
+	public long getCreatedAt() {
+		return parseDate(unescapeHTML(parseString(pos[CREATED_AT])));
+	}
+
+	public String getText() {
+		String text = unescapeHTML(parseString(pos[TEXT]));
+		return (text != null)? text : "";
+	}
+
+	public boolean isRetweet() {
+		return retweeted() != null;
+	}
+
+	public long getRetweetedId() {
+		TweetView rt = retweeted();
+		return (rt != null)? rt.getId() : -1;
+	}
+
+	public String getRetweetedText() {
+		TweetView rt = retweeted();
+		return (rt != null)? rt.getText() : "";
+	}
+
+	public String[] getURLs() {
+		int p = find(pos[ENTITIES], KEY_URLS);
+		if (isNull(p) || buf[p] != '[') return NO_URLS;
+		List<String> urls = new ArrayList<String>();
+		try {
+			p = skipWs(p + 1, limit);
+			while (p < limit && buf[p] != ']') {
+				String urlStr = parseString(find(p, KEY_EXPANDED_URL));
+				if (urlStr == null) urlStr = parseString(find(p, KEY_URL));
+				urls.add((urlStr != null)? urlStr : "");
+				p = skipWs(skipValue(p, limit), limit);
+				if (p < limit && buf[p] == ',') p = skipWs(p + 1, limit);
+			}
+		} catch (TwitterException e) {
+			throw new IllegalArgumentException("Malformed entities.urls in tweet JSON.", e);
+		}
+		return (urls.isEmpty())? NO_URLS : urls.toArray(new String[urls.size()]);
+	}
+
+	public int getRetweetCount() {
+		long count = parseLong(pos[RETWEET_COUNT]);
+		return (int) count;
+	}
+
+	public String getLang() {
+		String lang = unescapeHTML(parseString(pos[LANG]));
+		return (lang != null)? lang : "";
+	}
+}
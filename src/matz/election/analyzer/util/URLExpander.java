@@ -4,41 +4,35 @@
 package matz.election.analyzer.util;
 
 import java.io.IOException;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.List;
 import java.util.Map.Entry;
 
-/**This won't work.<br>
+/**URLの整形と、短縮URLの展開のためのユーティリティ。<br>
+ * 接続はRedirectResolverで行う(HEAD優先、Keep-Alive)。バッチ処理で多数のURLを展開する場合はAsyncURLExpanderを使う。
  * @author Matsuzawa
  *
  */
 public class URLExpander {
 	
 	private static int MAX_HOP = 20;
+	private static final RedirectResolver resolver = new RedirectResolver();
 
 	public static void main(String args[]) {
 		//適当なURLに対し、コネクションを開いて返り値をチェックするためのmain関数。引数にURLを与えよ。
 		//バッチ処理用ではなく、少数の例に対する簡易チェック用である。自動でリダイレクトせず、逐一Locationを確認する。
-		String tmp = trimURL(args[0]), destURL = null;
-		int hopNum = 0;
-		while(tmp!=null && hopNum < MAX_HOP) { //loop until find some reachable destination. but be carful of redirection loop.
-			hopNum++;
-			destURL = tmp;
-			try {
-				tmp = connectWithoutRedirect(tmp,true);
-			} catch (MalformedURLException e) {
-				// TODO 自動生成された catch ブロック
-				e.printStackTrace();
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
-		}
-		if (hopNum < MAX_HOP) {
-			System.out.println("Reached :\t"+destURL);
-		} else {
-			System.out.println("Redirection loop detected. :\t"+ destURL);
+		RedirectResolver.Result result = new RedirectResolver(MAX_HOP, RedirectResolver.DEFAULT_HOP_TIMEOUT, RedirectResolver.DEFAULT_URL_TIMEOUT).resolve(trimURL(args[0]));
+		switch (result.getOutcome()) {
+		case RESOLVED:
+			System.out.println("Reached :\t"+result.getTarget()+"\t("+result.getHops()+" hops, status "+result.getStatus()+", "+result.getMillis()+" ms)");
+			break;
+		case LOOP:
+		case TOO_MANY_HOPS:
+			System.out.println("Redirection loop detected. :\t"+ result.getUrl());
+			break;
+		default:
+			System.out.println(result.getOutcome()+" :\t"+result.getTarget());
 		}
 	}
 
@@ -87,22 +81,15 @@ public class URLExpander {
 		}
 	}
 	
-	/**
+	/**1回だけ接続して、リダイレクト先(Location)を返す。リダイレクトでなければnull。
 	 * @param args
 	 */
 	public static String connectWithoutRedirect(String args, boolean debug) throws MalformedURLException, Exception {
-		URL inputUrl = null;
-		HttpURLConnection conn = null;
-		inputUrl = new URL(args);
-		
-		conn = (HttpURLConnection) inputUrl.openConnection();
-		conn.setConnectTimeout(10*1000);
-		conn.setInstanceFollowRedirects(false);
-		
-		conn.connect();
+		RedirectResolver.Hop hop = resolver.probe(args);
 
 		if (debug) {
-			for (Entry<String, List<String>> headers : conn.getHeaderFields().entrySet()) {
+			System.out.println("status :\t"+hop.getStatus());
+			for (Entry<String, List<String>> headers : hop.getHeaders().entrySet()) {
 				System.out.print(headers.getKey() + " :");
 				for (String value : headers.getValue()) {
 					System.out.println("\t"+value);
@@ -111,57 +98,23 @@ public class URLExpander {
 			System.out.println();
 		}
 
-		String ret = conn.getHeaderField("Location");
-
-		try {
-			conn.getInputStream().close();
-//			conn.getOutputStream().close();
-			conn.disconnect();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		return ret;
+		return hop.getLocation();
 	}
 	
     /**<s>THIS WON'T WORK.</s>THIS ACTUALLY WORKS.<br>
-     * HTTPコネクションを開く際に、リダイレクトに従うという設定をoffにしておくことで、リダイレクト先のLocationをフィールドから取得できる。
+     * HTTPコネクションを開く際に、リダイレクトに従うという設定をoffにしておくことで、リダイレクト先のLocationをフィールドから取得できる。<br>
+     * 1ホップだけ辿る。最後まで辿る場合はRedirectResolver.resolve()を使う。
      * @param url
      * @return null or expandedUrl String
      */
     public static String expand(String url) {
-    	String shortOrLongUrl = url;
-    	URL inputUrl = null;
-    	HttpURLConnection conn = null;
     	try {
-    		inputUrl = new URL(shortOrLongUrl);
-    		conn = (HttpURLConnection) inputUrl.openConnection();
-    		conn.setConnectTimeout(10*1000);
-    		conn.setInstanceFollowRedirects(false);
-    		conn.connect();
-    		
-    		String loc = conn.getHeaderField("Location");
-    		
-    		return (loc !=null)? loc : shortOrLongUrl;
-    		
-//    		connection.connect();
-//    		connection.setInstanceFollowRedirects(true);
-//    		longUrl = connection.getURL().toString();
-    	} catch (MalformedURLException e) {
-//    		e.printStackTrace();
-    		return null;
+    		String loc = resolver.probe(url).getLocation();
+    		return (loc !=null)? loc : url;
     	} catch (IOException e) {
-//    		e.printStackTrace();
     		return null;
     	} catch (Exception e) {
     		return null;
-    	} finally {
-    		try {
-    			conn.getInputStream().close();
-    			conn.getOutputStream().close();
-    			conn.disconnect();
-    		} catch (IOException e) {
-    			e.printStackTrace();
-    		}
     	}
     }
 }
@@ -0,0 +1,101 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**URL展開の結果(展開後のURL、ホップ数、ステータス、結果の種類、取得時刻)を保存するためのWritable。<br>
+ * URLResolutionCacheのMapFileの値として使う。キーは展開前のURL(Text)。
+ * @author YuMatsuzawa
+ *
+ */
+public class URLResolution implements Writable {
+	private String target = "";
+	private int hops = 0;
+	private int status = -1;
+	private RedirectResolver.Outcome outcome = RedirectResolver.Outcome.RESOLVED;
+	private long fetchTime = 0;
+
+	public URLResolution() {}
+
+	/**展開結果と取得時刻を設定する。
+	 * @param result
+	 * @param fetchTime
+	 */
+	public void set(RedirectResolver.Result result, long fetchTime) {
+		this.target = result.getTarget();
+		this.hops = result.getHops();
+		this.status = result.getStatus();
+		this.outcome = result.getOutcome();
+		this.fetchTime = fetchTime;
+	}
+
+	public void set(URLResolution other) {
+		this.target = other.target;
+		this.hops = other.hops;
+		this.status = other.status;
+		this.outcome = other.outcome;
+		this.fetchTime = other.fetchTime;
+	}
+
+	/**展開前のURLを与えてRedirectResolver.Resultに戻す。所要時間は0とする。
+	 * @param url
+	 * @return
+	 */
+	public RedirectResolver.Result toResult(String url) {
+		return new RedirectResolver.Result(url, target, hops, status, outcome, 0);
+	}
+
+	public String getTarget() {
+		return target;
+	}
+
+	public int getHops() {
+		return hops;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	public RedirectResolver.Outcome getOutcome() {
+		return outcome;
+	}
+
+	/**展開を行った時刻(エポックミリ秒)。
+	 * @return
+	 */
+	public long getFetchTime() {
+		return fetchTime;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		Text.writeString(out, target);
+		WritableUtils.writeVInt(out, hops);
+		WritableUtils.writeVInt(out, status);
+		WritableUtils.writeEnum(out, outcome);
+		WritableUtils.writeVLong(out, fetchTime);
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		target = Text.readString(in);
+		hops = WritableUtils.readVInt(in);
+		status = WritableUtils.readVInt(in);
+		outcome = WritableUtils.readEnum(in, RedirectResolver.Outcome.class);
+		fetchTime = WritableUtils.readVLong(in);
+	}
+
+	@Override
+	public String toString() {
+		return target + "\t" + hops + "\t" + status + "\t" + outcome + "\t" + fetchTime;
+	}
+}
@@ -0,0 +1,186 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.lib.HashPartitioner;
+
+/**短縮URLの展開結果を、ジョブや再実行をまたいで再利用するための永続キャッシュ。<br>
+ * キャッシュはHDFS(またはローカル)上のディレクトリ<root>で、以下の2つからなる。<br>
+ * <root>/resolved: 展開前URLをキー、URLResolutionを値とするMapFile群(URLCacheMergeジョブの出力。ソート済・索引付き)。<br>
+ * <root>/pending: 各タスクが新たに展開した結果を書き足すSequenceFile群(タスクごとに1ファイル)。<br>
+ * タスクはURLを展開する前にresolvedを引き、なければ展開してpendingに書き足す。pendingはURLCacheMergeでresolvedに併合する。<br>
+ * 接続の失敗やタイムアウト(UNREACHABLE/TIMEOUT)と、最後の応答が5xx・429だった結果(RedirectResolver.isTemporaryFailure)は一時的なものとみなし、書き足さない。<br>
+ * get()はタスクのスレッドから、put()は展開を行うスレッドから呼ばれてよい(いずれもsynchronized)。
+ * @author YuMatsuzawa
+ *
+ */
+public class URLResolutionCache {
+	public static final String RESOLVED_DIR = "resolved";
+	public static final String PENDING_DIR = "pending";
+
+	private final JobConf job;
+	private final FileSystem fs;
+	private final Path pendingFile;
+	private final MapFile.Reader[] readers;
+	private final HashPartitioner<Text, URLResolution> partitioner = new HashPartitioner<Text, URLResolution>();
+	private SequenceFile.Writer writer = null;
+
+	private final Text key = new Text();
+	private final URLResolution value = new URLResolution();
+	private long hits = 0, misses = 0, writes = 0;
+
+	private URLResolutionCache(JobConf job, FileSystem fs, Path pendingFile, MapFile.Reader[] readers) {
+		this.job = job;
+		this.fs = fs;
+		this.pendingFile = pendingFile;
+		this.readers = readers;
+	}
+
+	/**キャッシュを開く。<root>/resolvedがなければ、全て未登録として扱う。
+	 * @param job
+	 * @param root キャッシュのディレクトリ
+	 * @return
+	 * @throws IOException
+	 */
+	public static URLResolutionCache open(JobConf job, String root) throws IOException {
+		Path rootPath = new Path(root);
+		FileSystem fs = rootPath.getFileSystem(job);
+		Path resolved = new Path(rootPath, RESOLVED_DIR);
+
+		ArrayList<MapFile.Reader> readers = new ArrayList<MapFile.Reader>();
+		if (fs.exists(resolved)) {
+			// MapFileOutputFormat.getReadersは_logs等も開こうとするので、part-*だけを名前順に開く。
+			FileStatus[] parts = fs.listStatus(resolved);
+			Arrays.sort(parts);
+			for (FileStatus part : parts) {
+				if (part.isDir() && part.getPath().getName().startsWith("part-")) {
+					readers.add(new MapFile.Reader(fs, part.getPath().toString(), job));
+				}
+			}
+		}
+		String taskId = job.get("mapred.task.id");
+		if (taskId == null) taskId = "local_" + System.currentTimeMillis();
+		Path pendingFile = new Path(new Path(rootPath, PENDING_DIR), taskId);
+		return new URLResolutionCache(job, fs, pendingFile, readers.toArray(new MapFile.Reader[readers.size()]));
+	}
+
+	/**ジョブ引数でキャッシュのディレクトリが指定されていれば開く。指定がない、または開けなければnull。
+	 * @param job
+	 * @param arg job.get("argN")の値(null可)
+	 * @return
+	 */
+	public static URLResolutionCache openIfGiven(JobConf job, String arg) {
+		if (arg == null || arg.isEmpty()) return null;
+		try {
+			return open(job, arg);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**キャッシュされた展開結果を引く。
+	 * @param url
+	 * @return なければnull
+	 */
+	public synchronized RedirectResolver.Result get(String url) {
+		if (readers.length > 0) {
+			key.set(url);
+			try {
+				MapFile.Reader reader = readers[partitioner.getPartition(key, value, readers.length)];
+				if (reader.get(key, value) != null) {
+					hits++;
+					return value.toResult(url);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		misses++;
+		return null;
+	}
+
+	/**時間を置けば結果が変わりうる、キャッシュすべきでない展開結果か。
+	 * @param outcome
+	 * @param status 最後に得られたHTTPステータスコード
+	 * @return
+	 */
+	public static boolean isTemporary(RedirectResolver.Outcome outcome, int status) {
+		return outcome == RedirectResolver.Outcome.UNREACHABLE || outcome == RedirectResolver.Outcome.TIMEOUT
+				|| RedirectResolver.isTemporaryFailure(status);
+	}
+
+	/**新たな展開結果を書き足す。一時的な結果(isTemporary)は書き足さない。
+	 * @param result
+	 */
+	public synchronized void put(RedirectResolver.Result result) {
+		if (isTemporary(result.getOutcome(), result.getStatus())) return;
+		try {
+			if (writer == null) {
+				writer = SequenceFile.createWriter(fs, job, tempFile(), Text.class, URLResolution.class);
+			}
+			key.set(result.getUrl());
+			value.set(result, System.currentTimeMillis());
+			writer.append(key, value);
+			writes++;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**キャッシュにない場合だけresolverで展開し、結果を書き足す。
+	 * @param resolver
+	 * @param url
+	 * @return
+	 */
+	public RedirectResolver.Result resolve(RedirectResolver resolver, String url) {
+		RedirectResolver.Result result = get(url);
+		if (result == null) {
+			result = resolver.resolve(url);
+			put(result);
+		}
+		return result;
+	}
+
+	/* 書き込み中のファイルは"_"で始まる名前にしておき、URLCacheMergeの入力に含まれないようにする。 */
+	private Path tempFile() {
+		return new Path(pendingFile.getParent(), "_" + pendingFile.getName());
+	}
+
+	public synchronized long hits() {
+		return hits;
+	}
+
+	public synchronized long misses() {
+		return misses;
+	}
+
+	public synchronized long writes() {
+		return writes;
+	}
+
+	/**書き足したファイルを閉じて、URLCacheMergeから読める名前に変える。
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		for (MapFile.Reader reader : readers) reader.close();
+		if (writer != null) {
+			writer.close();
+			writer = null;
+			fs.delete(pendingFile, false);
+			if (!fs.rename(tempFile(), pendingFile)) throw new IOException("Could not publish " + pendingFile);
+		}
+	}
+}
@@ -0,0 +1,53 @@
+/**
+ *
+ */
+package matz.election.analyzer.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordWriter;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.Progressable;
+
+/**ユーザID-値のペアを、MappedUserListで読める固定長バイナリ形式で書き出すOutputFormat。<br>
+ * レコードはキーの昇順で渡される必要があるので、単一Reducerのジョブで使う(Reducerの入力はキーでソート済)。
+ * @author YuMatsuzawa
+ *
+ */
+public class UserListOutputFormat extends FileOutputFormat<LongWritable, IntWritable> {
+
+	@Override
+	public RecordWriter<LongWritable, IntWritable> getRecordWriter(FileSystem ignored, JobConf job,
+			String name, Progressable progress) throws IOException {
+		Path file = FileOutputFormat.getTaskOutputPath(job, name);
+		FileSystem fs = file.getFileSystem(job);
+		final DataOutputStream out = fs.create(file, progress);
+		out.writeLong(MappedUserList.MAGIC);
+
+		return new RecordWriter<LongWritable, IntWritable>() {
+			private boolean first = true;
+			private long last = 0;
+
+			public void write(LongWritable key, IntWritable value) throws IOException {
+				if (!first && key.get() <= last) {
+					throw new IOException("User list keys must be written in strictly ascending order: " + key.get() + " after " + last);
+				}
+				out.writeLong(key.get());
+				out.writeInt(value.get());
+				first = false;
+				last = key.get();
+			}
+
+			public void close(Reporter reporter) throws IOException {
+				out.close();
+			}
+		};
+	}
+}